@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.sfuhrm.capsula.trace.ResourceUsage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Admits targets to start building only if the host has the memory
+ * and processors they need in addition to the targets already
+ * building. Targets are admitted in the order they ask. A target that
+ * needs more than the host has is admitted when no other target is
+ * building.
+ * <p>
+ * The needs of a target are either declared in its layout or learned
+ * from the {@link ResourceUsage resources} its processes used in
+ * earlier builds.
+ * <p>
+ * The memory of the host is measured again whenever a target asks for
+ * admission and while targets wait. Without admitted targets, the
+ * available memory is the capacity. Otherwise the capacity is the
+ * available memory plus the memory reserved by the admitted targets,
+ * but not more than it was when nothing was admitted. So other
+ * processes of the host lower the capacity while the targets build.
+ *
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+public final class AdmissionController {
+
+    /** The file with the memory information on Linux. */
+    private static final Path MEMINFO = Paths.get("/proc/meminfo");
+
+    /** Bytes per kilobyte in {@code /proc/meminfo}. */
+    private static final long BYTES_PER_KB = 1024;
+
+    /** The milliseconds a waiting target waits at most before the
+     * available memory is measured again. */
+    private static final long REFRESH_MILLIS = 1000;
+
+    /** Measures the available memory of the host in bytes. */
+    private final Supplier<Optional<Long>> memoryProbe;
+
+    /** The memory of the host in bytes available for building. */
+    private long memoryCapacity;
+
+    /** The available memory in bytes when nothing was admitted. */
+    private long idleMemory;
+
+    /** The processors of the host available for building. */
+    @Getter
+    private final double cpuCapacity;
+
+    /** The memory in bytes of the admitted targets. */
+    private long memoryUsed;
+
+    /** The processors of the admitted targets. */
+    private double cpusUsed;
+
+    /** The number of admitted targets. */
+    private int admitted;
+
+    /** The tickets of the targets waiting for admission, in the
+     * order they asked. */
+    private final Deque<Object> waiting = new ArrayDeque<>();
+
+    /** The needs learned from earlier builds by target key. */
+    private final Map<String, Demand> learned = new TreeMap<>();
+
+    /** The resources a target needs. */
+    public static final class Demand {
+        /** The memory in bytes. */
+        @Getter
+        private long memory;
+
+        /** The number of processors. */
+        @Getter
+        private double cpus;
+
+        /** Constructor for JSON deserialization. */
+        private Demand() {
+        }
+
+        /** Creates a new instance.
+         * @param myMemory the memory in bytes.
+         * @param myCpus the number of processors.
+         * */
+        public Demand(final long myMemory, final double myCpus) {
+            this.memory = myMemory;
+            this.cpus = myCpus;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d bytes, %.1f cpus", memory, cpus);
+        }
+    }
+
+    /** A granted admission. Closing it frees the resources. */
+    public final class Permit implements AutoCloseable {
+        /** The granted resources. */
+        private final Demand demand;
+
+        /** Whether the permit was closed. */
+        private boolean closed;
+
+        /** Creates a new permit.
+         * @param myDemand the granted resources.
+         * */
+        private Permit(final Demand myDemand) {
+            this.demand = myDemand;
+        }
+
+        @Override
+        public void close() {
+            synchronized (AdmissionController.this) {
+                if (!closed) {
+                    closed = true;
+                    memoryUsed -= demand.memory;
+                    cpusUsed -= demand.cpus;
+                    admitted--;
+                    AdmissionController.this.notifyAll();
+                }
+            }
+        }
+    }
+
+    /** Creates a new instance.
+     * @param myMemoryCapacity the memory of the host in bytes available
+     *                         for building.
+     * @param myCpuCapacity the processors of the host available
+     *                      for building.
+     * */
+    public AdmissionController(final long myMemoryCapacity,
+                               final double myCpuCapacity) {
+        this(myMemoryCapacity, myCpuCapacity, Optional::empty);
+    }
+
+    /** Creates a new instance.
+     * @param myMemoryCapacity the memory of the host in bytes available
+     *                         for building at the start.
+     * @param myCpuCapacity the processors of the host available
+     *                      for building.
+     * @param myMemoryProbe measures the available memory of the host
+     *                      in bytes. If it measures nothing, the
+     *                      capacity stays as it is.
+     * */
+    AdmissionController(final long myMemoryCapacity,
+                        final double myCpuCapacity,
+                        final Supplier<Optional<Long>> myMemoryProbe) {
+        this.memoryCapacity = myMemoryCapacity;
+        this.idleMemory = myMemoryCapacity;
+        this.cpuCapacity = myCpuCapacity;
+        this.memoryProbe = myMemoryProbe;
+    }
+
+    /** Creates an instance with the capacity of this host. The memory
+     * is the available memory in {@code /proc/meminfo}, which is read
+     * again while targets ask for admission. Without that
+     * file the memory is not limited.
+     * @return a new instance.
+     * */
+    public static AdmissionController forHost() {
+        long memory = readAvailableMemory().orElse(Long.MAX_VALUE);
+        int cpus = Runtime.getRuntime().availableProcessors();
+        log.debug("Host capacity is {} bytes and {} cpus", memory, cpus);
+        return new AdmissionController(memory, cpus,
+                AdmissionController::readAvailableMemory);
+    }
+
+    /** Get the memory of the host available for building.
+     * @return the memory in bytes as of the last measurement.
+     * */
+    public synchronized long getMemoryCapacity() {
+        return memoryCapacity;
+    }
+
+    /** Measures the available memory again and updates the
+     * capacity. */
+    private void refreshMemoryCapacity() {
+        Optional<Long> available = memoryProbe.get();
+        if (!available.isPresent()) {
+            return;
+        }
+        if (admitted == 0) {
+            idleMemory = available.get();
+            memoryCapacity = idleMemory;
+        } else {
+            memoryCapacity = Math.min(idleMemory,
+                    available.get() + memoryUsed);
+        }
+    }
+
+    /** Reads the available memory of a Linux host.
+     * @return the available memory in bytes or {@link Optional#empty()}
+     * if it is not known.
+     * */
+    private static Optional<Long> readAvailableMemory() {
+        if (!Files.isReadable(MEMINFO)) {
+            return Optional.empty();
+        }
+        try {
+            Long total = null;
+            for (String line : Files.readAllLines(MEMINFO,
+                    StandardCharsets.US_ASCII)) {
+                String[] parts = line.split("\\s+");
+                if (parts[0].equals("MemAvailable:")) {
+                    return Optional.of(
+                            Long.parseLong(parts[1]) * BYTES_PER_KB);
+                }
+                if (parts[0].equals("MemTotal:")) {
+                    total = Long.parseLong(parts[1]) * BYTES_PER_KB;
+                }
+            }
+            return Optional.ofNullable(total);
+        } catch (IOException | RuntimeException ex) {
+            log.warn("Can not read " + MEMINFO, ex);
+            return Optional.empty();
+        }
+    }
+
+    /** Waits until the resources are available and reserves them.
+     * @param demand the resources the target needs.
+     * @return the permit that frees the resources when closed.
+     * @throws InterruptedException if interrupted while waiting.
+     * */
+    public synchronized Permit acquire(final Demand demand)
+            throws InterruptedException {
+        Object ticket = new Object();
+        waiting.addLast(ticket);
+        try {
+            refreshMemoryCapacity();
+            while (waiting.peekFirst() != ticket || !fits(demand)) {
+                log.debug("Waiting for {}, used are {} bytes and {} cpus",
+                        demand, memoryUsed, cpusUsed);
+                wait(REFRESH_MILLIS);
+                refreshMemoryCapacity();
+            }
+        } finally {
+            waiting.remove(ticket);
+            notifyAll();
+        }
+        memoryUsed += demand.memory;
+        cpusUsed += demand.cpus;
+        admitted++;
+        return new Permit(demand);
+    }
+
+    /** Checks whether the resources are available.
+     * @param demand the resources the target needs.
+     * @return {@code true} if nothing is admitted or the resources fit
+     * in addition to the admitted targets.
+     * */
+    private boolean fits(final Demand demand) {
+        return admitted == 0
+                || (memoryUsed + demand.memory <= memoryCapacity
+                && cpusUsed + demand.cpus <= cpuCapacity);
+    }
+
+    /** Get the resources a target needed in an earlier build.
+     * @param key the key of the target.
+     * @return the learned resources or {@link Optional#empty()}.
+     * */
+    public synchronized Optional<Demand> getLearned(final String key) {
+        return Optional.ofNullable(learned.get(key));
+    }
+
+    /** Learns the resources a target needed from a build.
+     * @param key the key of the target.
+     * @param usage the resources used by the processes of the build.
+     * @param duration the time the build took.
+     * */
+    public synchronized void learn(final String key,
+                                   final ResourceUsage usage,
+                                   final Duration duration) {
+        double cpus = 0;
+        if (!duration.isZero()) {
+            cpus = (double) (usage.getCpuUserMillis()
+                    + usage.getCpuSystemMillis()) / duration.toMillis();
+        }
+        learned.put(key, new Demand(usage.getPeakRssBytes(), cpus));
+    }
+
+    /** Reads the learned resources from a file. Problems are logged.
+     * @param file the file written by {@link #save(Path)}.
+     * */
+    public synchronized void load(final Path file) {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try {
+            Map<String, Demand> map = new ObjectMapper().readValue(
+                    file.toFile(), new TypeReference<Map<String, Demand>>() {
+                    });
+            learned.putAll(map);
+        } catch (IOException ex) {
+            log.warn("Can not read learned resources from " + file, ex);
+        }
+    }
+
+    /** Writes the learned resources to a file. Problems are logged.
+     * @param file the file to write.
+     * */
+    public synchronized void save(final Path file) {
+        try {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            new ObjectMapper().writeValue(tmp.toFile(), learned);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            log.warn("Can not write learned resources to " + file, ex);
+        }
+    }
+}
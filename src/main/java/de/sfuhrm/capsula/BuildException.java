@@ -24,6 +24,9 @@ package de.sfuhrm.capsula;
  */
 public class BuildException extends RuntimeException {
 
+    /** Version of the serialized form. */
+    private static final long serialVersionUID = 1L;
+
     /** Creates a new build exception.
      * @param message text describing the cause of the problem.
      * */
@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import de.sfuhrm.capsula.targetlocator.TargetLocatorFactory;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Keeps running and builds the requests of {@link DaemonClient clients}.
+ * The daemon listens on a Unix domain socket in a directory that only
+ * the owner can access, so only the user running the daemon can send
+ * it builds. Each request is one JSON line
+ * with the working directory ({@value #CWD}) and the command line
+ * arguments ({@value #ARGS}) of the client. The response are JSON lines
+ * with the standard output ({@value #OUT}) and standard error
+ * ({@value #ERR}) lines of the build, followed by a line with the
+ * exit value ({@value #EXIT}).
+ * Validator, class path scan and class loading stay warm between the
+ * requests, and all requests share one {@link TargetScheduler}.
+ *
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+final class Daemon implements AutoCloseable {
+
+    /** The request field with the working directory of the client. */
+    static final String CWD = "cwd";
+
+    /** The request field with the command line arguments. */
+    static final String ARGS = "args";
+
+    /** The response field with a line of standard output. */
+    static final String OUT = "out";
+
+    /** The response field with a line of standard error. */
+    static final String ERR = "err";
+
+    /** The response field with the exit value of the build. */
+    static final String EXIT = "exit";
+
+    /** The exit value of a failed build. */
+    static final int EXIT_FAILURE = 1;
+
+    /** The number of pending connections. */
+    private static final int BACKLOG = 50;
+
+    /** The permissions of the socket directory. */
+    private static final Set<PosixFilePermission> DIRECTORY_PERMISSIONS =
+            PosixFilePermissions.fromString("rwx------");
+
+    /** The permissions of the socket. */
+    private static final Set<PosixFilePermission> SOCKET_PERMISSIONS =
+            PosixFilePermissions.fromString("rw-------");
+
+    /** The permissions that must not be given to group or others. */
+    private static final Set<PosixFilePermission> FOREIGN_PERMISSIONS =
+            EnumSet.complementOf(EnumSet.of(
+                    PosixFilePermission.OWNER_READ,
+                    PosixFilePermission.OWNER_WRITE,
+                    PosixFilePermission.OWNER_EXECUTE));
+
+    /** The path of the socket. */
+    private final Path socketPath;
+
+    /** The channel accepting the clients. */
+    private final ServerSocketChannel serverChannel;
+
+    /** The scheduler shared by all requests. */
+    private final TargetScheduler targetScheduler;
+
+    /** The executor handling the requests. */
+    private final ExecutorService requestExecutor;
+
+    /** Reads requests and writes responses. */
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /** Creates a new daemon listening on a Unix domain socket.
+     * The directory of the socket is created if it is missing.
+     * @param mySocketPath the path of the socket to listen on.
+     * @param myTargetScheduler the scheduler for the targets of all
+     *                          requests.
+     * @throws IOException if the socket can not be bound.
+     * @throws BuildException if the directory of the socket can be
+     * accessed by others than its owner.
+     * */
+    Daemon(final Path mySocketPath, final TargetScheduler myTargetScheduler)
+            throws IOException, BuildException {
+        this.socketPath = mySocketPath.toAbsolutePath();
+        this.targetScheduler = Objects.requireNonNull(myTargetScheduler);
+        prepareDirectory(socketPath.getParent());
+        removeStaleSocket(socketPath);
+        this.serverChannel = ServerSocketChannel.open(
+                StandardProtocolFamily.UNIX);
+        try {
+            serverChannel.bind(UnixDomainSocketAddress.of(socketPath),
+                    BACKLOG);
+            Files.setPosixFilePermissions(socketPath, SOCKET_PERMISSIONS);
+        } catch (IOException ex) {
+            serverChannel.close();
+            throw ex;
+        }
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.requestExecutor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r,
+                    "capsula-request-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Get the socket the daemon is listening on.
+     * @return the absolute path of the socket.
+     * */
+    Path getSocketPath() {
+        return socketPath;
+    }
+
+    /** Creates the directory of the socket with owner-only permissions,
+     * or checks that an existing directory has them. Clients need to
+     * search the directory to connect, so nobody else can connect
+     * even before the socket permissions are set.
+     * @param directory the directory of the socket.
+     * @throws IOException if the directory can not be created.
+     * @throws BuildException if the directory can be accessed by others
+     * than its owner.
+     * */
+    private static void prepareDirectory(final Path directory)
+            throws IOException, BuildException {
+        if (!Files.exists(directory)) {
+            Files.createDirectories(directory.getParent());
+            Files.createDirectory(directory,
+                    PosixFilePermissions.asFileAttribute(
+                            DIRECTORY_PERMISSIONS));
+            return;
+        }
+        Set<PosixFilePermission> permissions =
+                Files.getPosixFilePermissions(directory);
+        permissions.retainAll(FOREIGN_PERMISSIONS);
+        if (!permissions.isEmpty()) {
+            throw new BuildException("Socket directory " + directory
+                    + " must only be accessible by its owner, but has "
+                    + PosixFilePermissions.toString(
+                            Files.getPosixFilePermissions(directory)));
+        }
+    }
+
+    /** Removes the socket of a daemon that is no longer running.
+     * @param path the path of the socket.
+     * @throws IOException if the socket can not be removed.
+     * @throws BuildException if a daemon is listening on the socket.
+     * */
+    private static void removeStaleSocket(final Path path)
+            throws IOException, BuildException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        boolean listening;
+        try (SocketChannel channel = SocketChannel.open(
+                UnixDomainSocketAddress.of(path))) {
+            listening = channel.isConnected();
+        } catch (IOException ex) {
+            log.debug("No daemon listening on {}", path, ex);
+            listening = false;
+        }
+        if (listening) {
+            throw new BuildException("A daemon is already listening on "
+                    + path);
+        }
+        log.debug("Removing stale socket {}", path);
+        Files.delete(path);
+    }
+
+    /** Initializes the expensive parts that are shared between builds. */
+    private static void warmUp() {
+        new ValidationDelegate();
+        try {
+            new TargetLocatorFactory().newInstance().getTargets();
+        } catch (IOException ex) {
+            log.warn("Could not scan the class path for targets", ex);
+        }
+    }
+
+    /** Accepts and handles client requests until the daemon is closed.
+     * @throws IOException if accepting a client fails.
+     * */
+    void serve() throws IOException {
+        warmUp();
+        log.info("Daemon listening on {}", socketPath);
+        while (serverChannel.isOpen()) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException ex) {
+                break;
+            }
+            requestExecutor.execute(() -> handle(channel));
+        }
+    }
+
+    /** Handles the request of one client.
+     * @param channel the connection to the client.
+     * */
+    private void handle(final SocketChannel channel) {
+        try (SocketChannel c = channel;
+             BufferedReader reader = new BufferedReader(
+                     new InputStreamReader(Channels.newInputStream(c),
+                             StandardCharsets.UTF_8));
+             Writer writer = new OutputStreamWriter(
+                     Channels.newOutputStream(c),
+                     StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (line == null) {
+                return;
+            }
+            JsonNode request = mapper.readTree(line);
+            Path cwd = Paths.get(request.get(CWD).asText());
+            List<String> args = new ArrayList<>();
+            request.get(ARGS).forEach(a -> args.add(a.asText()));
+            log.info("Request in {} with args {}", cwd, args);
+
+            PrintStream output = newPrintStream(
+                    l -> respond(writer, OUT, l));
+            PrintStream console = newPrintStream(
+                    l -> respond(writer, ERR, l));
+            int exitValue = build(cwd, args, output, console);
+            output.close();
+            console.close();
+            ObjectNode response = mapper.createObjectNode();
+            response.put(EXIT, exitValue);
+            write(writer, response);
+        } catch (IOException | RuntimeException ex) {
+            log.warn("Problem handling request", ex);
+        }
+    }
+
+    /** Builds the request of a client.
+     * @param cwd the working directory of the client.
+     * @param args the command line arguments of the client.
+     * @param output the stream for results.
+     * @param console the stream for messages.
+     * @return the exit value for the client.
+     * */
+    private int build(final Path cwd,
+                      final List<String> args,
+                      final PrintStream output,
+                      final PrintStream console) {
+        Params params = Params.parse(args.toArray(new String[0]), console);
+        if (params == null) {
+            return EXIT_FAILURE;
+        }
+        params.resolvePaths(cwd);
+        try {
+            new Main(params, targetScheduler, output, console).run();
+            return 0;
+        } catch (IOException | RuntimeException ex) {
+            log.error("Build failed", ex);
+            console.println("Build failed: " + ex.getMessage());
+            return EXIT_FAILURE;
+        }
+    }
+
+    /** Creates a print stream that hands over each printed line.
+     * @param lineConsumer the consumer of the lines.
+     * @return a print stream with automatic flushing.
+     * */
+    private static PrintStream newPrintStream(
+            final Consumer<String> lineConsumer) {
+        try {
+            return new PrintStream(new LineOutputStream(lineConsumer),
+                    true, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /** Sends a line of output to the client.
+     * @param writer the writer to the client.
+     * @param field the response field of the line.
+     * @param line the line to send.
+     * */
+    private void respond(final Writer writer,
+                         final String field,
+                         final String line) {
+        ObjectNode response = mapper.createObjectNode();
+        response.put(field, line);
+        try {
+            write(writer, response);
+        } catch (IOException ex) {
+            log.debug("Could not send to client", ex);
+        }
+    }
+
+    /** Writes one response line.
+     * @param writer the writer to the client.
+     * @param response the response to write.
+     * @throws IOException if writing fails.
+     * */
+    private void write(final Writer writer,
+                       final JsonNode response) throws IOException {
+        String text = mapper.writeValueAsString(response);
+        synchronized (writer) {
+            writer.write(text);
+            writer.write('\n');
+            writer.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        requestExecutor.shutdownNow();
+        Files.deleteIfExists(socketPath);
+    }
+
+    /** Output stream that hands over the written data line by line. */
+    static final class LineOutputStream extends OutputStream {
+
+        /** The consumer of the lines. */
+        private final Consumer<String> lineConsumer;
+
+        /** The bytes of the current line. */
+        private final ByteArrayOutputStream buffer =
+                new ByteArrayOutputStream();
+
+        /** Creates a new instance.
+         * @param myLineConsumer the consumer of the lines.
+         * */
+        LineOutputStream(final Consumer<String> myLineConsumer) {
+            this.lineConsumer = Objects.requireNonNull(myLineConsumer);
+        }
+
+        @Override
+        public synchronized void write(final int b) {
+            if (b == '\n') {
+                emit();
+            } else {
+                buffer.write(b);
+            }
+        }
+
+        /** Hands over the current line. */
+        private void emit() {
+            byte[] bytes = buffer.toByteArray();
+            buffer.reset();
+            int length = bytes.length;
+            if (length > 0 && bytes[length - 1] == '\r') {
+                length--;
+            }
+            lineConsumer.accept(
+                    new String(bytes, 0, length, StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public synchronized void close() {
+            if (buffer.size() > 0) {
+                emit();
+            }
+        }
+    }
+}
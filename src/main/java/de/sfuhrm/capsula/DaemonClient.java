@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Thin client that lets a {@link Daemon} do the build.
+ *
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+final class DaemonClient {
+
+    /**
+     * No instance allowed.
+     */
+    private DaemonClient() {
+    }
+
+    /** Sends a build request to the daemon and prints the output
+     * of the build.
+     * @param socketPath the Unix domain socket of the daemon.
+     * @param args the command line arguments for the build. Relative
+     *             paths are relative to the current working directory.
+     * @param output the stream to print the standard output lines
+     *               of the build to.
+     * @param console the stream to print the standard error lines
+     *                of the build to.
+     * @return the exit value of the build.
+     * @throws IOException if there is a problem talking to the daemon.
+     * */
+    static int run(final Path socketPath,
+                   final String[] args,
+                   final PrintStream output,
+                   final PrintStream console) throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode request = mapper.createObjectNode();
+        request.put(Daemon.CWD, System.getProperty("user.dir"));
+        ArrayNode argsNode = request.putArray(Daemon.ARGS);
+        for (String arg : args) {
+            argsNode.add(arg);
+        }
+        try (SocketChannel channel = SocketChannel.open(
+                UnixDomainSocketAddress.of(socketPath));
+             Writer writer = new OutputStreamWriter(
+                     Channels.newOutputStream(channel),
+                     StandardCharsets.UTF_8);
+             BufferedReader reader = new BufferedReader(
+                     new InputStreamReader(Channels.newInputStream(channel),
+                             StandardCharsets.UTF_8))) {
+            writer.write(mapper.writeValueAsString(request));
+            writer.write('\n');
+            writer.flush();
+            String line;
+            while (null != (line = reader.readLine())) {
+                JsonNode response = mapper.readTree(line);
+                if (response.has(Daemon.OUT)) {
+                    output.println(response.get(Daemon.OUT).asText());
+                } else if (response.has(Daemon.ERR)) {
+                    console.println(response.get(Daemon.ERR).asText());
+                } else if (response.has(Daemon.EXIT)) {
+                    return response.get(Daemon.EXIT).asInt();
+                }
+            }
+        }
+        log.warn("Daemon closed the connection without exit value");
+        console.println("Daemon closed the connection without exit value");
+        return Daemon.EXIT_FAILURE;
+    }
+}
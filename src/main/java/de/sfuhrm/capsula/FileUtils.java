@@ -19,18 +19,28 @@ package de.sfuhrm.capsula;
 
 import de.sfuhrm.capsula.yaml.command.PermissionSet;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.GroupPrincipal;
 import java.nio.file.attribute.PosixFileAttributeView;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
 import java.nio.file.attribute.UserPrincipal;
 import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -87,44 +97,95 @@ public final class FileUtils {
         }
     }
 
-    /** Recursively copies files and directories.
-     * @param from the source to copy from.
-     * @param to the target path to copy to.
-     * @param newPathConsumer receives every newly
-     *                        created file or directory.
-     * */
-    public static void copyRecursive(final Path from,
-                           final Path to,
-                           final Consumer<Path> newPathConsumer) {
-        try {
-            if (Files.isRegularFile(from)) {
-                Path fromParent = from.getParent();
-                Path toParent = to.getParent();
-                if (fromParent != null && toParent != null) {
-                    if (Files.isDirectory(fromParent)) {
-                        FileUtils.mkdirs(toParent, newPathConsumer);
-                    }
+    /**
+     * Does owner/group/permission changes for a path and everything
+     * below it. The owner, group and mode are looked up once for all
+     * paths. Symbolic links are not followed and their mode is not
+     * changed.
+     *
+     * @param toPath the path to modify recursively.
+     * @param permissions the permissions to take the
+     *                    owner/group/permissions from.
+     * @throws IOException when one of the operations didn't succeed.
+     */
+    public static void applyPermissionSetRecursive(final Path toPath,
+                                          final PermissionSet permissions)
+            throws IOException {
+        UserPrincipalLookupService lookupService
+                = toPath.getFileSystem().getUserPrincipalLookupService();
+        UserPrincipal owner = null;
+        if (permissions.getOwner() != null) {
+            owner = lookupService.lookupPrincipalByName(
+                    permissions.getOwner());
+        }
+        GroupPrincipal group = null;
+        if (permissions.getGroup() != null) {
+            group = lookupService.lookupPrincipalByGroupName(
+                    permissions.getGroup());
+        }
+        Set<PosixFilePermission> mode = null;
+        if (permissions.getMode() != null) {
+            mode = PosixFilePermissions.fromString(permissions.getMode());
+        }
+        log.debug("chmod -R {} to {}", toPath, permissions.getMode());
+        try (Stream<Path> paths = Files.walk(toPath)) {
+            for (Path p : (Iterable<Path>) paths::iterator) {
+                PosixFileAttributeView view = Files.getFileAttributeView(p,
+                        PosixFileAttributeView.class,
+                        LinkOption.NOFOLLOW_LINKS);
+                if (owner != null) {
+                    view.setOwner(owner);
+                }
+                if (group != null) {
+                    view.setGroup(group);
+                }
+                if (mode != null && !Files.isSymbolicLink(p)) {
+                    view.setPermissions(mode);
                 }
-                Files.copy(from, to);
-                newPathConsumer.accept(to);
-                return;
-            }
-            if (Files.isDirectory(from)) {
-                Path name = from.getFileName();
-                Path target = to.resolve(name);
-                FileUtils.mkdirs(target, newPathConsumer);
-                Files.list(from).forEach(p -> {
-                    copyRecursive(p,
-                            target.resolve(p.getFileName()),
-                            newPathConsumer);
-                });
             }
-        } catch (IOException exception) {
-            throw new BuildException("Exception while copying from "
-                    + from + " to " + to, exception);
         }
     }
 
+    /** Copies a file unless the target already has the same content.
+     * The copy gets the modification time of the source, so tools
+     * that look at modification times see unchanged inputs
+     * as unchanged.
+     * @param from the file to copy from.
+     * @param to the file to copy to.
+     * @return {@code true} if the file was copied.
+     * @throws IOException if an error occurs.
+     * */
+    public static boolean copyIfChanged(final Path from,
+                                        final Path to) throws IOException {
+        if (Files.isRegularFile(to) && Files.mismatch(from, to) == -1L) {
+            log.debug("{} is unchanged", to);
+            return false;
+        }
+        Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING);
+        Files.setLastModifiedTime(to, Files.getLastModifiedTime(from));
+        return true;
+    }
+
+    /** Writes a file unless it already has the given content. An
+     * unchanged file keeps its modification time.
+     * @param file the file to write.
+     * @param content the content to write.
+     * @return {@code true} if the file was written.
+     * @throws IOException if an error occurs.
+     * */
+    public static boolean writeIfChanged(final Path file,
+                                         final byte[] content)
+            throws IOException {
+        if (Files.isRegularFile(file)
+                && Files.size(file) == content.length
+                && Arrays.equals(Files.readAllBytes(file), content)) {
+            log.debug("{} is unchanged", file);
+            return false;
+        }
+        Files.write(file, content);
+        return true;
+    }
+
     /**
      * Creates directories.
      *
@@ -216,26 +277,90 @@ public final class FileUtils {
      * continue cleaning up, even if running into
      * errors.
      * @param p the path to delete.
+     * @see #delete(Path)
      */
     public static void deleteRecursive(final Path p) {
         try {
-            if (Files.isRegularFile(p)) {
-                log.debug("Deleting file {}", p);
-                Files.delete(p);
-            }
-            if (Files.isSymbolicLink(p)) {
-                log.debug("Deleting symbolic link {}", p);
-                Files.delete(p);
-            }
-            if (Files.isDirectory(p)) {
-                log.debug("Deleting directory contents {}", p);
-                Files.list(p).forEach(FileUtils::deleteRecursive);
-                log.debug("Deleting directory {}", p);
-                Files.delete(p);
-            }
+            delete(p);
         } catch (IOException exception) {
             log.warn("Error deleting recursively: " + p,
                     exception);
         }
     }
+
+    /**
+     * Deletes a path and its children. The subdirectories are deleted
+     * in parallel in the common fork join pool. Symbolic links are
+     * deleted, but not followed. Deleting continues if running into
+     * errors. A path that does not exist is ignored.
+     * @param p the path to delete.
+     * @throws IOException if something could not be deleted. Further
+     * problems are added as suppressed exceptions.
+     */
+    public static void delete(final Path p) throws IOException {
+        log.debug("Deleting {}", p);
+        Queue<IOException> failures = new ConcurrentLinkedQueue<>();
+        ForkJoinPool.commonPool().invoke(new DeleteTask(p, failures));
+        IOException first = failures.poll();
+        if (first != null) {
+            failures.forEach(first::addSuppressed);
+            throw first;
+        }
+    }
+
+    /** Deletes a directory tree, forking a task for each subdirectory. */
+    private static final class DeleteTask extends RecursiveAction {
+
+        /** Version of the serialized form. */
+        private static final long serialVersionUID = 1L;
+
+        /** The path to delete. */
+        private final transient Path path;
+
+        /** Where to put problems while deleting. */
+        private final transient Queue<IOException> failures;
+
+        /** Creates a new task.
+         * @param myPath the path to delete.
+         * @param myFailures where to put problems while deleting.
+         * */
+        private DeleteTask(final Path myPath,
+                           final Queue<IOException> myFailures) {
+            this.path = myPath;
+            this.failures = myFailures;
+        }
+
+        @Override
+        protected void compute() {
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                List<DeleteTask> subtasks = new ArrayList<>();
+                try (DirectoryStream<Path> children =
+                             Files.newDirectoryStream(path)) {
+                    for (Path child : children) {
+                        if (Files.isDirectory(child,
+                                LinkOption.NOFOLLOW_LINKS)) {
+                            subtasks.add(new DeleteTask(child, failures));
+                        } else {
+                            deleteIfExists(child);
+                        }
+                    }
+                } catch (IOException ex) {
+                    failures.add(ex);
+                }
+                invokeAll(subtasks);
+            }
+            deleteIfExists(path);
+        }
+
+        /** Deletes a single path, recording a problem.
+         * @param p the file, link or empty directory to delete.
+         * */
+        private void deleteIfExists(final Path p) {
+            try {
+                Files.deleteIfExists(p);
+            } catch (IOException ex) {
+                failures.add(ex);
+            }
+        }
+    }
 }
@@ -19,18 +19,35 @@ package de.sfuhrm.capsula;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import de.sfuhrm.capsula.cache.BuildCache;
+import de.sfuhrm.capsula.cache.GitMirrorCache;
+import de.sfuhrm.capsula.docker.DockerEngine;
+import de.sfuhrm.capsula.docker.DockerImages;
 import de.sfuhrm.capsula.targetbuilder.TargetBuilder;
 import de.sfuhrm.capsula.targetlocator.TargetLocator;
 import de.sfuhrm.capsula.targetlocator.TargetLocatorFactory;
+import de.sfuhrm.capsula.trace.ResourceUsage;
+import de.sfuhrm.capsula.trace.Span;
+import de.sfuhrm.capsula.trace.Tracer;
 import de.sfuhrm.capsula.yaml.Capsula;
 import de.sfuhrm.capsula.yaml.PropertyInheritance;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Stream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import javax.validation.ConstraintViolation;
 import lombok.extern.slf4j.Slf4j;
 
@@ -42,17 +59,90 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public final class Main {
 
+    /** Milliseconds per second for converting durations. */
+    private static final double MILLIS_PER_SECOND = 1000.;
+
+    /** The number of bytes in a MiB. */
+    private static final long BYTES_PER_MIB = 1024 * 1024;
+
+    /** The number of bytes in a KiB. */
+    private static final int BYTES_PER_KIB = 1024;
+
     /** The parameters from the command line. */
     private final Params params;
 
     /** Locator object for targets. */
     private final TargetLocator targetLocator;
 
+    /** Scheduler that runs the target builders. */
+    private final TargetScheduler targetScheduler;
+
+    /** Where to print results like the list of targets to. */
+    private final PrintStream output;
+
+    /** Where to print messages for the user to. */
+    private final PrintStream console;
+
+    /** Whether multiple descriptors are built in this run. */
+    private boolean batch;
+
+    /** Mirrors of the git repositories to build. */
+    private final GitMirrorCache gitMirrorCache;
+
+    /** The docker images the targets are built in. */
+    private final DockerImages dockerImages;
+
+    /** The docker engine for the {@code dockerRun} and
+     * {@code dockerBuild} commands, or {@code null} if docker is
+     * not reachable over a Unix socket. */
+    private final DockerEngine dockerEngine;
+
+    /** The timing of this run. */
+    private final Tracer tracer;
+
+    /** The packages of earlier builds or {@code null} if
+     * the build cache is disabled. */
+    private final BuildCache buildCache;
+
+    /** Creates a new instance that prints results to {@link System#out}
+     * and messages to {@link System#err}.
+     * @param myParams the parameters from the command line.
+     * @param myTargetScheduler the scheduler to run the target builders in.
+     * */
+    Main(final Params myParams, final TargetScheduler myTargetScheduler) {
+        this(myParams, myTargetScheduler, System.out, System.err);
+    }
+
     /** Creates a new instance.
      * @param myParams the parameters from the command line.
+     * @param myTargetScheduler the scheduler to run the target builders in.
+     * @param myOutput the stream to print results to.
+     * @param myConsole the stream to print messages for the user to.
      * */
-    public Main(final Params myParams) {
+    Main(final Params myParams,
+         final TargetScheduler myTargetScheduler,
+         final PrintStream myOutput,
+         final PrintStream myConsole) {
         this.params = Objects.requireNonNull(myParams);
+        this.targetScheduler = Objects.requireNonNull(myTargetScheduler);
+        this.output = Objects.requireNonNull(myOutput);
+        this.console = Objects.requireNonNull(myConsole);
+        if (myParams.getTrace() != null || myParams.getReport() != null) {
+            this.tracer = new Tracer();
+        } else {
+            this.tracer = Tracer.DISABLED;
+        }
+        this.dockerImages = myTargetScheduler.getDockerImages();
+        this.dockerEngine = myTargetScheduler.getDockerEngine();
+        this.gitMirrorCache = new GitMirrorCache(
+                myParams.getCacheDirectory().resolve("git"));
+        if (myParams.isNoCache()) {
+            this.buildCache = null;
+        } else {
+            this.buildCache = new BuildCache(
+                    myParams.getCacheDirectory().resolve("build"),
+                    myParams.getCacheSize() * BYTES_PER_MIB);
+        }
 
         TargetLocatorFactory targetLocatorFactory = new TargetLocatorFactory();
         if (myParams.getTargetLayouts() != null) {
@@ -62,17 +152,19 @@ public final class Main {
     }
 
     /**
-     * Reads the descriptor and fills auto-generated fields in it.
+     * Reads a descriptor and fills auto-generated fields in it.
+     * @param descriptor the descriptor file to read.
+     * @param debugFileName the file name in the {@link Params#getOut()
+     *                      out} directory to write the expanded descriptor
+     *                      to in debug mode.
      * @return the yet unvalidated build descriptor.
      * @throws IOException if something goes wrong while reading.
      */
-    private Capsula readDescriptor() throws IOException {
+    private Capsula readDescriptor(final Path descriptor,
+                                   final String debugFileName)
+            throws IOException {
         ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
-        if (params.getDescriptor() == null) {
-            throw new IllegalArgumentException("Need a descriptor"
-                    + " set in the command line options.");
-        }
-        Capsula build = mapper.readValue(params.getDescriptor().toFile(),
+        Capsula build = mapper.readValue(descriptor.toFile(),
                 Capsula.class);
         build.calculateReleaseNumbers();
         PropertyInheritance.inherit(build, build.getDebian());
@@ -85,43 +177,72 @@ public final class Main {
         });
         // if in debug mode, write the expanded capsula.yaml
         if (params.isDebug()) {
-            mapper.writeValue(params.getOut().resolve("capsula.yaml").toFile(),
+            mapper.writeValue(params.getOut().resolve(debugFileName).toFile(),
                     build);
         }
         return build;
     }
 
-    /** Read and validate the build descriptor.
-     * @return the optional build descriptor or {@link Optional#empty()}
+    /** Read and validate the build descriptors.
+     * @param descriptors the descriptor files to read.
+     * @return the build descriptors or {@link Optional#empty()}
      * if the program may not
      * go on (validation error, descriptor validation option given).
      * @throws IOException if something goes wrong while reading.
      * */
-    private Optional<Capsula> readAndValidateDescriptor() throws IOException {
+    private Optional<List<Capsula>> readAndValidateDescriptors(
+            final List<Path> descriptors) throws IOException {
         log.debug("Stage entered: {}", Stage.READ_DESCRIPTOR);
-        final Capsula build = readDescriptor();
-        ValidationDelegate validationDelegate = new ValidationDelegate();
-        Set<ConstraintViolation<Capsula>> constraintViolations =
-                validationDelegate.validate(build);
-        if (!constraintViolations.isEmpty() || params.isValidate()) {
-            if (constraintViolations.isEmpty()) {
-                System.err.println("YAML descriptor contains no errors.");
+        if (descriptors.isEmpty()) {
+            throw new IllegalArgumentException("Need a descriptor"
+                    + " set in the command line options.");
+        }
+        ValidationDelegate validationDelegate =
+                new ValidationDelegate(console);
+        List<Capsula> builds = new ArrayList<>();
+        boolean valid = true;
+        for (int i = 0; i < descriptors.size(); i++) {
+            Path descriptor = descriptors.get(i);
+            String debugFileName = "capsula.yaml";
+            if (batch) {
+                console.println(descriptor + ":");
+                debugFileName = "capsula-" + i + ".yaml";
             }
+            final Capsula build = readDescriptor(descriptor, debugFileName);
+            Set<ConstraintViolation<Capsula>> constraintViolations =
+                    validationDelegate.validate(build);
+            if (!constraintViolations.isEmpty()) {
+                valid = false;
+            } else if (params.isValidate()) {
+                console.println("YAML descriptor contains no errors.");
+            }
+            builds.add(build);
+        }
+        if (!valid || params.isValidate()) {
             return Optional.empty();
         }
         log.debug("Stage passed: {}", Stage.READ_DESCRIPTOR);
-        return Optional.of(build);
+        return Optional.of(builds);
     }
 
-    /** Build for one target.
+    /** Creates the builder for one target.
      * @param target the name of the target to build.
      * @param build the build descriptor to use (from the YAML descriptor).
      * @param myBuildDir the build directory to put the temporary build
      *                   files in.
-     * @throws BuildException if something goes wrong while building.
+     * @param gitMirror the optional local mirror of the git repository.
+     * @param includeDirectory the directory with the include templates
+     *                         shared by all targets.
+     * @return the target builder for the target.
+     * @throws BuildException if something goes wrong while preparing
+     * the target.
      * */
-    private void buildTarget(final String target, final Capsula build,
-                             final Path myBuildDir) throws BuildException {
+    private TargetBuilder newTargetBuilder(final String target,
+                                           final Capsula build,
+                                           final Path myBuildDir,
+                                           final Optional<Path> gitMirror,
+                                           final Path includeDirectory)
+            throws BuildException {
         try {
             log.debug("Target {}", target);
 
@@ -130,45 +251,48 @@ public final class Main {
 
             TargetBuilder builder = new TargetBuilder(build, myBuildDir,
                     target, targetPath,
-                    params.getStopAfter(), params.isVerbose());
-
-            try {
-                builder.call();
-                if (params.getStopAfter().compareTo(Stage.COPY_RESULT) >= 0) {
-                    log.debug("Stage entered: {}", Stage.COPY_RESULT);
-                    builder.copyPackageFilesTo(params.getOut());
-                    log.debug("Stage passed: {}", Stage.COPY_RESULT);
-                }
-            } finally {
-                if (params.isDebug()) {
-                    System.err.println("DEBUG: Target directory: "
-                            + builder.getTargetPath());
-                }
-            }
-        } catch (Exception ex) {
+                    params.getStopAfter(), params.isVerbose(),
+                    params.getOut());
+            gitMirror.ifPresent(builder::setGitMirror);
+            builder.setIncludeDirectory(includeDirectory);
+            builder.setDebug(params.isDebug());
+            builder.setBuildCache(buildCache);
+            builder.setRebuild(params.isNoCache());
+            builder.setDockerImages(dockerImages);
+            builder.setDockerEngine(dockerEngine);
+            builder.setAdmissionController(
+                    targetScheduler.getAdmissionController());
+            builder.setTracer(tracer);
+            builder.setTailLines(params.getTail());
+            builder.setEcho(output);
+            return builder;
+        } catch (IOException ex) {
             throw new BuildException("Problem in builder " + target, ex);
         }
     }
 
-    /** Delete temporary directory.
+    /** Remove the build containers and delete temporary directory.
+     * A build directory given on the command line is kept, so the
+     * next build can reuse its unchanged files.
      * @param myBuildDir the directory used for building that contains the
      *                   temporary files. Will be recursively
-     *                   deleted.
+     *                   deleted unless given on the command line.
+     * @param builders the target builders whose build containers
+     *                 get removed.
      * */
-    private void cleanup(final Path myBuildDir) {
+    private void cleanup(final Path myBuildDir,
+                         final List<TargetBuilder> builders) {
+        builders.forEach(TargetBuilder::closeContainerSession);
         if (!params.isDebug()
                 && params.getStopAfter().compareTo(Stage.CLEANUP) >= 0) {
             log.debug("Stage entered: {}", Stage.CLEANUP);
-            if (params.getBuildDirectory() != null) {
-                try {
-                    Files.list(params.getBuildDirectory())
-                            .forEach(FileUtils::deleteRecursive);
-                } catch (IOException e) {
-                    log.warn("Error while cleaning up "
-                            + params.getBuildDirectory(), e);
+            try (Span span = tracer.start("stage", Stage.CLEANUP.name())) {
+                span.arg("directory", myBuildDir.toString());
+                if (params.getBuildDirectory() == null) {
+                    FileUtils.deleteRecursive(myBuildDir);
+                } else {
+                    log.debug("Keeping build directory {}", myBuildDir);
                 }
-            } else {
-                FileUtils.deleteRecursive(myBuildDir);
             }
             log.debug("Stage passed: {}", Stage.CLEANUP);
         }
@@ -184,38 +308,253 @@ public final class Main {
         if (params == null) {
             return;
         }
-        final Main main = new Main(params);
+        if (params.isClient()) {
+            int exitValue = DaemonClient.run(params.getSocket(), args,
+                    System.out, System.err);
+            if (exitValue != 0) {
+                System.exit(exitValue);
+            }
+            return;
+        }
+        try (TargetScheduler scheduler = new TargetScheduler(
+                params.getJobs(),
+                params.getCacheDirectory().resolve("resources.json"))) {
+            if (params.isDaemon()) {
+                try (Daemon daemon = new Daemon(params.getSocket(),
+                        scheduler)) {
+                    daemon.serve();
+                }
+            } else {
+                new Main(params, scheduler).run();
+            }
+        }
+    }
 
+    /** Runs the program with the parameters of this instance.
+     * @throws IOException if something goes wrong while reading the
+     * descriptor.
+     * */
+    void run() throws IOException {
         Path myBuildDir;
         if (params.getBuildDirectory() != null) {
-            myBuildDir = params.getBuildDirectory().toAbsolutePath();
-            Files.list(myBuildDir).forEach(FileUtils::deleteRecursive);
+            myBuildDir = Files.createDirectories(
+                    params.getBuildDirectory().toAbsolutePath());
         } else {
             myBuildDir = Files.createTempDirectory("capsula").toAbsolutePath();
         }
         if (params.isListTargets()) {
-            System.out.println(main.targetLocator.getTargets());
+            output.println(targetLocator.getTargets());
             return;
         }
         log.debug("Stop after: {}", params.getStopAfter());
-        main.buildTargets(myBuildDir);
+        try (Span span = tracer.start("run", "capsula")) {
+            span.arg("jobs", targetScheduler.getJobs());
+            buildTargets(myBuildDir);
+        } finally {
+            writeTrace();
+        }
     }
 
-    /** Creates a target stream.
-     * @param build the build to create the stream for.
-     * @return a serial or parallel target stream.
+    /** Writes the trace and report files if requested on the
+     * command line.
+     * @throws IOException if writing fails.
      * */
-    private Stream<String> getTargetStream(final Capsula build) {
-        final Stream<String> targetStream;
-        if (params.isParallel()) {
-            targetStream = build.getTargets().parallelStream();
-        } else {
-            targetStream = build.getTargets().stream();
+    private void writeTrace() throws IOException {
+        if (params.getTrace() != null) {
+            tracer.writeChromeTrace(params.getTrace());
+        }
+        if (params.getReport() != null) {
+            tracer.writeReport(params.getReport());
+        }
+    }
+
+    /** Updates the local mirrors of the git repositories of the builds.
+     * The mirrors are updated concurrently.
+     * Problems are logged and lead to cloning from the original
+     * repository.
+     * @param builds the build descriptors to update the mirrors for.
+     * @return the paths of the updated mirrors in the order of the
+     * builds. {@link Optional#empty()} if there is no mirror for a build.
+     * */
+    private List<Optional<Path>> updateGitMirrors(final List<Capsula> builds) {
+        List<Optional<Path>> result = new ArrayList<>();
+        if (params.getStopAfter().compareTo(Stage.PREPARE) < 0) {
+            builds.forEach(b -> result.add(Optional.empty()));
+            return result;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(builds.size(), targetScheduler.getJobs()));
+        try {
+            List<CompletableFuture<Optional<Path>>> futures =
+                    new ArrayList<>();
+            for (Capsula build : builds) {
+                futures.add(CompletableFuture.supplyAsync(
+                        () -> updateGitMirror(build), executor));
+            }
+            futures.forEach(f -> result.add(f.join()));
+        } finally {
+            executor.shutdown();
+        }
+        return result;
+    }
+
+    /** Updates the local mirror of the git repository of a build.
+     * Problems are logged and lead to cloning from the original
+     * repository.
+     * @param build the build descriptor to update the mirror for.
+     * @return the path of the updated mirror or {@link Optional#empty()}
+     * if there is no mirror.
+     * */
+    private Optional<Path> updateGitMirror(final Capsula build) {
+        try (Span span = tracer.start("git", "mirror")
+                .arg("url", build.getGit().getGitUrl())) {
+            Path mirror = gitMirrorCache.update(build.getGit().getGitUrl());
+            span.arg("mirror", mirror.toString());
+            return Optional.of(mirror);
+        } catch (IOException | RuntimeException ex) {
+            log.warn("Could not update git mirror, "
+                    + "cloning from the original repository", ex);
+            return Optional.empty();
+        }
+    }
+
+    /** Prints a summary of the target results.
+     * @param builders all target builders that were scheduled.
+     * @param results the results of the target builders that completed.
+     * */
+    private void printSummary(final List<TargetBuilder> builders,
+                              final List<TargetBuilder.Result> results) {
+        Set<TargetBuilder> completed = results.stream()
+                .map(TargetBuilder.Result::getBuilder)
+                .collect(Collectors.toSet());
+        boolean resources = results.stream()
+                .anyMatch(r -> !r.getResourceUsage().isEmpty());
+        for (TargetBuilder.Result result : results) {
+            String usage = "";
+            if (resources) {
+                usage = "  " + formatUsage(result.getTotalResourceUsage());
+            }
+            console.printf("%-30s %-8s %6.1fs%s%n",
+                    getDisplayName(result.getBuilder()),
+                    getStatus(result),
+                    result.getDuration().toMillis() / MILLIS_PER_SECOND,
+                    usage);
+        }
+        builders.stream()
+                .filter(b -> !completed.contains(b))
+                .forEach(b -> console.printf("%-30s %-8s%n",
+                        getDisplayName(b), "SKIPPED"));
+        if (resources) {
+            Map<Stage, ResourceUsage> byStage = new EnumMap<>(Stage.class);
+            results.forEach(r -> r.getResourceUsage().forEach(
+                    (stage, usage) -> byStage.merge(stage, usage,
+                            ResourceUsage::plus)));
+            byStage.forEach((stage, usage) -> console.printf(
+                    "%-30s %-8s %7s  %s%n",
+                    "stage total", stage, "", formatUsage(usage)));
+        }
+    }
+
+    /** Formats the resources used by processes for the summary.
+     * @param usage the resources used.
+     * @return the CPU time in user and system mode, the peak memory and
+     * the read and written bytes.
+     * */
+    static String formatUsage(final ResourceUsage usage) {
+        return String.format("cpu %6.1fs user %5.1fs sys  rss %6s"
+                        + "  io %6s read %6s written",
+                usage.getCpuUserMillis() / MILLIS_PER_SECOND,
+                usage.getCpuSystemMillis() / MILLIS_PER_SECOND,
+                formatBytes(usage.getPeakRssBytes()),
+                formatBytes(usage.getReadBytes()),
+                formatBytes(usage.getWriteBytes()));
+    }
+
+    /** Formats a number of bytes with a binary unit.
+     * @param bytes the number of bytes.
+     * @return the formatted number, for example {@code 1.5M}.
+     * */
+    static String formatBytes(final long bytes) {
+        final String units = "KMGTPE";
+        if (bytes < BYTES_PER_KIB) {
+            return bytes + "B";
+        }
+        double value = bytes;
+        int unit = -1;
+        while (value >= BYTES_PER_KIB && unit < units.length() - 1) {
+            value /= BYTES_PER_KIB;
+            unit++;
         }
-        return targetStream;
+        return String.format("%.1f%c", value, units.charAt(unit));
     }
 
-    /** Build all targets.
+    /** Prints the progress line for a completed target. For a failed
+     * target, the last lines of its output are printed, too.
+     * @param result the result of the completed target.
+     * @param done the number of completed targets.
+     * @param total the number of targets.
+     * */
+    private void printProgress(final TargetBuilder.Result result,
+                               final int done,
+                               final int total) {
+        console.printf("[%d/%d] %s %s %.1fs%n",
+                done, total,
+                getDisplayName(result.getBuilder()),
+                getStatus(result),
+                result.getDuration().toMillis() / MILLIS_PER_SECOND);
+        if (!result.isSuccess() && !result.getTail().isEmpty()) {
+            console.println("Last lines of "
+                    + result.getBuilder().getLogFile() + ":");
+            result.getTail().forEach(l -> console.println("  " + l));
+        }
+    }
+
+    /** Get the status of a target result for messages.
+     * @param result the result of the target.
+     * @return the status, one of {@code OK}, {@code CACHED},
+     * {@code UNCHANGED} and {@code FAILED}.
+     * */
+    private static String getStatus(final TargetBuilder.Result result) {
+        if (result.isSuccess() && result.isCached()) {
+            return "CACHED";
+        } else if (result.isSuccess() && result.isUnchanged()) {
+            return "UNCHANGED";
+        } else if (result.isSuccess()) {
+            return "OK";
+        }
+        return "FAILED";
+    }
+
+    /** Get the name of a target builder for messages.
+     * @param builder the target builder.
+     * @return the target name, prefixed with the package name
+     * if building multiple descriptors.
+     * */
+    private String getDisplayName(final TargetBuilder builder) {
+        if (batch) {
+            return builder.getBuild().getPackageName()
+                    + "/" + builder.getTargetName();
+        }
+        return builder.getTargetName();
+    }
+
+    /** Get the build directory for a descriptor.
+     * @param myBuildDir the build directory of the run.
+     * @param index the index of the descriptor.
+     * @return the build directory of the run if building a single
+     * descriptor, or a subdirectory of it for multiple descriptors.
+     * @throws IOException if the subdirectory can not be created.
+     * */
+    private Path getBuildDir(final Path myBuildDir,
+                             final int index) throws IOException {
+        if (!batch) {
+            return myBuildDir;
+        }
+        return Files.createDirectories(
+                myBuildDir.resolve("descriptor-" + index));
+    }
+
+    /** Build all targets of all descriptors.
      * @param myBuildDir the directory to use for
      *                  {@link Params#getBuildDirectory() building}, may be a
      *                   temporary directory. This is the directory
@@ -226,30 +565,80 @@ public final class Main {
      * descriptor.
      * */
     private void buildTargets(final Path myBuildDir) throws IOException {
-        Runnable shutdownRunnable = () -> cleanup(myBuildDir);
-        Thread shutdownThread = new Thread(shutdownRunnable);
-        Runtime.getRuntime().addShutdownHook(shutdownThread);
+        List<TargetBuilder> builders = new CopyOnWriteArrayList<>();
+        Runnable shutdownRunnable = () -> cleanup(myBuildDir, builders);
+        targetScheduler.addShutdownCleanup(shutdownRunnable);
 
         try {
-            Optional<Capsula> buildOptional = readAndValidateDescriptor();
-            if (!buildOptional.isPresent()
+            List<Path> descriptors = params.getDescriptors();
+            batch = descriptors.size() > 1;
+            Optional<List<Capsula>> buildsOptional;
+            try (Span span = tracer.start("stage",
+                    Stage.READ_DESCRIPTOR.name())) {
+                span.arg("descriptors", descriptors.size());
+                buildsOptional = readAndValidateDescriptors(descriptors);
+            }
+            if (!buildsOptional.isPresent()
                     || params.getStopAfter().compareTo(Stage.READ_DESCRIPTOR)
                     <= 0) {
                 return;
             }
-            Capsula build = buildOptional.get();
-            final Stream<String> targetStream = getTargetStream(build);
+            List<Capsula> builds = buildsOptional.get();
+            List<Optional<Path>> gitMirrors = updateGitMirrors(builds);
+            Path includeDirectory = targetLocator.getIncludeDirectory(
+                    myBuildDir);
+            for (int i = 0; i < builds.size(); i++) {
+                Capsula build = builds.get(i);
+                Optional<Path> gitMirror = gitMirrors.get(i);
+                Path buildDir = getBuildDir(myBuildDir, i);
+                build.getTargets().stream()
+                        .filter(t -> params.getTargets() == null
+                                || params.getTargets().contains(t))
+                        .forEach(t -> builders.add(
+                                newTargetBuilder(t, build, buildDir,
+                                        gitMirror, includeDirectory)));
+            }
 
-            targetStream
-                    .filter(t -> params.getTargets() == null
-                            || params.getTargets().contains(t))
-                    .forEach(t -> buildTarget(t, build, myBuildDir)
-                    );
+            List<TargetBuilder.Result> results;
+            try {
+                AtomicInteger done = new AtomicInteger();
+                results = targetScheduler.runAll(builders,
+                        !params.isKeepGoing(),
+                        r -> printProgress(r, done.incrementAndGet(),
+                                builders.size()));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new BuildException("Interrupted while building", ex);
+            } finally {
+                if (params.isDebug()) {
+                    builders.forEach(b -> console.println(
+                            "DEBUG: Target directory: " + b.getTargetPath()));
+                }
+            }
+
+            List<TargetBuilder.Result> failed = results.stream()
+                    .filter(r -> !r.isSuccess())
+                    .collect(Collectors.toList());
+            if (params.isVerbose() || batch || !failed.isEmpty()) {
+                printSummary(builders, results);
+            }
+            if (!failed.isEmpty()) {
+                BuildException exception = new BuildException(
+                        "Problem in builder "
+                        + failed.stream()
+                            .map(r -> getDisplayName(r.getBuilder()))
+                            .collect(Collectors.joining(", ")),
+                        failed.get(0).getFailure());
+                failed.stream().skip(1).forEach(r ->
+                        exception.addSuppressed(r.getFailure()));
+                throw exception;
+            }
 
         } finally {
-            Runtime.getRuntime().removeShutdownHook(shutdownThread);
+            targetScheduler.removeShutdownCleanup(shutdownRunnable);
+            targetScheduler.saveLearnedResources();
             log.debug("Cleaning up");
-            cleanup(myBuildDir);
+            cleanup(myBuildDir, builders);
         }
     }
 }
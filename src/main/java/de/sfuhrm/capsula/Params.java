@@ -17,9 +17,18 @@
  */
 package de.sfuhrm.capsula;
 
+import de.sfuhrm.capsula.targetbuilder.TargetBuilder;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.kohsuke.args4j.CmdLineException;
@@ -36,6 +45,12 @@ import org.kohsuke.args4j.Option;
 @Slf4j
 final class Params {
 
+    /** The default maximum size of the build cache in MiB. */
+    private static final long DEFAULT_CACHE_SIZE = 1024;
+
+    /** The names of YAML files in descriptor directories. */
+    private static final Pattern YAML_FILE = Pattern.compile(".*\\.ya?ml");
+
     /** Whether just to show the command line help.  */
     @Getter
     @Option(name = "-help", aliases = {"-h"},
@@ -48,14 +63,18 @@ final class Params {
             usage = "Verbose output.")
     private boolean verbose;
 
-    /** The YAML descriptor that describes how to build the package. */
-    @Getter
+    /** The YAML descriptors that describe how to build the packages.
+     * @see #getDescriptors()
+     * */
     @Option(name = "-descriptor", aliases = {"-f"},
             usage = "YAML descriptor for the application packaging. "
                     + "Describes the package and how to "
-                    + "install the components.",
-            metaVar = "YAML", required = true)
-    private Path descriptor;
+                    + "install the components. "
+                    + "Can be given multiple times. A directory stands "
+                    + "for all YAML files in it. "
+                    + "Required unless running as daemon.",
+            metaVar = "YAML")
+    private List<Path> descriptors;
 
     /** Whether to show more debugging information. */
     @Getter
@@ -77,8 +96,10 @@ final class Params {
     @Option(name = "-build-dir", aliases = {"-B"},
             usage = "The optional build directory to write the temporary "
                     + "building files to. "
+                    + "The directory is kept after the build, and the "
+                    + "next build only rewrites the files that changed. "
                     + "When this option is not given a directory in the "
-                    + "temporary directory is created.")
+                    + "temporary directory is created and deleted.")
     private Path buildDirectory;
 
     /** Optional directory for target layouts in the file system. */
@@ -90,10 +111,39 @@ final class Params {
                     + "template designers.")
     private Path targetLayouts;
 
+    /** Optional directory for data that is kept between runs.
+     * @see #getCacheDirectory()
+     * */
+    @Option(name = "-cache-dir",
+            usage = "The directory for data kept between runs, "
+                    + "for example mirrors of git repositories. "
+                    + "Defaults to ~/.cache/capsula.")
+    private Path cacheDirectory;
+
+    /** Whether to build all targets, even if their packages are
+     * in the build cache or were built from unchanged inputs. */
+    @Getter
+    @Option(name = "-no-cache",
+            usage = "Do not use packages from the build cache and "
+                    + "do not store built packages in it. "
+                    + "Targets are also built again if their inputs "
+                    + "did not change since the last build.")
+    private boolean noCache;
+
+    /** The maximum size of the build cache in MiB. */
+    @Getter
+    @Option(name = "-cache-size",
+            usage = "The maximum size of the build cache in MiB. "
+                    + "The least recently used packages are removed "
+                    + "if the cache gets bigger.",
+            metaVar = "MIB")
+    private long cacheSize = DEFAULT_CACHE_SIZE;
+
     /** Where to put the produced package files. */
     @Getter
-    @Option(name = "-out", required = true, aliases = {"-o"},
-            usage = "The output directory to write the generated packages to.")
+    @Option(name = "-out", aliases = {"-o"},
+            usage = "The output directory to write the generated packages to. "
+                    + "Required unless running as daemon.")
     private Path out;
 
     /** Restriction of the targets to build. */
@@ -112,11 +162,83 @@ final class Params {
     /** Whether to build the targets in parallel. */
     @Getter
     @Option(name = "-parallel", aliases = {"-p"},
-            usage = "Execute the targets in parallel. This may need much"
-                     + "memory. Please note that the console output will "
-                     + "be almost useless with parallel execution.")
+            usage = "Execute the targets in parallel. A target only "
+                     + "starts if the memory and processors it needs "
+                     + "are available. The output of each target is "
+                     + "written to its own log file.")
     private boolean parallel;
 
+    /** The maximum number of targets to build concurrently.
+     * @see #getJobs()
+     * */
+    @Option(name = "-jobs", aliases = {"-j"},
+            usage = "The maximum number of targets to build concurrently. "
+                    + "Defaults to 1, or to the number of processors "
+                    + "when building in parallel.",
+            metaVar = "N")
+    private Integer jobs;
+
+    /** Whether to go on building the other targets after a target
+     * failed. */
+    @Getter
+    @Option(name = "-keep-going", aliases = {"-k"},
+            usage = "Keep on building the other targets if a target fails. "
+                    + "The default is to stop at the first failed target.")
+    private boolean keepGoing;
+
+    /** The number of last output lines to show for a failed target. */
+    @Getter
+    @Option(name = "-tail",
+            usage = "The number of last output lines to show for a failed "
+                    + "target. The complete output of each target is written "
+                    + "to a log file in the out directory.",
+            metaVar = "N")
+    private int tail = TargetBuilder.DEFAULT_TAIL_LINES;
+
+    /** The optional file to write a trace of the run to. */
+    @Getter
+    @Option(name = "-trace",
+            usage = "Write the timing of the stages, commands and processes "
+                    + "of all targets to the given file. The file can be "
+                    + "opened in chrome://tracing or the Perfetto UI.",
+            metaVar = "FILE")
+    private Path trace;
+
+    /** The optional file to write a timing report of the run to. */
+    @Getter
+    @Option(name = "-report",
+            usage = "Write a JSON report with the timing of the stages, "
+                    + "commands and processes of all targets to the "
+                    + "given file.",
+            metaVar = "FILE")
+    private Path report;
+
+    /** Whether to run as a daemon that accepts builds from clients. */
+    @Getter
+    @Option(name = "-daemon",
+            usage = "Run as daemon that keeps running and builds the "
+                    + "requests of clients started with -client. "
+                    + "The jobs of all requests share one scheduler.",
+            forbids = {"-client"})
+    private boolean daemon;
+
+    /** Whether to let a daemon build instead of building locally. */
+    @Getter
+    @Option(name = "-client",
+            usage = "Send the build to a daemon started with -daemon "
+                    + "instead of building in this process.",
+            forbids = {"-daemon"})
+    private boolean client;
+
+    /** The Unix domain socket the daemon is listening on.
+     * @see #getSocket()
+     * */
+    @Option(name = "-socket",
+            usage = "The Unix domain socket of the daemon. "
+                    + "Its directory must only be accessible by the owner.",
+            metaVar = "FILE")
+    private Path socket;
+
     /** Stop running after the given processing stage.
      * @see Stage
      * */
@@ -125,6 +247,105 @@ final class Params {
             usage = "Stop after the given processing stage.")
     private Stage stopAfter = Stage.ALL;
 
+    /** Get the directory for data that is kept between runs.
+     * @return the cache directory given on the command line, or
+     * the directory {@code .cache/capsula} in the home directory
+     * of the user.
+     * */
+    public Path getCacheDirectory() {
+        if (cacheDirectory != null) {
+            return cacheDirectory;
+        }
+        return Paths.get(System.getProperty("user.home"),
+                ".cache", "capsula");
+    }
+
+    /** Get the Unix domain socket of the daemon.
+     * @return the socket given on the command line, or the file
+     * {@code .cache/capsula/daemon/socket} in the home directory
+     * of the user.
+     * */
+    public Path getSocket() {
+        if (socket != null) {
+            return socket;
+        }
+        return Paths.get(System.getProperty("user.home"),
+                ".cache", "capsula", "daemon", "socket");
+    }
+
+    /** Get the YAML descriptors to build. Directories given on the
+     * command line are replaced by the YAML files in them.
+     * @return the descriptor files in command line order. The files
+     * of a directory are sorted by name.
+     * @throws IOException if a directory can not be read.
+     * */
+    public List<Path> getDescriptors() throws IOException {
+        List<Path> result = new ArrayList<>();
+        if (descriptors == null) {
+            return result;
+        }
+        for (Path descriptor : descriptors) {
+            if (Files.isDirectory(descriptor)) {
+                try (Stream<Path> stream = Files.list(descriptor)) {
+                    stream.filter(Files::isRegularFile)
+                            .filter(p -> YAML_FILE.matcher(
+                                    p.getFileName().toString()).matches())
+                            .sorted()
+                            .forEach(result::add);
+                }
+            } else {
+                result.add(descriptor);
+            }
+        }
+        return result;
+    }
+
+    /** Get the maximum number of targets to build concurrently.
+     * @return the number of jobs given on the command line. If
+     * not given, this is the number of available processors for
+     * {@link #isParallel() parallel} execution, or 1 otherwise.
+     * */
+    public int getJobs() {
+        if (jobs != null) {
+            return jobs;
+        }
+        if (parallel) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        return 1;
+    }
+
+    /** Makes the relative paths absolute. This is needed if the
+     * parameters were given in another working directory, for example
+     * when a daemon builds for a client.
+     * @param directory the directory to resolve the relative paths in.
+     * */
+    void resolvePaths(final Path directory) {
+        if (descriptors != null) {
+            descriptors = descriptors.stream()
+                    .map(directory::resolve)
+                    .collect(Collectors.toList());
+        }
+        if (out != null) {
+            out = directory.resolve(out);
+        }
+        if (buildDirectory != null) {
+            buildDirectory = directory.resolve(buildDirectory);
+        }
+        if (targetLayouts != null) {
+            targetLayouts = directory.resolve(targetLayouts);
+        }
+        if (cacheDirectory != null) {
+            cacheDirectory = directory.resolve(cacheDirectory);
+        }
+        if (trace != null) {
+            trace = directory.resolve(trace);
+        }
+        if (report != null) {
+            report = directory.resolve(report);
+        }
+    }
+
     /**
      * Parse the command line options.
      *
@@ -135,6 +356,21 @@ final class Params {
      * wrong or the command line help was displayed.
      */
     public static Params parse(final String[] args) {
+        return parse(args, System.err);
+    }
+
+    /**
+     * Parse the command line options.
+     *
+     * @param args the command line args as passed to the main method of the
+     * program.
+     * @param console the stream to print problems and the
+     *                command line help to.
+     * @return the parsed command line options or {@code null} if the program
+     * needs to exit. {@code null} will be returned if the command lines are
+     * wrong or the command line help was displayed.
+     */
+    static Params parse(final String[] args, final PrintStream console) {
         Params result = new Params();
         CmdLineParser cmdLineParser = new CmdLineParser(result);
         try {
@@ -143,14 +379,44 @@ final class Params {
             }
             cmdLineParser.parseArgument(args);
             if (result.help) {
-                cmdLineParser.printUsage(System.err);
+                cmdLineParser.printUsage(console);
                 return null;
             }
+            if (!result.daemon && !result.listTargets) {
+                if (result.descriptors == null
+                        || result.descriptors.isEmpty()) {
+                    throw new CmdLineException(cmdLineParser,
+                            "Option \"-descriptor (-f)\" is required",
+                            null);
+                }
+                if (result.out == null) {
+                    throw new CmdLineException(cmdLineParser,
+                            "Option \"-out (-o)\" is required",
+                            null);
+                }
+            }
+            if (result.jobs != null && result.jobs < 1) {
+                throw new CmdLineException(cmdLineParser,
+                        "Jobs must be at least 1, but is " + result.jobs,
+                        null);
+            }
+            if (result.tail < 0) {
+                throw new CmdLineException(cmdLineParser,
+                        "Tail must not be negative, but is "
+                                + result.tail,
+                        null);
+            }
+            if (result.cacheSize < 0) {
+                throw new CmdLineException(cmdLineParser,
+                        "Cache size must not be negative, but is "
+                                + result.cacheSize,
+                        null);
+            }
             return result;
         } catch (CmdLineException ex) {
             log.warn("Error in parsing", ex);
-            System.err.println(ex.getMessage());
-            cmdLineParser.printUsage(System.err);
+            console.println(ex.getMessage());
+            cmdLineParser.printUsage(console);
         }
         return null;
     }
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Utility functions for running helper processes outside of
+ * a target layout.
+ *
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+public final class ProcessUtils {
+
+    /** The time a helper process may run if no timeout is given. */
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofHours(1);
+
+    /** The executor logging the output of the helper processes. */
+    private static final ExecutorService OUTPUT_EXECUTOR =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual()
+                    .name("capsula-helper-output-", 0)
+                    .factory());
+
+    /**
+     * No instance allowed.
+     */
+    private ProcessUtils() {
+    }
+
+    /** Runs a command with the {@link #DEFAULT_TIMEOUT default timeout}
+     * and waits for its termination. Standard output
+     * and standard error of the command are logged.
+     * @param command the command and its arguments.
+     * @param directory the working directory of the command.
+     * @return the exit value of the command.
+     * @throws IOException if the command can not be started.
+     * @throws BuildException if the command timed out or
+     * got interrupted.
+     * */
+    public static int exec(final List<String> command,
+                           final Path directory)
+            throws IOException, BuildException {
+        return exec(command, directory, DEFAULT_TIMEOUT);
+    }
+
+    /** Runs a command and waits for its termination. Standard output
+     * and standard error of the command are logged.
+     * If the command does not finish in time, or the waiting thread
+     * gets interrupted, the command and all of its child processes
+     * are killed.
+     * @param command the command and its arguments.
+     * @param directory the working directory of the command.
+     * @param timeout the time the command may run.
+     * @return the exit value of the command.
+     * @throws IOException if the command can not be started.
+     * @throws BuildException if the command timed out,
+     * got interrupted or its output could not be read.
+     * */
+    public static int exec(final List<String> command,
+                           final Path directory,
+                           final Duration timeout)
+            throws IOException, BuildException {
+        log.debug("Running {} in {} with timeout {}", command, directory,
+                timeout);
+        Process process = new ProcessBuilder(command)
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .redirectInput(ProcessBuilder.Redirect.PIPE)
+                .start();
+        process.getOutputStream().close();
+        CompletableFuture<Void> output = CompletableFuture.runAsync(
+                () -> logLines(process.getInputStream()), OUTPUT_EXECUTOR);
+        CompletableFuture<Integer> exit = process.onExit()
+                .thenCombine(output, (p, v) -> p.exitValue());
+        try {
+            int exitValue = exit.get(timeout.toNanos(),
+                    TimeUnit.NANOSECONDS);
+            log.debug("Exit value for {} is {}", command, exitValue);
+            return exitValue;
+        } catch (TimeoutException ex) {
+            destroyTree(process);
+            throw new BuildException("Command " + command
+                    + " timed out after " + timeout, ex);
+        } catch (InterruptedException ex) {
+            destroyTree(process);
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while running "
+                    + command, ex);
+        } catch (ExecutionException ex) {
+            destroyTree(process);
+            throw new BuildException("Problem reading output of "
+                    + command, ex.getCause());
+        }
+    }
+
+    /** Logs the lines of the output of a process.
+     * @param in the output of the process.
+     * @throws UncheckedIOException if reading fails.
+     * */
+    private static void logLines(final InputStream in) {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            String line;
+            while (null != (line = reader.readLine())) {
+                log.info(line);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /** Kills a process and all of its descendants. The descendants
+     * are collected before the process is killed, so they can't
+     * escape by getting a new parent.
+     * @param process the process to kill.
+     * */
+    public static void destroyTree(final Process process) {
+        List<ProcessHandle> descendants = process.descendants()
+                .collect(Collectors.toList());
+        log.debug("Killing process {} and {} descendants",
+                process.pid(), descendants.size());
+        process.destroyForcibly();
+        descendants.forEach(ProcessHandle::destroyForcibly);
+    }
+
+    /** Runs a command and waits for its successful termination.
+     * @param command the command and its arguments.
+     * @param directory the working directory of the command.
+     * @throws IOException if the command can not be started.
+     * @throws BuildException if the command returned a non-zero exit value.
+     * */
+    public static void run(final List<String> command,
+                           final Path directory)
+            throws IOException, BuildException {
+        int exitValue = exec(command, directory);
+        if (exitValue != 0) {
+            throw new BuildException("Command " + command
+                    + " returned exit value " + exitValue);
+        }
+    }
+}
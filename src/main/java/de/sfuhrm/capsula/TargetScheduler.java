@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula;
+
+import de.sfuhrm.capsula.docker.DockerEngine;
+import de.sfuhrm.capsula.docker.DockerImages;
+import de.sfuhrm.capsula.targetbuilder.TargetBuilder;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Executes {@link TargetBuilder target builders} on a dedicated thread
+ * pool with a fixed number of threads. The pool is not shared with
+ * other code, so long running docker commands can not starve
+ * unrelated work. Each target waits for its resources in the
+ * {@link AdmissionController admission controller} before building.
+ * The docker engine and images are owned by the scheduler, so
+ * concurrent runs share the image preparations.
+ * The learned resources of the admission controller are read once
+ * when the scheduler is created and written after each run.
+ * A single shutdown hook cleans up the runs that are still active
+ * when the JVM exits.
+ *
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+final class TargetScheduler implements AutoCloseable {
+
+    /** The maximum number of targets that are built at the same time. */
+    @Getter
+    private final int jobs;
+
+    /** Decides when the targets have the resources to start building.
+     * Is shared by all runs, so the targets of concurrent runs
+     * see each other.
+     * */
+    @Getter
+    private final AdmissionController admissionController =
+            AdmissionController.forHost();
+
+    /** The docker engine for the {@code dockerRun} and
+     * {@code dockerBuild} commands, or {@code null} if docker is
+     * not reachable over a Unix socket. */
+    @Getter
+    private final DockerEngine dockerEngine = createDockerEngine();
+
+    /** The docker images the targets are built in. Is shared by
+     * all runs, so an image is only prepared once. */
+    @Getter
+    private final DockerImages dockerImages =
+            new DockerImages(dockerEngine);
+
+    /** The file the learned resources are kept in, or {@code null}
+     * if they are not kept. */
+    private final Path learnedResourcesFile;
+
+    /** The cleanups of the active runs to execute on JVM shutdown. */
+    private final Set<Runnable> shutdownCleanups =
+            ConcurrentHashMap.newKeySet();
+
+    /** The shutdown hook running the {@link #shutdownCleanups}. */
+    private final Thread shutdownHook;
+
+    /** The executor the target builders are running in. */
+    private final ExecutorService executor;
+
+    /** Creates a new scheduler that does not keep the learned
+     * resources.
+     * @param myJobs the maximum number of targets built concurrently.
+     * @throws IllegalArgumentException if the number of jobs is less
+     * than one.
+     * */
+    TargetScheduler(final int myJobs) {
+        this(myJobs, null);
+    }
+
+    /** Creates a new scheduler.
+     * @param myJobs the maximum number of targets built concurrently.
+     * @param myLearnedResourcesFile the file the learned resources
+     *                               are kept in, or {@code null}.
+     * @throws IllegalArgumentException if the number of jobs is less
+     * than one.
+     * */
+    TargetScheduler(final int myJobs, final Path myLearnedResourcesFile) {
+        if (myJobs < 1) {
+            throw new IllegalArgumentException("Jobs must be at least 1, "
+                    + "but is " + myJobs);
+        }
+        this.jobs = myJobs;
+        this.learnedResourcesFile = myLearnedResourcesFile;
+        if (myLearnedResourcesFile != null) {
+            admissionController.load(myLearnedResourcesFile);
+        }
+        final AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(myJobs, r -> {
+            Thread thread = new Thread(r,
+                    "capsula-target-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.shutdownHook = new Thread(
+                () -> shutdownCleanups.forEach(Runnable::run),
+                "capsula-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /** Adds a cleanup that is executed if the JVM shuts down
+     * before it is {@link #removeShutdownCleanup(Runnable) removed}.
+     * @param cleanup the cleanup of a run.
+     * */
+    void addShutdownCleanup(final Runnable cleanup) {
+        shutdownCleanups.add(cleanup);
+    }
+
+    /** Removes a cleanup that was added with
+     * {@link #addShutdownCleanup(Runnable)}.
+     * @param cleanup the cleanup of a run.
+     * */
+    void removeShutdownCleanup(final Runnable cleanup) {
+        shutdownCleanups.remove(cleanup);
+    }
+
+    /** Writes the learned resources of the admission controller
+     * to the file given at construction, if any. Concurrent runs
+     * write one after the other.
+     * */
+    void saveLearnedResources() {
+        if (learnedResourcesFile != null) {
+            admissionController.save(learnedResourcesFile);
+        }
+    }
+
+    /** Creates the docker engine for the default socket.
+     * @return the docker engine or {@code null} if {@code DOCKER_HOST}
+     * is no Unix socket.
+     * */
+    private static DockerEngine createDockerEngine() {
+        try {
+            return new DockerEngine(DockerEngine.getDefaultSocket());
+        } catch (BuildException ex) {
+            log.debug("No docker engine", ex);
+            return null;
+        }
+    }
+
+    /** Runs the given target builders and waits for their completion.
+     * The results are returned in the order of completion.
+     * @param builders the target builders to run.
+     * @param failFast whether to cancel the remaining target builders
+     *                 after the first failed target.
+     * @param listener gets called in the calling thread with the
+     *                 result of each target right after it completed.
+     * @return the results of all targets that were completed. Targets
+     * that were cancelled because of {@code failFast} have no result.
+     * @throws InterruptedException if the calling thread was interrupted
+     * while waiting. All target builders are cancelled in this case.
+     * @throws Error if a target builder failed with an error, for example
+     * because the JVM ran out of memory. All target builders are
+     * cancelled in this case.
+     * */
+    List<TargetBuilder.Result> runAll(
+            final List<TargetBuilder> builders,
+            final boolean failFast,
+            final Consumer<TargetBuilder.Result> listener)
+            throws InterruptedException {
+        CompletionService<TargetBuilder.Result> completionService =
+                new ExecutorCompletionService<>(executor);
+        List<Future<TargetBuilder.Result>> futures = new ArrayList<>();
+        List<TargetBuilder.Result> results = new ArrayList<>();
+        boolean completed = false;
+        try {
+            for (TargetBuilder builder : builders) {
+                log.debug("Submitting target {}", builder.getTargetName());
+                futures.add(completionService.submit(builder));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Future<TargetBuilder.Result> future = completionService.take();
+                if (future.isCancelled()) {
+                    continue;
+                }
+                TargetBuilder.Result result = getResult(future);
+                log.info("Target {} finished with success={} in {}",
+                        result.getTargetName(),
+                        result.isSuccess(),
+                        result.getDuration());
+                results.add(result);
+                listener.accept(result);
+                if (!result.isSuccess() && failFast) {
+                    log.info("Cancelling remaining targets after failure "
+                            + "of target {}", result.getTargetName());
+                    cancelAll(futures);
+                    break;
+                }
+            }
+            completed = true;
+        } finally {
+            if (!completed || Thread.currentThread().isInterrupted()) {
+                cancelAll(futures);
+            }
+        }
+        return results;
+    }
+
+    /** Gets the result of a completed future.
+     * @param future the future that is done.
+     * @return the result of the target builder.
+     * @throws BuildException if the target builder threw an exception
+     * instead of returning a result.
+     * @throws Error if the target builder failed with an error.
+     * */
+    private static TargetBuilder.Result getResult(
+            final Future<TargetBuilder.Result> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Error) {
+                throw (Error) ex.getCause();
+            }
+            throw new BuildException("Target builder failed", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted", ex);
+        }
+    }
+
+    /** Cancels all futures that are not yet done.
+     * @param futures the futures to cancel.
+     * */
+    private static void cancelAll(
+            final List<Future<TargetBuilder.Result>> futures) {
+        futures.stream()
+                .filter(f -> !f.isDone())
+                .forEach(f -> f.cancel(true));
+    }
+
+    /** Shuts down the thread pool and closes the connections to the
+     * docker engine. Running target builders are interrupted.
+     * */
+    @Override
+    public void close() {
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ex) {
+            log.debug("JVM is shutting down", ex);
+        }
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                log.warn("Target threads did not terminate in time");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (dockerEngine != null) {
+                dockerEngine.close();
+            }
+        }
+    }
+}
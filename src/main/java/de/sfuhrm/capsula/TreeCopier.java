@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula;
+
+import de.sfuhrm.capsula.yaml.command.PermissionSet;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Copies files and directory trees. The trees are walked with
+ * {@link Files#walkFileTree(Path, Set, int, java.nio.file.FileVisitor)},
+ * the directories of the upper levels are copied in parallel in the
+ * common fork join pool.
+ * <p>
+ * Owner, group and mode of a {@link PermissionSet} are looked up once
+ * per copy. The mode is given to the file system when creating a file
+ * or directory, it is only set afterwards if the umask of the process
+ * would remove some of its bits. Symbolic links are followed.
+ *
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+public final class TreeCopier {
+
+    /** The number of directory levels that are copied in forked tasks.
+     * Deeper directories are copied by the task of their ancestor. */
+    private static final int FORK_LEVELS = 2;
+
+    /** The permission bits the umask of the process removes when
+     * creating a file. */
+    private static final Set<PosixFilePermission> UMASK = probeUmask();
+
+    /** The attributes of the copied files and directories. */
+    private final Attributes attributes;
+
+    /** Creates a new instance.
+     * @param myAttributes the attributes of the copied files
+     *                     and directories.
+     * */
+    private TreeCopier(final Attributes myAttributes) {
+        this.attributes = myAttributes;
+    }
+
+    /** Copies a file or directory tree. Missing parent directories of
+     * the target are created. Target files that already exist are only
+     * written if their content differs.
+     * @param from the file or directory to copy.
+     * @param to the path of the copy. For a directory, this is the
+     *           directory that gets the contents of {@code from}.
+     * @param permissions the owner, group and mode of the copied files
+     *                    and created directories, or {@code null} to
+     *                    keep the defaults.
+     * @throws IOException if copying fails. Further problems are added
+     * as suppressed exceptions.
+     * */
+    public static void copy(final Path from,
+                            final Path to,
+                            final PermissionSet permissions)
+            throws IOException {
+        log.debug("Copying {} to {}", from, to);
+        TreeCopier copier = new TreeCopier(
+                new Attributes(permissions, to.getFileSystem()));
+        Path parent = to.toAbsolutePath().getParent();
+        if (parent != null && !Files.isDirectory(parent)) {
+            List<Path> created = new ArrayList<>();
+            FileUtils.mkdirs(parent, created::add);
+            for (Path directory : created) {
+                copier.attributes.apply(directory);
+            }
+        }
+        BasicFileAttributes fromAttributes = Files.readAttributes(from,
+                BasicFileAttributes.class);
+        if (!fromAttributes.isDirectory()) {
+            copier.copyFile(from, to, fromAttributes);
+            return;
+        }
+        Queue<IOException> failures = new ConcurrentLinkedQueue<>();
+        ForkJoinPool.commonPool().invoke(
+                copier.new CopyTask(from, to, 0, failures));
+        IOException first = failures.poll();
+        if (first != null) {
+            failures.forEach(first::addSuppressed);
+            throw first;
+        }
+    }
+
+    /** Copies a single file.
+     * @param from the file to copy.
+     * @param to the path of the copy.
+     * @param fromAttributes the attributes of the file to copy.
+     * @throws IOException if copying fails.
+     * */
+    private void copyFile(final Path from,
+                          final Path to,
+                          final BasicFileAttributes fromAttributes)
+            throws IOException {
+        if (!fromAttributes.isRegularFile()) {
+            log.debug("Skipping {}, it is no regular file", from);
+            return;
+        }
+        try {
+            if (attributes.mode == null) {
+                Files.copy(from, to);
+            } else {
+                transfer(from, to);
+            }
+        } catch (FileAlreadyExistsException ex) {
+            FileUtils.copyIfChanged(from, to);
+            attributes.apply(to);
+            return;
+        }
+        Files.setLastModifiedTime(to, fromAttributes.lastModifiedTime());
+        attributes.created(to);
+    }
+
+    /** Copies the content of a file to a new file that is created
+     * with the mode of the attributes.
+     * @param from the file to copy.
+     * @param to the new file.
+     * @throws IOException if copying fails.
+     * */
+    private void transfer(final Path from, final Path to)
+            throws IOException {
+        try (FileChannel in = FileChannel.open(from,
+                     StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(to,
+                     EnumSet.of(StandardOpenOption.CREATE_NEW,
+                             StandardOpenOption.WRITE),
+                     attributes.creation)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+    /** Creates a directory.
+     * @param directory the directory to create.
+     * @throws IOException if the directory can not be created.
+     * */
+    private void createDirectory(final Path directory) throws IOException {
+        try {
+            Files.createDirectory(directory, attributes.creation);
+        } catch (FileAlreadyExistsException ex) {
+            if (!Files.isDirectory(directory)) {
+                throw ex;
+            }
+            return;
+        }
+        attributes.created(directory);
+    }
+
+    /** Copies a directory tree, forking a task for each subdirectory
+     * in the upper levels. */
+    private final class CopyTask extends RecursiveAction {
+
+        /** Version of the serialized form. */
+        private static final long serialVersionUID = 1L;
+
+        /** The directory to copy. */
+        private final transient Path from;
+
+        /** The path of the copy. */
+        private final transient Path to;
+
+        /** The directory level of this task. */
+        private final int level;
+
+        /** Where to put problems while copying. */
+        private final transient Queue<IOException> failures;
+
+        /** Creates a new task.
+         * @param myFrom the directory to copy.
+         * @param myTo the path of the copy.
+         * @param myLevel the directory level of the task.
+         * @param myFailures where to put problems while copying.
+         * */
+        private CopyTask(final Path myFrom,
+                         final Path myTo,
+                         final int myLevel,
+                         final Queue<IOException> myFailures) {
+            this.from = myFrom;
+            this.to = myTo;
+            this.level = myLevel;
+            this.failures = myFailures;
+        }
+
+        /** Get the path of the copy of a path in the tree.
+         * @param path a path in the copied directory.
+         * @return the path of the copy.
+         * */
+        private Path target(final Path path) {
+            return to.resolve(from.relativize(path).toString());
+        }
+
+        @Override
+        protected void compute() {
+            List<CopyTask> subtasks = new ArrayList<>();
+            try {
+                Files.walkFileTree(from,
+                        EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+                        Integer.MAX_VALUE,
+                        new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(
+                            final Path dir,
+                            final BasicFileAttributes attrs)
+                            throws IOException {
+                        if (!dir.equals(from) && level < FORK_LEVELS
+                                && dir.getParent().equals(from)) {
+                            subtasks.add(new CopyTask(dir, target(dir),
+                                    level + 1, failures));
+                            return FileVisitResult.SKIP_SUBTREE;
+                        }
+                        createDirectory(target(dir));
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(
+                            final Path file,
+                            final BasicFileAttributes attrs)
+                            throws IOException {
+                        copyFile(file, target(file), attrs);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException ex) {
+                failures.add(ex);
+            }
+            invokeAll(subtasks);
+        }
+    }
+
+    /** The owner, group and mode of copied files and directories. */
+    private static final class Attributes {
+        /** The owner or {@code null}. */
+        private final UserPrincipal owner;
+
+        /** The group or {@code null}. */
+        private final GroupPrincipal group;
+
+        /** The mode or {@code null}. */
+        private final Set<PosixFilePermission> mode;
+
+        /** The attributes to create files and directories with. */
+        private final FileAttribute<?>[] creation;
+
+        /** Whether the mode needs to be set after creation, because
+         * the umask removes some of its bits. */
+        private final boolean modeAfterCreation;
+
+        /** Looks up the attributes of a permission set.
+         * @param permissions the permission set, or {@code null}.
+         * @param fileSystem the file system of the copies.
+         * @throws IOException if owner or group can not be looked up.
+         * */
+        private Attributes(final PermissionSet permissions,
+                           final FileSystem fileSystem) throws IOException {
+            UserPrincipalLookupService lookupService
+                    = fileSystem.getUserPrincipalLookupService();
+            if (permissions != null && permissions.getOwner() != null) {
+                owner = lookupService.lookupPrincipalByName(
+                        permissions.getOwner());
+            } else {
+                owner = null;
+            }
+            if (permissions != null && permissions.getGroup() != null) {
+                group = lookupService.lookupPrincipalByGroupName(
+                        permissions.getGroup());
+            } else {
+                group = null;
+            }
+            if (permissions != null && permissions.getMode() != null) {
+                mode = PosixFilePermissions.fromString(
+                        permissions.getMode());
+                creation = new FileAttribute<?>[] {
+                        PosixFilePermissions.asFileAttribute(mode)};
+                modeAfterCreation = !Collections.disjoint(mode, UMASK);
+            } else {
+                mode = null;
+                creation = new FileAttribute<?>[0];
+                modeAfterCreation = false;
+            }
+        }
+
+        /** Sets the attributes of a path that was created with the
+         * {@link #creation creation attributes}.
+         * @param path the created path.
+         * @throws IOException if an attribute can not be set.
+         * */
+        private void created(final Path path) throws IOException {
+            set(path, modeAfterCreation);
+        }
+
+        /** Sets all attributes of a path.
+         * @param path the path to change.
+         * @throws IOException if an attribute can not be set.
+         * */
+        private void apply(final Path path) throws IOException {
+            set(path, mode != null);
+        }
+
+        /** Sets the owner, group and optionally the mode of a path.
+         * @param path the path to change.
+         * @param setMode whether to set the mode.
+         * @throws IOException if an attribute can not be set.
+         * */
+        private void set(final Path path, final boolean setMode)
+                throws IOException {
+            if (owner == null && group == null && !setMode) {
+                return;
+            }
+            PosixFileAttributeView view = Files.getFileAttributeView(path,
+                    PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+            if (owner != null) {
+                view.setOwner(owner);
+            }
+            if (group != null) {
+                view.setGroup(group);
+            }
+            if (setMode) {
+                view.setPermissions(mode);
+            }
+        }
+    }
+
+    /** Finds out which permission bits the umask of the process
+     * removes by creating a temporary file with all bits.
+     * @return the removed bits. If the file system has no POSIX
+     * permissions, all bits are returned so the mode gets set
+     * explicitly.
+     * */
+    private static Set<PosixFilePermission> probeUmask() {
+        Set<PosixFilePermission> all =
+                EnumSet.allOf(PosixFilePermission.class);
+        try {
+            Path probe = Files.createTempFile("umask", null,
+                    PosixFilePermissions.asFileAttribute(all));
+            try {
+                all.removeAll(Files.getPosixFilePermissions(probe));
+            } finally {
+                Files.delete(probe);
+            }
+            log.debug("Umask removes {}", all);
+        } catch (IOException | UnsupportedOperationException ex) {
+            log.debug("Can not find out the umask", ex);
+        }
+        return Collections.unmodifiableSet(all);
+    }
+}
@@ -17,6 +17,8 @@
  */
 package de.sfuhrm.capsula;
 
+import java.io.PrintStream;
+import java.util.Objects;
 import java.util.Set;
 import javax.validation.ConstraintViolation;
 import javax.validation.Validation;
@@ -32,15 +34,43 @@ import lombok.extern.slf4j.Slf4j;
 @Slf4j
 public class ValidationDelegate {
 
+    /**
+     * The validator factory shared by all instances. Building the
+     * factory is expensive, so it is only done once.
+     */
+    private static ValidatorFactory validatorFactory;
+
     /**
      * Bean validator to use.
      */
     private final Validator validator;
 
-    /** Creates a new instance. */
+    /**
+     * Where to print the validation errors to.
+     */
+    private final PrintStream console;
+
+    /** Creates a new instance that prints to {@link System#err}. */
     public ValidationDelegate() {
-        ValidatorFactory factory = Validation.buildDefaultValidatorFactory();
-        validator = factory.getValidator();
+        this(System.err);
+    }
+
+    /** Creates a new instance.
+     * @param myConsole the stream to print the validation errors to.
+     * */
+    public ValidationDelegate(final PrintStream myConsole) {
+        validator = getValidatorFactory().getValidator();
+        console = Objects.requireNonNull(myConsole);
+    }
+
+    /** Get the shared validator factory.
+     * @return the validator factory, built on the first call.
+     * */
+    private static synchronized ValidatorFactory getValidatorFactory() {
+        if (validatorFactory == null) {
+            validatorFactory = Validation.buildDefaultValidatorFactory();
+        }
+        return validatorFactory;
     }
 
     /**
@@ -54,17 +84,17 @@ public class ValidationDelegate {
     public final <T> Set<ConstraintViolation<T>> validate(final T o) {
         final Set<ConstraintViolation<T>> violations = validator.validate(o);
         if (violations.size() > 0) {
-            System.err.println("YAML config contains errors:");
+            console.println("YAML config contains errors:");
             violations.forEach(u -> {
                 log.error("Validation error for {} {}. ",
                         u.getPropertyPath().toString(), u.getMessage());
-                System.err.printf("  \"%s\"" + " %s (value: %s)%n",
+                console.printf("  \"%s\"" + " %s (value: %s)%n",
                         u.getPropertyPath().toString(),
                         u.getMessage(),
                         u.getInvalidValue()
                 );
             });
-            System.err.printf("Got %d validation errors%n", violations.size());
+            console.printf("Got %d validation errors%n", violations.size());
         } else {
             log.debug("Object validated");
         }
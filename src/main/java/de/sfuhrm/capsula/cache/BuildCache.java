@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.cache;
+
+import com.google.common.hash.Hasher;
+import de.sfuhrm.capsula.FileUtils;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Content addressed cache of built package files. Each entry is a
+ * directory named by the hash of all inputs of a target build and
+ * contains the package files of the build.
+ * The least recently used entries are evicted if the cache grows
+ * beyond its size limit.
+ *
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+public final class BuildCache {
+
+    /** The suffix of entries that are being written. */
+    private static final String INCOMPLETE_SUFFIX = ".incomplete";
+
+    /** The directory the entries are stored in. */
+    private final Path directory;
+
+    /** The maximum size of all entries in bytes. */
+    private final long maxSize;
+
+    /** Creates a new instance.
+     * @param myDirectory the directory to store the entries in. Will be
+     *                    created if it does not exist.
+     * @param myMaxSize the maximum size of all entries in bytes.
+     * */
+    public BuildCache(final Path myDirectory, final long myMaxSize) {
+        this.directory = Objects.requireNonNull(myDirectory).toAbsolutePath();
+        this.maxSize = myMaxSize;
+    }
+
+    /** Adds a file or directory tree to a hash. The names relative to
+     * the given root and the contents of the files are added in name
+     * order.
+     * @param hasher the hasher to add the tree to.
+     * @param root the file or directory to add.
+     * @throws IOException if there is a problem reading the files.
+     * */
+    public static void putTree(final Hasher hasher,
+                               final Path root) throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(root)) {
+            files = stream.filter(Files::isRegularFile)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            hasher.putString(root.relativize(file).toString(),
+                    StandardCharsets.UTF_8);
+            hasher.putLong(Files.size(file));
+            hasher.putBytes(Files.readAllBytes(file));
+        }
+    }
+
+    /** Looks up the package files for a key. A hit marks the entry
+     * as recently used.
+     * @param key the hash of the build inputs.
+     * @return the directory containing the package files, or
+     * {@link Optional#empty()} if the cache contains no entry for the key.
+     * @throws IOException if there is an I/O problem.
+     * */
+    public Optional<Path> lookup(final String key) throws IOException {
+        Path entry = directory.resolve(key);
+        if (!Files.isDirectory(entry)) {
+            log.debug("Build cache miss for {}", key);
+            return Optional.empty();
+        }
+        log.debug("Build cache hit for {}", key);
+        Files.setLastModifiedTime(entry,
+                FileTime.fromMillis(System.currentTimeMillis()));
+        return Optional.of(entry);
+    }
+
+    /** Stores package files for a key. An existing entry for the key is
+     * kept. Evicts old entries afterwards if the cache is too big.
+     * @param key the hash of the build inputs.
+     * @param files the package files to store. They are stored by their
+     *              file name.
+     * @throws IOException if there is an I/O problem.
+     * */
+    public void store(final String key,
+                      final List<Path> files) throws IOException {
+        Files.createDirectories(directory);
+        Path entry = directory.resolve(key);
+        Path incomplete = directory.resolve(key + "-"
+                + UUID.randomUUID() + INCOMPLETE_SUFFIX);
+        Files.createDirectory(incomplete);
+        try {
+            for (Path file : files) {
+                Files.copy(file, incomplete.resolve(file.getFileName()),
+                        StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            if (!Files.exists(entry)) {
+                Files.move(incomplete, entry,
+                        StandardCopyOption.ATOMIC_MOVE);
+                log.debug("Stored build cache entry {}", key);
+            }
+        } finally {
+            if (Files.exists(incomplete)) {
+                FileUtils.deleteRecursive(incomplete);
+            }
+        }
+        evict();
+    }
+
+    /** Deletes the least recently used entries until the size of
+     * the cache is within the limit.
+     * @throws IOException if there is an I/O problem.
+     * */
+    synchronized void evict() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        List<Path> entries;
+        try (Stream<Path> stream = Files.list(directory)) {
+            entries = stream
+                    .filter(Files::isDirectory)
+                    .filter(p -> !p.getFileName().toString()
+                            .endsWith(INCOMPLETE_SUFFIX))
+                    .collect(Collectors.toList());
+        }
+        Map<Path, Long> sizes = new HashMap<>();
+        Map<Path, FileTime> times = new HashMap<>();
+        long total = 0;
+        for (Path entry : entries) {
+            long size = size(entry);
+            sizes.put(entry, size);
+            times.put(entry, Files.getLastModifiedTime(entry));
+            total += size;
+        }
+        List<Path> oldestFirst = new ArrayList<>(entries);
+        oldestFirst.sort(Comparator.comparing(times::get));
+        for (Path entry : oldestFirst) {
+            if (total <= maxSize) {
+                break;
+            }
+            log.info("Evicting build cache entry {}", entry.getFileName());
+            FileUtils.deleteRecursive(entry);
+            total -= sizes.get(entry);
+        }
+    }
+
+    /** Get the size of the files in a directory tree.
+     * @param root the directory to get the size of.
+     * @return the sum of the file sizes in bytes.
+     * @throws IOException if there is an I/O problem.
+     * */
+    private static long size(final Path root) throws IOException {
+        long result = 0;
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(root)) {
+            files = stream.filter(Files::isRegularFile)
+                    .collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            result += Files.size(file);
+        }
+        return result;
+    }
+}
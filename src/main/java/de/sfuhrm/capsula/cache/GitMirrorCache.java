@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.cache;
+
+import com.google.common.hash.Hashing;
+import de.sfuhrm.capsula.BuildException;
+import de.sfuhrm.capsula.FileUtils;
+import de.sfuhrm.capsula.ProcessUtils;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Bare mirrors of git repositories. Each repository is cloned once
+ * and later updated with an incremental fetch. The targets clone
+ * from the local mirror instead of the remote repository.
+ *
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+public final class GitMirrorCache {
+
+    /** The number of hex digits of the URL hash in the mirror name. */
+    private static final int HASH_DIGITS = 16;
+
+    /** The directory the mirrors are stored in. */
+    private final Path directory;
+
+    /** The mirror updates of this instance by git URL. Each URL is
+     * only updated once in the lifetime of this instance.
+     * */
+    private final Map<String, CompletableFuture<Path>> updates =
+            new ConcurrentHashMap<>();
+
+    /** Creates a new instance.
+     * @param myDirectory the directory to store the mirrors in. Will be
+     *                    created if it does not exist.
+     * */
+    public GitMirrorCache(final Path myDirectory) {
+        this.directory = Objects.requireNonNull(myDirectory).toAbsolutePath();
+    }
+
+    /** Get the mirror of a git repository that is up to date. The
+     * first call for a URL clones or fetches the repository. Concurrent
+     * and later calls for the same URL share the result of the first
+     * call.
+     * @param gitUrl the URL of the git repository.
+     * @return the path of the bare mirror repository.
+     * @throws IOException if there is a problem updating the mirror.
+     * */
+    public Path update(final String gitUrl) throws IOException {
+        Objects.requireNonNull(gitUrl, "gitUrl is null");
+        CompletableFuture<Path> future = new CompletableFuture<>();
+        CompletableFuture<Path> existing = updates.putIfAbsent(gitUrl, future);
+        if (existing != null) {
+            return join(existing);
+        }
+        try {
+            future.complete(updateMirror(gitUrl));
+        } catch (IOException | RuntimeException ex) {
+            updates.remove(gitUrl, future);
+            future.completeExceptionally(ex);
+        }
+        return join(future);
+    }
+
+    /** Waits for the result of a mirror update.
+     * @param future the future of the update.
+     * @return the path of the bare mirror repository.
+     * @throws IOException if there is a problem updating the mirror.
+     * */
+    private static Path join(final CompletableFuture<Path> future)
+            throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new BuildException("Problem updating git mirror",
+                    ex.getCause());
+        }
+    }
+
+    /** Get the name of the mirror directory for a git URL.
+     * @param gitUrl the URL of the git repository.
+     * @return a file name that is unique for the URL.
+     * */
+    static String mirrorName(final String gitUrl) {
+        String hash = Hashing.sha256()
+                .hashString(gitUrl, StandardCharsets.UTF_8)
+                .toString()
+                .substring(0, HASH_DIGITS);
+        String name = gitUrl.replaceAll(".*/", "")
+                .replaceAll("\\.git$", "")
+                .replaceAll("[^a-zA-Z0-9_.-]", "_");
+        return name + "-" + hash + ".git";
+    }
+
+    /** Clones or fetches the mirror of a git repository. Holds a file
+     * lock while doing so, so concurrent processes don't interfere.
+     * @param gitUrl the URL of the git repository.
+     * @return the path of the bare mirror repository.
+     * @throws IOException if there is a problem updating the mirror.
+     * */
+    private Path updateMirror(final String gitUrl) throws IOException {
+        Files.createDirectories(directory);
+        String name = mirrorName(gitUrl);
+        Path mirror = directory.resolve(name);
+        Path lockFile = directory.resolve(name + ".lock");
+        try (FileChannel channel = FileChannel.open(lockFile,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+            try {
+                if (Files.isDirectory(mirror)) {
+                    log.info("Fetching {} into mirror {}", gitUrl, mirror);
+                    ProcessUtils.run(Arrays.asList("git",
+                            "--git-dir", mirror.toString(),
+                            "fetch", "--prune", "--quiet"), directory);
+                } else {
+                    Path incomplete = directory.resolve(name + ".incomplete");
+                    if (Files.exists(incomplete)) {
+                        FileUtils.deleteRecursive(incomplete);
+                    }
+                    log.info("Cloning {} into mirror {}", gitUrl, mirror);
+                    ProcessUtils.run(Arrays.asList("git", "clone",
+                            "--mirror", "--quiet",
+                            gitUrl, incomplete.toString()), directory);
+                    Files.move(incomplete, mirror,
+                            StandardCopyOption.ATOMIC_MOVE);
+                }
+            } finally {
+                lock.release();
+            }
+        }
+        return mirror;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.docker;
+
+import de.sfuhrm.capsula.BuildException;
+import de.sfuhrm.capsula.trace.ResourceUsage;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A container that lives as long as the build of one target.
+ * The container is started once, the steps of the build are
+ * run in it with {@code docker exec} and the container is removed
+ * when the session is closed. This saves the creation of a container
+ * and the setup of its volumes for every step.
+ * While the container runs, its memory usage is polled, so the
+ * {@link #getResourceUsage() resource usage} has the peak memory
+ * even where the cgroup does not report it.
+ *
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+public final class ContainerSession implements AutoCloseable {
+
+    /** The default time between two polls of the container stats. */
+    public static final Duration DEFAULT_STATS_INTERVAL =
+            Duration.ofSeconds(1);
+
+    /** The engine the container is running in. */
+    private final DockerEngine engine;
+
+    /** The image of the container. */
+    @Getter
+    private final String image;
+
+    /** The default working directory of the commands. */
+    @Getter
+    private final String workingDir;
+
+    /** The volumes of the container. */
+    private final List<String> binds;
+
+    /** The id of the container, or {@code null} if not started. */
+    private String containerId;
+
+    /** Whether the session was closed. */
+    private boolean closed;
+
+    /** The time between two polls of the container stats. */
+    private final Duration statsInterval;
+
+    /** The thread polling the container stats, or {@code null} if
+     * the container is not running. */
+    private Thread statsPoller;
+
+    /** The largest memory usage of the container seen in bytes.
+     * Is not guarded by the session lock, so the poller never
+     * waits for a caller that talks to the daemon. */
+    private final AtomicLong peakMemory = new AtomicLong();
+
+    /** Creates a new session. The container is started with the
+     * first command.
+     * @param myEngine the engine to run the container in.
+     * @param myImage the image of the container.
+     * @param myWorkingDir the default working directory of the commands.
+     * @param myBinds the volumes to mount in the form
+     *              {@code /host/path:/container/path}.
+     * */
+    public ContainerSession(final DockerEngine myEngine,
+                            final String myImage,
+                            final String myWorkingDir,
+                            final List<String> myBinds) {
+        this(myEngine, myImage, myWorkingDir, myBinds,
+                DEFAULT_STATS_INTERVAL);
+    }
+
+    /** Creates a new session. The container is started with the
+     * first command.
+     * @param myEngine the engine to run the container in.
+     * @param myImage the image of the container.
+     * @param myWorkingDir the default working directory of the commands.
+     * @param myBinds the volumes to mount in the form
+     *              {@code /host/path:/container/path}.
+     * @param myStatsInterval the time between two polls of the
+     *                        container stats.
+     * */
+    public ContainerSession(final DockerEngine myEngine,
+                            final String myImage,
+                            final String myWorkingDir,
+                            final List<String> myBinds,
+                            final Duration myStatsInterval) {
+        this.engine = Objects.requireNonNull(myEngine);
+        this.image = Objects.requireNonNull(myImage);
+        this.workingDir = Objects.requireNonNull(myWorkingDir);
+        this.binds = new ArrayList<>(myBinds);
+        this.statsInterval = Objects.requireNonNull(myStatsInterval);
+    }
+
+    /** Starts the container unless it is running.
+     * @return the id of the container.
+     * @throws IOException if there is a problem talking to the daemon.
+     * @throws BuildException if the session was closed.
+     * */
+    public synchronized String start() throws IOException, BuildException {
+        if (closed) {
+            throw new BuildException("Container session is closed");
+        }
+        if (containerId == null) {
+            log.info("Starting container of image {}", image);
+            containerId = engine.startContainer(image, workingDir, binds);
+            final String id = containerId;
+            statsPoller = Thread.ofVirtual()
+                    .name("capsula-stats-" + id)
+                    .start(() -> pollStats(id));
+        }
+        return containerId;
+    }
+
+    /** Polls the memory usage of the container until the
+     * poller is interrupted.
+     * @param id the id of the container.
+     * */
+    private void pollStats(final String id) {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(statsInterval.toMillis());
+                ResourceUsage usage = engine.stats(id);
+                peakMemory.accumulateAndGet(usage.getPeakRssBytes(),
+                        Math::max);
+            }
+        } catch (InterruptedException ex) {
+            log.debug("Stats poller of {} stopped", id);
+        } catch (IOException ex) {
+            log.debug("Can not poll stats of " + id, ex);
+        }
+    }
+
+    /** Reads the resources the container used so far.
+     * @return the CPU times and I/O of the container and the peak
+     * memory seen, or {@link Optional#empty()} if the container
+     * is not running or its stats can not be read.
+     * */
+    public Optional<ResourceUsage> getResourceUsage() {
+        String id;
+        synchronized (this) {
+            id = containerId;
+        }
+        if (id == null) {
+            return Optional.empty();
+        }
+        try {
+            ResourceUsage usage = engine.stats(id);
+            long peak = peakMemory.accumulateAndGet(
+                    usage.getPeakRssBytes(), Math::max);
+            return Optional.of(new ResourceUsage(usage.getCpuUserMillis(),
+                    usage.getCpuSystemMillis(), peak,
+                    usage.getReadBytes(), usage.getWriteBytes()));
+        } catch (IOException ex) {
+            log.warn("Can not read stats of container " + id, ex);
+            return Optional.empty();
+        }
+    }
+
+    /** Runs a command in the container. The container is started
+     * if it is not running yet. If the command times out or gets
+     * interrupted, the container is removed to kill the command and
+     * the session is closed.
+     * @param command the command and its arguments.
+     * @param myWorkingDir the working directory of the command or
+     *                     {@code null} for the default.
+     * @param stdout the consumer of the standard output lines.
+     * @param stderr the consumer of the standard error lines.
+     * @param timeout the optional time the command may run.
+     * @return the exit value of the command.
+     * @throws IOException if there is a problem talking to the daemon.
+     * @throws BuildException if the command timed out or got interrupted.
+     * */
+    public int exec(final List<String> command,
+                    final String myWorkingDir,
+                    final Consumer<String> stdout,
+                    final Consumer<String> stderr,
+                    final Optional<Duration> timeout)
+            throws IOException, BuildException {
+        String id = start();
+        String dir = workingDir;
+        if (myWorkingDir != null) {
+            dir = myWorkingDir;
+        }
+        try {
+            return engine.exec(id, command, dir, stdout, stderr, timeout);
+        } catch (BuildException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /** Removes the container if it was started. */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (statsPoller != null) {
+            statsPoller.interrupt();
+            statsPoller = null;
+        }
+        if (containerId != null) {
+            log.debug("Removing container {} of image {}", containerId,
+                    image);
+            engine.removeContainer(containerId);
+            containerId = null;
+        }
+    }
+}
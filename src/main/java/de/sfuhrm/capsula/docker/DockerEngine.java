@@ -0,0 +1,748 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.docker;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import de.sfuhrm.capsula.BuildException;
+import de.sfuhrm.capsula.trace.ResourceUsage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+/**
+ * Runs containers and builds images with the docker Engine API
+ * instead of forking the docker command line client.
+ * The API is talked to over the Unix socket of the docker daemon.
+ * Connections are reused between requests.
+ *
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+public final class DockerEngine implements AutoCloseable {
+
+    /** The default socket of the docker daemon. */
+    public static final Path DEFAULT_SOCKET =
+            Paths.get("/var/run/docker.sock");
+
+    /** The scheme of a {@code DOCKER_HOST} on a Unix socket. */
+    private static final String UNIX_SCHEME = "unix://";
+
+    /** The HTTP status for a resource that was not found. */
+    private static final int NOT_FOUND = 404;
+
+    /** The stream number of standard error in the log stream. */
+    private static final int STDERR = 2;
+
+    /** The length of a frame header in the log stream. */
+    private static final int FRAME_HEADER = 8;
+
+    /** The offset of the frame size in the frame header. */
+    private static final int FRAME_SIZE_OFFSET = 4;
+
+    /** The permissions of executable files in the build context. */
+    private static final int EXECUTABLE_MODE = 0100755;
+
+    /** The permissions of other files in the build context. */
+    private static final int FILE_MODE = 0100644;
+
+    /** The command that keeps a started container running. */
+    private static final List<String> IDLE_COMMAND =
+            Arrays.asList("tail", "-f", "/dev/null");
+
+    /** How often the state of a command is polled after its
+     * output ended. */
+    private static final int EXEC_POLLS = 100;
+
+    /** The milliseconds between two polls of the state of a command. */
+    private static final long EXEC_POLL_MILLIS = 10;
+
+    /** Nanoseconds per millisecond for the CPU times of containers. */
+    private static final long NANOS_PER_MILLI = 1000000;
+
+    /** The JSON content type. */
+    private static final String JSON = "application/json";
+
+    /** The mapper for the JSON requests and responses. */
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** The executor reading the log streams of the containers. */
+    private static final ExecutorService LOG_EXECUTOR =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual()
+                    .name("capsula-container-log-", 0)
+                    .factory());
+
+    /** The socket of the docker daemon. */
+    @Getter
+    private final Path socket;
+
+    /** The client for the HTTP requests. */
+    private final UnixHttpClient client;
+
+    /** Creates a new instance. No connection is opened until
+     * the first request.
+     * @param mySocket the socket of the docker daemon.
+     * */
+    public DockerEngine(final Path mySocket) {
+        this.socket = Objects.requireNonNull(mySocket);
+        this.client = new UnixHttpClient(mySocket);
+    }
+
+    /** Get the socket of the docker daemon. This is the socket in
+     * the {@code DOCKER_HOST} environment variable, or the
+     * {@link #DEFAULT_SOCKET default socket}.
+     * @return the socket of the docker daemon.
+     * @throws BuildException if {@code DOCKER_HOST} is not a Unix socket.
+     * */
+    public static Path getDefaultSocket() {
+        String dockerHost = System.getenv("DOCKER_HOST");
+        if (dockerHost == null || dockerHost.isEmpty()) {
+            return DEFAULT_SOCKET;
+        }
+        if (!dockerHost.startsWith(UNIX_SCHEME)) {
+            throw new BuildException("Only unix:// is supported "
+                    + "for DOCKER_HOST: " + dockerHost);
+        }
+        return Paths.get(dockerHost.substring(UNIX_SCHEME.length()));
+    }
+
+    /** Runs a command in a new container and removes the container
+     * afterwards. The output is passed line by line to the consumers.
+     * A missing image is pulled.
+     * @param image the image to run.
+     * @param command the command and its arguments.
+     * @param workingDir the working directory in the container.
+     * @param binds the volumes to mount in the form
+     *              {@code /host/path:/container/path}.
+     * @param stdout the consumer of the standard output lines.
+     * @param stderr the consumer of the standard error lines.
+     * @param timeout the optional time the command may run.
+     * @return the exit value of the command.
+     * @throws IOException if there is a problem talking to the daemon.
+     * @throws BuildException if the command timed out or got interrupted.
+     * */
+    public int run(final String image,
+                   final List<String> command,
+                   final String workingDir,
+                   final List<String> binds,
+                   final Consumer<String> stdout,
+                   final Consumer<String> stderr,
+                   final Optional<Duration> timeout)
+            throws IOException, BuildException {
+        ObjectNode request = MAPPER.createObjectNode();
+        request.put("Image", image);
+        command.forEach(request.putArray("Cmd")::add);
+        request.put("WorkingDir", workingDir);
+        request.put("Tty", false);
+        binds.forEach(request.putObject("HostConfig")
+                .putArray("Binds")::add);
+
+        String id = null;
+        try {
+            id = create(image, request);
+            log.debug("Created container {} for {}", id, command);
+            post("/containers/" + id + "/start", null);
+            final String containerId = id;
+            CompletableFuture<Void> logs = CompletableFuture.runAsync(
+                    () -> readLogs(containerId, stdout, stderr),
+                    LOG_EXECUTOR);
+            await(logs, timeout, command);
+            return post("/containers/" + id + "/wait", null)
+                    .get("StatusCode").asInt();
+        } finally {
+            if (id != null) {
+                removeContainer(id);
+            }
+        }
+    }
+
+    /** Creates a container. If the image of the container is missing,
+     * it is pulled and the creation is tried again.
+     * @param image the image of the container.
+     * @param request the create request.
+     * @return the id of the created container.
+     * @throws IOException if there is a problem talking to the daemon.
+     * @throws BuildException if pulling the image failed.
+     * */
+    private String create(final String image,
+                          final JsonNode request)
+            throws IOException, BuildException {
+        try (UnixHttpClient.Response response = client.execute("POST",
+                "/containers/create", JSON,
+                MAPPER.writeValueAsBytes(request))) {
+            if (response.getStatus() != NOT_FOUND) {
+                check(response);
+                return MAPPER.readTree(response.readBody())
+                        .get("Id").asText();
+            }
+            log.debug("Image {} is missing: {}", image, response.readBody());
+        }
+        log.info("Pulling missing image {}", image);
+        pull(image, line -> log.debug("Pull of {}: {}", image, line));
+        return post("/containers/create", request).get("Id").asText();
+    }
+
+    /** Waits for the output of a container to end.
+     * @param logs the future reading the output.
+     * @param timeout the optional time the command may run.
+     * @param command the command for error messages.
+     * @throws IOException if reading the output failed.
+     * @throws BuildException if the command timed out or got interrupted.
+     * */
+    private static void await(final CompletableFuture<Void> logs,
+                              final Optional<Duration> timeout,
+                              final List<String> command)
+            throws IOException, BuildException {
+        try {
+            if (timeout.isPresent()) {
+                logs.get(timeout.get().toNanos(), TimeUnit.NANOSECONDS);
+            } else {
+                logs.get();
+            }
+        } catch (TimeoutException ex) {
+            throw new BuildException("Command " + command + " timed out", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while running "
+                    + command, ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new BuildException("Problem reading output of "
+                    + command, ex.getCause());
+        }
+    }
+
+    /** Reads the output of a container until the container exits.
+     * @param id the id of the container.
+     * @param stdout the consumer of the standard output lines.
+     * @param stderr the consumer of the standard error lines.
+     * @throws UncheckedIOException if reading fails.
+     * */
+    private void readLogs(final String id,
+                          final Consumer<String> stdout,
+                          final Consumer<String> stderr) {
+        try (UnixHttpClient.Response response = client.execute("GET",
+                "/containers/" + id
+                        + "/logs?follow=1&stdout=1&stderr=1", null, null)) {
+            check(response);
+            demux(response.getBody(), stdout, stderr);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /** Removes a container, killing it if it is still running.
+     * Problems are logged, but not thrown.
+     * An interrupt of the calling thread is kept, but does not
+     * abort the removal.
+     * @param id the id of the container.
+     * */
+    public void removeContainer(final String id) {
+        boolean interrupted = Thread.interrupted();
+        try (UnixHttpClient.Response response = client.execute("DELETE",
+                "/containers/" + id + "?force=1", null, null)) {
+            check(response);
+            log.debug("Removed container {}", id);
+        } catch (IOException ex) {
+            log.warn("Problem removing container " + id, ex);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Creates and starts a container that keeps running until it
+     * is {@link #removeContainer(String) removed}. Commands are run
+     * in it with {@link #exec(String, List, String, Consumer, Consumer,
+     * Optional) exec}. A missing image is pulled.
+     * @param image the image to run.
+     * @param workingDir the working directory in the container.
+     * @param binds the volumes to mount in the form
+     *              {@code /host/path:/container/path}.
+     * @return the id of the started container.
+     * @throws IOException if there is a problem talking to the daemon.
+     * */
+    public String startContainer(final String image,
+                                 final String workingDir,
+                                 final List<String> binds)
+            throws IOException {
+        ObjectNode request = MAPPER.createObjectNode();
+        request.put("Image", image);
+        IDLE_COMMAND.forEach(request.putArray("Entrypoint")::add);
+        request.putArray("Cmd");
+        request.put("WorkingDir", workingDir);
+        request.put("Tty", false);
+        binds.forEach(request.putObject("HostConfig")
+                .putArray("Binds")::add);
+        String id = create(image, request);
+        try {
+            post("/containers/" + id + "/start", null);
+        } catch (IOException | RuntimeException ex) {
+            removeContainer(id);
+            throw ex;
+        }
+        log.debug("Started container {} of image {}", id, image);
+        return id;
+    }
+
+    /** Runs a command in a running container. The output is passed
+     * line by line to the consumers.
+     * @param id the id of the container.
+     * @param command the command and its arguments.
+     * @param workingDir the working directory in the container.
+     * @param stdout the consumer of the standard output lines.
+     * @param stderr the consumer of the standard error lines.
+     * @param timeout the optional time the command may run.
+     *                The API can not kill a single command, so the
+     *                caller needs to remove the container if the
+     *                command timed out.
+     * @return the exit value of the command.
+     * @throws IOException if there is a problem talking to the daemon.
+     * @throws BuildException if the command timed out or got interrupted.
+     * */
+    public int exec(final String id,
+                    final List<String> command,
+                    final String workingDir,
+                    final Consumer<String> stdout,
+                    final Consumer<String> stderr,
+                    final Optional<Duration> timeout)
+            throws IOException, BuildException {
+        ObjectNode request = MAPPER.createObjectNode();
+        command.forEach(request.putArray("Cmd")::add);
+        request.put("WorkingDir", workingDir);
+        request.put("AttachStdout", true);
+        request.put("AttachStderr", true);
+        request.put("Tty", false);
+        String execId = post("/containers/" + id + "/exec", request)
+                .get("Id").asText();
+        ObjectNode start = MAPPER.createObjectNode();
+        start.put("Detach", false);
+        start.put("Tty", false);
+        CompletableFuture<Void> output = CompletableFuture.runAsync(
+                () -> readExec(execId, start, stdout, stderr),
+                LOG_EXECUTOR);
+        await(output, timeout, command);
+        for (int i = 0; i < EXEC_POLLS; i++) {
+            JsonNode state = get("/exec/" + execId + "/json");
+            if (!state.path("Running").asBoolean()) {
+                return state.get("ExitCode").asInt();
+            }
+            sleep();
+        }
+        throw new BuildException("Command " + command
+                + " is still running after its output ended");
+    }
+
+    /** Starts a command created with {@code exec} and reads its output
+     * until the command exits.
+     * @param execId the id of the exec instance.
+     * @param start the start request.
+     * @param stdout the consumer of the standard output lines.
+     * @param stderr the consumer of the standard error lines.
+     * @throws UncheckedIOException if reading fails.
+     * */
+    private void readExec(final String execId,
+                          final JsonNode start,
+                          final Consumer<String> stdout,
+                          final Consumer<String> stderr) {
+        try (UnixHttpClient.Response response = client.execute("POST",
+                "/exec/" + execId + "/start", JSON,
+                MAPPER.writeValueAsBytes(start))) {
+            check(response);
+            demux(response.getBody(), stdout, stderr);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /** Waits a short time before polling the state of a command again.
+     * @throws BuildException if interrupted.
+     * */
+    private static void sleep() {
+        try {
+            Thread.sleep(EXEC_POLL_MILLIS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted", ex);
+        }
+    }
+
+    /** Reads the resources a container used so far. The CPU times
+     * and the I/O are the totals since the container started. The
+     * memory is the peak usage if the cgroup reports it, which is
+     * only the case with cgroup v1, and the current usage otherwise.
+     * @param id the id of the container.
+     * @return the resources used by the processes of the container.
+     * @throws IOException if there is a problem talking to the daemon.
+     * */
+    public ResourceUsage stats(final String id) throws IOException {
+        JsonNode stats = get("/containers/" + id
+                + "/stats?stream=false&one-shot=true");
+        JsonNode cpu = stats.path("cpu_stats").path("cpu_usage");
+        JsonNode memory = stats.path("memory_stats");
+        long peakMemory = memory.path("max_usage").asLong();
+        if (peakMemory == 0) {
+            peakMemory = memory.path("usage").asLong();
+        }
+        long read = 0;
+        long write = 0;
+        for (JsonNode entry : stats.path("blkio_stats")
+                .path("io_service_bytes_recursive")) {
+            String op = entry.path("op").asText().toLowerCase(Locale.ROOT);
+            if (op.equals("read")) {
+                read += entry.path("value").asLong();
+            } else if (op.equals("write")) {
+                write += entry.path("value").asLong();
+            }
+        }
+        return new ResourceUsage(
+                cpu.path("usage_in_usermode").asLong() / NANOS_PER_MILLI,
+                cpu.path("usage_in_kernelmode").asLong() / NANOS_PER_MILLI,
+                peakMemory, read, write);
+    }
+
+    /** Checks whether an image exists locally.
+     * @param name the name of the image.
+     * @return {@code true} if the image exists.
+     * @throws IOException if there is a problem talking to the daemon.
+     * */
+    public boolean imageExists(final String name) throws IOException {
+        try (UnixHttpClient.Response response = client.execute("GET",
+                "/images/" + name + "/json", null, null)) {
+            if (response.getStatus() == NOT_FOUND) {
+                return false;
+            }
+            check(response);
+            response.readBody();
+            return true;
+        }
+    }
+
+    /** Builds an image.
+     * @param contextDir the directory with the build context.
+     * @param dockerfile the path of the Dockerfile within the context.
+     * @param tag the name and tag of the image to build.
+     * @param output the consumer of the build output lines.
+     * @throws IOException if there is a problem talking to the daemon.
+     * @throws BuildException if the build failed.
+     * */
+    public void build(final Path contextDir,
+                      final String dockerfile,
+                      final String tag,
+                      final Consumer<String> output)
+            throws IOException, BuildException {
+        byte[] context = tar(contextDir);
+        log.debug("Build context of {} has {} bytes", contextDir,
+                context.length);
+        String path = "/build?t=" + encode(tag)
+                + "&dockerfile=" + encode(dockerfile);
+        try (UnixHttpClient.Response response = client.execute("POST",
+                path, "application/x-tar", context)) {
+            check(response);
+            readProgress(response.getBody(), "building image " + tag,
+                    output);
+        }
+    }
+
+    /** Pulls an image from its registry.
+     * @param name the name of the image, optionally with a tag
+     *             or digest.
+     * @param output the consumer of the pull output lines.
+     * @throws IOException if there is a problem talking to the daemon.
+     * @throws BuildException if the pull failed.
+     * */
+    public void pull(final String name,
+                     final Consumer<String> output)
+            throws IOException, BuildException {
+        try (UnixHttpClient.Response response = client.execute("POST",
+                "/images/create?fromImage=" + encode(name), null, null)) {
+            check(response);
+            readProgress(response.getBody(), "pulling image " + name,
+                    output);
+        }
+    }
+
+    /** Reads the JSON progress messages of a build or pull.
+     * @param in the stream of messages.
+     * @param action the action for error messages.
+     * @param output the consumer of the output lines.
+     * @throws IOException if reading fails.
+     * @throws BuildException if a message reports an error.
+     * */
+    private static void readProgress(final InputStream in,
+                                     final String action,
+                                     final Consumer<String> output)
+            throws IOException, BuildException {
+        MappingIterator<JsonNode> messages = MAPPER
+                .readerFor(JsonNode.class)
+                .readValues(in);
+        while (messages.hasNextValue()) {
+            JsonNode message = messages.nextValue();
+            if (message.has("error")) {
+                throw new BuildException("Problem " + action + ": "
+                        + message.get("error").asText());
+            }
+            if (message.has("stream")) {
+                message.get("stream").asText().lines()
+                        .forEach(output);
+            } else if (message.has("status")) {
+                output.accept(message.get("status").asText());
+            }
+        }
+    }
+
+    /** URL encodes a query parameter.
+     * @param value the value to encode.
+     * @return the encoded value.
+     * */
+    private static String encode(final String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    /** Packs a directory into an uncompressed tar archive.
+     * @param directory the directory to pack.
+     * @return the tar archive.
+     * @throws IOException if reading the directory fails.
+     * */
+    static byte[] tar(final Path directory) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(directory)) {
+            files = stream
+                    .filter(p -> !p.equals(directory))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+        try (TarArchiveOutputStream tar = new TarArchiveOutputStream(buffer)) {
+            tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            for (Path file : files) {
+                String name = directory.relativize(file).toString();
+                TarArchiveEntry entry = new TarArchiveEntry(file, name);
+                if (Files.isRegularFile(file)) {
+                    if (Files.isExecutable(file)) {
+                        entry.setMode(EXECUTABLE_MODE);
+                    } else {
+                        entry.setMode(FILE_MODE);
+                    }
+                }
+                tar.putArchiveEntry(entry);
+                if (Files.isRegularFile(file)) {
+                    Files.copy(file, tar);
+                }
+                tar.closeArchiveEntry();
+            }
+        }
+        return buffer.toByteArray();
+    }
+
+    /** Sends a GET request and reads the JSON response.
+     * @param path the path of the request.
+     * @return the JSON response.
+     * @throws IOException if the request fails.
+     * */
+    private JsonNode get(final String path) throws IOException {
+        try (UnixHttpClient.Response response = client.execute("GET",
+                path, null, null)) {
+            check(response);
+            return MAPPER.readTree(response.readBody());
+        }
+    }
+
+    /** Sends a POST request and reads the JSON response.
+     * @param path the path of the request.
+     * @param body the JSON body or {@code null} for none.
+     * @return the JSON response or an empty object if there is
+     * no response body.
+     * @throws IOException if the request fails.
+     * */
+    private JsonNode post(final String path,
+                          final JsonNode body) throws IOException {
+        byte[] content = null;
+        String contentType = null;
+        if (body != null) {
+            content = MAPPER.writeValueAsBytes(body);
+            contentType = JSON;
+        }
+        try (UnixHttpClient.Response response = client.execute("POST",
+                path, contentType, content)) {
+            check(response);
+            String text = response.readBody();
+            if (text.isEmpty()) {
+                return MAPPER.createObjectNode();
+            }
+            return MAPPER.readTree(text);
+        }
+    }
+
+    /** Checks the status of a response.
+     * @param response the response to check.
+     * @throws IOException if the status is not successful. The message
+     * contains the error message of the daemon.
+     * */
+    private static void check(final UnixHttpClient.Response response)
+            throws IOException {
+        if (response.isSuccess()) {
+            return;
+        }
+        String message = response.readBody();
+        try {
+            JsonNode json = MAPPER.readTree(message);
+            if (json != null && json.has("message")) {
+                message = json.get("message").asText();
+            }
+        } catch (IOException ex) {
+            log.debug("Error response is no JSON", ex);
+        }
+        throw new IOException("Docker daemon returned status "
+                + response.getStatus() + ": " + message);
+    }
+
+    /** Splits the multiplexed output of a container into lines of
+     * standard output and standard error. Each frame of the stream
+     * has an eight byte header with the stream number in the first
+     * byte and the big endian payload size in the last four bytes.
+     * Lines may span multiple frames.
+     * @param in the multiplexed stream.
+     * @param stdout the consumer of the standard output lines.
+     * @param stderr the consumer of the standard error lines.
+     * @throws IOException if reading fails.
+     * */
+    static void demux(final InputStream in,
+                      final Consumer<String> stdout,
+                      final Consumer<String> stderr) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        LineBuffer out = new LineBuffer(stdout);
+        LineBuffer err = new LineBuffer(stderr);
+        byte[] header = new byte[FRAME_HEADER];
+        byte[] payload = new byte[0];
+        while (true) {
+            int first = data.read();
+            if (first == -1) {
+                break;
+            }
+            header[0] = (byte) first;
+            try {
+                data.readFully(header, 1, FRAME_HEADER - 1);
+                int size = ByteBuffer.wrap(header)
+                        .getInt(FRAME_SIZE_OFFSET);
+                if (payload.length < size) {
+                    payload = new byte[size];
+                }
+                data.readFully(payload, 0, size);
+                LineBuffer target = out;
+                if (header[0] == STDERR) {
+                    target = err;
+                }
+                target.write(payload, size);
+            } catch (EOFException ex) {
+                throw new IOException("Truncated log stream", ex);
+            }
+        }
+        out.flush();
+        err.flush();
+    }
+
+    /** Collects bytes and passes complete lines to a consumer. */
+    private static final class LineBuffer {
+        /** The consumer of the lines. */
+        private final Consumer<String> consumer;
+
+        /** The bytes of the incomplete line. */
+        private final ByteArrayOutputStream line =
+                new ByteArrayOutputStream();
+
+        /** Creates a new buffer.
+         * @param myConsumer the consumer of the lines.
+         * */
+        private LineBuffer(final Consumer<String> myConsumer) {
+            this.consumer = myConsumer;
+        }
+
+        /** Adds bytes and passes the completed lines on.
+         * @param bytes the bytes to add.
+         * @param length the number of bytes to add.
+         * */
+        private void write(final byte[] bytes, final int length) {
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] == '\n') {
+                    line.write(bytes, start, i - start);
+                    emit();
+                    start = i + 1;
+                }
+            }
+            line.write(bytes, start, length - start);
+        }
+
+        /** Passes the incomplete line on, if there is one. */
+        private void flush() {
+            if (line.size() > 0) {
+                emit();
+            }
+        }
+
+        /** Passes the buffered line on and clears the buffer. */
+        private void emit() {
+            String text = line.toString(StandardCharsets.UTF_8);
+            if (text.endsWith("\r")) {
+                text = text.substring(0, text.length() - 1);
+            }
+            consumer.accept(text);
+            line.reset();
+        }
+    }
+
+    /** Closes the idle connections to the daemon. */
+    @Override
+    public void close() {
+        client.close();
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.docker;
+
+import com.google.common.hash.Hashing;
+import de.sfuhrm.capsula.BuildException;
+import de.sfuhrm.capsula.ProcessUtils;
+import de.sfuhrm.capsula.trace.Span;
+import de.sfuhrm.capsula.trace.Tracer;
+import de.sfuhrm.capsula.yaml.DockerImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.log4j.MDC;
+
+/**
+ * Prepares the docker images the targets are built in.
+ * Each image is prepared only once, even if multiple targets
+ * request it concurrently. Images are only pulled or built from a
+ * {@code Dockerfile} if they don't exist locally.
+ * A failed preparation is forgotten, so the next request for the
+ * image tries again.
+ * The images are prepared with the {@link DockerEngine docker engine}
+ * if its socket exists, and with the docker command line client
+ * otherwise.
+ *
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+public final class DockerImages {
+
+    /** The name of the Dockerfile in the layout directory. */
+    public static final String DOCKERFILE = "Dockerfile";
+
+    /** The prefix of the tags derived from the Dockerfile content. */
+    private static final String TAG_PREFIX = "capsula-";
+
+    /** The number of hex digits of the Dockerfile hash in the tag. */
+    private static final int HASH_DIGITS = 16;
+
+    /** Runs a command of the docker command line client. */
+    @FunctionalInterface
+    public interface CommandRunner {
+        /** Runs a command and waits for its termination.
+         * @param command the command and its arguments.
+         * @param directory the working directory of the command.
+         * @return the exit value of the command.
+         * @throws IOException if the command can not be started.
+         * */
+        int exec(List<String> command, Path directory) throws IOException;
+    }
+
+    /** The image preparations by image name. */
+    private final Map<String, CompletableFuture<String>> images =
+            new ConcurrentHashMap<>();
+
+    /** The executor preparing the images. */
+    private final ExecutorService executor;
+
+    /** The docker engine or {@code null} to only use the command
+     * line client. */
+    private final DockerEngine engine;
+
+    /** Runs the docker commands if the engine is not available. */
+    private final CommandRunner runner;
+
+    /** Creates a new instance that falls back to forking the docker
+     * command line client.
+     * @param myEngine the docker engine or {@code null} to only use
+     *                 the command line client.
+     * */
+    public DockerImages(final DockerEngine myEngine) {
+        this(myEngine, ProcessUtils::exec);
+    }
+
+    /** Creates a new instance.
+     * @param myEngine the docker engine or {@code null} to only use
+     *                 the command line client.
+     * @param myRunner runs the docker commands if the engine is not
+     *                 available.
+     * */
+    public DockerImages(final DockerEngine myEngine,
+                        final CommandRunner myRunner) {
+        this.engine = myEngine;
+        this.runner = Objects.requireNonNull(myRunner);
+        AtomicInteger threadCounter = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r,
+                    "capsula-docker-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Get the tag for a Dockerfile that only changes if the content
+     * of the Dockerfile changes.
+     * @param dockerfile the Dockerfile to get the tag for.
+     * @return the tag derived from the Dockerfile content.
+     * @throws IOException if the Dockerfile can not be read.
+     * */
+    public static String getDockerfileTag(final Path dockerfile)
+            throws IOException {
+        return TAG_PREFIX + Hashing.sha256()
+                .hashBytes(Files.readAllBytes(dockerfile))
+                .toString()
+                .substring(0, HASH_DIGITS);
+    }
+
+    /** Prepares an image in the background. Concurrent and later calls
+     * for the same image share the preparation of the first call.
+     * @param image the image to prepare.
+     * @param layoutDirectory the layout directory that contains the
+     *                        Dockerfile for images that are built.
+     * @param tracer the tracer for the timing of the preparation.
+     *               A shared preparation is only traced in the
+     *               tracer of the first call.
+     * @return a future that completes with the name of the image
+     * when the image is ready.
+     * */
+    public CompletableFuture<String> prepare(final DockerImage image,
+                                             final Path layoutDirectory,
+                                             final Tracer tracer) {
+        Objects.requireNonNull(image, "image is null");
+        Objects.requireNonNull(layoutDirectory, "layoutDirectory is null");
+        Objects.requireNonNull(tracer, "tracer is null");
+        String name;
+        Supplier<String> preparation;
+        if (image.getPull() != null) {
+            name = image.getPull();
+            preparation = () -> pull(name, layoutDirectory, tracer);
+        } else {
+            name = image.getBuild();
+            preparation = () -> build(name, layoutDirectory, tracer);
+        }
+        CompletableFuture<String> future = images.computeIfAbsent(name,
+                n -> CompletableFuture.supplyAsync(preparation, executor));
+        // the caller sees the failure after it is forgotten
+        return future.whenComplete((v, ex) -> {
+            if (ex != null) {
+                images.remove(name, future);
+            }
+        });
+    }
+
+    /** Whether the docker engine is used instead of the command line
+     * client.
+     * @return {@code true} if there is an engine and its socket exists.
+     * */
+    private boolean useEngine() {
+        return engine != null && Files.exists(engine.getSocket());
+    }
+
+    /** Checks whether an image exists locally.
+     * @param name the name of the image.
+     * @param directory the working directory for docker.
+     * @return {@code true} if the image exists.
+     * @throws IOException if docker can not be asked.
+     * */
+    private boolean exists(final String name, final Path directory)
+            throws IOException {
+        if (useEngine()) {
+            return engine.imageExists(name);
+        }
+        return runner.exec(Arrays.asList("docker",
+                "image", "inspect", "--format", "{{.Id}}", name),
+                directory) == 0;
+    }
+
+    /** Runs a command and waits for its successful termination.
+     * @param command the command and its arguments.
+     * @param directory the working directory of the command.
+     * @throws IOException if the command can not be started.
+     * @throws BuildException if the command returned a non-zero
+     * exit value.
+     * */
+    private void run(final List<String> command, final Path directory)
+            throws IOException, BuildException {
+        int exitValue = runner.exec(command, directory);
+        if (exitValue != 0) {
+            throw new BuildException("Command " + command
+                    + " returned exit value " + exitValue);
+        }
+    }
+
+    /** Pulls an image from the registry unless it exists locally.
+     * @param name the name of the image.
+     * @param directory the working directory for docker.
+     * @param tracer the tracer for the timing of the pull.
+     * @return the name of the image.
+     * @throws BuildException if pulling fails.
+     * */
+    private String pull(final String name,
+                        final Path directory,
+                        final Tracer tracer) {
+        MDC.put("image", name);
+        try (Span span = tracer.start("docker", "pull")
+                .arg("image", name)) {
+            if (exists(name, directory)) {
+                log.info("Image {} exists, skipping pull", name);
+                span.arg("skipped", true);
+                return name;
+            }
+            log.info("Pulling image {}", name);
+            if (useEngine()) {
+                engine.pull(name, line -> log.debug("{}", line));
+            } else {
+                run(Arrays.asList("docker", "pull", name),
+                        directory);
+            }
+            return name;
+        } catch (IOException ex) {
+            throw new BuildException("Problem pulling image " + name, ex);
+        } finally {
+            MDC.remove("image");
+        }
+    }
+
+    /** Builds an image unless it exists locally.
+     * @param name the name and tag of the image.
+     * @param layoutDirectory the directory with the Dockerfile. It is
+     *                        used as build context.
+     * @param tracer the tracer for the timing of the build.
+     * @return the name of the image.
+     * @throws BuildException if building fails.
+     * */
+    private String build(final String name,
+                         final Path layoutDirectory,
+                         final Tracer tracer) {
+        MDC.put("image", name);
+        try (Span span = tracer.start("docker", "build")
+                .arg("image", name)) {
+            if (exists(name, layoutDirectory)) {
+                log.info("Image {} exists, skipping build", name);
+                span.arg("skipped", true);
+                return name;
+            }
+            log.info("Building image {}", name);
+            if (useEngine()) {
+                engine.build(layoutDirectory, DOCKERFILE, name,
+                        line -> log.debug("{}", line));
+            } else {
+                run(Arrays.asList("docker", "build",
+                        "--file", DOCKERFILE, "--tag", name, "."),
+                        layoutDirectory);
+            }
+            return name;
+        } catch (IOException ex) {
+            throw new BuildException("Problem building image " + name, ex);
+        } finally {
+            MDC.remove("image");
+        }
+    }
+}
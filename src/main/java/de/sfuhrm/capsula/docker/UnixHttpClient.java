@@ -0,0 +1,591 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.docker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A minimal HTTP/1.1 client talking to a server on a Unix domain
+ * socket. Connections are kept alive and reused for later requests.
+ * Response bodies with a content length, chunked transfer encoding
+ * or without length are supported.
+ * A request on a reused connection is sent again on a new connection
+ * if the reused connection turns out to be closed, but only if the
+ * request is known not to have reached the server or is idempotent.
+ *
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+final class UnixHttpClient implements AutoCloseable {
+
+    /** The HTTP status for a response without content. */
+    static final int NO_CONTENT = 204;
+
+    /** The HTTP status for a response that was not modified. */
+    static final int NOT_MODIFIED = 304;
+
+    /** The smallest HTTP status for informational responses. */
+    private static final int CONTINUE = 100;
+
+    /** The smallest HTTP status for successful responses. */
+    private static final int OK = 200;
+
+    /** The number of parts of a status line. */
+    private static final int STATUS_LINE_PARTS = 3;
+
+    /** The radix of chunk sizes. */
+    private static final int HEX = 16;
+
+    /** The maximum number of idle connections kept. */
+    private static final int MAX_IDLE = 8;
+
+    /** The methods that may be sent twice without changing the
+     * result. */
+    private static final Collection<String> IDEMPOTENT =
+            Arrays.asList("GET", "HEAD");
+
+    /** The socket file of the server. */
+    private final Path socket;
+
+    /** The connections that are open and idle. */
+    private final Queue<Connection> idle = new ConcurrentLinkedQueue<>();
+
+    /** Creates a new client.
+     * @param mySocket the socket file of the server.
+     * */
+    UnixHttpClient(final Path mySocket) {
+        this.socket = Objects.requireNonNull(mySocket);
+    }
+
+    /** An open connection to the server. */
+    private static final class Connection {
+        /** The channel of the connection. */
+        private final SocketChannel channel;
+        /** The buffered input from the server. */
+        private final InputStream in;
+        /** The buffered output to the server. */
+        private final OutputStream out;
+
+        /** Opens a new connection.
+         * @param socket the socket file of the server.
+         * @throws IOException if connecting fails.
+         * */
+        private Connection(final Path socket) throws IOException {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+            in = new BufferedInputStream(Channels.newInputStream(channel));
+            out = new BufferedOutputStream(Channels.newOutputStream(channel));
+        }
+
+        /** Checks without blocking whether the server closed the
+         * connection while it was idle, or sent unexpected data.
+         * @return whether the connection can not be used any more.
+         * */
+        private boolean isStale() {
+            try {
+                if (in.available() > 0) {
+                    return true;
+                }
+                channel.configureBlocking(false);
+                try {
+                    return channel.read(ByteBuffer.allocate(1)) != 0;
+                } finally {
+                    channel.configureBlocking(true);
+                }
+            } catch (IOException ex) {
+                log.debug("Idle connection is broken", ex);
+                return true;
+            }
+        }
+
+        /** Closes the connection, ignoring problems. */
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                log.debug("Problem closing connection", ex);
+            }
+        }
+    }
+
+    /** The response of the server. The body has to be closed to
+     * give the connection back for reuse. */
+    static final class Response implements AutoCloseable {
+        /** The HTTP status code. */
+        @Getter
+        private final int status;
+
+        /** The headers with lower case names. */
+        private final Map<String, String> headers;
+
+        /** The body of the response. */
+        @Getter
+        private final InputStream body;
+
+        /** Creates a new response.
+         * @param myStatus the HTTP status code.
+         * @param myHeaders the headers with lower case names.
+         * @param myBody the body of the response.
+         * */
+        private Response(final int myStatus,
+                         final Map<String, String> myHeaders,
+                         final InputStream myBody) {
+            this.status = myStatus;
+            this.headers = myHeaders;
+            this.body = myBody;
+        }
+
+        /** Get a header of the response.
+         * @param name the name of the header.
+         * @return the value of the header or {@code null}.
+         * */
+        String getHeader(final String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        /** Whether the status is a success status.
+         * @return {@code true} for a 2xx status.
+         * */
+        boolean isSuccess() {
+            return status >= OK && status < OK + CONTINUE;
+        }
+
+        /** Reads the complete body as string.
+         * @return the body in UTF-8.
+         * @throws IOException if reading fails.
+         * */
+        String readBody() throws IOException {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            body.transferTo(buffer);
+            return buffer.toString(StandardCharsets.UTF_8);
+        }
+
+        /** Closes the body. The connection is reused if the body
+         * was read completely. */
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+
+    /** Sends a request and reads the response head.
+     * @param method the HTTP method, for example {@code GET}.
+     * @param path the path and query of the request.
+     * @param contentType the content type of the body or {@code null}.
+     * @param content the body of the request or {@code null}.
+     * @return the response. Needs to be closed by the caller.
+     * @throws IOException if the request fails.
+     * */
+    Response execute(final String method,
+                     final String path,
+                     final String contentType,
+                     final byte[] content) throws IOException {
+        Connection connection = idle.poll();
+        while (connection != null && connection.isStale()) {
+            connection.close();
+            connection = idle.poll();
+        }
+        boolean reused = connection != null;
+        if (!reused) {
+            connection = new Connection(socket);
+        }
+        try {
+            writeRequest(connection, method, path, contentType, content);
+        } catch (IOException ex) {
+            connection.close();
+            if (reused) {
+                log.debug("Sending on reused connection failed, retrying",
+                        ex);
+                return execute(method, path, contentType, content);
+            }
+            throw ex;
+        }
+        try {
+            awaitResponse(connection.in);
+        } catch (IOException ex) {
+            connection.close();
+            // the server may have processed the request already
+            if (reused && IDEMPOTENT.contains(method)) {
+                log.debug("Reused connection got no response, retrying",
+                        ex);
+                return execute(method, path, contentType, content);
+            }
+            throw ex;
+        }
+        try {
+            return readResponse(connection, method);
+        } catch (IOException ex) {
+            connection.close();
+            throw ex;
+        }
+    }
+
+    /** Waits until the first byte of the response arrived.
+     * The byte is not consumed.
+     * @param in the buffered stream to read from.
+     * @throws IOException if reading fails or the stream ends.
+     * */
+    private static void awaitResponse(final InputStream in)
+            throws IOException {
+        in.mark(1);
+        if (in.read() == -1) {
+            throw new IOException("Connection closed by server");
+        }
+        in.reset();
+    }
+
+    /** Writes a request.
+     * @param connection the connection to write to.
+     * @param method the HTTP method.
+     * @param path the path and query of the request.
+     * @param contentType the content type of the body or {@code null}.
+     * @param content the body of the request or {@code null}.
+     * @throws IOException if writing fails.
+     * */
+    private static void writeRequest(final Connection connection,
+                                     final String method,
+                                     final String path,
+                                     final String contentType,
+                                     final byte[] content)
+            throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        head.append("Host: docker\r\n");
+        if (contentType != null) {
+            head.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        int length = 0;
+        if (content != null) {
+            length = content.length;
+        }
+        head.append("Content-Length: ").append(length).append("\r\n");
+        head.append("\r\n");
+        connection.out.write(head.toString()
+                .getBytes(StandardCharsets.ISO_8859_1));
+        if (content != null) {
+            connection.out.write(content);
+        }
+        connection.out.flush();
+    }
+
+    /** Reads the head of a response.
+     * @param connection the connection to read from.
+     * @param method the HTTP method of the request.
+     * @return the response.
+     * @throws IOException if reading fails.
+     * */
+    private Response readResponse(final Connection connection,
+                                  final String method) throws IOException {
+        int status;
+        Map<String, String> headers;
+        do {
+            String statusLine = readLine(connection.in);
+            String[] parts = statusLine.split(" ", STATUS_LINE_PARTS);
+            if (parts.length < 2 || !parts[0].startsWith("HTTP/1.")) {
+                throw new IOException("Illegal status line: " + statusLine);
+            }
+            status = Integer.parseInt(parts[1]);
+            headers = new TreeMap<>();
+            String line = readLine(connection.in);
+            for (; !line.isEmpty(); line = readLine(connection.in)) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    headers.put(line.substring(0, colon).trim()
+                                    .toLowerCase(Locale.ROOT),
+                            line.substring(colon + 1).trim());
+                }
+            }
+        } while (status < OK);
+
+        boolean keepAlive = !"close".equalsIgnoreCase(
+                headers.get("connection"));
+        InputStream body;
+        if (method.equals("HEAD") || status == NO_CONTENT
+                || status == NOT_MODIFIED) {
+            body = new LimitedInputStream(connection.in, 0);
+        } else if ("chunked".equalsIgnoreCase(
+                headers.get("transfer-encoding"))) {
+            body = new ChunkedInputStream(connection.in);
+        } else if (headers.containsKey("content-length")) {
+            body = new LimitedInputStream(connection.in,
+                    Long.parseLong(headers.get("content-length")));
+        } else {
+            body = connection.in;
+            keepAlive = false;
+        }
+        return new Response(status, headers,
+                new ReleasingInputStream(body, connection, keepAlive));
+    }
+
+    /** Reads a line terminated by CRLF.
+     * @param in the stream to read from.
+     * @return the line without the line terminator.
+     * @throws IOException if reading fails or the stream ends.
+     * */
+    private static String readLine(final InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                throw new IOException("Connection closed by server");
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        return line.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    /** A body that knows whether it was read completely. */
+    private interface Body {
+        /** Whether the body was read completely.
+         * @return {@code true} if there is nothing left to read
+         * of the body.
+         * */
+        boolean isComplete();
+    }
+
+    /** A body with a known length. */
+    private static final class LimitedInputStream extends FilterInputStream
+            implements Body {
+        /** The number of bytes left to read. */
+        private long remaining;
+
+        /** Creates a new stream.
+         * @param in the stream to read from.
+         * @param length the length of the body.
+         * */
+        private LimitedInputStream(final InputStream in, final long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public boolean isComplete() {
+            return remaining <= 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int c = super.read();
+            if (c >= 0) {
+                remaining--;
+            }
+            return c;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+                throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count = super.read(b, off, (int) Math.min(len, remaining));
+            if (count > 0) {
+                remaining -= count;
+            }
+            return count;
+        }
+
+        @Override
+        public void close() {
+            // the connection stays open
+        }
+    }
+
+    /** A body with chunked transfer encoding. */
+    private static final class ChunkedInputStream extends FilterInputStream
+            implements Body {
+        /** The number of bytes left in the current chunk. */
+        private long remaining;
+
+        /** Whether the last chunk was read. */
+        private boolean finished;
+
+        /** Creates a new stream.
+         * @param in the stream to read from.
+         * */
+        private ChunkedInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public boolean isComplete() {
+            return finished;
+        }
+
+        /** Reads the next chunk header if the current chunk is done.
+         * @return whether there is data left.
+         * @throws IOException if reading fails.
+         * */
+        private boolean nextChunk() throws IOException {
+            if (finished) {
+                return false;
+            }
+            if (remaining > 0) {
+                return true;
+            }
+            String line = readLine(in);
+            if (line.isEmpty()) {
+                line = readLine(in);
+            }
+            int semicolon = line.indexOf(';');
+            if (semicolon >= 0) {
+                line = line.substring(0, semicolon);
+            }
+            remaining = Long.parseLong(line.trim(), HEX);
+            if (remaining == 0) {
+                finished = true;
+                while (!readLine(in).isEmpty()) {
+                    log.debug("Ignoring trailer");
+                }
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            int c = super.read();
+            if (c >= 0) {
+                remaining--;
+            }
+            return c;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+                throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            int count = super.read(b, off, (int) Math.min(len, remaining));
+            if (count > 0) {
+                remaining -= count;
+            }
+            return count;
+        }
+
+        @Override
+        public void close() {
+            // the connection stays open
+        }
+    }
+
+    /** Gives the connection back to the pool when the body is closed
+     * after it was read completely. Otherwise the connection is closed.
+     * */
+    private final class ReleasingInputStream extends FilterInputStream {
+        /** The connection the body is read from. */
+        private final Connection connection;
+
+        /** Whether the connection may be reused. */
+        private final boolean keepAlive;
+
+        /** Whether the end of the body was reached. */
+        private boolean eof;
+
+        /** Whether the stream was closed. */
+        private boolean closed;
+
+        /** Creates a new stream.
+         * @param in the body to read.
+         * @param myConnection the connection the body is read from.
+         * @param myKeepAlive whether the connection may be reused.
+         * */
+        private ReleasingInputStream(final InputStream in,
+                                     final Connection myConnection,
+                                     final boolean myKeepAlive) {
+            super(in);
+            this.connection = myConnection;
+            this.keepAlive = myKeepAlive;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            eof |= c == -1;
+            return c;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+                throws IOException {
+            int count = super.read(b, off, len);
+            eof |= count == -1;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (keepAlive && (eof || isComplete())
+                    && idle.size() < MAX_IDLE) {
+                idle.add(connection);
+            } else {
+                connection.close();
+            }
+        }
+
+        /** Checks without reading whether the body is read completely.
+         * @return whether there is nothing left to read.
+         * */
+        private boolean isComplete() {
+            return in instanceof Body && ((Body) in).isComplete();
+        }
+    }
+
+    /** Closes all idle connections. */
+    @Override
+    public void close() {
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            connection.close();
+        }
+    }
+}
@@ -17,11 +17,14 @@
  */
 package de.sfuhrm.capsula.targetbuilder;
 
+import de.sfuhrm.capsula.BuildException;
 import de.sfuhrm.capsula.FileUtils;
 import de.sfuhrm.capsula.yaml.command.TargetCommand;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Objects;
+import java.util.Optional;
 import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
@@ -48,6 +51,44 @@ class AbstractDelegate {
         this.targetBuilder = Objects.requireNonNull(builder);
     }
 
+    /**
+     * Resolves a path relative to the target directory.
+     *
+     * @param path the path relative to the target directory.
+     * @return the normalized path.
+     * @throws BuildException if the path is not within the
+     * target directory.
+     */
+    protected Path resolveInTarget(final String path) {
+        Objects.requireNonNull(path, "path is null");
+        Path targetPath = targetBuilder.getTargetPath();
+        Path result = targetPath.resolve(path).normalize();
+        if (!result.startsWith(targetPath) || result.equals(targetPath)) {
+            throw new BuildException("Path is not within "
+                    + "target directory: " + result);
+        }
+        return result;
+    }
+
+    /** Get the time a command may run.
+     * @param commandTimeout the optional timeout of the command in
+     *                       seconds, or {@code null}.
+     * @return the shorter of the command timeout and the remaining
+     * time of the target, or {@link Optional#empty()} if neither
+     * has a timeout.
+     */
+    protected Optional<Duration> getTimeout(final Integer commandTimeout) {
+        Optional<Duration> timeout = targetBuilder.getRemainingTime();
+        if (commandTimeout != null) {
+            Duration duration = Duration.ofSeconds(commandTimeout);
+            if (!timeout.isPresent()
+                    || duration.compareTo(timeout.get()) < 0) {
+                timeout = Optional.of(duration);
+            }
+        }
+        return timeout;
+    }
+
     /**
      * Does owner/group/permission changes for a target path.
      *
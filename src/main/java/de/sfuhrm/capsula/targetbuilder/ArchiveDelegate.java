@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetbuilder;
+
+import de.sfuhrm.capsula.BuildException;
+import de.sfuhrm.capsula.yaml.command.ArchiveCommand;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.apache.log4j.MDC;
+
+/**
+ * Delegate for archiving a file or directory to a tar.gz file.
+ * The entries are written in the order of their names so the
+ * archive content does not depend on the file system order.
+ *
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+class ArchiveDelegate extends AbstractDelegate {
+
+    /** The mask for all permission bits of the tar entry mode. */
+    private static final int PERMISSION_MASK = 0777;
+
+    /** The permission bits of the tar entry mode. */
+    private static final int[] PERMISSION_BITS = {
+        0400, 0200, 0100, 040, 020, 010, 04, 02, 01
+    };
+
+    /** The permissions in the order of {@link #PERMISSION_BITS}. */
+    private static final PosixFilePermission[] PERMISSIONS = {
+        PosixFilePermission.OWNER_READ,
+        PosixFilePermission.OWNER_WRITE,
+        PosixFilePermission.OWNER_EXECUTE,
+        PosixFilePermission.GROUP_READ,
+        PosixFilePermission.GROUP_WRITE,
+        PosixFilePermission.GROUP_EXECUTE,
+        PosixFilePermission.OTHERS_READ,
+        PosixFilePermission.OTHERS_WRITE,
+        PosixFilePermission.OTHERS_EXECUTE
+    };
+
+    /** The name of the owner and group of the archive entries. */
+    private static final String ROOT = "root";
+
+    /**
+     * Creates a new instance.
+     * @param targetBuilder the target builder this class is a delegate for.
+     */
+    ArchiveDelegate(final TargetBuilder targetBuilder) {
+        super(targetBuilder);
+    }
+
+    /** Executes the given command.
+     * @param command the command object to execute the action for.
+     * */
+    void archive(final ArchiveCommand command) {
+        MDC.put("from", command.getFrom());
+        MDC.put("to", command.getTo());
+        try {
+            Objects.requireNonNull(command.getFrom(), "from is null");
+            Objects.requireNonNull(command.getTo(), "to is null");
+            Path targetPath = getTargetBuilder().getTargetPath();
+            Path fromPath = targetPath.resolve(command.getFrom()).normalize();
+            Path toPath = targetPath.resolve(command.getTo()).normalize();
+            log.info("Archiving {} to {}", command.getFrom(), command.getTo());
+            if (!Files.exists(fromPath, LinkOption.NOFOLLOW_LINKS)) {
+                throw new BuildException("Source does not exist: " + fromPath);
+            }
+            if (!fromPath.startsWith(targetPath)
+                    || fromPath.equals(targetPath)) {
+                throw new BuildException("Source is not "
+                        + "within target directory: "
+                        + fromPath);
+            }
+            if (Files.exists(toPath)) {
+                throw new BuildException("Target does exist: " + toPath);
+            }
+            if (!toPath.startsWith(targetPath)) {
+                throw new BuildException("Target is not "
+                        + "within target directory: "
+                        + toPath);
+            }
+            if (toPath.startsWith(fromPath)) {
+                throw new BuildException("Target is "
+                        + "within source directory: "
+                        + toPath);
+            }
+            try (OutputStream outputStream = Files.newOutputStream(toPath)) {
+                archive(fromPath, outputStream);
+            }
+            applyTargetFileModifications(command);
+        } catch (IOException ex) {
+            throw new BuildException("Problem in archive", ex);
+        } finally {
+            MDC.remove("from");
+            MDC.remove("to");
+        }
+    }
+
+    /** Writes a file or directory as gzip compressed tar archive.
+     * The compression uses all processors.
+     * @param from the file or directory to archive. The entry names
+     *             start with the file name of this path.
+     * @param outputStream the stream to write the archive to. Is not
+     *                     closed.
+     * @throws IOException if there is an I/O problem.
+     * */
+    static void archive(final Path from,
+                        final OutputStream outputStream) throws IOException {
+        ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(
+                new BufferedOutputStream(outputStream),
+                ForkJoinPool.commonPool(),
+                Runtime.getRuntime().availableProcessors(),
+                Deflater.DEFAULT_COMPRESSION);
+        TarArchiveOutputStream tar = new TarArchiveOutputStream(gzip);
+        tar.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        tar.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        addEntry(tar, from, from.getFileName().toString());
+        tar.finish();
+        gzip.finish();
+        gzip.flush();
+    }
+
+    /** Adds a file and, for directories, its children to the archive.
+     * @param tar the archive to write to.
+     * @param path the file to add.
+     * @param name the entry name of the file.
+     * @throws IOException if there is an I/O problem.
+     * */
+    private static void addEntry(final TarArchiveOutputStream tar,
+                                 final Path path,
+                                 final String name) throws IOException {
+        TarArchiveEntry entry;
+        boolean directory = false;
+        if (Files.isSymbolicLink(path)) {
+            entry = new TarArchiveEntry(name, TarConstants.LF_SYMLINK);
+            entry.setLinkName(Files.readSymbolicLink(path).toString());
+        } else if (Files.isDirectory(path)) {
+            entry = new TarArchiveEntry(name + "/");
+            directory = true;
+        } else if (Files.isRegularFile(path)) {
+            entry = new TarArchiveEntry(name);
+            entry.setSize(Files.size(path));
+        } else {
+            throw new BuildException("Unknown file type: " + path);
+        }
+        entry.setModTime(Files.getLastModifiedTime(path,
+                LinkOption.NOFOLLOW_LINKS));
+        if (!Files.isSymbolicLink(path)) {
+            entry.setMode(entry.getMode() & ~PERMISSION_MASK | mode(path));
+        }
+        entry.setUserId(0);
+        entry.setGroupId(0);
+        entry.setUserName(ROOT);
+        entry.setGroupName(ROOT);
+        tar.putArchiveEntry(entry);
+        if (entry.isFile()) {
+            Files.copy(path, tar);
+        }
+        tar.closeArchiveEntry();
+
+        if (directory) {
+            List<Path> children;
+            try (Stream<Path> stream = Files.list(path)) {
+                children = stream.sorted().collect(Collectors.toList());
+            }
+            for (Path child : children) {
+                addEntry(tar, child, name + "/" + child.getFileName());
+            }
+        }
+    }
+
+    /** Get the permission bits of a file.
+     * @param path the file to get the permission bits of.
+     * @return the permission bits in tar format.
+     * @throws IOException if there is an I/O problem.
+     * */
+    private static int mode(final Path path) throws IOException {
+        Set<PosixFilePermission> permissions =
+                Files.getPosixFilePermissions(path);
+        int result = 0;
+        for (int i = 0; i < PERMISSIONS.length; i++) {
+            if (permissions.contains(PERMISSIONS[i])) {
+                result |= PERMISSION_BITS[i];
+            }
+        }
+        return result;
+    }
+}
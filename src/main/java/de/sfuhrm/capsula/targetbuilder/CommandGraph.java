@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetbuilder;
+
+import de.sfuhrm.capsula.BuildException;
+import de.sfuhrm.capsula.yaml.command.Command;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.log4j.MDC;
+
+/**
+ * The commands of one stage and their dependencies.
+ * Commands that do not depend on each other are executed
+ * concurrently.
+ *
+ * @see Command#getAfter()
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+final class CommandGraph {
+
+    /** Executes a single command. */
+    @FunctionalInterface
+    interface CommandExecutor {
+        /** Executes the given command.
+         * @param command the command to execute.
+         * @param commandId a command id that is used as a
+         *                  command reference in logging.
+         * @throws IOException if there was an I/O problem in
+         * command execution.
+         * */
+        void execute(Command command, String commandId) throws IOException;
+    }
+
+    /** The number of seconds to wait for running commands to stop
+     * after a failure. */
+    private static final long TERMINATION_SECONDS = 60;
+
+    /** A command in the graph. */
+    private static final class Node {
+        /** The command to execute. */
+        private final Command command;
+
+        /** The command id used in logging. */
+        private final String commandId;
+
+        /** The nodes that need to be finished before this node. */
+        private final List<Node> dependencies = new ArrayList<>();
+
+        /** Creates a new node.
+         * @param myCommand the command to execute.
+         * @param myCommandId the command id used in logging.
+         * */
+        private Node(final Command myCommand, final String myCommandId) {
+            this.command = myCommand;
+            this.commandId = myCommandId;
+        }
+    }
+
+    /** The nodes in topological order. */
+    private final List<Node> nodes;
+
+    /** Whether the commands need to run in the order they are listed.
+     * This is the case if no command declares its dependencies.
+     * */
+    @Getter
+    private final boolean sequential;
+
+    /** Creates a new graph.
+     * @param commands the commands of the stage in the listed order.
+     * @param commandIdPrefix the prefix for the command ids used in logging.
+     *                        The index of the command gets appended.
+     * @throws BuildException if a dependency refers to an unknown command,
+     * ids are not unique or the dependencies contain a cycle.
+     * */
+    CommandGraph(final List<Command> commands,
+                 final String commandIdPrefix) {
+        Objects.requireNonNull(commands, "commands is null");
+        List<Node> listed = new ArrayList<>();
+        Map<String, Node> byId = new HashMap<>();
+        for (int i = 0; i < commands.size(); i++) {
+            Command command = commands.get(i);
+            Node node = new Node(command, commandIdPrefix + i);
+            listed.add(node);
+            if (command.getId() != null
+                    && byId.put(command.getId(), node) != null) {
+                throw new BuildException("Command id '" + command.getId()
+                        + "' is not unique");
+            }
+        }
+        sequential = commands.stream().allMatch(c -> c.getAfter() == null);
+
+        for (int i = 0; i < listed.size(); i++) {
+            Node node = listed.get(i);
+            List<String> after = node.command.getAfter();
+            if (after == null) {
+                if (i > 0) {
+                    node.dependencies.add(listed.get(i - 1));
+                }
+                continue;
+            }
+            for (String id : after) {
+                Node dependency = byId.get(id);
+                if (dependency == null) {
+                    throw new BuildException("Command " + node.commandId
+                            + " refers to unknown command id '" + id + "'");
+                }
+                node.dependencies.add(dependency);
+            }
+        }
+        nodes = sort(listed);
+    }
+
+    /** Sorts the nodes so that each node comes after its dependencies.
+     * @param listed the nodes in the listed order.
+     * @return the nodes in topological order.
+     * @throws BuildException if there is a dependency cycle.
+     * */
+    private static List<Node> sort(final List<Node> listed) {
+        Set<Node> sorted = new LinkedHashSet<>();
+        Set<Node> visiting = new LinkedHashSet<>();
+        for (Node node : listed) {
+            visit(node, sorted, visiting);
+        }
+        return new ArrayList<>(sorted);
+    }
+
+    /** Depth first visit of a node for the topological sort.
+     * @param node the node to visit.
+     * @param sorted the nodes already sorted.
+     * @param visiting the nodes on the current path.
+     * @throws BuildException if there is a dependency cycle.
+     * */
+    private static void visit(final Node node,
+                              final Set<Node> sorted,
+                              final Set<Node> visiting) {
+        if (sorted.contains(node)) {
+            return;
+        }
+        if (!visiting.add(node)) {
+            throw new BuildException("Dependency cycle in commands "
+                    + visiting.stream()
+                        .map(n -> n.commandId)
+                        .reduce((a, b) -> a + ", " + b)
+                        .orElse(""));
+        }
+        for (Node dependency : node.dependencies) {
+            visit(dependency, sorted, visiting);
+        }
+        visiting.remove(node);
+        sorted.add(node);
+    }
+
+    /** Get the command ids in an order that satisfies all dependencies.
+     * @return the command ids in topological order.
+     * */
+    List<String> getCommandIds() {
+        List<String> result = new ArrayList<>();
+        nodes.forEach(n -> result.add(n.commandId));
+        return Collections.unmodifiableList(result);
+    }
+
+    /** Executes all commands. If the graph is {@link #isSequential()
+     * sequential}, the commands are executed in the calling thread.
+     * Otherwise each command is started as soon as its dependencies
+     * are finished. After the first failed command, no further commands
+     * are started and the running commands are interrupted. The failure
+     * is thrown after the running commands stopped, so none of them
+     * writes to the target any more.
+     * @param executor the executor for a single command.
+     * @param parallelism the maximum number of concurrently executed
+     *                    commands.
+     * @throws IOException if there was an I/O problem in
+     * command execution.
+     * */
+    void execute(final CommandExecutor executor,
+                 final int parallelism) throws IOException {
+        if (sequential || nodes.size() <= 1) {
+            for (Node node : nodes) {
+                executor.execute(node.command, node.commandId);
+            }
+            return;
+        }
+
+        final Object layoutName = MDC.get("layout");
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final CompletableFuture<Void> failed = new CompletableFuture<>();
+        final AtomicInteger threadCounter = new AtomicInteger();
+        final String threadPrefix = Thread.currentThread().getName() + "-cmd-";
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(parallelism, nodes.size())),
+                r -> {
+                    Thread thread = new Thread(r,
+                            threadPrefix + threadCounter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        try {
+            Map<Node, CompletableFuture<Void>> futures = new HashMap<>();
+            for (Node node : nodes) {
+                CompletableFuture<?>[] dependencies =
+                        new CompletableFuture<?>[node.dependencies.size()];
+                for (int i = 0; i < dependencies.length; i++) {
+                    dependencies[i] = futures.get(node.dependencies.get(i));
+                }
+                Runnable task = () -> {
+                    if (failure.get() != null) {
+                        log.debug("Skipping {} after failure", node.commandId);
+                        return;
+                    }
+                    if (layoutName != null) {
+                        MDC.put("layout", layoutName);
+                    }
+                    try {
+                        executor.execute(node.command, node.commandId);
+                    } catch (IOException ex) {
+                        failure.compareAndSet(null, ex);
+                        failed.completeExceptionally(ex);
+                        throw new UncheckedIOException(ex);
+                    } catch (RuntimeException | Error ex) {
+                        failure.compareAndSet(null, ex);
+                        failed.completeExceptionally(ex);
+                        throw ex;
+                    } finally {
+                        MDC.remove("layout");
+                    }
+                };
+                futures.put(node, CompletableFuture.allOf(dependencies)
+                        .thenRunAsync(task, pool));
+            }
+            CompletableFuture.anyOf(CompletableFuture.allOf(futures.values()
+                    .toArray(new CompletableFuture<?>[0])), failed).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failure.compareAndSet(null, ex);
+        } catch (ExecutionException ex) {
+            failure.compareAndSet(null, ex.getCause());
+        } finally {
+            pool.shutdownNow();
+            awaitTermination(pool);
+        }
+        rethrow(failure.get());
+    }
+
+    /** Waits a bounded time for the interrupted commands to stop.
+     * @param pool the pool that was shut down.
+     * */
+    private static void awaitTermination(final ExecutorService pool) {
+        try {
+            if (!pool.awaitTermination(TERMINATION_SECONDS,
+                    TimeUnit.SECONDS)) {
+                log.warn("Commands did not stop within {} seconds",
+                        TERMINATION_SECONDS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Throws the failure of a command execution, if any.
+     * @param failure the failure or {@code null}.
+     * @throws IOException if the failure is an I/O problem.
+     * */
+    private static void rethrow(final Throwable failure) throws IOException {
+        if (failure == null) {
+            return;
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        throw new BuildException("Problem executing commands", failure);
+    }
+}
@@ -18,8 +18,9 @@
 package de.sfuhrm.capsula.targetbuilder;
 
 import de.sfuhrm.capsula.BuildException;
-import de.sfuhrm.capsula.FileUtils;
+import de.sfuhrm.capsula.TreeCopier;
 import de.sfuhrm.capsula.yaml.command.CopyCommand;
+import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Objects;
@@ -74,14 +75,18 @@ class CopyDelegate extends AbstractDelegate {
                         + "within target directory: "
                         + toPath);
             }
-            if (Files.isDirectory(fromPath) || Files.isRegularFile(fromPath)) {
-                FileUtils.copyRecursive(fromPath,
-                        toPath,
-                        p -> FileUtils.applyPermissionSetWithBuildException(
-                                p, command));
+            if (Files.isDirectory(fromPath)) {
+                TreeCopier.copy(fromPath,
+                        toPath.resolve(fromPath.getFileName()), command);
+            } else if (Files.isRegularFile(fromPath)) {
+                TreeCopier.copy(fromPath, toPath, command);
             } else {
                 throw new BuildException("Unknown file type: " + fromPath);
             }
+        } catch (IOException exception) {
+            throw new BuildException("Exception while copying from "
+                    + command.getFrom() + " to " + command.getTo(),
+                    exception);
         } finally {
             MDC.remove("from");
             MDC.remove("to");
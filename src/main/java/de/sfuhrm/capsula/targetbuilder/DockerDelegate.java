@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetbuilder;
+
+import de.sfuhrm.capsula.BuildException;
+import de.sfuhrm.capsula.docker.ContainerSession;
+import de.sfuhrm.capsula.docker.DockerEngine;
+import de.sfuhrm.capsula.trace.Span;
+import de.sfuhrm.capsula.yaml.command.DockerBuildCommand;
+import de.sfuhrm.capsula.yaml.command.DockerExecCommand;
+import de.sfuhrm.capsula.yaml.command.DockerRunCommand;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.log4j.MDC;
+
+/**
+ * Delegate for running containers and building images with the
+ * docker Engine API.
+ *
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+class DockerDelegate extends AbstractDelegate {
+
+    /** The mount point of the target directory in the container. */
+    static final String TARGET_MOUNT = "/target";
+
+    /**
+     * Creates a new instance.
+     * @param targetBuilder the target builder this class is a delegate for.
+     */
+    DockerDelegate(final TargetBuilder targetBuilder) {
+        super(targetBuilder);
+    }
+
+    /** Get the engine to talk to.
+     * @return the docker engine of the target builder.
+     * @throws BuildException if there is no docker engine.
+     * */
+    private DockerEngine getEngine() {
+        DockerEngine engine = getTargetBuilder().getDockerEngine();
+        if (engine == null) {
+            throw new BuildException("The docker engine is only "
+                    + "supported on a Unix socket");
+        }
+        return engine;
+    }
+
+    /** Resolves a host path relative to the target directory.
+     * The target directory itself is allowed.
+     * @param path the path relative to the target directory.
+     * @return the normalized absolute path.
+     * @throws BuildException if the path is not within the
+     * target directory.
+     * */
+    private Path resolveHostPath(final String path) {
+        Path targetPath = getTargetBuilder().getTargetPath();
+        Path result = targetPath.resolve(path).normalize();
+        if (!result.startsWith(targetPath)) {
+            throw new BuildException("Path is not within "
+                    + "target directory: " + result);
+        }
+        return result.toAbsolutePath();
+    }
+
+    /** Get the volumes for a container. The target directory is
+     * always mounted as {@link #TARGET_MOUNT}.
+     * @param volumes the additional volumes in the form
+     *                {@code host:container} with the host path relative
+     *                to the target directory, or {@code null}.
+     * @return the volumes in the form {@code /host:/container}.
+     * @throws BuildException if a volume is not valid.
+     * */
+    List<String> getBinds(final List<String> volumes) {
+        List<String> binds = new ArrayList<>();
+        binds.add(resolveHostPath(".") + ":" + TARGET_MOUNT);
+        if (volumes != null) {
+            for (String volume : volumes) {
+                int colon = volume.indexOf(':');
+                if (colon <= 0 || colon == volume.length() - 1) {
+                    throw new BuildException("Volume '" + volume
+                            + "' is not in the form host:container");
+                }
+                binds.add(resolveHostPath(volume.substring(0, colon))
+                        + volume.substring(colon));
+            }
+        }
+        return binds;
+    }
+
+    /**
+     * Runs a command in a new container. The output goes to the
+     * target log.
+     * @param command the command object containing the command to run.
+     * @throws IOException if an I/O problem occurs talking to docker.
+     */
+    void run(final DockerRunCommand command) throws IOException {
+        List<String> cmdArray = RunDelegate.parse(command.getCommand());
+        MDC.put("image", command.getImage());
+        TargetLog targetLog = getTargetBuilder().getTargetLog();
+        try (Span span = getTargetBuilder()
+                .startSpan("container", cmdArray.get(0))
+                .arg("image", command.getImage())
+                .arg("command", command.getCommand())) {
+            log.info("Running {} in image {}", command.getCommand(),
+                    command.getImage());
+            targetLog.line("$ " + command.getCommand());
+            Optional<Duration> timeout = getTimeout(command.getTimeout());
+            int exitValue = getEngine().run(command.getImage(),
+                    cmdArray,
+                    command.getWorkdir(),
+                    getBinds(command.getVolumes()),
+                    targetLog::line,
+                    targetLog::line,
+                    timeout);
+            log.debug("Exit value for {} is {}", cmdArray, exitValue);
+            span.arg("exit", exitValue);
+            if (exitValue != 0) {
+                targetLog.line("Exit value " + exitValue);
+                throw new BuildException("Command '"
+                        + command.getCommand()
+                        + "' returned exit value " + exitValue);
+            }
+        } finally {
+            MDC.remove("image");
+        }
+    }
+
+    /**
+     * Runs a command in the build container of the target. The output
+     * goes to the target log. Without a docker engine on a Unix socket,
+     * the command runs in a new container of the docker command line
+     * client instead.
+     * @param command the command object containing the command to run.
+     * @throws IOException if an I/O problem occurs talking to docker.
+     */
+    void exec(final DockerExecCommand command) throws IOException {
+        ContainerSession session = getTargetBuilder().getContainerSession();
+        if (session == null) {
+            String image = getTargetBuilder().getBuildImage();
+            if (image == null) {
+                throw new BuildException("dockerExec needs a layout image");
+            }
+            List<String> cmdArray = getCliCommand(command, image);
+            new RunDelegate(getTargetBuilder()).run(cmdArray,
+                    String.join(" ", cmdArray),
+                    command.getTimeout(),
+                    false);
+            return;
+        }
+        List<String> cmdArray = RunDelegate.parse(command.getCommand());
+        MDC.put("image", session.getImage());
+        TargetLog targetLog = getTargetBuilder().getTargetLog();
+        try (Span span = getTargetBuilder()
+                .startSpan("container", cmdArray.get(0))
+                .arg("image", session.getImage())
+                .arg("command", command.getCommand())) {
+            log.info("Executing {} in container of image {}",
+                    command.getCommand(), session.getImage());
+            targetLog.line("$ " + command.getCommand());
+            int exitValue = session.exec(cmdArray,
+                    command.getWorkdir(),
+                    targetLog::line,
+                    targetLog::line,
+                    getTimeout(command.getTimeout()));
+            log.debug("Exit value for {} is {}", cmdArray, exitValue);
+            span.arg("exit", exitValue);
+            if (exitValue != 0) {
+                targetLog.line("Exit value " + exitValue);
+                throw new BuildException("Command '"
+                        + command.getCommand()
+                        + "' returned exit value " + exitValue);
+            }
+        } finally {
+            MDC.remove("image");
+        }
+    }
+
+    /** Get the docker command line for running an exec command in
+     * a new container. It mounts the same volumes as the build
+     * container would.
+     * @param command the command to run in the container.
+     * @param image the name of the layout image.
+     * @return the command and its arguments.
+     * */
+    private List<String> getCliCommand(final DockerExecCommand command,
+                                       final String image) {
+        List<String> cmdArray = new ArrayList<>();
+        cmdArray.add("docker");
+        cmdArray.add("run");
+        cmdArray.add("--rm");
+        for (String bind : getBinds(getTargetBuilder().getLayout()
+                .getImage().getVolumes())) {
+            cmdArray.add("-v" + bind);
+        }
+        if (command.getWorkdir() != null) {
+            cmdArray.add("-w" + command.getWorkdir());
+        } else {
+            cmdArray.add("-w" + TARGET_MOUNT);
+        }
+        cmdArray.add(image);
+        cmdArray.addAll(RunDelegate.parse(command.getCommand()));
+        return cmdArray;
+    }
+
+    /**
+     * Builds an image. The output goes to the target log.
+     * @param command the command object describing the build.
+     * @throws IOException if an I/O problem occurs talking to docker.
+     */
+    void build(final DockerBuildCommand command) throws IOException {
+        MDC.put("image", command.getTag());
+        try (Span span = getTargetBuilder()
+                .startSpan("container", "build")
+                .arg("image", command.getTag())) {
+            Path context = resolveHostPath(command.getContext());
+            span.arg("context", context.toString());
+            log.info("Building image {} from {}", command.getTag(), context);
+            getEngine().build(context,
+                    command.getDockerfile(),
+                    command.getTag(),
+                    getTargetBuilder().getTargetLog()::line);
+        } finally {
+            MDC.remove("image");
+        }
+    }
+}
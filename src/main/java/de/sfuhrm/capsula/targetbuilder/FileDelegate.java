@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetbuilder;
+
+import de.sfuhrm.capsula.BuildException;
+import de.sfuhrm.capsula.FileUtils;
+import de.sfuhrm.capsula.yaml.command.ChmodCommand;
+import de.sfuhrm.capsula.yaml.command.MoveCommand;
+import de.sfuhrm.capsula.yaml.command.RemoveCommand;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.log4j.MDC;
+
+/**
+ * Delegate for moving, removing and changing the permissions
+ * of files in the target directory without starting a process.
+ *
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+class FileDelegate extends AbstractDelegate {
+
+    /**
+     * Creates a new instance.
+     * @param targetBuilder the target builder this class is a delegate for.
+     */
+    FileDelegate(final TargetBuilder targetBuilder) {
+        super(targetBuilder);
+    }
+
+    /** Moves a file or directory.
+     * @param command the move command to execute.
+     * */
+    void move(final MoveCommand command) {
+        MDC.put("from", command.getFrom());
+        MDC.put("to", command.getTo());
+        try {
+            Path fromPath = resolveInTarget(command.getFrom());
+            Path toPath = resolveInTarget(command.getTo());
+            log.debug("Move {} to {}", fromPath, toPath);
+            if (!Files.exists(fromPath, LinkOption.NOFOLLOW_LINKS)) {
+                throw new BuildException("Source does not exist: "
+                        + fromPath);
+            }
+            if (Files.exists(toPath, LinkOption.NOFOLLOW_LINKS)) {
+                throw new BuildException("Target does exist: " + toPath);
+            }
+            Files.createDirectories(toPath.getParent());
+            Files.move(fromPath, toPath);
+            applyTargetFileModifications(command);
+        } catch (IOException ex) {
+            throw new BuildException("Problem in move", ex);
+        } finally {
+            MDC.remove("from");
+            MDC.remove("to");
+        }
+    }
+
+    /** Removes files or directories.
+     * @param command the remove command to execute.
+     * */
+    void remove(final RemoveCommand command) {
+        Objects.requireNonNull(command.getPaths(), "paths is null");
+        List<Path> paths = new ArrayList<>();
+        command.getPaths().forEach(p -> paths.add(resolveInTarget(p)));
+        try {
+            for (Path path : paths) {
+                log.debug("Remove {}", path);
+                FileUtils.delete(path);
+            }
+        } catch (IOException ex) {
+            throw new BuildException("Problem in remove", ex);
+        }
+    }
+
+    /** Changes the owner, group or mode of a file or directory.
+     * @param command the chmod command to execute.
+     * */
+    void chmod(final ChmodCommand command) {
+        MDC.put("to", command.getTo());
+        try {
+            Path toPath = resolveInTarget(command.getTo());
+            if (command.isRecursive()) {
+                FileUtils.applyPermissionSetRecursive(toPath, command);
+            } else {
+                FileUtils.applyPermissionSet(toPath, command);
+            }
+        } catch (IOException ex) {
+            throw new BuildException("Problem in chmod", ex);
+        } finally {
+            MDC.remove("to");
+        }
+    }
+}
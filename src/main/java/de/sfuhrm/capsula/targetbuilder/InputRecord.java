@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetbuilder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The descriptor values a target build read, stored next to the
+ * package files of the target. If the descriptor still has the same
+ * values at the recorded paths and the templates did not change,
+ * building the target again would produce the same packages.
+ *
+ * @see PropertyTracker
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+final class InputRecord {
+
+    /** The name of the root object of the paths. */
+    static final String ROOT = "capsula";
+
+    /** One part of a path: a property name or an index. */
+    private static final Pattern PART =
+            Pattern.compile("\\.([^.\\[]+)|(\\[\\d+\\])");
+
+    /** The mapper for the descriptor and the record file. */
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** The hash of the templates of the target. */
+    @Getter
+    @Setter
+    private String key;
+
+    /** The values of the descriptor by path. */
+    @Getter
+    @Setter
+    private Map<String, JsonNode> inputs = new TreeMap<>();
+
+    /** Converts a descriptor to a tree.
+     * @param descriptor the descriptor.
+     * @return the tree of the descriptor.
+     * */
+    static JsonNode toTree(final Object descriptor) {
+        return MAPPER.valueToTree(descriptor);
+    }
+
+    /** Creates a record.
+     * @param myKey the hash of the templates of the target.
+     * @param paths the paths read by the templates.
+     * @param descriptor the tree of the descriptor.
+     * @return the record with the values at the paths. Paths that are
+     * not in the tree are cut back to the deepest part that is, so a
+     * method call on an object records the whole object.
+     * */
+    static InputRecord create(final String myKey,
+                              final Collection<String> paths,
+                              final JsonNode descriptor) {
+        InputRecord record = new InputRecord();
+        record.key = myKey;
+        for (String path : paths) {
+            List<String> parts = parse(path);
+            JsonNode node = descriptor;
+            StringBuilder known = new StringBuilder(ROOT);
+            for (String part : parts) {
+                JsonNode child = child(node, part);
+                if (child.isMissingNode()) {
+                    break;
+                }
+                node = child;
+                if (!isIndex(part)) {
+                    known.append('.');
+                }
+                known.append(part);
+            }
+            record.inputs.put(known.toString(), node);
+        }
+        return record;
+    }
+
+    /** Checks whether the descriptor has the recorded values.
+     * @param myKey the hash of the templates of the target.
+     * @param descriptor the tree of the descriptor.
+     * @return {@code true} if the key and all values are the same.
+     * */
+    boolean matches(final String myKey, final JsonNode descriptor) {
+        if (!myKey.equals(key)) {
+            log.debug("Templates changed");
+            return false;
+        }
+        for (Map.Entry<String, JsonNode> entry : inputs.entrySet()) {
+            if (!get(descriptor, entry.getKey()).equals(entry.getValue())) {
+                log.debug("Input {} changed", entry.getKey());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Get the value at a path.
+     * @param descriptor the tree of the descriptor.
+     * @param path the path.
+     * @return the value, or a missing node if the path is
+     * not in the tree.
+     * */
+    static JsonNode get(final JsonNode descriptor, final String path) {
+        JsonNode node = descriptor;
+        for (String part : parse(path)) {
+            node = child(node, part);
+        }
+        return node;
+    }
+
+    /** Checks whether a path part is an index.
+     * @param part the path part.
+     * @return {@code true} for an index like {@code [0]}.
+     * */
+    private static boolean isIndex(final String part) {
+        return part.startsWith("[");
+    }
+
+    /** Get a child of a node.
+     * @param node the node.
+     * @param part a property name or an index like {@code [0]}.
+     * @return the child, or a missing node.
+     * */
+    private static JsonNode child(final JsonNode node, final String part) {
+        if (isIndex(part)) {
+            if (!node.isArray()) {
+                return MissingNode.getInstance();
+            }
+            return node.path(Integer.parseInt(
+                    part.substring(1, part.length() - 1)));
+        }
+        if (!node.isObject()) {
+            return MissingNode.getInstance();
+        }
+        return node.path(part);
+    }
+
+    /** Splits a path into its parts below the root.
+     * @param path a path like {@code capsula.versions[0].version}.
+     * @return the parts, like {@code versions}, {@code [0]} and
+     * {@code version}.
+     * @throws IllegalArgumentException if the path is not below the root.
+     * */
+    static List<String> parse(final String path) {
+        if (!path.startsWith(ROOT)) {
+            throw new IllegalArgumentException("Not a descriptor path: "
+                    + path);
+        }
+        List<String> parts = new ArrayList<>();
+        Matcher matcher = PART.matcher(path);
+        int end = ROOT.length();
+        while (matcher.find(end) && matcher.start() == end) {
+            if (matcher.group(1) != null) {
+                parts.add(matcher.group(1));
+            } else {
+                parts.add(matcher.group(2));
+            }
+            end = matcher.end();
+        }
+        if (end != path.length()) {
+            throw new IllegalArgumentException("Not a descriptor path: "
+                    + path);
+        }
+        return parts;
+    }
+
+    /** Reads a record file.
+     * @param file the file to read.
+     * @return the record, or {@link Optional#empty()} if there is no
+     * readable record.
+     * */
+    static Optional<InputRecord> read(final Path file) {
+        if (!Files.isRegularFile(file)) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(MAPPER.readValue(file.toFile(),
+                    InputRecord.class));
+        } catch (IOException ex) {
+            log.warn("Can not read " + file, ex);
+            return Optional.empty();
+        }
+    }
+
+    /** Writes the record to a file.
+     * @param file the file to write.
+     * @throws IOException if the file can not be written.
+     * */
+    void write(final Path file) throws IOException {
+        MAPPER.writerWithDefaultPrettyPrinter()
+                .writeValue(file.toFile(), this);
+    }
+}
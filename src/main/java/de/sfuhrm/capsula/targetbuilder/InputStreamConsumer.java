@@ -17,33 +17,55 @@
  */
 package de.sfuhrm.capsula.targetbuilder;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Objects;
 import java.util.function.Consumer;
 import lombok.extern.slf4j.Slf4j;
 
 /**
- * Reads an input stream and puts each line to a given consumer.
+ * Reads an input stream and passes the data on in chunks of
+ * complete lines. The lines are split on the bytes in one reused
+ * buffer, so no data is decoded unless a consumer asks for text.
  * @author Stephan Fuhrmann
  */
 @Slf4j
 class InputStreamConsumer implements Runnable {
-    /** The charset to read data with. */
-    private final Charset charset;
+
+    /** The initial size of the read buffer. */
+    static final int BUFFER_SIZE = 8192;
+
+    /** The size the read buffer grows to at most for long lines.
+     * A longer line is passed on in parts.
+     * */
+    static final int MAX_BUFFER_SIZE = 1024 * 1024;
 
     /** Where the data is read from. */
     private final InputStream in;
 
-    /** Where to put the input streams lines to. */
-    private final Consumer<String> consumer;
+    /** Where to put the chunks of lines to. The buffer is only valid
+     * while the consumer is called. */
+    private final Consumer<ByteBuffer> consumer;
+
+    /**
+     * Creates a new instance that passes on chunks of lines.
+     * @param myInputStream the input stream to read.
+     * @param myConsumer the consumer to put each chunk read from the
+     *                   input stream to. Each chunk consists of complete
+     *                   lines including their line terminators. The
+     *                   last line of the stream may lack its terminator.
+     *                   The buffer is reused after the consumer returns.
+     */
+    InputStreamConsumer(final InputStream myInputStream,
+                        final Consumer<ByteBuffer> myConsumer) {
+        this.in = Objects.requireNonNull(myInputStream);
+        this.consumer = Objects.requireNonNull(myConsumer);
+    }
 
     /**
-     * Creates a new instance.
+     * Creates a new instance that passes on each line as String.
      * @param myInputStream the input stream to read. Must be in the
      *                      charset specified in {@code myCharset}.
      * @param myConsumer the consumer to put each line read from the
@@ -53,23 +75,131 @@ class InputStreamConsumer implements Runnable {
     InputStreamConsumer(final InputStream myInputStream,
                         final Consumer<String> myConsumer,
                         final Charset myCharset) {
-        this.in = Objects.requireNonNull(myInputStream);
-        this.consumer = Objects.requireNonNull(myConsumer);
-        this.charset = Objects.requireNonNull(myCharset);
+        this(myInputStream, lines(myConsumer, myCharset));
+    }
+
+    /** Get a chunk consumer that decodes the lines of each chunk.
+     * @param consumer the consumer of the decoded lines without
+     *                 their line terminators.
+     * @param charset the charset of the lines.
+     * @return a consumer for chunks of lines.
+     * */
+    static Consumer<ByteBuffer> lines(final Consumer<String> consumer,
+                                      final Charset charset) {
+        Objects.requireNonNull(consumer);
+        Objects.requireNonNull(charset);
+        return chunk -> forEachLine(chunk, charset, consumer);
+    }
+
+    /** Decodes the lines of a chunk. The position of the chunk is
+     * not changed.
+     * @param chunk the chunk of lines.
+     * @param charset the charset of the lines.
+     * @param consumer the consumer of the lines without their line
+     *                 terminators.
+     * */
+    static void forEachLine(final ByteBuffer chunk,
+                            final Charset charset,
+                            final Consumer<String> consumer) {
+        int start = chunk.position();
+        int limit = chunk.limit();
+        for (int i = start; i < limit; i++) {
+            if (chunk.get(i) == '\n') {
+                consumer.accept(decode(chunk, start, i, charset));
+                start = i + 1;
+            }
+        }
+        if (start < limit) {
+            consumer.accept(decode(chunk, start, limit, charset));
+        }
+    }
+
+    /** Decodes a line, dropping a trailing carriage return.
+     * @param chunk the chunk containing the line.
+     * @param from the index of the first byte of the line.
+     * @param to the index after the last byte of the line.
+     * @param charset the charset of the line.
+     * @return the decoded line.
+     * */
+    private static String decode(final ByteBuffer chunk,
+                                 final int from,
+                                 final int to,
+                                 final Charset charset) {
+        int end = to;
+        if (end > from && chunk.get(end - 1) == '\r') {
+            end--;
+        }
+        return charset.decode(chunk.duplicate().limit(end).position(from))
+                .toString();
     }
 
     @Override
     public void run() {
         try {
-            Reader reader = new InputStreamReader(in, charset);
-            BufferedReader bufferedReader = new BufferedReader(reader);
-            String line;
-            while (null != (line = bufferedReader.readLine())) {
-                consumer.accept(line);
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            int scanned = 0;
+            while (true) {
+                if (!buffer.hasRemaining()) {
+                    buffer = grow(buffer);
+                }
+                int count = in.read(buffer.array(),
+                        buffer.arrayOffset() + buffer.position(),
+                        buffer.remaining());
+                if (count == -1) {
+                    break;
+                }
+                buffer.position(buffer.position() + count);
+                int end = lastLineEnd(buffer, scanned);
+                if (end < 0 && buffer.position() == MAX_BUFFER_SIZE) {
+                    end = buffer.position();
+                }
+                if (end < 0) {
+                    scanned = buffer.position();
+                    continue;
+                }
+                buffer.flip();
+                int limit = buffer.limit();
+                buffer.limit(end);
+                consumer.accept(buffer);
+                buffer.limit(limit).position(end);
+                buffer.compact();
+                scanned = buffer.position();
+            }
+            buffer.flip();
+            if (buffer.hasRemaining()) {
+                consumer.accept(buffer);
             }
         } catch (IOException ex) {
             log.error("Error while reading input stream", ex);
         }
     }
 
+    /** Finds the end of the last complete line in the buffer.
+     * @param buffer the buffer in write mode.
+     * @param from the index to start searching at, because the bytes
+     *             before contain no line terminator.
+     * @return the index after the last line terminator, or -1 if there
+     * is none.
+     * */
+    private static int lastLineEnd(final ByteBuffer buffer, final int from) {
+        for (int i = buffer.position() - 1; i >= from; i--) {
+            if (buffer.get(i) == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /** Doubles the size of a full buffer.
+     * @param buffer the full buffer in write mode.
+     * @return a buffer with the same content and twice the capacity,
+     * or the buffer itself if it has the maximum size.
+     * */
+    private static ByteBuffer grow(final ByteBuffer buffer) {
+        int capacity = Math.min(buffer.capacity() * 2, MAX_BUFFER_SIZE);
+        ByteBuffer result = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        result.put(buffer);
+        return result;
+    }
 }
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetbuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream writing the gzip format with the data compressed
+ * concurrently. The data is split into blocks that are deflated
+ * independently with the end of the previous block as preset
+ * dictionary. The compressed blocks are concatenated in order,
+ * so the result is a single regular gzip member.
+ *
+ * @author Stephan Fuhrmann
+ */
+final class ParallelGzipOutputStream extends OutputStream {
+
+    /** The number of uncompressed bytes in one block. */
+    static final int BLOCK_SIZE = 128 * 1024;
+
+    /** The size of the deflate window that is used as dictionary. */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /** The size of the output buffer for deflating. */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /** The gzip header with deflate method, no flags, no time
+     * and unknown operating system.
+     * */
+    private static final byte[] HEADER = {
+        0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+    };
+
+    /** The mask for a byte of an int. */
+    private static final int BYTE_MASK = 0xff;
+
+    /** The number of bits in a byte. */
+    private static final int BYTE_BITS = 8;
+
+    /** The number of bytes in an int. */
+    private static final int INT_BYTES = 4;
+
+    /** The stream to write the compressed data to. */
+    private final OutputStream out;
+
+    /** The executor to deflate the blocks in. */
+    private final Executor executor;
+
+    /** The deflate compression level. */
+    private final int level;
+
+    /** The maximum number of blocks in progress. Limits the memory use
+     * if the compression is slower than the producer.
+     * */
+    private final int maxPending;
+
+    /** The blocks in progress in the order to write them. */
+    private final Deque<CompletableFuture<byte[]>> pending =
+            new ArrayDeque<>();
+
+    /** The checksum of the uncompressed data. */
+    private final CRC32 crc = new CRC32();
+
+    /** The number of uncompressed bytes. */
+    private long size;
+
+    /** The block that is currently filled. */
+    private byte[] block = new byte[BLOCK_SIZE];
+
+    /** The number of bytes in {@link #block}. */
+    private int blockLength;
+
+    /** The end of the previous block or {@code null} for the first block. */
+    private byte[] dictionary;
+
+    /** Whether the trailer was written. */
+    private boolean finished;
+
+    /** Creates a new stream and writes the gzip header.
+     * @param myOut the stream to write the compressed data to.
+     * @param myExecutor the executor to deflate the blocks in.
+     * @param myParallelism the number of blocks to deflate concurrently.
+     * @param myLevel the deflate compression level.
+     * @throws IOException if writing the header fails.
+     * */
+    ParallelGzipOutputStream(final OutputStream myOut,
+                             final Executor myExecutor,
+                             final int myParallelism,
+                             final int myLevel) throws IOException {
+        this.out = Objects.requireNonNull(myOut, "out is null");
+        this.executor = Objects.requireNonNull(myExecutor, "executor is null");
+        this.maxPending = 2 * Math.max(1, myParallelism);
+        this.level = myLevel;
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] b,
+                      final int off,
+                      final int len) throws IOException {
+        if (finished) {
+            throw new IOException("Stream is finished");
+        }
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            int count = Math.min(remaining, BLOCK_SIZE - blockLength);
+            System.arraycopy(b, offset, block, blockLength, count);
+            blockLength += count;
+            offset += count;
+            remaining -= count;
+            if (blockLength == BLOCK_SIZE) {
+                submit(false);
+            }
+        }
+    }
+
+    /** Hands the current block over for deflating and starts a new
+     * block. Writes finished blocks if too many are in progress.
+     * @param last whether this is the last block of the stream.
+     * @throws IOException if writing a finished block fails.
+     * */
+    private void submit(final boolean last) throws IOException {
+        final byte[] input = block;
+        final int length = blockLength;
+        final byte[] preset = dictionary;
+        crc.update(input, 0, length);
+        size += length;
+        if (length >= DICTIONARY_SIZE) {
+            dictionary = new byte[DICTIONARY_SIZE];
+            System.arraycopy(input, length - DICTIONARY_SIZE,
+                    dictionary, 0, DICTIONARY_SIZE);
+        }
+        pending.add(CompletableFuture.supplyAsync(
+                () -> deflate(input, length, preset, level, last),
+                executor));
+        block = new byte[BLOCK_SIZE];
+        blockLength = 0;
+        while (pending.size() > maxPending) {
+            writeFirstPending();
+        }
+    }
+
+    /** Waits for the oldest block in progress and writes it.
+     * @throws IOException if deflating or writing the block fails.
+     * */
+    private void writeFirstPending() throws IOException {
+        CompletableFuture<byte[]> future = pending.removeFirst();
+        try {
+            out.write(future.get());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while deflating");
+        } catch (ExecutionException ex) {
+            throw new IOException("Problem deflating", ex.getCause());
+        }
+    }
+
+    /** Deflates one block.
+     * @param input the uncompressed block.
+     * @param length the number of bytes in the block.
+     * @param preset the end of the previous block or {@code null}.
+     * @param level the deflate compression level.
+     * @param last whether this is the last block of the stream.
+     * @return the raw deflate data of the block. Ends on a byte boundary
+     * for all blocks but the last.
+     * */
+    static byte[] deflate(final byte[] input,
+                          final int length,
+                          final byte[] preset,
+                          final int level,
+                          final boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (preset != null) {
+                deflater.setDictionary(preset);
+            }
+            deflater.setInput(input, 0, length);
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int count = deflater.deflate(buffer);
+                    result.write(buffer, 0, count);
+                }
+            } else {
+                int count;
+                do {
+                    count = deflater.deflate(buffer, 0, buffer.length,
+                            Deflater.SYNC_FLUSH);
+                    result.write(buffer, 0, count);
+                } while (count == buffer.length);
+            }
+            return result.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Writes the remaining data and the gzip trailer without closing
+     * the underlying stream.
+     * @throws IOException if deflating or writing fails.
+     * */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        submit(true);
+        while (!pending.isEmpty()) {
+            writeFirstPending();
+        }
+        writeInt((int) crc.getValue());
+        writeInt((int) size);
+        finished = true;
+    }
+
+    /** Writes an int in little endian byte order.
+     * @param value the value to write.
+     * @throws IOException if writing fails.
+     * */
+    private void writeInt(final int value) throws IOException {
+        for (int i = 0; i < INT_BYTES; i++) {
+            out.write((value >>> (i * BYTE_BITS)) & BYTE_MASK);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            pending.forEach(f -> f.cancel(false));
+            out.close();
+        }
+    }
+}
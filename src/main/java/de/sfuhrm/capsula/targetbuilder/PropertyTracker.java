@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetbuilder;
+
+import freemarker.template.AdapterTemplateModel;
+import freemarker.template.ObjectWrapper;
+import freemarker.template.TemplateCollectionModel;
+import freemarker.template.TemplateHashModel;
+import freemarker.template.TemplateHashModelEx;
+import freemarker.template.TemplateMethodModelEx;
+import freemarker.template.TemplateModel;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateScalarModel;
+import freemarker.template.TemplateSequenceModel;
+import freemarker.template.utility.DeepUnwrap;
+import java.util.Collections;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the property paths of the objects in the template environment
+ * that the templates read. The objects are wrapped by the shared object
+ * wrapper, and the resulting models are decorated with models that
+ * record every access.
+ * <p>
+ * A path looks like {@code capsula.debian.section} or
+ * {@code capsula.versions[0].version}. Reading a leaf value, checking
+ * for existence, iterating or converting an object records the path of
+ * the object, so the recorded paths cover everything the output
+ * depends on.
+ *
+ * @author Stephan Fuhrmann
+ */
+final class PropertyTracker {
+
+    /** The wrapper for the objects. */
+    private final ObjectWrapper wrapper;
+
+    /** The recorded paths. */
+    private final Set<String> paths = ConcurrentHashMap.newKeySet();
+
+    /** Creates a new instance.
+     * @param myWrapper the wrapper for the objects.
+     * */
+    PropertyTracker(final ObjectWrapper myWrapper) {
+        this.wrapper = myWrapper;
+    }
+
+    /** Wraps an object so that reading its properties is recorded.
+     * @param object the object to wrap.
+     * @param path the path of the object.
+     * @return the model to put into the template environment.
+     * @throws TemplateModelException if the object can not be wrapped.
+     * */
+    TemplateModel track(final Object object, final String path)
+            throws TemplateModelException {
+        return decorate(wrapper.wrap(object), path);
+    }
+
+    /** Get the recorded paths.
+     * @return the sorted paths that were read.
+     * */
+    SortedSet<String> getPaths() {
+        return Collections.unmodifiableSortedSet(new TreeSet<>(paths));
+    }
+
+    /** Records that a path was read.
+     * @param path the path that was read.
+     * */
+    private void read(final String path) {
+        paths.add(path);
+    }
+
+    /** Decorates a model so that reading it is recorded.
+     * @param model the model, may be {@code null}.
+     * @param path the path of the model.
+     * @return the decorated model, or the model itself for leaf values.
+     * */
+    private TemplateModel decorate(final TemplateModel model,
+                                   final String path) {
+        if (model instanceof TemplateMethodModelEx) {
+            // a method may read anything of its object, whose path
+            // the record falls back to
+            read(path);
+            return model;
+        }
+        if (model instanceof TemplateSequenceModel) {
+            return new Sequence((TemplateSequenceModel) model, path);
+        }
+        if (model instanceof TemplateScalarModel
+                && model instanceof TemplateHashModel) {
+            return new ScalarHash((TemplateHashModel) model, path);
+        }
+        if (model instanceof TemplateHashModel) {
+            return new Hash((TemplateHashModel) model, path);
+        }
+        read(path);
+        return model;
+    }
+
+    /** Base class of decorated models. */
+    private abstract class Tracked implements AdapterTemplateModel {
+        /** The path of the model. */
+        private final String path;
+
+        /** The decorated model. */
+        private final TemplateModel delegate;
+
+        /** Creates a new instance.
+         * @param myDelegate the decorated model.
+         * @param myPath the path of the model.
+         * */
+        Tracked(final TemplateModel myDelegate, final String myPath) {
+            this.delegate = myDelegate;
+            this.path = myPath;
+        }
+
+        /** Get the path of the model.
+         * @return the path.
+         * */
+        final String getPath() {
+            return path;
+        }
+
+        /** Records that the complete model was read. */
+        final void readAll() {
+            read(path);
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public final Object getAdaptedObject(final Class hint) {
+            readAll();
+            if (delegate instanceof AdapterTemplateModel) {
+                return ((AdapterTemplateModel) delegate)
+                        .getAdaptedObject(hint);
+            }
+            try {
+                return DeepUnwrap.unwrap(delegate);
+            } catch (TemplateModelException ex) {
+                return delegate;
+            }
+        }
+    }
+
+    /** A decorated hash. */
+    private class Hash extends Tracked implements TemplateHashModelEx {
+        /** The decorated hash. */
+        private final TemplateHashModel hash;
+
+        /** Creates a new instance.
+         * @param myHash the decorated hash.
+         * @param myPath the path of the hash.
+         * */
+        Hash(final TemplateHashModel myHash, final String myPath) {
+            super(myHash, myPath);
+            this.hash = myHash;
+        }
+
+        @Override
+        public TemplateModel get(final String key)
+                throws TemplateModelException {
+            return decorate(hash.get(key), getPath() + "." + key);
+        }
+
+        @Override
+        public boolean isEmpty() throws TemplateModelException {
+            readAll();
+            return hash.isEmpty();
+        }
+
+        /** Get the decorated hash as an extended hash.
+         * @return the extended hash.
+         * @throws TemplateModelException if the hash is not extended.
+         * */
+        private TemplateHashModelEx getHashEx()
+                throws TemplateModelException {
+            readAll();
+            if (!(hash instanceof TemplateHashModelEx)) {
+                throw new TemplateModelException("Can not list "
+                        + getPath());
+            }
+            return (TemplateHashModelEx) hash;
+        }
+
+        @Override
+        public int size() throws TemplateModelException {
+            return getHashEx().size();
+        }
+
+        @Override
+        public TemplateCollectionModel keys() throws TemplateModelException {
+            return getHashEx().keys();
+        }
+
+        @Override
+        public TemplateCollectionModel values()
+                throws TemplateModelException {
+            return getHashEx().values();
+        }
+    }
+
+    /** A decorated hash that also is a string, like an enum. */
+    private final class ScalarHash extends Hash
+            implements TemplateScalarModel {
+        /** The decorated hash. */
+        private final TemplateScalarModel scalar;
+
+        /** Creates a new instance.
+         * @param myHash the decorated hash.
+         * @param myPath the path of the hash.
+         * */
+        ScalarHash(final TemplateHashModel myHash, final String myPath) {
+            super(myHash, myPath);
+            this.scalar = (TemplateScalarModel) myHash;
+        }
+
+        @Override
+        public String getAsString() throws TemplateModelException {
+            readAll();
+            return scalar.getAsString();
+        }
+    }
+
+    /** A decorated sequence. */
+    private final class Sequence extends Tracked
+            implements TemplateSequenceModel {
+        /** The decorated sequence. */
+        private final TemplateSequenceModel sequence;
+
+        /** Creates a new instance.
+         * @param mySequence the decorated sequence.
+         * @param myPath the path of the sequence.
+         * */
+        Sequence(final TemplateSequenceModel mySequence,
+                 final String myPath) {
+            super(mySequence, myPath);
+            this.sequence = mySequence;
+        }
+
+        @Override
+        public TemplateModel get(final int index)
+                throws TemplateModelException {
+            return decorate(sequence.get(index),
+                    getPath() + "[" + index + "]");
+        }
+
+        @Override
+        public int size() throws TemplateModelException {
+            readAll();
+            return sequence.size();
+        }
+    }
+}
@@ -18,13 +18,26 @@
 package de.sfuhrm.capsula.targetbuilder;
 
 import de.sfuhrm.capsula.BuildException;
+import de.sfuhrm.capsula.ProcessUtils;
+import de.sfuhrm.capsula.trace.ProcessSampler;
+import de.sfuhrm.capsula.trace.ResourceUsage;
+import de.sfuhrm.capsula.trace.Span;
 import de.sfuhrm.capsula.yaml.command.RunCommand;
 import java.io.IOException;
-import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Objects;
 import java.util.List;
+import java.util.Optional;
 import java.util.ArrayList;
 import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import lombok.extern.slf4j.Slf4j;
 import org.apache.log4j.MDC;
@@ -37,6 +50,17 @@ import org.apache.log4j.MDC;
 @Slf4j
 class RunDelegate extends AbstractDelegate {
 
+    /** The executor reading the output of all commands. Each
+     * stream gets its own virtual thread, so there are no platform
+     * threads blocked on reading.
+     * The virtual threads inherit the logging context of the
+     * command.
+     */
+    private static final ExecutorService PUMP_EXECUTOR =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual()
+                    .name("capsula-pump-", 0)
+                    .factory());
+
     /**
      * Creates a new instance.
      * @param targetBuilder the target builder this class is a delegate for.
@@ -99,62 +123,164 @@ class RunDelegate extends AbstractDelegate {
      * @throws IOException if an I/O problem occurs running the command.
      */
     public void run(final RunCommand command) throws IOException {
+        Objects.requireNonNull(command.getCommand(), "command is null");
+        run(parse(command.getCommand()), command.getCommand(),
+                command.getTimeout(), command.isRaw());
+    }
+
+    /**
+     * Runs a command in the target directory redirecting the output
+     * to the logging facility.
+     * @param cmdArray the command and its arguments.
+     * @param commandString the command for the target log and
+     *                      error messages.
+     * @param commandTimeout the optional maximum number of seconds
+     *                       the command may run, or {@code null}.
+     * @param raw whether the output goes directly into the target log.
+     * @throws IOException if an I/O problem occurs running the command.
+     * @see RunCommand
+     */
+    void run(final List<String> cmdArray,
+             final String commandString,
+             final Integer commandTimeout,
+             final boolean raw) throws IOException {
+        Span span = null;
+        Path timesFile = null;
         try {
-            Objects.requireNonNull(command.getCommand(), "command is null");
-            List<String> cmdArray = parse(command.getCommand());
             MDC.put("cmd", cmdArray.get(0));
             String cmdString = cmdArray.toString();
             ProcessBuilder builder = new ProcessBuilder(cmdArray);
-            log.info("Starting command {}", command.getCommand());
-
-            Process process = builder
-                    .directory(getTargetBuilder().getTargetPath().toFile())
-                    .redirectError(ProcessBuilder.Redirect.PIPE)
-                    .redirectOutput(ProcessBuilder.Redirect.PIPE)
-                    .start();
-
-            InputStreamConsumer stdin = new InputStreamConsumer(
-                    process.getInputStream(),
-                    line -> {
-                        log.info(line);
-                        if (getTargetBuilder().isVerbose()) {
-                            System.out.println(line);
-                        }
-                    },
-                    Charset.forName("UTF-8"));
-
-            InputStreamConsumer stderr = new InputStreamConsumer(
-                    process.getErrorStream(),
-                    line -> {
-                        log.warn(line);
-                        if (getTargetBuilder().isVerbose()) {
-                            System.err.println(line);
-                        }
-                    },
-                    Charset.forName("UTF-8"));
-
-            Thread stdinThread = new Thread(stdin,
-                    getTargetBuilder().getTargetName() + "-stdin");
-            stdinThread.start();
-            Thread stderrThread = new Thread(stderr,
-                    getTargetBuilder().getTargetName() + "-stderr");
-            stderrThread.start();
-
-            log.debug("Waiting for cmd {}", cmdString);
-            process.waitFor();
+            log.info("Starting command {}", commandString);
+            TargetLog targetLog = getTargetBuilder().getTargetLog();
+            targetLog.line("$ " + commandString);
+            span = getTargetBuilder().startSpan("process", cmdArray.get(0))
+                    .arg("command", commandString);
+
+            builder.directory(getTargetBuilder().getTargetPath().toFile());
+            if (ProcessSampler.isSupported()) {
+                timesFile = Files.createTempFile("capsula-times", ".txt");
+                builder.command(ProcessSampler.wrap(cmdArray, timesFile));
+            }
+            CompletableFuture<Integer> exit;
+            Process process;
+            if (raw) {
+                ProcessBuilder.Redirect append = ProcessBuilder.Redirect
+                        .appendTo(targetLog.getFile().toFile());
+                process = builder
+                        .redirectOutput(append)
+                        .redirectError(append)
+                        .start();
+                exit = process.onExit().thenApply(Process::exitValue);
+            } else {
+                process = builder
+                        .redirectError(ProcessBuilder.Redirect.PIPE)
+                        .redirectOutput(ProcessBuilder.Redirect.PIPE)
+                        .start();
+
+                InputStreamConsumer stdin = new InputStreamConsumer(
+                        process.getInputStream(),
+                        targetLog::chunk);
+
+                InputStreamConsumer stderr = new InputStreamConsumer(
+                        process.getErrorStream(),
+                        targetLog::chunk);
+
+                CompletableFuture<Void> pumps = CompletableFuture.allOf(
+                        CompletableFuture.runAsync(stdin, PUMP_EXECUTOR),
+                        CompletableFuture.runAsync(stderr, PUMP_EXECUTOR));
+
+                exit = process.onExit()
+                        .thenCombine(pumps, (p, v) -> p.exitValue());
+            }
+            ProcessSampler sampler = null;
+            if (timesFile != null) {
+                sampler = ProcessSampler.start(process.toHandle(),
+                        ProcessSampler.DEFAULT_INTERVAL, timesFile);
+            }
+            Optional<Duration> timeout = getTimeout(commandTimeout);
+            log.debug("Waiting for cmd {} with timeout {}", cmdString,
+                    timeout);
+            int exitValue;
+            try {
+                exitValue = await(process, exit, timeout, commandString);
+            } finally {
+                if (sampler != null) {
+                    addResourceUsage(span, sampler.stop());
+                }
+            }
             log.debug("Finished waiting for cmd {}", cmdString);
-            int exitValue = process.exitValue();
             log.debug("Exit value for cmd {} is {}", cmdString, exitValue);
+            span.arg("exit", exitValue);
             if (exitValue != 0) {
+                targetLog.line("Exit value " + exitValue);
                 throw new BuildException("Command '"
-                        + command.getCommand()
+                        + commandString
                         + "' returned exit value " + exitValue);
             }
-        } catch (InterruptedException ex) {
-            throw new BuildException(command.getCommand(), ex);
         } finally {
+            if (span != null) {
+                span.close();
+            }
+            if (timesFile != null) {
+                Files.deleteIfExists(timesFile);
+            }
             MDC.remove("cmd");
         }
     }
 
+    /** Records the resources used by a command in its span and
+     * in the target.
+     * @param span the span of the command.
+     * @param usage the resources used by the command.
+     */
+    private void addResourceUsage(final Span span,
+                                  final ResourceUsage usage) {
+        log.debug("Resource usage {}", usage);
+        span.arg("cpuUserMillis", usage.getCpuUserMillis())
+                .arg("cpuSystemMillis", usage.getCpuSystemMillis())
+                .arg("peakRssBytes", usage.getPeakRssBytes())
+                .arg("readBytes", usage.getReadBytes())
+                .arg("writeBytes", usage.getWriteBytes());
+        getTargetBuilder().addResourceUsage(usage);
+    }
+
+    /** Waits for a command to finish. If the command does not finish
+     * in time, or the waiting thread gets interrupted because the
+     * target was cancelled, the command and all of its child processes
+     * are killed.
+     * @param process the process of the command.
+     * @param exit the future of the exit value, completes when the process
+     *             terminated and its output is read.
+     * @param timeout the optional time the command may run.
+     * @param commandString the command for error messages.
+     * @return the exit value of the command.
+     * @throws BuildException if the command timed out, got interrupted
+     * or its output could not be read.
+     */
+    private static int await(final Process process,
+                             final CompletableFuture<Integer> exit,
+                             final Optional<Duration> timeout,
+                             final String commandString) {
+        try {
+            if (timeout.isPresent()) {
+                return exit.get(timeout.get().toNanos(),
+                        TimeUnit.NANOSECONDS);
+            }
+            return exit.get();
+        } catch (TimeoutException ex) {
+            ProcessUtils.destroyTree(process);
+            throw new BuildException("Command '"
+                    + commandString
+                    + "' timed out", ex);
+        } catch (InterruptedException ex) {
+            ProcessUtils.destroyTree(process);
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while running '"
+                    + commandString + "'", ex);
+        } catch (ExecutionException ex) {
+            ProcessUtils.destroyTree(process);
+            throw new BuildException(commandString, ex.getCause());
+        }
+    }
+
 }
@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetbuilder;
+
+import com.google.common.hash.Hashing;
+import freemarker.cache.FileTemplateLoader;
+import freemarker.cache.MruCacheStorage;
+import freemarker.cache.MultiTemplateLoader;
+import freemarker.cache.TemplateLoader;
+import freemarker.cache.TemplateLookupContext;
+import freemarker.cache.TemplateLookupResult;
+import freemarker.cache.TemplateLookupStrategy;
+import freemarker.template.Configuration;
+import freemarker.template.DefaultObjectWrapperBuilder;
+import freemarker.template.ObjectWrapper;
+import freemarker.template.Template;
+import freemarker.template.TemplateExceptionHandler;
+import freemarker.template.Version;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The template configuration shared by all targets of the process.
+ * Templates are parsed once and kept in a bounded cache. The bean
+ * introspection of the objects in the template environment is done
+ * once by the shared {@link #OBJECT_WRAPPER object wrapper}.
+ * <p>
+ * The templates of a target are found in its layout directory and in
+ * the include directory that all targets share. A name that is not in
+ * the layout directory is looked up in the include directory. Names
+ * starting with {@code /include/} are always taken from the include
+ * directory, so their parsed templates are shared by all targets.
+ *
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+final class SharedTemplates {
+
+    /** The version of the template engine behaviour. */
+    private static final Version VERSION = Configuration.VERSION_2_3_23;
+
+    /** The number of templates that are kept in the cache for sure. */
+    private static final int STRONG_CACHE_SIZE = 64;
+
+    /** The number of templates that are kept in the cache as long as
+     * there is enough memory. */
+    private static final int SOFT_CACHE_SIZE = 512;
+
+    /** The number of hex digits of the path hash in a directory id. */
+    private static final int HASH_DIGITS = 16;
+
+    /** The prefix of template names in the include directory. */
+    private static final String INCLUDE_PREFIX = "include/";
+
+    /** The object wrapper shared by all templates. */
+    static final ObjectWrapper OBJECT_WRAPPER =
+            new DefaultObjectWrapperBuilder(VERSION).build();
+
+    /** The registered layout directories. */
+    private static final DirectoryLoader LAYOUTS = new DirectoryLoader("l");
+
+    /** The registered include directories. */
+    private static final DirectoryLoader INCLUDES = new DirectoryLoader("i");
+
+    /** The configuration shared by all targets. */
+    private static final Configuration CONFIGURATION = newConfiguration();
+
+    /** No instance allowed. */
+    private SharedTemplates() {
+    }
+
+    /** Creates the shared configuration.
+     * @return the configuration.
+     * */
+    private static Configuration newConfiguration() {
+        Configuration cfg = new IncludeCountingConfiguration();
+        cfg.setTemplateLoader(new MultiTemplateLoader(
+                new TemplateLoader[] {LAYOUTS, INCLUDES}));
+        cfg.setTemplateLookupStrategy(new IncludeLookupStrategy());
+        cfg.setCacheStorage(new MruCacheStorage(STRONG_CACHE_SIZE,
+                SOFT_CACHE_SIZE));
+        // the daemon needs to see changed templates of the next request
+        cfg.setTemplateUpdateDelayMilliseconds(0);
+        cfg.setLocalizedLookup(false);
+        cfg.setObjectWrapper(OBJECT_WRAPPER);
+        cfg.setDefaultEncoding(StandardCharsets.UTF_8.name());
+        cfg.setTemplateExceptionHandler(
+                TemplateExceptionHandler.RETHROW_HANDLER);
+        cfg.setLogTemplateExceptions(false);
+        cfg.setLocale(Locale.US);
+        return cfg;
+    }
+
+    /** Get the name of a template for reports. The directory id
+     * is replaced by {@code include} for templates in the include
+     * directory and removed for templates in the layout directory.
+     * @param template the template.
+     * @return the name relative to the layout directory.
+     * */
+    static String getDisplayName(final Template template) {
+        String name = template.getSourceName();
+        int slash = name.indexOf('/');
+        if (slash < 0) {
+            return name;
+        }
+        if (name.startsWith(INCLUDES.prefix)) {
+            return INCLUDE_PREFIX + name.substring(slash + 1);
+        }
+        return name.substring(slash + 1);
+    }
+
+    /** Registers the template directories of a target.
+     * @param layoutDirectory the layout directory of the target.
+     * @param includeDirectory the include directory of the target, or
+     *                         {@code null} if there is none.
+     * @return the registration that needs to be closed after the target
+     * is built.
+     * @throws IOException if a directory can not be read.
+     * */
+    static Registration register(final Path layoutDirectory,
+                                 final Path includeDirectory)
+            throws IOException {
+        String layoutId = LAYOUTS.register(layoutDirectory);
+        String includeId = null;
+        if (includeDirectory != null) {
+            try {
+                includeId = INCLUDES.register(includeDirectory);
+            } catch (IOException | RuntimeException ex) {
+                LAYOUTS.release(layoutId);
+                throw ex;
+            }
+        }
+        return new Registration(layoutId, includeId);
+    }
+
+    /** The template directories of a target. */
+    static final class Registration implements AutoCloseable {
+        /** The id of the layout directory. */
+        private final String layoutId;
+
+        /** The id of the include directory, or {@code null}. */
+        private final String includeId;
+
+        /** Creates a new instance.
+         * @param myLayoutId the id of the layout directory.
+         * @param myIncludeId the id of the include directory,
+         *                    or {@code null}.
+         * */
+        private Registration(final String myLayoutId,
+                             final String myIncludeId) {
+            this.layoutId = myLayoutId;
+            this.includeId = myIncludeId;
+        }
+
+        /** Get a parsed template of the target.
+         * @param name the name of the template relative to the
+         *             layout directory.
+         * @return the parsed template.
+         * @throws IOException if the template can not be found, read
+         * or parsed.
+         * */
+        Template getTemplate(final String name) throws IOException {
+            return CONFIGURATION.getTemplate(layoutId + "/" + name,
+                    Locale.US, includeId, null, true, false);
+        }
+
+        @Override
+        public void close() {
+            LAYOUTS.release(layoutId);
+            if (includeId != null) {
+                INCLUDES.release(includeId);
+            }
+        }
+    }
+
+    /** Reports the templates that get included to the
+     * {@link TemplateMetrics} of the current thread.
+     * */
+    private static final class IncludeCountingConfiguration
+            extends Configuration {
+        /** Creates a new instance. */
+        private IncludeCountingConfiguration() {
+            super(VERSION);
+        }
+
+        @Override
+        public Template getTemplate(final String name,
+                                    final Locale locale,
+                                    final Object customLookupCondition,
+                                    final String encoding,
+                                    final boolean parseAsFTL,
+                                    final boolean ignoreMissing)
+                throws IOException {
+            Template template = super.getTemplate(name, locale,
+                    customLookupCondition, encoding, parseAsFTL,
+                    ignoreMissing);
+            TemplateMetrics.included(template);
+            return template;
+        }
+    }
+
+    /** Looks up names in the include directory of the target, which
+     * is the custom lookup condition of its templates.
+     * */
+    private static final class IncludeLookupStrategy
+            extends TemplateLookupStrategy {
+        @Override
+        public TemplateLookupResult lookup(final TemplateLookupContext ctx)
+                throws IOException {
+            String name = ctx.getTemplateName();
+            Object includeId = ctx.getCustomLookupCondition();
+            if (includeId == null) {
+                return ctx.lookupWithAcquisitionStrategy(name);
+            }
+            if (name.startsWith(INCLUDE_PREFIX)) {
+                return ctx.lookupWithAcquisitionStrategy(includeId + "/"
+                        + name.substring(INCLUDE_PREFIX.length()));
+            }
+            TemplateLookupResult result =
+                    ctx.lookupWithAcquisitionStrategy(name);
+            int slash = name.indexOf('/');
+            if (!result.isPositive() && slash >= 0) {
+                result = ctx.lookupWithAcquisitionStrategy(
+                        includeId + name.substring(slash));
+            }
+            return result;
+        }
+    }
+
+    /** Loads templates from registered directories. The first name
+     * part is the id of the directory.
+     * */
+    private static final class DirectoryLoader implements TemplateLoader {
+        /** The prefix of the directory ids. */
+        private final String prefix;
+
+        /** The registered directories by id. */
+        private final Map<String, Directory> directories = new HashMap<>();
+
+        /** A registered directory. */
+        private static final class Directory {
+            /** The loader for the directory. */
+            private final FileTemplateLoader loader;
+
+            /** The number of registrations. */
+            private int count;
+
+            /** Creates a new instance.
+             * @param myLoader the loader for the directory.
+             * */
+            private Directory(final FileTemplateLoader myLoader) {
+                this.loader = myLoader;
+            }
+        }
+
+        /** A template in a registered directory. */
+        private static final class Source {
+            /** The loader of the directory. */
+            private final TemplateLoader loader;
+
+            /** The source of the loader. */
+            private final Object source;
+
+            /** Creates a new instance.
+             * @param myLoader the loader of the directory.
+             * @param mySource the source of the loader.
+             * */
+            private Source(final TemplateLoader myLoader,
+                           final Object mySource) {
+                this.loader = myLoader;
+                this.source = mySource;
+            }
+
+            @Override
+            public boolean equals(final Object o) {
+                if (!(o instanceof Source)) {
+                    return false;
+                }
+                Source other = (Source) o;
+                return loader == other.loader && source.equals(other.source);
+            }
+
+            @Override
+            public int hashCode() {
+                return source.hashCode();
+            }
+
+            @Override
+            public String toString() {
+                return source.toString();
+            }
+        }
+
+        /** Creates a new instance.
+         * @param myPrefix the prefix of the directory ids.
+         * */
+        private DirectoryLoader(final String myPrefix) {
+            this.prefix = myPrefix;
+        }
+
+        /** Registers a directory. The id only depends on the path, so
+         * a directory that is registered again finds its templates
+         * in the cache.
+         * @param directory the directory to register.
+         * @return the id of the directory.
+         * @throws IOException if the directory can not be read.
+         * */
+        private synchronized String register(final Path directory)
+                throws IOException {
+            Path absolute = directory.toAbsolutePath().normalize();
+            String id = prefix + Hashing.sha256()
+                    .hashString(absolute.toString(), StandardCharsets.UTF_8)
+                    .toString()
+                    .substring(0, HASH_DIGITS);
+            Directory entry = directories.get(id);
+            if (entry == null) {
+                log.debug("Registering template directory {} as {}",
+                        absolute, id);
+                entry = new Directory(
+                        new FileTemplateLoader(absolute.toFile()));
+                directories.put(id, entry);
+            }
+            entry.count++;
+            return id;
+        }
+
+        /** Releases a registration of a directory.
+         * @param id the id of the directory.
+         * */
+        private synchronized void release(final String id) {
+            Directory entry = directories.get(id);
+            if (entry == null) {
+                return;
+            }
+            entry.count--;
+            if (entry.count == 0) {
+                directories.remove(id);
+            }
+        }
+
+        @Override
+        public Object findTemplateSource(final String name)
+                throws IOException {
+            int slash = name.indexOf('/');
+            if (slash < 0) {
+                return null;
+            }
+            Directory entry;
+            synchronized (this) {
+                entry = directories.get(name.substring(0, slash));
+            }
+            if (entry == null) {
+                return null;
+            }
+            Object source = entry.loader.findTemplateSource(
+                    name.substring(slash + 1));
+            if (source == null) {
+                return null;
+            }
+            return new Source(entry.loader, source);
+        }
+
+        @Override
+        public long getLastModified(final Object templateSource) {
+            Source source = (Source) templateSource;
+            return source.loader.getLastModified(source.source);
+        }
+
+        @Override
+        public Reader getReader(final Object templateSource,
+                                final String encoding) throws IOException {
+            Source source = (Source) templateSource;
+            return source.loader.getReader(source.source,
+                    Objects.requireNonNull(encoding));
+        }
+
+        @Override
+        public void closeTemplateSource(final Object templateSource)
+                throws IOException {
+            Source source = (Source) templateSource;
+            source.loader.closeTemplateSource(source.source);
+        }
+    }
+}
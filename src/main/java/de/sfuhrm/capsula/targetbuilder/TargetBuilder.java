@@ -18,26 +18,54 @@
 package de.sfuhrm.capsula.targetbuilder;
 
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.MapperFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import de.sfuhrm.capsula.AdmissionController;
 import de.sfuhrm.capsula.BuildException;
 import de.sfuhrm.capsula.FileUtils;
 import de.sfuhrm.capsula.Stage;
 import de.sfuhrm.capsula.ValidationDelegate;
+import de.sfuhrm.capsula.cache.BuildCache;
+import de.sfuhrm.capsula.docker.ContainerSession;
+import de.sfuhrm.capsula.docker.DockerEngine;
+import de.sfuhrm.capsula.docker.DockerImages;
+import de.sfuhrm.capsula.trace.ResourceUsage;
+import de.sfuhrm.capsula.trace.Span;
+import de.sfuhrm.capsula.trace.Tracer;
 import de.sfuhrm.capsula.yaml.Capsula;
 import de.sfuhrm.capsula.yaml.Layout;
+import de.sfuhrm.capsula.yaml.Resources;
 import de.sfuhrm.capsula.yaml.command.Command;
+import freemarker.template.TemplateModelException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.validation.ConstraintViolation;
 import lombok.AccessLevel;
 import lombok.Getter;
@@ -54,6 +82,20 @@ import org.apache.log4j.MDC;
 @Slf4j
 public final class TargetBuilder implements Callable<TargetBuilder.Result> {
 
+    /** The version of the build cache key. Needs to be changed if the
+     * way the packages are built changes.
+     * */
+    private static final String BUILD_CACHE_VERSION = "capsula-build-1";
+
+    /** Placeholder for the target path in the rendered layout
+     * when calculating the build cache key.
+     * */
+    private static final String TARGET_PLACEHOLDER = "${target}";
+
+    /** The mapper for the layout and environment files. */
+    private static final ObjectMapper YAML_MAPPER =
+            new ObjectMapper(new YAMLFactory());
+
     /**
      * Where to create temp directories.
      */
@@ -65,6 +107,13 @@ public final class TargetBuilder implements Callable<TargetBuilder.Result> {
      */
     @Getter
     private final Path layoutDirectory;
+
+    /**
+     * The directory with the include templates shared by all targets,
+     * or {@code null} if there is none.
+     */
+    @Setter
+    private Path includeDirectory;
     /**
      * The path to the layout file itself.
      */
@@ -84,6 +133,9 @@ public final class TargetBuilder implements Callable<TargetBuilder.Result> {
      * <li> source: the layout directory
      * <li> target: the target directory where the build is performed.
      * <li> layout: the layout config file
+     * <li> git_mirror: the optional local mirror of the git repository
+     * <li> dockerfile_tag: the image tag for the content of the
+     * Dockerfile in the layout directory, if there is one
      * <li> ... and everything from <code>environment.yaml</code>
      * </ul>
      */
@@ -97,6 +149,7 @@ public final class TargetBuilder implements Callable<TargetBuilder.Result> {
     /**
      * The configuration for building this target.
      */
+    @Getter(AccessLevel.PACKAGE)
     private Layout layout;
     /**
      * Name of the layout config file in the directory.
@@ -110,6 +163,15 @@ public final class TargetBuilder implements Callable<TargetBuilder.Result> {
      * @see #readEnvironment()
      */
     private static final String ENVIRONMENT_YAML = "environment.yaml";
+    /**
+     * The default number of last output lines to keep for failed targets.
+     *
+     * @see #setTailLines(int)
+     */
+    public static final int DEFAULT_TAIL_LINES = 20;
+
+    /** The number of bytes in a MiB. */
+    private static final long BYTES_PER_MIB = 1024 * 1024;
     /**
      * Delegate for template generation. Is used for all templating tasks, also
      * when reading the layout/environment files.
@@ -124,10 +186,108 @@ public final class TargetBuilder implements Callable<TargetBuilder.Result> {
     /** Stop processing after this stage. */
     private Stage stopAfter;
 
+    /** Debug mode. Keeps the expanded layout and environment
+     * files in the build directory.
+     * */
+    @Setter
+    private boolean debug;
+
     /** Verbose output. */
     @Getter
     private boolean verbose;
 
+    /** The stream the output of the commands is echoed to in
+     * {@link #isVerbose() verbose} mode. */
+    @Setter
+    private PrintStream echo = System.out;
+
+    /** The optional local mirror of the git repository to clone from.
+     * Is available as {@code git_mirror} in the templates.
+     * */
+    @Getter
+    @Setter
+    private Path gitMirror;
+
+    /** The optional cache of packages from earlier builds. */
+    @Setter
+    private BuildCache buildCache;
+
+    /** Whether to build even if the inputs did not change
+     * since the last build.
+     * @see #isUnchanged(String)
+     * */
+    @Setter
+    private boolean rebuild;
+
+    /** The docker images to build the packages in. */
+    @Setter
+    private DockerImages dockerImages;
+
+    /** The docker engine for the {@code dockerRun} and
+     * {@code dockerBuild} commands.
+     * */
+    @Getter(AccessLevel.PACKAGE)
+    @Setter
+    private DockerEngine dockerEngine;
+
+    /** The build container of this target, or {@code null} if
+     * there is none. Is created when the
+     * {@link Stage#BUILD build} stage begins.
+     * */
+    @Getter(AccessLevel.PACKAGE)
+    private volatile ContainerSession containerSession;
+
+    /** The name of the layout image, or {@code null} if the layout
+     * has none. Is set when the {@link Stage#BUILD build} stage begins.
+     * */
+    @Getter(AccessLevel.PACKAGE)
+    private volatile String buildImage;
+
+    /** The optional admission controller that decides when the target
+     * has the resources to start building.
+     * */
+    @Setter
+    private AdmissionController admissionController;
+
+    /** The tracer for the timing of the stages, commands, processes
+     * and templates. */
+    @Getter
+    @Setter
+    private Tracer tracer = Tracer.DISABLED;
+
+    /** The {@link System#nanoTime()} value when building the target
+     * times out, or {@code null} if there is no timeout.
+     * @see Layout#getTimeout()
+     */
+    private Long deadlineNanos;
+
+    /** The number of last output lines to keep for failed targets. */
+    @Setter
+    private int tailLines = DEFAULT_TAIL_LINES;
+
+    /** The stage that is running. */
+    private volatile Stage stage = Stage.READ_DESCRIPTOR;
+
+    /** The resources used by the processes of this target
+     * by stage. */
+    private final Map<Stage, ResourceUsage> resourceUsage =
+            new EnumMap<>(Stage.class);
+
+    /** Records the descriptor properties the templates read. */
+    private PropertyTracker propertyTracker;
+
+    /** The output of the commands of this target while building. */
+    @Getter(AccessLevel.PACKAGE)
+    private TargetLog targetLog;
+
+    /** The layout file after template processing. */
+    private String renderedLayout;
+
+    /** Where to copy the package files to in the
+     * {@link Stage#COPY_RESULT copy result} stage. */
+    @Getter
+    private final Path out;
+
     /**
      * Creates an instance.
      *
@@ -139,6 +299,7 @@ public final class TargetBuilder implements Callable<TargetBuilder.Result> {
      * in.
      * @param myStopAfter the stage after which to stop.
      * @param myVerbose verbose output.
+     * @param myOut the directory to copy the package files to.
      * @throws IOException if something goes wrong while initialization.
      */
     public TargetBuilder(final Capsula myBuild,
@@ -146,8 +307,10 @@ public final class TargetBuilder implements Callable<TargetBuilder.Result> {
                          final String myTargetName,
                          final Path myLayoutDirectory,
                          final Stage myStopAfter,
-                         final boolean myVerbose) throws IOException {
+                         final boolean myVerbose,
+                         final Path myOut) throws IOException {
         this.build = Objects.requireNonNull(myBuild);
+        this.out = Objects.requireNonNull(myOut, "out");
         this.tempRoot = Objects.requireNonNull(myTempRoot);
         this.targetName = Objects.requireNonNull(myTargetName);
         log.debug("Layout directory is {}", myLayoutDirectory);
@@ -163,15 +326,9 @@ public final class TargetBuilder implements Callable<TargetBuilder.Result> {
             throw new IllegalStateException(layoutFilePath + " is not a file");
         }
 
-        targetPath = myTempRoot.resolve(this.targetName
-                + "-build").toAbsolutePath();
-        if (Files.exists(targetPath)) {
-            FileUtils.deleteRecursive(targetPath);
-        }
-        targetPath = Files.createDirectory(
-                targetPath);
+        targetPath = Files.createDirectories(myTempRoot.resolve(
+                this.targetName + "-build").toAbsolutePath());
         log.debug("Target path is {}", targetPath);
-        templateDelegate = new TemplateDelegate(this);
         this.stopAfter = Objects.requireNonNull(myStopAfter, "stopAfter");
         this.verbose = myVerbose;
     }
@@ -183,12 +340,9 @@ public final class TargetBuilder implements Callable<TargetBuilder.Result> {
      * @throws IOException in case of an I/O problem.
      */
     private Layout readLayout() throws IOException {
-        ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
-        Path layoutTmp = Files.createTempFile(tempRoot,
-                "layout", ".yaml").toAbsolutePath();
-        templateDelegate.template(LAYOUT_YAML, layoutTmp.toString(),
-                Optional.empty());
-        Layout myLayout = mapper.readValue(layoutTmp.toFile(), Layout.class);
+        renderedLayout = templateDelegate.render(LAYOUT_YAML);
+        writeDebugFile(LAYOUT_YAML, renderedLayout);
+        Layout myLayout = YAML_MAPPER.readValue(renderedLayout, Layout.class);
         ValidationDelegate validationDelegate = new ValidationDelegate();
         Set<ConstraintViolation<Layout>> constraintViolations
                 = validationDelegate.validate(myLayout);
@@ -206,28 +360,102 @@ public final class TargetBuilder implements Callable<TargetBuilder.Result> {
      * @throws IOException in case of an I/O problem.
      */
     private Map<String, Object> readEnvironment() throws IOException {
-        ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
         TypeReference<HashMap<String, Object>> typeRef
             = new TypeReference<HashMap<String, Object>>() { };
 
-        Path environmentTmp = Files.createTempFile(tempRoot,
-                "environment", ".yaml").toAbsolutePath();
-        templateDelegate.template(ENVIRONMENT_YAML, environmentTmp.toString(),
-                Optional.empty());
-        Map<String, Object> env = mapper.readValue(environmentTmp.toFile(),
+        String renderedEnvironment = templateDelegate.render(
+                ENVIRONMENT_YAML);
+        writeDebugFile(ENVIRONMENT_YAML, renderedEnvironment);
+        Map<String, Object> env = YAML_MAPPER.readValue(renderedEnvironment,
                 typeRef);
         return env;
     }
 
+    /**
+     * Removes what the prepare commands of an earlier build left in the
+     * target path. The copy, mkdir, archive and move commands refuse
+     * to overwrite an existing path. Files written by template commands
+     * are kept, so unchanged files keep their modification time.
+     * @param commands the prepare commands of the layout.
+     * @throws IOException if a path can not be removed.
+     */
+    private void removeLeftovers(final List<Command> commands)
+            throws IOException {
+        List<String> paths = new ArrayList<>();
+        for (Command cmd : commands) {
+            if (cmd.getCopy() != null) {
+                paths.add(cmd.getCopy().getTo());
+            }
+            if (cmd.getMkdir() != null) {
+                paths.add(cmd.getMkdir().getTo());
+            }
+            if (cmd.getArchive() != null) {
+                paths.add(cmd.getArchive().getTo());
+            }
+            if (cmd.getMove() != null) {
+                paths.add(cmd.getMove().getFrom());
+                paths.add(cmd.getMove().getTo());
+            }
+        }
+        for (String path : paths) {
+            if (path == null) {
+                continue;
+            }
+            Path leftover = targetPath.resolve(path).normalize();
+            if (leftover.startsWith(targetPath)
+                    && !leftover.equals(targetPath)) {
+                log.debug("Removing leftover {}", leftover);
+                FileUtils.delete(leftover);
+            }
+        }
+    }
+
+    /**
+     * Writes an expanded template to the build directory
+     * in debug mode.
+     * @param name the name of the template.
+     * @param content the expanded template.
+     * @throws IOException in case of an I/O problem.
+     */
+    private void writeDebugFile(final String name, final String content)
+            throws IOException {
+        if (debug) {
+            Files.write(tempRoot.resolve(targetName + "-" + name),
+                    content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
     /**
      * Initialize the preset variables that can be used in the template.
      */
     private void initEnvironment() {
         environment = new HashMap<>();
-        environment.put("capsula", getBuild());
-        environment.put("version", getBuild().getVersions().get(0));
+        propertyTracker = new PropertyTracker(SharedTemplates.OBJECT_WRAPPER);
+        try {
+            environment.put(InputRecord.ROOT, propertyTracker.track(
+                    getBuild(), InputRecord.ROOT));
+            environment.put("version", propertyTracker.track(
+                    getBuild().getVersions().get(0),
+                    InputRecord.ROOT + ".versions[0]"));
+        } catch (TemplateModelException ex) {
+            throw new BuildException("Problem wrapping the descriptor", ex);
+        }
         environment.put("source", layoutDirectory);
         environment.put("target", targetPath);
+        if (gitMirror != null) {
+            environment.put("git_mirror", gitMirror);
+        }
+        try {
+            Path dockerfile = layoutDirectory.resolve(
+                    DockerImages.DOCKERFILE);
+            if (Files.isRegularFile(dockerfile)) {
+                environment.put("dockerfile_tag",
+                        DockerImages.getDockerfileTag(dockerfile));
+            }
+        } catch (IOException ex) {
+            throw new BuildException("Error while reading "
+                    + DockerImages.DOCKERFILE, ex);
+        }
         try {
             Map<String, Object> fileEnv = readEnvironment();
             environment.putAll(fileEnv);
@@ -240,17 +468,37 @@ public final class TargetBuilder implements Callable<TargetBuilder.Result> {
         }
     }
 
-    /** Copies the generated package files to the given path.
-     * @param out the path to copy the package files to.
+    /** Get the generated package files.
+     * @param directory the directory to resolve the package files in.
+     * @param flat whether the package files are directly in the directory
+     *             instead of their path relative to the target path.
+     * @return the paths of the package files.
      * @see Layout#packages
-     * @throws IOException in case of an I/O problem.
      */
-    public void copyPackageFilesTo(final Path out) throws IOException {
+    private List<Path> getPackageFiles(final Path directory,
+                                       final boolean flat) {
         Objects.requireNonNull(layout, "layout needs to be non-null");
+        List<Path> result = new ArrayList<>();
         for (String file : layout.getPackages()) {
-            Path fromPath = getTargetPath().resolve(file);
+            if (flat) {
+                result.add(directory.resolve(
+                        Paths.get(file).getFileName()));
+            } else {
+                result.add(directory.resolve(file));
+            }
+        }
+        return result;
+    }
 
-            Path toDirectory = out.resolve(layout.getId());
+    /** Copies package files to the {@link #out} path.
+     * @param packageFiles the package files to copy.
+     * @see #getPackageFiles(Path, boolean)
+     * @throws IOException in case of an I/O problem.
+     */
+    private void copyPackageFiles(final List<Path> packageFiles)
+            throws IOException {
+        for (Path fromPath : packageFiles) {
+            Path toDirectory = getOutDirectory();
             Path toPath = toDirectory.resolve(fromPath.getFileName());
             Files.createDirectories(toDirectory);
 
@@ -259,32 +507,509 @@ public final class TargetBuilder implements Callable<TargetBuilder.Result> {
         }
     }
 
-    @Override
-    public Result call() throws Exception {
-        initEnvironment();
-        layout = readLayout(); // must be AFTER initEnvironment()
-        Result result;
+    /** Checks whether the descriptor pins the git commit to build.
+     * Otherwise the sources can change without a change of
+     * the descriptor.
+     * @return {@code true} if there is a git commit in the descriptor.
+     */
+    private boolean isCommitPinned() {
+        return build.getGit() != null
+                && build.getGit().getCommit() != null
+                && !build.getGit().getCommit().isEmpty();
+    }
+
+    /** Calculates the hash of the templates of this target for the
+     * {@link InputRecord input record}.
+     * @return the hash of the target name and the files in the layout
+     * and include directories.
+     * @throws IOException in case of an I/O problem.
+     */
+    private String getInputKey() throws IOException {
+        Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putString(BUILD_CACHE_VERSION, StandardCharsets.UTF_8);
+        hasher.putString(targetName, StandardCharsets.UTF_8);
+        BuildCache.putTree(hasher, layoutDirectory);
+        if (includeDirectory != null) {
+            BuildCache.putTree(hasher, includeDirectory);
+        }
+        return hasher.hash().toString();
+    }
+
+    /** Get the file the {@link InputRecord input record} of this target
+     * is stored in.
+     * @return the file next to the package files in the
+     * {@link #getOutDirectory() out directory} of the target.
+     */
+    private Path getInputRecordFile() {
+        return getOutDirectory()
+                .resolve(build.getPackageName() + "-inputs.json");
+    }
+
+    /** Checks whether the package files in the {@link #getOut() out}
+     * directory were built from the same inputs. This is the case if the
+     * templates did not change, the descriptor has the same values for
+     * all properties the templates read in the last build, and all
+     * package files are still there.
+     * @param inputKey the hash of the templates of this target.
+     * @return {@code true} if building again would give the same
+     * package files.
+     */
+    private boolean isUnchanged(final String inputKey) {
+        Optional<InputRecord> record = InputRecord.read(
+                getInputRecordFile());
+        return record.isPresent()
+                && record.get().matches(inputKey,
+                        InputRecord.toTree(build))
+                && getPackageFiles(getOutDirectory(), true)
+                        .stream()
+                        .allMatch(Files::isRegularFile);
+    }
+
+    /** Writes the {@link InputRecord input record} of this target
+     * with the descriptor properties that the templates read.
+     * @param inputKey the hash of the templates of this target.
+     */
+    private void writeInputRecord(final String inputKey) {
+        Set<String> paths = new TreeSet<>(propertyTracker.getPaths());
+        // the sources depend on the commit even if no template reads it
+        paths.add(InputRecord.ROOT + ".git");
+        InputRecord record = InputRecord.create(inputKey, paths,
+                InputRecord.toTree(build));
+        try {
+            record.write(getInputRecordFile());
+        } catch (IOException ex) {
+            log.warn("Could not write " + getInputRecordFile(), ex);
+        }
+    }
+
+    /** Calculates the key of this target in the build cache. The key
+     * is a hash of everything that goes into the build: The target name,
+     * the layout after template processing, the files in the layout
+     * directory and the descriptor.
+     * @return the key, or {@link Optional#empty()} if the build
+     * can not be cached. This is the case if there is no build cache or
+     * if no git commit is pinned in the descriptor.
+     * @throws IOException in case of an I/O problem.
+     */
+    private Optional<String> getBuildCacheKey() throws IOException {
+        if (buildCache == null || !isCommitPinned()) {
+            return Optional.empty();
+        }
+        ObjectMapper mapper = new ObjectMapper()
+                .configure(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY, true)
+                .configure(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS,
+                        true);
+        Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putString(BUILD_CACHE_VERSION, StandardCharsets.UTF_8);
+        hasher.putString(targetName, StandardCharsets.UTF_8);
+        hasher.putString(renderedLayout.replace(targetPath.toString(),
+                TARGET_PLACEHOLDER), StandardCharsets.UTF_8);
+        BuildCache.putTree(hasher, layoutDirectory);
+        if (includeDirectory != null) {
+            BuildCache.putTree(hasher, includeDirectory);
+        }
+        hasher.putBytes(mapper.writeValueAsBytes(build));
+        return Optional.of(hasher.hash().toString());
+    }
+
+    /** Looks up the package files of this target in the build cache.
+     * @param key the build cache key of this target.
+     * @return the cached package files, or {@link Optional#empty()} if
+     * the build cache does not contain all package files.
+     * @throws IOException in case of an I/O problem.
+     */
+    private Optional<List<Path>> lookupBuildCache(final String key)
+            throws IOException {
+        Optional<Path> entry = buildCache.lookup(key);
+        if (!entry.isPresent()) {
+            return Optional.empty();
+        }
+        List<Path> packageFiles = getPackageFiles(entry.get(), true);
+        if (!packageFiles.stream().allMatch(Files::isRegularFile)) {
+            log.warn("Build cache entry {} is incomplete", key);
+            return Optional.empty();
+        }
+        return Optional.of(packageFiles);
+    }
+
+    /** Stores the package files of this target in the build cache.
+     * Problems are logged, but do not fail the build.
+     * @param key the build cache key of this target.
+     * @param packageFiles the package files to store.
+     */
+    private void storeBuildCache(final String key,
+                                 final List<Path> packageFiles) {
+        try {
+            buildCache.store(key, packageFiles);
+        } catch (IOException ex) {
+            log.warn("Could not store packages in the build cache", ex);
+        }
+    }
+
+    /** Starts preparing the docker image of the layout in the background.
+     * @return the future of the image preparation, or
+     * {@link Optional#empty()} if the layout has no image.
+     */
+    private Optional<CompletableFuture<String>> prepareImage() {
+        if (layout.getImage() == null) {
+            return Optional.empty();
+        }
+        Objects.requireNonNull(dockerImages, "dockerImages is null");
+        return Optional.of(dockerImages.prepare(layout.getImage(),
+                layoutDirectory, tracer));
+    }
+
+    /** Creates the build container session of this target. The
+     * container is started by the first {@code dockerExec} command.
+     * Does nothing if there is no docker engine.
+     * @param imageName the name of the layout image.
+     */
+    private void openContainerSession(final String imageName) {
+        if (dockerEngine == null) {
+            return;
+        }
+        containerSession = new ContainerSession(dockerEngine, imageName,
+                DockerDelegate.TARGET_MOUNT,
+                new DockerDelegate(this).getBinds(
+                        layout.getImage().getVolumes()));
+    }
+
+    /** Records the resources used by the build container, which the
+     * process sampling of the host can not see.
+     */
+    private void addContainerResourceUsage() {
+        ContainerSession session = containerSession;
+        if (session != null) {
+            session.getResourceUsage().ifPresent(this::addResourceUsage);
+        }
+    }
+
+    /** Removes the build container of this target, if it was started.
+     * Can be called more than once.
+     */
+    public void closeContainerSession() {
+        ContainerSession session = containerSession;
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    /** Waits for the docker image of the layout to be ready.
+     * @param image the future of the image preparation.
+     * @param timeout the optional time to wait at most.
+     * @return the name of the image.
+     * @throws InterruptedException if interrupted while waiting.
+     * @throws BuildException if the image preparation failed or
+     * did not finish in time.
+     */
+    private static String awaitImage(final CompletableFuture<String> image,
+                                     final Optional<Duration> timeout)
+            throws InterruptedException, BuildException {
         try {
+            String name;
+            if (timeout.isPresent()) {
+                name = image.get(timeout.get().toNanos(),
+                        TimeUnit.NANOSECONDS);
+            } else {
+                name = image.get();
+            }
+            log.debug("Image {} is ready", name);
+            return name;
+        } catch (ExecutionException ex) {
+            throw new BuildException("Problem preparing docker image",
+                    ex.getCause());
+        } catch (TimeoutException ex) {
+            throw new BuildException("Timed out waiting for docker image",
+                    ex);
+        }
+    }
+
+    /** Adds the resources used by a process to the running stage.
+     * @param usage the resources used by the process.
+     */
+    void addResourceUsage(final ResourceUsage usage) {
+        synchronized (resourceUsage) {
+            resourceUsage.merge(stage, usage, ResourceUsage::plus);
+        }
+    }
+
+    /** Get the key of this target in the admission controller.
+     * @return the package name and the target name.
+     */
+    private String getAdmissionKey() {
+        return build.getPackageName() + "/" + targetName;
+    }
+
+    /** Get the resources this target needs. These are the
+     * {@link Layout#getResources() declared resources} of the layout, or
+     * the resources learned from earlier builds.
+     * @return the resources, which are zero if nothing is known.
+     */
+    private AdmissionController.Demand getDemand() {
+        Resources declared = layout.getResources();
+        Optional<AdmissionController.Demand> learned =
+                admissionController.getLearned(getAdmissionKey());
+        long memory = learned.map(AdmissionController.Demand::getMemory)
+                .orElse(0L);
+        double cpus = learned.map(AdmissionController.Demand::getCpus)
+                .orElse(0d);
+        if (declared != null && declared.getMemory() != null) {
+            memory = declared.getMemory() * BYTES_PER_MIB;
+        }
+        if (declared != null && declared.getCpus() != null) {
+            cpus = declared.getCpus();
+        }
+        return new AdmissionController.Demand(memory, cpus);
+    }
+
+    /** Lets the admission controller learn the resources the processes
+     * of this target used. Nothing is learned if no resources could be
+     * sampled.
+     * @param duration the time building took after admission.
+     */
+    private void learn(final Duration duration) {
+        ResourceUsage total;
+        synchronized (resourceUsage) {
+            total = resourceUsage.values().stream()
+                    .reduce(ResourceUsage.NONE, ResourceUsage::plus);
+        }
+        if (!total.equals(ResourceUsage.NONE)) {
+            admissionController.learn(getAdmissionKey(), total, duration);
+        }
+    }
+
+    /** Waits until the admission controller admits this target.
+     * @return the permit to close after building, or
+     * {@link Optional#empty()} if there is no admission controller.
+     * @throws BuildException if interrupted while waiting.
+     */
+    private Optional<AdmissionController.Permit> admit() {
+        if (admissionController == null) {
+            return Optional.empty();
+        }
+        AdmissionController.Demand demand = getDemand();
+        try (Span span = startSpan("admission", "wait")) {
+            span.arg("memory", demand.getMemory());
+            span.arg("cpus", demand.getCpus());
+            log.debug("Asking for admission with {}", demand);
+            return Optional.of(admissionController.acquire(demand));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while waiting for "
+                    + "admission", ex);
+        }
+    }
+
+    /** Starts a span for this target.
+     * @param category the category of the span.
+     * @param name the name of the span.
+     * @return the started span.
+     * @see Tracer#start(String, String)
+     */
+    Span startSpan(final String category, final String name) {
+        return tracer.start(category, name)
+                .arg("target", build.getPackageName() + "/" + targetName);
+    }
+
+    /** Get the time left until building the target times out.
+     * @return the remaining time, which is negative if the target
+     * has timed out, or {@link Optional#empty()} if there is no timeout.
+     */
+    Optional<Duration> getRemainingTime() {
+        if (deadlineNanos == null) {
+            return Optional.empty();
+        }
+        return Optional.of(Duration.ofNanos(
+                deadlineNanos - System.nanoTime()));
+    }
+
+    /** Checks that building the target has not timed out.
+     * @throws BuildException if the target has timed out.
+     */
+    private void checkTimeout() {
+        Optional<Duration> remaining = getRemainingTime();
+        if (remaining.isPresent() && remaining.get().isNegative()) {
+            throw new BuildException("Target " + targetName
+                    + " timed out after " + layout.getTimeout() + "s");
+        }
+    }
+
+    /** Get the directory of this target in the {@link #getOut() out}
+     * directory. It holds the package files, the log and the
+     * {@link InputRecord input record} of the target. It is named
+     * after the target, so it is known before the layout is read.
+     * @return the directory named like the target.
+     */
+    public Path getOutDirectory() {
+        return out.resolve(targetName);
+    }
+
+    /** Get the file the output of the commands is written to.
+     * @return the log file in the {@link #getOutDirectory() out
+     * directory} of the target.
+     */
+    public Path getLogFile() {
+        return getOutDirectory()
+                .resolve(build.getPackageName() + "-build.log");
+    }
+
+    /** Opens the log for the output of the commands. In verbose mode,
+     * the output is also echoed to the console with the target name
+     * as prefix.
+     * @return the opened log.
+     * @throws IOException if the log file can not be created.
+     */
+    private TargetLog openTargetLog() throws IOException {
+        PrintStream verboseEcho = null;
+        if (verbose) {
+            verboseEcho = echo;
+        }
+        return new TargetLog(getLogFile(), tailLines, verboseEcho,
+                "[" + targetName + "] ");
+    }
+
+    /** Builds the target. All stages up to and including the
+     * {@link Stage#COPY_RESULT copy result} stage are executed.
+     * Problems while building are not thrown, but reported in the
+     * returned result.
+     * @return the result of the target build, never {@code null}.
+     * */
+    @Override
+    public Result call() {
+        Result result = new Result(this);
+        result.setStart(Instant.now());
+        long startNanos = System.nanoTime();
+        Optional<AdmissionController.Permit> permit = Optional.empty();
+        try (Span span = startSpan("target", targetName);
+             TargetLog myTargetLog = openTargetLog();
+             SharedTemplates.Registration templates =
+                     SharedTemplates.register(layoutDirectory,
+                             includeDirectory)) {
+            targetLog = myTargetLog;
+            templateDelegate = new TemplateDelegate(this, templates);
+            initEnvironment();
+            layout = readLayout(); // must be AFTER initEnvironment()
             MDC.put("layout", layout.getName());
+            span.arg("layout", layout.getName());
+            if (layout.getTimeout() != null) {
+                deadlineNanos = startNanos
+                        + TimeUnit.SECONDS.toNanos(layout.getTimeout());
+            }
             environment.put("layout", layout);
+            CommandGraph prepareGraph = new CommandGraph(
+                    layout.getPrepare(), "p");
+            CommandGraph buildGraph = new CommandGraph(
+                    layout.getBuild(), "b");
+            int parallelism = Runtime.getRuntime().availableProcessors();
+            Optional<String> inputKey = Optional.empty();
+            if (stopAfter.compareTo(Stage.COPY_RESULT) >= 0
+                    && isCommitPinned()) {
+                inputKey = Optional.of(getInputKey());
+            }
+            if (inputKey.isPresent() && !rebuild
+                    && isUnchanged(inputKey.get())) {
+                log.info("Inputs unchanged since the last build, keeping "
+                        + "the packages in {}", getOutDirectory());
+                result.setUnchanged(true);
+                result.setSuccess(true);
+                return result;
+            }
+            Optional<String> cacheKey = Optional.empty();
+            if (stopAfter.compareTo(Stage.COPY_RESULT) >= 0) {
+                cacheKey = getBuildCacheKey();
+            }
+            Optional<List<Path>> cached = Optional.empty();
+            if (cacheKey.isPresent()) {
+                try (Span lookup = startSpan("cache", "lookup")) {
+                    cached = lookupBuildCache(cacheKey.get());
+                    lookup.arg("hit", cached.isPresent());
+                }
+            }
+            if (cached.isPresent()) {
+                log.info("Using packages from the build cache");
+                copyPackageFiles(cached.get());
+                result.setCached(true);
+                result.setSuccess(true);
+                return result;
+            }
+
+            permit = admit();
+            long admittedNanos = System.nanoTime();
+            Optional<CompletableFuture<String>> image = Optional.empty();
+            if (stopAfter.compareTo(Stage.BUILD) >= 0) {
+                image = prepareImage();
+            }
+
             if (stopAfter.compareTo(Stage.PREPARE) >= 0) {
                 log.debug("Stage entered: {}", Stage.PREPARE);
-                for (Command cmd : layout.getPrepare()) {
-                    execute(cmd, "p" + layout.getPrepare().indexOf(cmd));
+                stage = Stage.PREPARE;
+                try (Span stageSpan = startSpan("stage",
+                        Stage.PREPARE.name())) {
+                    stageSpan.arg("parallelism", parallelism);
+                    removeLeftovers(layout.getPrepare());
+                    prepareGraph.execute(this::execute, parallelism);
                 }
                 log.debug("Stage passed: {}", Stage.PREPARE);
             }
 
             if (stopAfter.compareTo(Stage.BUILD) >= 0) {
                 log.debug("Stage entered: {}", Stage.BUILD);
-                for (Command cmd : layout.getBuild()) {
-                    execute(cmd, "b" + layout.getBuild().indexOf(cmd));
+                stage = Stage.BUILD;
+                try (Span stageSpan = startSpan("stage",
+                        Stage.BUILD.name())) {
+                    stageSpan.arg("parallelism", parallelism);
+                    if (image.isPresent()) {
+                        String imageName;
+                        try (Span waitSpan = startSpan("docker", "wait")) {
+                            imageName = awaitImage(image.get(),
+                                    getRemainingTime());
+                            waitSpan.arg("image", imageName);
+                        }
+                        buildImage = imageName;
+                        openContainerSession(imageName);
+                    }
+                    buildGraph.execute(this::execute, parallelism);
+                    addContainerResourceUsage();
                 }
                 log.debug("Stage passed: {}", Stage.BUILD);
             }
-            result = new Result();
-            result.setSuccess(true); // TBD never used?
+
+            if (stopAfter.compareTo(Stage.COPY_RESULT) >= 0) {
+                log.debug("Stage entered: {}", Stage.COPY_RESULT);
+                stage = Stage.COPY_RESULT;
+                try (Span stageSpan = startSpan("stage",
+                        Stage.COPY_RESULT.name())) {
+                    List<Path> packageFiles = getPackageFiles(targetPath,
+                            false);
+                    stageSpan.arg("packages", packageFiles.size());
+                    if (cacheKey.isPresent()) {
+                        storeBuildCache(cacheKey.get(), packageFiles);
+                    }
+                    copyPackageFiles(packageFiles);
+                    if (inputKey.isPresent()) {
+                        writeInputRecord(inputKey.get());
+                    }
+                }
+                log.debug("Stage passed: {}", Stage.COPY_RESULT);
+            }
+            result.setSuccess(true);
+            if (admissionController != null
+                    && stopAfter.compareTo(Stage.BUILD) >= 0) {
+                learn(Duration.ofNanos(System.nanoTime() - admittedNanos));
+            }
+        } catch (Exception ex) {
+            log.error("Problem in builder " + targetName, ex);
+            result.setFailure(ex);
+            if (targetLog != null) {
+                result.setTail(targetLog.getTail());
+            }
         } finally {
+            permit.ifPresent(AdmissionController.Permit::close);
+            synchronized (resourceUsage) {
+                result.setResourceUsage(new EnumMap<>(resourceUsage));
+            }
+            result.setDuration(Duration.ofNanos(
+                    System.nanoTime() - startNanos));
             MDC.remove("layout");
         }
         return result;
@@ -299,7 +1024,9 @@ public final class TargetBuilder implements Callable<TargetBuilder.Result> {
     private void execute(final Command cmd,
                          final String commandId) throws IOException {
         MDC.put("cmdId", commandId);
-        try {
+        checkTimeout();
+        try (Span span = startSpan("command", commandId)) {
+            span.arg("target", targetName);
             if (cmd.getCopy() != null) {
                 CopyDelegate delegate = new CopyDelegate(this);
                 delegate.copy(cmd.getCopy());
@@ -318,17 +1045,110 @@ public final class TargetBuilder implements Callable<TargetBuilder.Result> {
                 MkdirDelegate delegate = new MkdirDelegate(this);
                 delegate.mkdir(cmd.getMkdir());
             }
+            if (cmd.getArchive() != null) {
+                ArchiveDelegate delegate = new ArchiveDelegate(this);
+                delegate.archive(cmd.getArchive());
+            }
+            if (cmd.getMove() != null) {
+                FileDelegate delegate = new FileDelegate(this);
+                delegate.move(cmd.getMove());
+            }
+            if (cmd.getRemove() != null) {
+                FileDelegate delegate = new FileDelegate(this);
+                delegate.remove(cmd.getRemove());
+            }
+            if (cmd.getChmod() != null) {
+                FileDelegate delegate = new FileDelegate(this);
+                delegate.chmod(cmd.getChmod());
+            }
+            if (cmd.getDockerRun() != null) {
+                DockerDelegate delegate = new DockerDelegate(this);
+                delegate.run(cmd.getDockerRun());
+            }
+            if (cmd.getDockerExec() != null) {
+                DockerDelegate delegate = new DockerDelegate(this);
+                delegate.exec(cmd.getDockerExec());
+            }
+            if (cmd.getDockerBuild() != null) {
+                DockerDelegate delegate = new DockerDelegate(this);
+                delegate.build(cmd.getDockerBuild());
+            }
         } finally {
             MDC.remove("cmdId");
         }
     }
 
     /** The result of one target building run. */
-    public static class Result {
+    public static final class Result {
+
+        /** The target builder this is the result of. */
+        @Getter
+        private final TargetBuilder builder;
+
+        /** The name of the target that was built. */
+        @Getter
+        private final String targetName;
 
         /** Whether the target building was successful. */
         @Getter
         @Setter(AccessLevel.PRIVATE)
         private boolean success;
+
+        /** The problem that made the target building fail or
+         * {@code null} if there was no problem. */
+        @Getter
+        @Setter(AccessLevel.PRIVATE)
+        private Throwable failure;
+
+        /** Whether the package files were taken from the build cache
+         * instead of being built. */
+        @Getter
+        @Setter(AccessLevel.PRIVATE)
+        private boolean cached;
+
+        /** Whether the package files of the last build were kept,
+         * because the inputs of the target did not change. */
+        @Getter
+        @Setter(AccessLevel.PRIVATE)
+        private boolean unchanged;
+
+        /** The last lines of the command output if the target
+         * building failed. */
+        @Getter
+        @Setter(AccessLevel.PRIVATE)
+        private List<String> tail = Collections.emptyList();
+
+        /** The resources used by the processes of the target by stage.
+         * Empty if the resource usage can not be sampled. */
+        @Getter
+        @Setter(AccessLevel.PRIVATE)
+        private Map<Stage, ResourceUsage> resourceUsage =
+                Collections.emptyMap();
+
+        /** Get the resources used by the processes of all stages.
+         * @return the resources used by the target.
+         * */
+        public ResourceUsage getTotalResourceUsage() {
+            return resourceUsage.values().stream()
+                    .reduce(ResourceUsage.NONE, ResourceUsage::plus);
+        }
+
+        /** The point in time the target building started. */
+        @Getter
+        @Setter(AccessLevel.PRIVATE)
+        private Instant start;
+
+        /** The time the target building took. */
+        @Getter
+        @Setter(AccessLevel.PRIVATE)
+        private Duration duration;
+
+        /** Creates a new result.
+         * @param myBuilder the target builder this is the result of.
+         * */
+        private Result(final TargetBuilder myBuilder) {
+            this.builder = Objects.requireNonNull(myBuilder);
+            this.targetName = myBuilder.getTargetName();
+        }
     }
 }
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetbuilder;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The output of the commands of one target. The output is appended
+ * to a log file of the target as bytes, without decoding it. Text is
+ * only decoded when echoing to the console and when reading the last
+ * lines of a failed target back from the file.
+ * Processes may also write to the {@link #getFile() file} directly,
+ * because all writes append to the end of the file.
+ *
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+final class TargetLog implements AutoCloseable {
+
+    /** The number of bytes read at first from the end of the file
+     * to find the last lines. */
+    private static final int TAIL_BYTES = 8192;
+
+    /** The file the output is written to. */
+    @Getter
+    private final Path file;
+
+    /** The channel appending to the file. */
+    private final FileChannel channel;
+
+    /** The number of last lines to show for a failed target. */
+    private final int tailLines;
+
+    /** Where to echo the lines to, or {@code null}. */
+    private final PrintStream echo;
+
+    /** The prefix of echoed lines. */
+    private final String echoPrefix;
+
+    /** Creates a new log. An existing file is truncated.
+     * @param myFile the file to write the output to.
+     * @param myTailLines the number of last lines to show for a failed
+     *                    target.
+     * @param myEcho the optional stream to echo the lines to,
+     *               or {@code null}.
+     * @param myEchoPrefix the prefix for echoed lines to tell
+     *                     the targets apart.
+     * @throws IOException if the file can not be created.
+     * */
+    TargetLog(final Path myFile,
+              final int myTailLines,
+              final PrintStream myEcho,
+              final String myEchoPrefix) throws IOException {
+        this.file = myFile.toAbsolutePath();
+        this.tailLines = myTailLines;
+        this.echo = myEcho;
+        this.echoPrefix = Objects.requireNonNull(myEchoPrefix);
+        Files.createDirectories(file.getParent());
+        Files.deleteIfExists(file);
+        this.channel = FileChannel.open(file,
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    /** Whether the output should be echoed as text.
+     * @return {@code true} if there is an echo stream.
+     * */
+    boolean isEcho() {
+        return echo != null;
+    }
+
+    /** Adds a line to the log.
+     * @param line the line to add without line terminator.
+     * */
+    void line(final String line) {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        append(ByteBuffer.wrap(bytes));
+        if (echo != null) {
+            echo.println(echoPrefix + line);
+        }
+    }
+
+    /** Adds a chunk of lines to the log. The lines are only decoded
+     * if they are echoed.
+     * @param chunk complete lines with their line terminators. The
+     *              position of the buffer is not changed.
+     * @see InputStreamConsumer
+     * */
+    void chunk(final ByteBuffer chunk) {
+        append(chunk.duplicate());
+        if (echo != null) {
+            InputStreamConsumer.forEachLine(chunk, StandardCharsets.UTF_8,
+                    l -> echo.println(echoPrefix + l));
+        }
+    }
+
+    /** Appends bytes to the file. Problems are logged, the output
+     * is not important enough to fail the target.
+     * @param buffer the bytes to append.
+     * */
+    private void append(final ByteBuffer buffer) {
+        try {
+            synchronized (channel) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        } catch (IOException ex) {
+            log.warn("Problem writing the target log", ex);
+        }
+    }
+
+    /** Get the last lines of the log. The lines are read back from
+     * the file.
+     * @return the last lines, the oldest line first.
+     * */
+    List<String> getTail() {
+        if (tailLines <= 0) {
+            return Collections.emptyList();
+        }
+        try (FileChannel in = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            long size = in.size();
+            long window = TAIL_BYTES;
+            while (true) {
+                long start = Math.max(0, size - window);
+                ByteBuffer buffer = ByteBuffer.allocate(
+                        (int) (size - start));
+                long position = start;
+                while (buffer.hasRemaining()) {
+                    int count = in.read(buffer, position);
+                    if (count < 0) {
+                        break;
+                    }
+                    position += count;
+                }
+                buffer.flip();
+                List<String> lines = new ArrayList<>();
+                InputStreamConsumer.forEachLine(buffer,
+                        StandardCharsets.UTF_8, lines::add);
+                if (start > 0 && lines.size() > tailLines) {
+                    return lines.subList(lines.size() - tailLines,
+                            lines.size());
+                }
+                if (start == 0) {
+                    return lines.subList(
+                            Math.max(0, lines.size() - tailLines),
+                            lines.size());
+                }
+                window *= 2;
+            }
+        } catch (IOException ex) {
+            log.warn("Problem reading the target log", ex);
+            return Collections.emptyList();
+        }
+    }
+
+    /** Closes the file. */
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            log.warn("Problem closing the target log", ex);
+        }
+    }
+}
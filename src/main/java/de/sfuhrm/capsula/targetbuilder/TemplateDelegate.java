@@ -19,17 +19,15 @@ package de.sfuhrm.capsula.targetbuilder;
 
 import de.sfuhrm.capsula.BuildException;
 import de.sfuhrm.capsula.FileUtils;
+import de.sfuhrm.capsula.trace.Span;
 import de.sfuhrm.capsula.yaml.command.TargetCommand;
-import freemarker.template.Configuration;
 import freemarker.template.Template;
 import freemarker.template.TemplateException;
-import freemarker.template.TemplateExceptionHandler;
 import java.io.IOException;
-import java.io.Writer;
+import java.io.StringWriter;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
 import lombok.extern.slf4j.Slf4j;
@@ -43,33 +41,74 @@ import org.apache.log4j.MDC;
 @Slf4j
 class TemplateDelegate extends AbstractDelegate {
 
-    /** The freemarker configuration to use. */
-    private final Configuration cfg;
+    /** The template directories of the target. */
+    private final SharedTemplates.Registration templates;
 
     /** The charset the files are in. */
     private final Charset charset;
 
     /** Creates a new instance.
      * @param targetBuilder the target builder this is a delegate for.
-     * @throws IOException if something goes wrong creating a config
-     * for the template engine.
+     * @param myTemplates the registered template directories of
+     *                    the target.
      * */
-    TemplateDelegate(final TargetBuilder targetBuilder) throws IOException {
+    TemplateDelegate(final TargetBuilder targetBuilder,
+                     final SharedTemplates.Registration myTemplates) {
         super(targetBuilder);
         this.charset = Charset.forName("UTF-8");
-        cfg = new Configuration(Configuration.VERSION_2_3_23);
-        cfg.setDirectoryForTemplateLoading(targetBuilder
-                .getLayoutDirectory()
-                .toAbsolutePath()
-                .toFile());
-        cfg.setDefaultEncoding(charset.name());
-        cfg.setTemplateExceptionHandler(
-                TemplateExceptionHandler.RETHROW_HANDLER);
-        cfg.setLogTemplateExceptions(false);
-        cfg.setLocale(Locale.US);
+        this.templates = Objects.requireNonNull(myTemplates);
     }
 
-    /** Expands a template.
+    /** Expands a template into a string.
+     * @param from the name of the template which is relative to
+     *             the {@link TargetBuilder#getLayoutDirectory()
+     *             layout directory}.
+     * @return the expanded template.
+     * @throws IOException if something goes wrong in template generation.
+     * */
+    public String render(final String from) throws IOException {
+        Objects.requireNonNull(from, "from is null");
+        MDC.put("from", from);
+        try {
+            return process(from);
+        } finally {
+            MDC.remove("from");
+        }
+    }
+
+    /** Expands a template with the environment of the target.
+     * If tracing is enabled, the render time, the output size and
+     * the {@link TemplateMetrics metrics} of the template are
+     * recorded in a span.
+     * @param from the name of the template.
+     * @return the expanded template.
+     * @throws IOException if something goes wrong in template generation.
+     * */
+    private String process(final String from)
+            throws IOException {
+        TargetBuilder targetBuilder = getTargetBuilder();
+        try (Span span = targetBuilder.startSpan("template", from)) {
+            Template temp = templates.getTemplate(from);
+            StringWriter out = new StringWriter();
+            if (!targetBuilder.getTracer().isEnabled()) {
+                temp.process(targetBuilder.getEnvironment(), out);
+                return out.toString();
+            }
+            try (TemplateMetrics metrics = TemplateMetrics.start(temp)) {
+                temp.process(targetBuilder.getEnvironment(), out);
+                metrics.addTo(span);
+            }
+            String result = out.toString();
+            span.arg("bytes", result.getBytes(charset).length);
+            return result;
+        } catch (TemplateException ex) {
+            log.error("Template exception", ex);
+            throw new BuildException("Template problem for " + from, ex);
+        }
+    }
+
+    /** Expands a template. An existing file with the same content
+     * is not written again, so it keeps its modification time.
      * @param from the name of the template which is relative to
      *             the {@link TargetBuilder#getLayoutDirectory()
      *             layout directory}.
@@ -88,23 +127,18 @@ class TemplateDelegate extends AbstractDelegate {
         Objects.requireNonNull(to, "to is null");
         Path toPath = getTargetBuilder().getTargetPath().resolve(to);
         try {
-            Template temp = cfg.getTemplate(from);
             Path toPathParent = toPath.getParent();
             if (toPathParent != null) {
                 if (!Files.exists(toPathParent)) {
                     Files.createDirectories(toPathParent);
                 }
             }
-            try (Writer out = Files.newBufferedWriter(toPath, charset)) {
-                temp.process(getTargetBuilder().getEnvironment(), out);
-            }
+            FileUtils.writeIfChanged(toPath,
+                    process(from).getBytes(charset));
             if (targetCommand.isPresent()) {
                 FileUtils.applyPermissionSet(toPath,
                         targetCommand.get());
             }
-        } catch (TemplateException ex) {
-            log.error("Template exception", ex);
-            throw new BuildException("Template problem for " + from, ex);
         } finally {
             MDC.remove("from");
             MDC.remove("to");
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetbuilder;
+
+import de.sfuhrm.capsula.trace.Span;
+import freemarker.core.TemplateElement;
+import freemarker.template.Template;
+import java.util.Map;
+import java.util.TreeMap;
+import lombok.Getter;
+
+/**
+ * The metrics of rendering one template: the templates it included
+ * and the macros it calls. The metrics of the template rendered by the
+ * current thread are updated when the shared configuration loads an
+ * included template.
+ * <p>
+ * FreeMarker has no hook for macro invocations, so macros are counted
+ * by their call sites in the rendered and the included templates.
+ * A call inside a list counts once, the cost of long lists shows in
+ * the render time and the output size.
+ *
+ * @author Stephan Fuhrmann
+ */
+// the template tree API is deprecated, but the only way to find calls
+@SuppressWarnings("deprecation")
+final class TemplateMetrics implements AutoCloseable {
+
+    /** The metrics of the template rendered by the current thread. */
+    private static final ThreadLocal<TemplateMetrics> CURRENT =
+            new ThreadLocal<>();
+
+    /** The prefix of the description of a macro call. */
+    private static final String CALL_PREFIX = "@";
+
+    /** The number of inclusions per template name. */
+    @Getter
+    private final Map<String, Integer> includes = new TreeMap<>();
+
+    /** The number of call sites per macro name. */
+    @Getter
+    private final Map<String, Integer> macroCallSites = new TreeMap<>();
+
+    /** Creates a new instance.
+     * @param template the template that gets rendered.
+     * */
+    private TemplateMetrics(final Template template) {
+        countCallSites(template);
+    }
+
+    /** Starts collecting the metrics of a template for the current
+     * thread. The metrics need to be closed after rendering.
+     * @param template the template that gets rendered.
+     * @return the metrics of the template.
+     * */
+    static TemplateMetrics start(final Template template) {
+        TemplateMetrics metrics = new TemplateMetrics(template);
+        CURRENT.set(metrics);
+        return metrics;
+    }
+
+    /** Records that a template was included by the template rendered
+     * in the current thread.
+     * @param template the included template.
+     * */
+    static void included(final Template template) {
+        TemplateMetrics metrics = CURRENT.get();
+        if (metrics == null || template == null) {
+            return;
+        }
+        metrics.includes.merge(SharedTemplates.getDisplayName(template),
+                1, Integer::sum);
+        metrics.countCallSites(template);
+    }
+
+    /** Counts the macro call sites of a template.
+     * @param template the template to count the call sites of.
+     * */
+    private void countCallSites(final Template template) {
+        countCallSites(template.getRootTreeNode());
+    }
+
+    /** Counts the macro call sites below an element.
+     * @param element the element to count the call sites of.
+     * */
+    private void countCallSites(final TemplateElement element) {
+        String description = element.getDescription();
+        if (description.startsWith(CALL_PREFIX)) {
+            int end = description.indexOf(' ');
+            if (end < 0) {
+                end = description.length();
+            }
+            macroCallSites.merge(
+                    description.substring(CALL_PREFIX.length(), end),
+                    1, Integer::sum);
+        }
+        for (int i = 0; i < element.getChildCount(); i++) {
+            countCallSites((TemplateElement) element.getChildAt(i));
+        }
+    }
+
+    /** Adds the metrics to a span.
+     * @param span the span of rendering the template.
+     * */
+    void addTo(final Span span) {
+        span.arg("includes", includes)
+            .arg("macroCallSites", macroCallSites);
+    }
+
+    @Override
+    public void close() {
+        CURRENT.remove();
+    }
+}
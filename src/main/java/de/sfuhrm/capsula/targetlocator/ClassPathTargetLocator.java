@@ -22,7 +22,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -40,35 +43,46 @@ import lombok.extern.slf4j.Slf4j;
 final class ClassPathTargetLocator implements TargetLocator {
 
     /**
-     * All class path resources.
+     * The names of all class path resources of targets and includes.
      */
-    private static Set<ClassPath.ResourceInfo> resourceInfos;
+    private static Set<String> resourceNames;
 
     /**
-     * Get the class path resources containing targets.
+     * Get the class path resources containing targets. The resources
+     * are taken from the {@link TargetIndex target index}. Without an
+     * index, the class path is scanned.
      *
-     * @return a set of resource infos for resources inside the
-     * {@link TargetLocator#TARGETS_DIRECTORY} hierarchy.
+     * @return a set of resource names for resources inside the
+     * {@link TargetLocator#TARGETS_DIRECTORY} and
+     * {@link TargetLocator#INCLUDE_DIRECTORY} hierarchies.
      * @throws IOException if an IO problem occurs.
      */
     private static synchronized
-    Set<ClassPath.ResourceInfo> getClassPathResources() throws IOException {
-        if (resourceInfos == null) {
-            ClassPath classPath = ClassPath.from(Main.class.getClassLoader());
-            resourceInfos = classPath.getResources()
-                    .stream()
-                    .filter(ri -> ri.getResourceName()
-                            .startsWith(TARGETS_DIRECTORY)
-                            || ri.getResourceName()
-                            .startsWith(INCLUDE_DIRECTORY))
-                    .collect(Collectors.toSet());
+    Set<String> getClassPathResources() throws IOException {
+        if (resourceNames == null) {
+            ClassLoader classLoader = Main.class.getClassLoader();
+            Optional<List<String>> index = TargetIndex.read(classLoader);
+            if (index.isPresent()) {
+                resourceNames = new HashSet<>(index.get());
+            } else {
+                log.debug("No {}, scanning the class path",
+                        TargetIndex.RESOURCE);
+                ClassPath classPath = ClassPath.from(classLoader);
+                resourceNames = classPath.getResources()
+                        .stream()
+                        .map(ClassPath.ResourceInfo::getResourceName)
+                        .filter(n -> n.startsWith(TARGETS_DIRECTORY)
+                                || n.startsWith(INCLUDE_DIRECTORY))
+                        .collect(Collectors.toSet());
+            }
         }
-        return resourceInfos;
+        return resourceNames;
     }
 
     /**
      * Extracts the target folder from the JAR archive to a temporary file on
-     * disk.
+     * disk. The files of an earlier extraction in the same directory
+     * are only rewritten if their content changed.
      *
      * @param tempParent the directory to create the temporary files in.
      * @param target the target name to extract.
@@ -79,12 +93,8 @@ final class ClassPathTargetLocator implements TargetLocator {
     @Override
     public Path extractTargetToTmp(final Path tempParent,
                                    final String target) throws IOException {
-        Path targetPath = tempParent.resolve(target
-                + "-layout").toAbsolutePath();
-        if (Files.exists(targetPath)) {
-            FileUtils.deleteRecursive(targetPath);
-        }
-        targetPath = Files.createDirectory(targetPath);
+        Path targetPath = Files.createDirectories(tempParent.resolve(target
+                + "-layout").toAbsolutePath());
         log.debug("Target {} will be extracted to {}", target, targetPath);
         Set<String> targets = getTargets();
         log.debug("Targets in classpath: {}", targets);
@@ -95,26 +105,60 @@ final class ClassPathTargetLocator implements TargetLocator {
             throw new NoSuchElementException("Target not found: " + target);
         }
 
-        Path finalTargetPath = targetPath;
-        getClassPathResources().stream().filter(cp ->
-                cp.getResourceName().startsWith(
-                        TARGETS_DIRECTORY + "/" + target)
-        || cp.getResourceName().startsWith(INCLUDE_DIRECTORY))
-                .forEach(cp -> {
-                    InputStream is;
+        extractResources(TARGETS_DIRECTORY + "/" + target, targetPath);
+        return targetPath;
+    }
+
+    /**
+     * Extracts the include folder from the JAR archive to a temporary
+     * directory on disk. The files of an earlier extraction in the same
+     * directory are only rewritten if their content changed.
+     *
+     * @param tempParent the directory to create the temporary files in.
+     * @return the name of the temporary directory where the includes were
+     * extracted to.
+     * @throws IOException if an IO problem occurs.
+     */
+    @Override
+    public Path getIncludeDirectory(final Path tempParent)
+            throws IOException {
+        Path includePath = tempParent.resolve(INCLUDE_DIRECTORY)
+                .toAbsolutePath();
+        Files.createDirectories(includePath);
+        log.debug("Includes will be extracted to {}", includePath);
+        extractResources(INCLUDE_DIRECTORY, includePath);
+        return includePath;
+    }
+
+    /**
+     * Copies the class path resources of a folder to a directory.
+     *
+     * @param prefix the resource name prefix of the folder.
+     * @param toDirectory the directory to copy the files to.
+     * @throws IOException if an IO problem occurs.
+     */
+    private static void extractResources(final String prefix,
+                                         final Path toDirectory)
+            throws IOException {
+        ClassLoader classLoader = Main.class.getClassLoader();
+        getClassPathResources().stream().filter(name ->
+                name.startsWith(prefix + "/"))
+                .forEach(name -> {
                     Path toPath = null;
-                    try {
-                        is = cp.asByteSource().openStream();
-                        String[] parts = cp.getResourceName().split("/");
-                        toPath = finalTargetPath.resolve(
+                    try (InputStream is = classLoader.getResourceAsStream(
+                            name)) {
+                        if (is == null) {
+                            throw new IOException("Resource not found");
+                        }
+                        String[] parts = name.split("/");
+                        toPath = toDirectory.resolve(
                                 parts[parts.length - 1]);
-                        Files.copy(is, toPath);
+                        FileUtils.writeIfChanged(toPath, is.readAllBytes());
                     } catch (IOException e) {
                         throw new BuildException("Problem copying resource "
-                                + cp.getResourceName() + " to " + toPath, e);
+                                + name + " to " + toPath, e);
                     }
                 });
-        return targetPath;
     }
 
     /**
@@ -127,10 +171,8 @@ final class ClassPathTargetLocator implements TargetLocator {
     public Set<String> getTargets() throws IOException {
         return getClassPathResources()
                 .stream()
-                .filter(ri ->
-                        ri.getResourceName()
-                                .startsWith(TARGETS_DIRECTORY + "/"))
-                .map(ri -> ri.getResourceName().split("/")[1])
+                .filter(name -> name.startsWith(TARGETS_DIRECTORY + "/"))
+                .map(name -> name.split("/")[1])
                 .collect(Collectors.toSet());
     }
 }
@@ -17,7 +17,7 @@
  */
 package de.sfuhrm.capsula.targetlocator;
 
-import de.sfuhrm.capsula.FileUtils;
+import de.sfuhrm.capsula.TreeCopier;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
@@ -26,6 +26,7 @@ import java.nio.file.Path;
 import java.util.Objects;
 import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /** Locator for targets based on a file system path.
  * */
@@ -50,27 +51,27 @@ final class PathTargetLocator implements TargetLocator {
         log.debug("Extracting target {} to {}",
                 target, tempParent);
 
-        Path includeSource = targets.resolve(INCLUDE_DIRECTORY);
         Path tempTarget = tempParent.resolve(target);
 
-        Files.list(includeSource).forEach(p ->
-                FileUtils.copyRecursive(
-                        p, tempTarget.resolve(p.getFileName()), q -> { }));
-
         Path targetSource = targets.resolve(TARGETS_DIRECTORY).resolve(target);
 
-        Files.list(targetSource).forEach(p ->
-                FileUtils.copyRecursive(
-                        p, tempTarget.resolve(p.getFileName()), q -> { }));
+        TreeCopier.copy(targetSource, tempTarget, null);
 
         return tempTarget;
     }
 
+    @Override
+    public Path getIncludeDirectory(final Path tempParent) {
+        return targets.resolve(INCLUDE_DIRECTORY).toAbsolutePath();
+    }
+
     @Override
     public Set<String> getTargets() throws IOException {
-        return Files.list(targets)
-                .filter(p -> Files.isDirectory(p))
-                .map(p -> p.getFileName().toString())
-                .collect(Collectors.toSet());
+        try (Stream<Path> paths = Files.list(targets)) {
+            return paths
+                    .filter(p -> Files.isDirectory(p))
+                    .map(p -> p.getFileName().toString())
+                    .collect(Collectors.toSet());
+        }
     }
 }
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetlocator;
+
+import de.sfuhrm.capsula.BuildException;
+import freemarker.core.ParseException;
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The index of the built-in target layouts. The index is created while
+ * building capsula: every template of the built-in targets is parsed, so
+ * a broken template fails the build. At runtime, the index lists the
+ * resources of the targets without scanning the class path.
+ *
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+public final class TargetIndex {
+
+    /** The name of the index resource in the class path. */
+    static final String RESOURCE = "targets.index";
+
+    /** The names of the layout files that are templates. */
+    private static final List<String> TEMPLATE_NAMES =
+            Arrays.asList("layout.yaml", "environment.yaml");
+
+    /** The suffix of template files. */
+    private static final String TEMPLATE_SUFFIX = ".ftl";
+
+    /** No instance allowed. */
+    private TargetIndex() {
+    }
+
+    /** Creates the index file in a class path directory.
+     * @param args the class path directory that contains the
+     *             targets and includes.
+     * @throws IOException if the resources can not be read or the
+     * index can not be written.
+     * @throws BuildException if a template can not be parsed.
+     * */
+    public static void main(final String[] args)
+            throws IOException, BuildException {
+        if (args.length != 1) {
+            throw new IllegalArgumentException(
+                    "Need the class path directory as argument");
+        }
+        Path root = Paths.get(args[0]);
+        List<String> resources = create(root);
+        Files.write(root.resolve(RESOURCE), resources,
+                StandardCharsets.UTF_8);
+        log.info("Indexed {} target resources in {}", resources.size(),
+                root.resolve(RESOURCE));
+    }
+
+    /** Lists and checks the resources of the targets and includes in a
+     * class path directory. The templates are parsed.
+     * @param root the class path directory that contains the
+     *             targets and includes.
+     * @return the sorted resource names.
+     * @throws IOException if the resources can not be read.
+     * @throws BuildException if a template can not be parsed.
+     * */
+    static List<String> create(final Path root)
+            throws IOException, BuildException {
+        Configuration cfg = new Configuration(Configuration.VERSION_2_3_23);
+        List<String> resources = new ArrayList<>();
+        for (String directory : new String[] {
+                TargetLocator.TARGETS_DIRECTORY,
+                TargetLocator.INCLUDE_DIRECTORY}) {
+            Path dir = root.resolve(directory);
+            if (!Files.isDirectory(dir)) {
+                continue;
+            }
+            List<Path> files;
+            try (Stream<Path> stream = Files.walk(dir)) {
+                files = stream.filter(Files::isRegularFile)
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+            for (Path file : files) {
+                String name = root.relativize(file).toString()
+                        .replace(file.getFileSystem().getSeparator(), "/");
+                if (isTemplate(name)) {
+                    parse(cfg, name, file);
+                }
+                resources.add(name);
+            }
+        }
+        return resources;
+    }
+
+    /** Checks whether a resource is processed as a template.
+     * @param name the resource name.
+     * @return {@code true} for template files, layout and environment
+     * files and includes.
+     * */
+    private static boolean isTemplate(final String name) {
+        String fileName = name.substring(name.lastIndexOf('/') + 1);
+        return name.startsWith(TargetLocator.INCLUDE_DIRECTORY + "/")
+                || fileName.endsWith(TEMPLATE_SUFFIX)
+                || TEMPLATE_NAMES.contains(fileName);
+    }
+
+    /** Parses a template file.
+     * @param cfg the configuration to parse with.
+     * @param name the resource name of the template.
+     * @param file the template file.
+     * @throws IOException if the template can not be read.
+     * @throws BuildException if the template can not be parsed.
+     * */
+    private static void parse(final Configuration cfg,
+                              final String name,
+                              final Path file)
+            throws IOException, BuildException {
+        try (BufferedReader reader = Files.newBufferedReader(file,
+                StandardCharsets.UTF_8)) {
+            new Template(name, reader, cfg);
+        } catch (ParseException ex) {
+            throw new BuildException("Template " + name
+                    + " can not be parsed", ex);
+        }
+    }
+
+    /** Reads the index from the class path.
+     * @param classLoader the class loader to read the index with.
+     * @return the resource names of the targets and includes, or
+     * {@link Optional#empty()} if there is no index.
+     * @throws IOException if the index can not be read.
+     * */
+    static Optional<List<String>> read(final ClassLoader classLoader)
+            throws IOException {
+        InputStream in = classLoader.getResourceAsStream(RESOURCE);
+        if (in == null) {
+            return Optional.empty();
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            return Optional.of(reader.lines()
+                    .filter(l -> !l.isEmpty())
+                    .collect(Collectors.toList()));
+        }
+    }
+}
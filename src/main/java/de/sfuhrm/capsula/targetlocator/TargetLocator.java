@@ -51,6 +51,17 @@ public interface TargetLocator {
     Path extractTargetToTmp(Path tempParent,
                             String target) throws IOException;
 
+    /**
+     * Get the directory with the include templates that are shared
+     * by all targets. The includes are not part of the extracted
+     * target folders.
+     *
+     * @param tempParent the directory to create the temporary files in.
+     * @return the include directory.
+     * @throws IOException if an IO problem occurs.
+     */
+    Path getIncludeDirectory(Path tempParent) throws IOException;
+
     /**
      * Get the list of possible targets from the classpath.
      *
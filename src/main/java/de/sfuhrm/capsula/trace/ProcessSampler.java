@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.trace;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Samples the resource usage of a process and its descendants
+ * from the Linux {@code /proc} file system in a background thread.
+ * <p>
+ * The CPU time of a process includes the CPU time of its children
+ * that it waited for, so short lived compiler processes are counted
+ * in their parent. The CPU time of the tree is the largest sum seen
+ * over the processes alive at a sample. The I/O is the sum of the last
+ * values seen for each process, so the I/O of processes that live
+ * shorter than the sampling interval is missing. The peak memory is
+ * the largest sum of the resident set sizes seen at a sample, or the
+ * peak of a single process if that is larger.
+ * <p>
+ * A terminated process is reaped by the JVM before the sampler
+ * sees the termination, so its last counters can not be read from
+ * {@code /proc}. For complete CPU times, the command is
+ * {@link #wrap(List, Path) wrapped} in a shell that writes the
+ * {@code rusage} of its children with the {@code times} builtin.
+ *
+ * @author Stephan Fuhrmann
+ */
+@Slf4j
+public final class ProcessSampler {
+
+    /** The default time between two samples. */
+    public static final Duration DEFAULT_INTERVAL = Duration.ofMillis(100);
+
+    /** The root of the proc file system. */
+    private static final Path PROC = Paths.get("/proc");
+
+    /** The clock ticks per second of the CPU times in
+     * {@code /proc/[pid]/stat}. This is {@code USER_HZ}, which is
+     * 100 on all common architectures. */
+    private static final long TICKS_PER_SECOND = 100;
+
+    /** Milliseconds per second. */
+    private static final long MILLIS_PER_SECOND = 1000;
+
+    /** Bytes per kilobyte in {@code /proc/[pid]/status}. */
+    private static final long BYTES_PER_KB = 1024;
+
+    /** The index of {@code utime} after the command name in
+     * {@code /proc/[pid]/stat}. */
+    private static final int UTIME = 11;
+
+    /** The index of {@code stime} after the command name. */
+    private static final int STIME = 12;
+
+    /** The index of {@code cutime} after the command name. */
+    private static final int CUTIME = 13;
+
+    /** The index of {@code cstime} after the command name. */
+    private static final int CSTIME = 14;
+
+    /** The script of the wrapping shell. The times file is {@code $0}
+     * and the command is {@code $@}. */
+    private static final String WRAPPER =
+            "\"$@\"; status=$?; times >\"$0\"; exit $status";
+
+    /** A line of the {@code times} builtin with the user and system
+     * times, for example {@code 0m1.250s 0m0.031s}. */
+    private static final Pattern TIMES = Pattern.compile(
+            "(?<userMin>\\d+)m(?<userSec>[\\d.]+)s\\s+"
+            + "(?<systemMin>\\d+)m(?<systemSec>[\\d.]+)s");
+
+    /** Seconds per minute. */
+    private static final long SECONDS_PER_MINUTE = 60;
+
+    /** The process to sample. */
+    private final ProcessHandle process;
+
+    /** The time between two samples. */
+    private final Duration interval;
+
+    /** The file the wrapping shell writes the times to, or
+     * {@code null} if the command is not wrapped. */
+    private final Path timesFile;
+
+    /** The last I/O values per pid, read and written bytes. */
+    private final Map<Long, long[]> io = new HashMap<>();
+
+    /** The largest user CPU ticks of the tree. */
+    private long userTicks;
+
+    /** The largest system CPU ticks of the tree. */
+    private long systemTicks;
+
+    /** The peak resident set size in bytes. */
+    private long peakRss;
+
+    /** The thread doing the samples. */
+    private final Thread thread;
+
+    /** Whether sampling was stopped. */
+    private volatile boolean stopped;
+
+    /** Starts sampling a process.
+     * @param myProcess the process to sample.
+     * @param myInterval the time between two samples.
+     * @param myTimesFile the times file of the wrapping shell,
+     *                    or {@code null}.
+     * */
+    private ProcessSampler(final ProcessHandle myProcess,
+                           final Duration myInterval,
+                           final Path myTimesFile) {
+        this.process = Objects.requireNonNull(myProcess);
+        this.interval = Objects.requireNonNull(myInterval);
+        this.timesFile = myTimesFile;
+        sample();
+        this.thread = Thread.ofVirtual()
+                .name("capsula-sampler-" + myProcess.pid())
+                .start(this::loop);
+    }
+
+    /** Whether the resource usage can be sampled on this system.
+     * @return {@code true} if there is a readable {@code /proc}.
+     * */
+    public static boolean isSupported() {
+        return Files.isReadable(PROC.resolve("self").resolve("stat"));
+    }
+
+    /** Starts sampling a process and its descendants.
+     * @param process the process to sample.
+     * @param interval the time between two samples.
+     * @return the running sampler.
+     * */
+    public static ProcessSampler start(final ProcessHandle process,
+                                       final Duration interval) {
+        return new ProcessSampler(process, interval, null);
+    }
+
+    /** Starts sampling a process that runs a command
+     * {@link #wrap(List, Path) wrapped} in a shell.
+     * @param process the process of the wrapping shell.
+     * @param interval the time between two samples.
+     * @param timesFile the file the shell writes the times to.
+     * @return the running sampler.
+     * */
+    public static ProcessSampler start(final ProcessHandle process,
+                                       final Duration interval,
+                                       final Path timesFile) {
+        return new ProcessSampler(process, interval,
+                Objects.requireNonNull(timesFile));
+    }
+
+    /** Wraps a command in a shell that runs the command and then writes
+     * the CPU times of its terminated children to a file. The exit
+     * value of the shell is the exit value of the command.
+     * @param command the command and its arguments.
+     * @param timesFile the file to write the times to.
+     * @return the wrapped command.
+     * */
+    public static List<String> wrap(final List<String> command,
+                                    final Path timesFile) {
+        List<String> result = new ArrayList<>();
+        result.add("sh");
+        result.add("-c");
+        result.add(WRAPPER);
+        result.add(timesFile.toString());
+        result.addAll(command);
+        return result;
+    }
+
+    /** Reads the CPU times of the children of the wrapping shell.
+     * @param file the output of the {@code times} builtin. The
+     *             second line has the times of the children.
+     * @return the user and system milliseconds, or
+     * {@link Optional#empty()} if the file is missing or can not be
+     * parsed, for example because the shell was killed.
+     * */
+    static Optional<long[]> readTimes(final Path file) {
+        try {
+            List<String> lines = Files.readAllLines(file,
+                    StandardCharsets.US_ASCII);
+            if (lines.size() < 2) {
+                return Optional.empty();
+            }
+            Matcher matcher = TIMES.matcher(lines.get(1));
+            if (!matcher.find()) {
+                return Optional.empty();
+            }
+            return Optional.of(new long[] {
+                toMillis(matcher.group("userMin"),
+                        matcher.group("userSec")),
+                toMillis(matcher.group("systemMin"),
+                        matcher.group("systemSec"))});
+        } catch (IOException ex) {
+            log.debug("No times in {}", file, ex);
+            return Optional.empty();
+        }
+    }
+
+    /** Converts a time of the {@code times} builtin to milliseconds.
+     * @param minutes the minutes.
+     * @param seconds the seconds with fraction.
+     * @return the time in milliseconds.
+     * */
+    private static long toMillis(final String minutes,
+                                 final String seconds) {
+        return new BigDecimal(seconds)
+                .add(BigDecimal.valueOf(Long.parseLong(minutes)
+                        * SECONDS_PER_MINUTE))
+                .multiply(BigDecimal.valueOf(MILLIS_PER_SECOND))
+                .longValue();
+    }
+
+    /** Samples until stopped. */
+    private void loop() {
+        try {
+            while (!stopped) {
+                Thread.sleep(interval.toMillis());
+                sample();
+            }
+        } catch (InterruptedException ex) {
+            log.debug("Sampler interrupted");
+        }
+    }
+
+    /** Takes one sample of the process tree. */
+    private synchronized void sample() {
+        List<ProcessHandle> tree;
+        try (Stream<ProcessHandle> descendants = process.descendants()) {
+            tree = Stream.concat(Stream.of(process), descendants)
+                    .collect(Collectors.toList());
+        }
+        long user = 0;
+        long system = 0;
+        long rss = 0;
+        for (ProcessHandle handle : tree) {
+            Path dir = PROC.resolve(Long.toString(handle.pid()));
+            try {
+                String[] stat = readStat(dir);
+                user += Long.parseLong(stat[UTIME])
+                        + Long.parseLong(stat[CUTIME]);
+                system += Long.parseLong(stat[STIME])
+                        + Long.parseLong(stat[CSTIME]);
+                Map<String, Long> status = readKeyValues(
+                        dir.resolve("status"));
+                rss += status.getOrDefault("VmRSS", 0L) * BYTES_PER_KB;
+                peakRss = Math.max(peakRss,
+                        status.getOrDefault("VmHWM", 0L) * BYTES_PER_KB);
+                Map<String, Long> ioValues = readKeyValues(dir.resolve("io"));
+                io.put(handle.pid(), new long[] {
+                    ioValues.getOrDefault("read_bytes", 0L),
+                    ioValues.getOrDefault("write_bytes", 0L)});
+            } catch (IOException | RuntimeException ex) {
+                // the process terminated while reading
+                log.trace("Can not sample {}", handle.pid(), ex);
+            }
+        }
+        userTicks = Math.max(userTicks, user);
+        systemTicks = Math.max(systemTicks, system);
+        peakRss = Math.max(peakRss, rss);
+    }
+
+    /** Reads the fields of {@code /proc/[pid]/stat} after the
+     * command name. The command name is in parentheses and may
+     * contain spaces.
+     * @param dir the proc directory of the process.
+     * @return the fields after the command name, starting with
+     * the state.
+     * @throws IOException if the file can not be read.
+     * */
+    private static String[] readStat(final Path dir) throws IOException {
+        String stat = new String(Files.readAllBytes(dir.resolve("stat")),
+                StandardCharsets.US_ASCII);
+        return stat.substring(stat.lastIndexOf(')') + 2).trim().split(" ");
+    }
+
+    /** Reads a file with lines in the form {@code key: number [kB]}.
+     * Lines without a number are skipped.
+     * @param file the file to read.
+     * @return the numbers by key.
+     * @throws IOException if the file can not be read.
+     * */
+    static Map<String, Long> readKeyValues(final Path file)
+            throws IOException {
+        Map<String, Long> result = new HashMap<>();
+        for (String line : Files.readAllLines(file,
+                StandardCharsets.US_ASCII)) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String[] value = line.substring(colon + 1).trim().split("\\s+");
+            try {
+                result.put(line.substring(0, colon),
+                        Long.parseLong(value[0]));
+            } catch (NumberFormatException ex) {
+                log.trace("Skipping line {}", line);
+            }
+        }
+        return result;
+    }
+
+    /** Stops sampling. No last sample is taken, because the process
+     * is already reaped when it is seen terminated. The CPU times
+     * are taken from the times file of the wrapping shell, if
+     * it is larger than the sampled times.
+     * @return the resource usage of the process tree.
+     * */
+    public ResourceUsage stop() {
+        stopped = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            long read = 0;
+            long write = 0;
+            for (long[] values : io.values()) {
+                read += values[0];
+                write += values[1];
+            }
+            long userMillis = userTicks * MILLIS_PER_SECOND
+                    / TICKS_PER_SECOND;
+            long systemMillis = systemTicks * MILLIS_PER_SECOND
+                    / TICKS_PER_SECOND;
+            Optional<long[]> times = Optional.empty();
+            if (timesFile != null) {
+                times = readTimes(timesFile);
+            }
+            if (times.isPresent()) {
+                userMillis = Math.max(userMillis, times.get()[0]);
+                systemMillis = Math.max(systemMillis, times.get()[1]);
+            }
+            return new ResourceUsage(userMillis, systemMillis,
+                    peakRss, read, write);
+        }
+    }
+}
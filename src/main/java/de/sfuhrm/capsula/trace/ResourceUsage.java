@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.trace;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * The resources used by a process and its descendants: CPU time,
+ * peak memory and storage I/O. Instances are immutable.
+ *
+ * @author Stephan Fuhrmann
+ * @see ProcessSampler
+ */
+@EqualsAndHashCode
+@ToString
+public final class ResourceUsage {
+
+    /** No resources used. */
+    public static final ResourceUsage NONE =
+            new ResourceUsage(0, 0, 0, 0, 0);
+
+    /** The CPU time in user mode in milliseconds. */
+    @Getter
+    private final long cpuUserMillis;
+
+    /** The CPU time in kernel mode in milliseconds. */
+    @Getter
+    private final long cpuSystemMillis;
+
+    /** The peak resident set size in bytes. */
+    @Getter
+    private final long peakRssBytes;
+
+    /** The bytes read from storage. */
+    @Getter
+    private final long readBytes;
+
+    /** The bytes written to storage. */
+    @Getter
+    private final long writeBytes;
+
+    /** Creates a new instance.
+     * @param myCpuUserMillis the CPU time in user mode in milliseconds.
+     * @param myCpuSystemMillis the CPU time in kernel mode in milliseconds.
+     * @param myPeakRssBytes the peak resident set size in bytes.
+     * @param myReadBytes the bytes read from storage.
+     * @param myWriteBytes the bytes written to storage.
+     * */
+    public ResourceUsage(final long myCpuUserMillis,
+                         final long myCpuSystemMillis,
+                         final long myPeakRssBytes,
+                         final long myReadBytes,
+                         final long myWriteBytes) {
+        this.cpuUserMillis = myCpuUserMillis;
+        this.cpuSystemMillis = myCpuSystemMillis;
+        this.peakRssBytes = myPeakRssBytes;
+        this.readBytes = myReadBytes;
+        this.writeBytes = myWriteBytes;
+    }
+
+    /** Adds the usage of another process. CPU time and I/O are summed
+     * up. The peak memory is the larger one of both, because the
+     * processes usually don't run at the same time.
+     * @param other the usage to add.
+     * @return the combined usage.
+     * */
+    public ResourceUsage plus(final ResourceUsage other) {
+        return new ResourceUsage(cpuUserMillis + other.cpuUserMillis,
+                cpuSystemMillis + other.cpuSystemMillis,
+                Math.max(peakRssBytes, other.peakRssBytes),
+                readBytes + other.readBytes,
+                writeBytes + other.writeBytes);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.trace;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import lombok.Getter;
+
+/**
+ * A timed section of a run. Spans are started with
+ * {@link Tracer#start(String, String)} and are recorded when closed.
+ *
+ * @author Stephan Fuhrmann
+ */
+public final class Span implements AutoCloseable {
+
+    /** The tracer this span belongs to. */
+    private final Tracer tracer;
+
+    /** The category of the span, for example {@code stage}. */
+    @Getter
+    private final String category;
+
+    /** The name of the span, for example the stage name. */
+    @Getter
+    private final String name;
+
+    /** The name of the thread that started the span. */
+    @Getter
+    private final String threadName;
+
+    /** The id of the thread that started the span. */
+    @Getter
+    private final long threadId;
+
+    /** The start time in nanoseconds relative to the tracer origin. */
+    @Getter
+    private final long startNanos;
+
+    /** The duration in nanoseconds, set when closing the span. */
+    @Getter
+    private long durationNanos;
+
+    /** Additional information about the span. */
+    private final Map<String, Object> args = new LinkedHashMap<>();
+
+    /** Creates a new span starting now.
+     * @param myTracer the tracer the span belongs to.
+     * @param myCategory the category of the span.
+     * @param myName the name of the span.
+     * */
+    Span(final Tracer myTracer,
+         final String myCategory,
+         final String myName) {
+        this.tracer = myTracer;
+        this.category = Objects.requireNonNull(myCategory);
+        this.name = Objects.requireNonNull(myName);
+        Thread thread = Thread.currentThread();
+        this.threadName = thread.getName();
+        this.threadId = thread.threadId();
+        this.startNanos = myTracer.nanosSinceOrigin();
+    }
+
+    /** Adds information to the span.
+     * @param key the name of the information.
+     * @param value the value of the information.
+     * @return this span.
+     * */
+    public synchronized Span arg(final String key, final Object value) {
+        args.put(key, value);
+        return this;
+    }
+
+    /** Get the additional information of the span.
+     * @return an unmodifiable copy of the information.
+     * */
+    public synchronized Map<String, Object> getArgs() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(args));
+    }
+
+    /** Ends the span and records it in the tracer. */
+    @Override
+    public void close() {
+        durationNanos = tracer.nanosSinceOrigin() - startNanos;
+        tracer.record(this);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.trace;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+import lombok.Getter;
+
+/**
+ * Records the {@link Span spans} of a run. Spans can be started
+ * from any thread.
+ *
+ * @author Stephan Fuhrmann
+ */
+public final class Tracer {
+
+    /** A tracer that does not record anything. */
+    public static final Tracer DISABLED = new Tracer(false);
+
+    /** The number of spans per category in the slowest spans
+     * of the report. */
+    private static final int SLOWEST_SPANS = 10;
+
+    /** Nanoseconds per microsecond. */
+    private static final long NANOS_PER_MICRO = 1000;
+
+    /** Nanoseconds per millisecond. */
+    private static final double NANOS_PER_MILLI = 1000000.;
+
+    /** Whether spans are recorded. */
+    @Getter
+    private final boolean enabled;
+
+    /** The point in time all span times are relative to. */
+    private final long originNanos = System.nanoTime();
+
+    /** The spans recorded so far. */
+    private final Queue<Span> spans = new ConcurrentLinkedQueue<>();
+
+    /** Creates a new tracer that records spans. */
+    public Tracer() {
+        this(true);
+    }
+
+    /** Creates a new tracer.
+     * @param myEnabled whether spans are recorded.
+     * */
+    private Tracer(final boolean myEnabled) {
+        this.enabled = myEnabled;
+    }
+
+    /** Starts a span. The span should be closed in a
+     * try-with-resources block.
+     * @param category the category of the span, for example
+     *                 {@code stage} or {@code command}.
+     * @param name the name of the span.
+     * @return the started span.
+     * */
+    public Span start(final String category, final String name) {
+        return new Span(this, category, name);
+    }
+
+    /** Get the nanoseconds passed since the creation of this tracer.
+     * @return the nanoseconds since the origin.
+     * */
+    long nanosSinceOrigin() {
+        return System.nanoTime() - originNanos;
+    }
+
+    /** Records a closed span.
+     * @param span the span to record.
+     * */
+    void record(final Span span) {
+        if (enabled) {
+            spans.add(span);
+        }
+    }
+
+    /** Get the recorded spans.
+     * @return the recorded spans ordered by their start time.
+     * */
+    public List<Span> getSpans() {
+        List<Span> result = new ArrayList<>(spans);
+        result.sort(Comparator.comparingLong(Span::getStartNanos));
+        return result;
+    }
+
+    /** Writes the recorded spans in the Chrome trace event format.
+     * The file can be opened in {@code chrome://tracing} or the
+     * Perfetto UI.
+     * @param file the file to write to.
+     * @throws IOException if writing fails.
+     * */
+    public void writeChromeTrace(final Path file) throws IOException {
+        List<Map<String, Object>> events = new ArrayList<>();
+        Map<Long, String> threads = new TreeMap<>();
+        for (Span span : getSpans()) {
+            threads.putIfAbsent(span.getThreadId(), span.getThreadName());
+            Map<String, Object> event = new LinkedHashMap<>();
+            event.put("name", span.getName());
+            event.put("cat", span.getCategory());
+            event.put("ph", "X");
+            event.put("ts", span.getStartNanos() / NANOS_PER_MICRO);
+            event.put("dur", span.getDurationNanos() / NANOS_PER_MICRO);
+            event.put("pid", 1);
+            event.put("tid", span.getThreadId());
+            event.put("args", span.getArgs());
+            events.add(event);
+        }
+        threads.forEach((id, name) -> {
+            Map<String, Object> event = new LinkedHashMap<>();
+            event.put("name", "thread_name");
+            event.put("ph", "M");
+            event.put("pid", 1);
+            event.put("tid", id);
+            Map<String, Object> args = new LinkedHashMap<>();
+            args.put("name", name);
+            event.put("args", args);
+            events.add(event);
+        });
+        Map<String, Object> trace = new LinkedHashMap<>();
+        trace.put("traceEvents", events);
+        trace.put("displayTimeUnit", "ms");
+        new ObjectMapper().writeValue(file.toFile(), trace);
+    }
+
+    /** Writes a report of the recorded spans in JSON format.
+     * The report contains the total time per category and name,
+     * the slowest spans per category, for example the templates
+     * that took longest to render, and the list of all spans.
+     * @param file the file to write to.
+     * @throws IOException if writing fails.
+     * */
+    public void writeReport(final Path file) throws IOException {
+        List<Span> all = getSpans();
+        Map<String, Map<String, Double>> totals = new TreeMap<>();
+        List<Map<String, Object>> list = new ArrayList<>();
+        Map<String, List<Map<String, Object>>> slowest = new TreeMap<>();
+        long end = 0;
+        for (Span span : all) {
+            totals.computeIfAbsent(span.getCategory(), c -> new TreeMap<>())
+                    .merge(span.getName(), toMillis(span.getDurationNanos()),
+                            Double::sum);
+            end = Math.max(end, span.getStartNanos()
+                    + span.getDurationNanos());
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("category", span.getCategory());
+            entry.put("name", span.getName());
+            entry.put("thread", span.getThreadName());
+            entry.put("startMillis", toMillis(span.getStartNanos()));
+            entry.put("durationMillis", toMillis(span.getDurationNanos()));
+            entry.put("args", span.getArgs());
+            list.add(entry);
+            slowest.computeIfAbsent(span.getCategory(),
+                    c -> new ArrayList<>()).add(entry);
+        }
+        slowest.replaceAll((category, entries) -> entries.stream()
+                .sorted(Comparator.comparingDouble((Map<String, Object> e)
+                        -> (Double) e.get("durationMillis")).reversed())
+                .limit(SLOWEST_SPANS)
+                .collect(Collectors.toList()));
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("wallMillis", toMillis(end));
+        report.put("totalMillis", totals);
+        report.put("slowest", slowest);
+        report.put("spans", list);
+        new ObjectMapper()
+                .enable(SerializationFeature.INDENT_OUTPUT)
+                .writeValue(file.toFile(), report);
+    }
+
+    /** Converts nanoseconds to milliseconds.
+     * @param nanos the nanoseconds to convert.
+     * @return the milliseconds.
+     * */
+    private static double toMillis(final long nanos) {
+        return nanos / NANOS_PER_MILLI;
+    }
+}
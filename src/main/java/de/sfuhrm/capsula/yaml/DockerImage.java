@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.yaml;
+
+import java.util.List;
+import javax.validation.constraints.AssertTrue;
+import lombok.Getter;
+
+/**
+ * The docker image a layout builds its packages in.
+ * The image is either pulled from a registry or built
+ * from the {@code Dockerfile} in the layout directory.
+ * @author Stephan Fuhrmann
+ */
+public class DockerImage {
+
+    /** The name of the image to pull from a registry. */
+    @Getter
+    private String pull;
+
+    /** The name and tag of the image to build. The build is skipped
+     * if an image with this name and tag exists, so the tag should
+     * depend on the content of the {@code Dockerfile}.
+     * */
+    @Getter
+    private String build;
+
+    /** Additional volumes of the build container in the form
+     * {@code host:container}. The host path is relative to the target
+     * directory. The target directory itself is always mounted as
+     * {@code /target}.
+     * */
+    @Getter
+    private List<String> volumes;
+
+    /** Checks that the image is either pulled or built.
+     * @return {@code true} if exactly one of {@link #pull} and
+     * {@link #build} is set.
+     * */
+    @AssertTrue(message = "either pull or build needs to be set")
+    public final boolean isPullOrBuild() {
+        return (pull == null) != (build == null);
+    }
+}
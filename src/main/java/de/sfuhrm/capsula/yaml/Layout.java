@@ -20,6 +20,7 @@ package de.sfuhrm.capsula.yaml;
 import de.sfuhrm.capsula.yaml.command.Command;
 import java.util.List;
 import javax.validation.Valid;
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Pattern;
@@ -55,12 +56,34 @@ public class Layout {
     @Valid
     private List<Command> prepare;
 
+    /** The optional docker image for the
+     * {@link de.sfuhrm.capsula.Stage#BUILD build} stage. It is prepared
+     * while the {@link de.sfuhrm.capsula.Stage#PREPARE prepare} stage runs.
+     * */
+    @Getter
+    @Valid
+    private DockerImage image;
+
     /** The commands for the {@link de.sfuhrm.capsula.Stage#BUILD build}
      * stage. */
     @Getter
     @Valid
     private List<Command> build;
 
+    /** The optional maximum number of seconds building the target
+     * may take. Running commands are killed when the time is up.
+     * */
+    @Getter
+    @Min(1)
+    private Integer timeout;
+
+    /** The optional resources building the target needs. If missing,
+     * the resources measured in earlier builds are used.
+     * */
+    @Getter
+    @Valid
+    private Resources resources;
+
     /** The file names of the generated package files after the build. */
     @Getter
     private List<String> packages;
@@ -23,6 +23,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.URI;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
@@ -108,8 +109,8 @@ public enum License {
      * @throws IOException if retrieving the license text failed.
      * */
     public List<String> getLicenseText() throws IOException {
-        try (InputStream inputStream = new java.net.URL(
-                getLicenseTextUrl()).openStream();
+        try (InputStream inputStream = URI.create(
+                getLicenseTextUrl()).toURL().openStream();
              InputStreamReader inputStreamReader =
                         new InputStreamReader(inputStream,
                                 Charset.forName("UTF-8"));
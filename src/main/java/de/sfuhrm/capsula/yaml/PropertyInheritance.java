@@ -46,6 +46,9 @@ public final class PropertyInheritance {
      * */
     public static class InheritanceException extends RuntimeException {
 
+        /** Version of the serialized form. */
+        private static final long serialVersionUID = 1L;
+
         /** Creates a new instance.
          * @param inner the cause of the problem.
          * */
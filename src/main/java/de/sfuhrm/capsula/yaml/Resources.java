@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.yaml;
+
+import javax.validation.constraints.Min;
+import lombok.Getter;
+
+/**
+ * The resources building a target needs at most. Targets only start
+ * building in parallel if the host has the resources for all of them.
+ * @author Stephan Fuhrmann
+ */
+public class Resources {
+
+    /** The memory in MiB. */
+    @Getter
+    @Min(1)
+    private Integer memory;
+
+    /** The number of processors. */
+    @Getter
+    @Min(1)
+    private Integer cpus;
+}
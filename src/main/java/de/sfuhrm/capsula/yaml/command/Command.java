@@ -17,16 +17,38 @@
  */
 package de.sfuhrm.capsula.yaml.command;
 
+import java.util.List;
 import javax.validation.Valid;
+import javax.validation.constraints.Pattern;
 import lombok.Getter;
 
 /**
  * A single command. Identified by the command field set.
+ * Commands of a stage are executed in the order they are listed,
+ * unless one of the commands of the stage declares its dependencies
+ * with {@link #after}.
  *
  * @author Stephan Fuhrmann
  */
 public class Command {
 
+    /** The optional identifier of this command. Other commands
+     * of the same stage can refer to it in their {@link #after}
+     * dependencies.
+     * */
+    @Getter
+    @Pattern(regexp = "[a-zA-Z0-9_-]+")
+    private String id;
+
+    /** The optional identifiers of the commands of the same stage
+     * that need to be finished before this command can start.
+     * If {@code null}, the command depends on the command listed before it.
+     * If empty, the command depends on no other command and may run
+     * concurrently with the other commands of the stage.
+     * */
+    @Getter
+    private List<String> after;
+
     /** Copy a file. */
     @Getter
     @Valid
@@ -46,4 +68,39 @@ public class Command {
     @Getter
     @Valid
     private MkdirCommand mkdir;
+
+    /** Archive a directory. */
+    @Getter
+    @Valid
+    private ArchiveCommand archive;
+
+    /** Move a file or directory. */
+    @Getter
+    @Valid
+    private MoveCommand move;
+
+    /** Remove files or directories. */
+    @Getter
+    @Valid
+    private RemoveCommand remove;
+
+    /** Change the permissions of a file or directory. */
+    @Getter
+    @Valid
+    private ChmodCommand chmod;
+
+    /** Run a command in a docker container. */
+    @Getter
+    @Valid
+    private DockerRunCommand dockerRun;
+
+    /** Build a docker image. */
+    @Getter
+    @Valid
+    private DockerBuildCommand dockerBuild;
+
+    /** Run a command in the build container of the target. */
+    @Getter
+    @Valid
+    private DockerExecCommand dockerExec;
 }
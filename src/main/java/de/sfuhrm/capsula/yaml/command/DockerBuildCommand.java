@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.yaml.command;
+
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.NotNull;
+import lombok.Getter;
+
+/**
+ * Build a docker image with the docker Engine API.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class DockerBuildCommand {
+
+    /** The name and tag of the image to build. */
+    @Getter
+    @NotNull
+    @NotBlank
+    private String tag;
+
+    /** The build context directory, relative to the target directory. */
+    @Getter
+    @NotNull
+    private String context = ".";
+
+    /** The path of the Dockerfile within the build context. */
+    @Getter
+    @NotNull
+    private String dockerfile = "Dockerfile";
+}
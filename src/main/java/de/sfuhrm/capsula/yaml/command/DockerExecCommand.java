@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.yaml.command;
+
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.NotNull;
+import lombok.Getter;
+
+/**
+ * Run a command in the build container of the target. The
+ * container runs the image of the layout and is shared by all
+ * {@code dockerExec} commands of the target. The target directory
+ * is mounted as {@code /target}. Without the docker engine on a
+ * Unix socket, each command runs in a new container of the
+ * docker command line client.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class DockerExecCommand {
+
+    /** The command String to execute in the container. */
+    @Getter
+    @NotNull
+    @NotBlank
+    private String command;
+
+    /** The optional working directory in the container.
+     * Defaults to {@code /target}.
+     * */
+    @Getter
+    private String workdir;
+
+    /** The optional maximum number of seconds the command may run.
+     * The build container is removed when the time is up.
+     * */
+    @Getter
+    @Min(1)
+    private Integer timeout;
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.yaml.command;
+
+import java.util.List;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.NotNull;
+import lombok.Getter;
+
+/**
+ * Run a command in a new docker container. The container is
+ * created with the docker Engine API and removed afterwards.
+ * The target directory is mounted as {@code /target}.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class DockerRunCommand {
+
+    /** The image to run. */
+    @Getter
+    @NotNull
+    @NotBlank
+    private String image;
+
+    /** The command String to execute in the container. */
+    @Getter
+    @NotNull
+    @NotBlank
+    private String command;
+
+    /** The working directory in the container. */
+    @Getter
+    private String workdir = "/target";
+
+    /** Additional volumes in the form {@code host:container}.
+     * The host path is relative to the target directory.
+     * */
+    @Getter
+    private List<String> volumes;
+
+    /** The optional maximum number of seconds the command may run.
+     * The container is killed when the time is up.
+     * */
+    @Getter
+    @Min(1)
+    private Integer timeout;
+}
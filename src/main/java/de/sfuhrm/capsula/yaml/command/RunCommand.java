@@ -17,6 +17,7 @@
  */
 package de.sfuhrm.capsula.yaml.command;
 
+import javax.validation.constraints.Min;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
 import lombok.Getter;
@@ -33,4 +34,19 @@ public class RunCommand {
     @NotNull
     @NotBlank
     private String command;
+
+    /** The optional maximum number of seconds the command may run.
+     * The command and all its child processes are killed when
+     * the time is up.
+     * */
+    @Getter
+    @Min(1)
+    private Integer timeout;
+
+    /** Whether the output of the command goes directly into the
+     * log file of the target. The output is neither read by capsula
+     * nor echoed in verbose mode. Useful for commands with much output.
+     * */
+    @Getter
+    private boolean raw;
 }
@@ -1,4 +1,4 @@
-<#include "include-install.txt">
+<#include "/include/include-install.txt">
 <#macro relation r>${r.pkg}<#if r.op?has_content>${r.op.operator}${r.version}</#if></#macro>
 <#macro relations name list><#if list?has_content>${name}=(<#list list as rel><@relation r=rel/><#sep> </#sep></#list>)
 </#if></#macro>
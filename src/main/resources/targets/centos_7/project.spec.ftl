@@ -1,7 +1,7 @@
 <#macro relation r>${r.pkg}<#if r.op?has_content> ${r.op.operator} ${r.version}</#if></#macro>
 <#macro relations name list><#if list?has_content>${name}: <#list list as rel><@relation r=rel/><#sep>, </#sep></#list>
 </#if></#macro>
-<#include "include-install.txt">
+<#include "/include/include-install.txt">
 Summary: ${capsula.shortSummary}
 Name: ${capsula.redhat.packageName}
 Version: ${version.version}
@@ -1,5 +1,5 @@
 #!/usr/bin/make -f
-<#include "include-install.txt">
+<#include "/include/include-install.txt">
 
 %:
 	dh $@
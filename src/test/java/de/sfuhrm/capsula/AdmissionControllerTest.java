@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula;
+
+import de.sfuhrm.capsula.trace.ResourceUsage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the {@link AdmissionController}.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class AdmissionControllerTest {
+
+    private static void acquireAsync(
+            final AdmissionController controller,
+            final AdmissionController.Demand demand,
+            final CompletableFuture<AdmissionController.Permit> future) {
+        Thread thread = new Thread(() -> {
+            try {
+                future.complete(controller.acquire(demand));
+            } catch (InterruptedException ex) {
+                future.completeExceptionally(ex);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Test
+    public void testAcquireWaitsForCapacity() throws Exception {
+        AdmissionController controller = new AdmissionController(100, 2);
+        AdmissionController.Permit first = controller.acquire(
+                new AdmissionController.Demand(60, 1));
+        CompletableFuture<AdmissionController.Permit> second =
+                new CompletableFuture<>();
+        acquireAsync(controller, new AdmissionController.Demand(60, 1),
+                second);
+        try {
+            second.get(200, TimeUnit.MILLISECONDS);
+            fail("second target admitted although memory is exhausted");
+        } catch (TimeoutException ex) {
+            // expected
+        }
+        first.close();
+        second.get(10, TimeUnit.SECONDS).close();
+    }
+
+    @Test
+    public void testAcquireFitting() throws Exception {
+        AdmissionController controller = new AdmissionController(100, 2);
+        AdmissionController.Permit first = controller.acquire(
+                new AdmissionController.Demand(50, 1));
+        AdmissionController.Permit second = controller.acquire(
+                new AdmissionController.Demand(50, 1));
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void testAcquireOversizedWhenIdle() throws Exception {
+        AdmissionController controller = new AdmissionController(100, 2);
+        AdmissionController.Permit permit = controller.acquire(
+                new AdmissionController.Demand(1000, 8));
+        permit.close();
+        // closing twice frees the resources only once
+        permit.close();
+        controller.acquire(new AdmissionController.Demand(100, 2)).close();
+    }
+
+    @Test
+    public void testLearnSaveLoad() throws IOException {
+        AdmissionController controller = new AdmissionController(100, 2);
+        assertFalse(controller.getLearned("pkg/debian").isPresent());
+        controller.learn("pkg/debian",
+                new ResourceUsage(1500, 500, 4096, 0, 0),
+                Duration.ofSeconds(1));
+
+        AdmissionController.Demand demand =
+                controller.getLearned("pkg/debian").get();
+        assertEquals(4096, demand.getMemory());
+        assertEquals(2.0, demand.getCpus(), 0.001);
+
+        Path dir = Files.createTempDirectory("capsula");
+        Path file = dir.resolve("resources.json");
+        try {
+            controller.save(file);
+            AdmissionController loaded = new AdmissionController(100, 2);
+            loaded.load(file);
+            demand = loaded.getLearned("pkg/debian").get();
+            assertEquals(4096, demand.getMemory());
+            assertEquals(2.0, demand.getCpus(), 0.001);
+        } finally {
+            Files.deleteIfExists(file);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testMemoryCapacityIsRefreshed() throws Exception {
+        AtomicLong available = new AtomicLong(100);
+        AdmissionController controller = new AdmissionController(100, 2,
+                () -> Optional.of(available.get()));
+        AdmissionController.Permit first = controller.acquire(
+                new AdmissionController.Demand(60, 1));
+        // another process of the host takes memory
+        available.set(20);
+        CompletableFuture<AdmissionController.Permit> second =
+                new CompletableFuture<>();
+        acquireAsync(controller, new AdmissionController.Demand(30, 1),
+                second);
+        try {
+            second.get(200, TimeUnit.MILLISECONDS);
+            fail("second target must wait");
+        } catch (TimeoutException ex) {
+            assertEquals(80, controller.getMemoryCapacity());
+        }
+
+        available.set(50);
+        second.get(5, TimeUnit.SECONDS).close();
+        assertEquals(100, controller.getMemoryCapacity());
+        first.close();
+    }
+
+    @Test
+    public void testForHost() {
+        AdmissionController controller = AdmissionController.forHost();
+        assertTrue(controller.getMemoryCapacity() > 0);
+        assertEquals(Runtime.getRuntime().availableProcessors(),
+                controller.getCpuCapacity(), 0.001);
+    }
+}
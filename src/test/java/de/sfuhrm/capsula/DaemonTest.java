@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the {@link Daemon} and the {@link DaemonClient}.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class DaemonTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TargetScheduler scheduler;
+
+    private Daemon daemon;
+
+    private ExecutorService executor;
+
+    @Before
+    public void before() throws IOException {
+        scheduler = new TargetScheduler(1);
+        daemon = new Daemon(folder.getRoot().toPath()
+                .resolve("daemon").resolve("socket"), scheduler);
+        executor = Executors.newSingleThreadExecutor();
+        executor.submit(() -> {
+            daemon.serve();
+            return null;
+        });
+    }
+
+    @After
+    public void after() throws IOException {
+        daemon.close();
+        executor.shutdownNow();
+        scheduler.close();
+    }
+
+    @Test
+    public void testBuildWithMissingDescriptor() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int exitValue = DaemonClient.run(daemon.getSocketPath(),
+                new String[] {"-f", "does-not-exist.yaml", "-o", "out"},
+                new PrintStream(out, true, "UTF-8"),
+                new PrintStream(err, true, "UTF-8"));
+        assertEquals(Daemon.EXIT_FAILURE, exitValue);
+        assertEquals("", out.toString("UTF-8"));
+        assertTrue(err.toString("UTF-8"),
+                err.toString("UTF-8").contains("does-not-exist.yaml"));
+    }
+
+    @Test
+    public void testListTargets() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        int exitValue = DaemonClient.run(daemon.getSocketPath(),
+                new String[] {"-T"},
+                new PrintStream(out, true, "UTF-8"),
+                new PrintStream(err, true, "UTF-8"));
+        assertEquals(0, exitValue);
+        assertTrue(out.toString("UTF-8"),
+                out.toString("UTF-8").contains("debian_stretch"));
+    }
+
+    @Test
+    public void testSocketPermissions() throws IOException {
+        Path socket = daemon.getSocketPath();
+        assertEquals("rwx------", PosixFilePermissions.toString(
+                Files.getPosixFilePermissions(socket.getParent())));
+        assertEquals("rw-------", PosixFilePermissions.toString(
+                Files.getPosixFilePermissions(socket)));
+    }
+
+    @Test(expected = BuildException.class)
+    public void testSharedDirectory() throws IOException {
+        Path shared = folder.newFolder("shared").toPath();
+        Files.setPosixFilePermissions(shared,
+                PosixFilePermissions.fromString("rwxrwxr-x"));
+        try (Daemon other = new Daemon(shared.resolve("socket"),
+                scheduler)) {
+            fail("Daemon in shared directory " + other.getSocketPath());
+        }
+    }
+
+    @Test(expected = BuildException.class)
+    public void testAlreadyListening() throws IOException {
+        try (Daemon other = new Daemon(daemon.getSocketPath(),
+                scheduler)) {
+            fail("Second daemon on " + other.getSocketPath());
+        }
+    }
+
+    @Test
+    public void testStaleSocket() throws IOException {
+        Path socket = daemon.getSocketPath();
+        daemon.close();
+        Files.createFile(socket);
+        daemon = new Daemon(socket, scheduler);
+        assertEquals(socket, daemon.getSocketPath());
+    }
+
+    @Test
+    public void testLineOutputStream() throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (Daemon.LineOutputStream stream =
+                     new Daemon.LineOutputStream(lines::add)) {
+            stream.write("first\nsecond\r\nthird".getBytes("UTF-8"));
+        }
+        assertEquals(Arrays.asList("first", "second", "third"), lines);
+    }
+}
@@ -17,12 +17,15 @@
  */
 package de.sfuhrm.capsula;
 
+import de.sfuhrm.capsula.yaml.command.MkdirCommand;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -55,4 +58,79 @@ public class FileUtilsTest {
 
         FileUtils.deleteRecursive(tmp);
     }
+
+    @Test
+    public void testDeleteWithTreeAndLink() throws IOException {
+        Path tmp = Files.createTempDirectory("foo");
+        Path outside = Files.createTempDirectory("bar");
+        Path kept = Files.createFile(outside.resolve("kept"));
+        Path tree = tmp.resolve("tree");
+        for (int i = 0; i < 10; i++) {
+            Path dir = Files.createDirectories(tree.resolve("a" + i)
+                    .resolve("b"));
+            Files.createFile(dir.resolve("file"));
+        }
+        Files.createSymbolicLink(tree.resolve("link"), outside);
+
+        FileUtils.delete(tree);
+        assertFalse(Files.exists(tree));
+        assertTrue(Files.exists(kept));
+
+        FileUtils.delete(tree);
+        FileUtils.deleteRecursive(tmp);
+        FileUtils.deleteRecursive(outside);
+    }
+
+    @Test
+    public void testApplyPermissionSetRecursive() throws IOException {
+        Path tmp = Files.createTempDirectory("foo");
+        Path file = Files.createFile(
+                Files.createDirectories(tmp.resolve("a")).resolve("file"));
+        MkdirCommand command = new MkdirCommand();
+        command.setTo("a");
+        command.setMode("rwxr-x---");
+
+        FileUtils.applyPermissionSetRecursive(tmp.resolve("a"), command);
+        assertEquals(PosixFilePermissions.fromString("rwxr-x---"),
+                Files.getPosixFilePermissions(file));
+        assertEquals(PosixFilePermissions.fromString("rwxr-x---"),
+                Files.getPosixFilePermissions(tmp.resolve("a")));
+
+        FileUtils.deleteRecursive(tmp);
+    }
+
+    @Test
+    public void testWriteIfChanged() throws IOException {
+        Path tmp = Files.createTempDirectory("foo");
+        Path file = tmp.resolve("file");
+        FileTime old = FileTime.fromMillis(1000000000000L);
+
+        assertTrue(FileUtils.writeIfChanged(file, new byte[] {1, 2}));
+        Files.setLastModifiedTime(file, old);
+        assertFalse(FileUtils.writeIfChanged(file, new byte[] {1, 2}));
+        assertEquals(old, Files.getLastModifiedTime(file));
+        assertTrue(FileUtils.writeIfChanged(file, new byte[] {1, 3}));
+        assertArrayEquals(new byte[] {1, 3}, Files.readAllBytes(file));
+
+        FileUtils.deleteRecursive(tmp);
+    }
+
+    @Test
+    public void testCopyIfChanged() throws IOException {
+        Path tmp = Files.createTempDirectory("foo");
+        Path from = tmp.resolve("from");
+        Path to = tmp.resolve("to");
+        FileTime old = FileTime.fromMillis(1000000000000L);
+        Files.write(from, new byte[] {1, 2});
+        Files.setLastModifiedTime(from, old);
+
+        assertTrue(FileUtils.copyIfChanged(from, to));
+        assertEquals(old, Files.getLastModifiedTime(to));
+        assertFalse(FileUtils.copyIfChanged(from, to));
+        Files.write(from, new byte[] {1, 3});
+        assertTrue(FileUtils.copyIfChanged(from, to));
+        assertArrayEquals(new byte[] {1, 3}, Files.readAllBytes(to));
+
+        FileUtils.deleteRecursive(tmp);
+    }
 }
@@ -17,6 +17,11 @@
  */
 package de.sfuhrm.capsula;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
@@ -40,12 +45,124 @@ public class ParamsTest {
     }
 
     @Test
-    public void testParseWithResult() {
+    public void testParseWithResult() throws IOException {
         Params p = Params.parse(new String[] {
                 "-out", "/tmp",
                 "-descriptor", "capsula.yaml"
         });
         assertEquals("/tmp", p.getOut().toString());
-        assertEquals("capsula.yaml", p.getDescriptor().toString());
+        assertEquals(1, p.getDescriptors().size());
+        assertEquals("capsula.yaml", p.getDescriptors().get(0).toString());
+    }
+
+    @Test
+    public void testGetJobsWithDefault() {
+        Params p = Params.parse(new String[] {
+                "-out", "/tmp",
+                "-descriptor", "capsula.yaml"
+        });
+        assertEquals(1, p.getJobs());
+        assertFalse(p.isKeepGoing());
+    }
+
+    @Test
+    public void testGetJobsWithParallel() {
+        Params p = Params.parse(new String[] {
+                "-out", "/tmp",
+                "-descriptor", "capsula.yaml",
+                "-parallel"
+        });
+        assertEquals(Runtime.getRuntime().availableProcessors(), p.getJobs());
+    }
+
+    @Test
+    public void testGetJobsWithExplicitJobs() {
+        Params p = Params.parse(new String[] {
+                "-out", "/tmp",
+                "-descriptor", "capsula.yaml",
+                "-parallel",
+                "-jobs", "3",
+                "-keep-going"
+        });
+        assertEquals(3, p.getJobs());
+        assertTrue(p.isKeepGoing());
+    }
+
+    @Test
+    public void testParseWithZeroJobs() {
+        Params p = Params.parse(new String[] {
+                "-out", "/tmp",
+                "-descriptor", "capsula.yaml",
+                "-jobs", "0"
+        });
+        assertNull(p);
+    }
+
+    @Test
+    public void testParseWithDescriptorMissing() {
+        Params p = Params.parse(new String[] {
+                "-out", "/tmp"
+        });
+        assertNull(p);
+    }
+
+    @Test
+    public void testParseDaemonWithoutOut() {
+        Params p = Params.parse(new String[] {
+                "-daemon",
+                "-socket", "/tmp/capsula.sock"
+        });
+        assertTrue(p.isDaemon());
+        assertEquals(Paths.get("/tmp/capsula.sock"), p.getSocket());
+    }
+
+    @Test
+    public void testParseDaemonAndClient() {
+        Params p = Params.parse(new String[] {
+                "-daemon",
+                "-client"
+        });
+        assertNull(p);
+    }
+
+    @Test
+    public void testResolvePaths() throws IOException {
+        Params p = Params.parse(new String[] {
+                "-out", "out",
+                "-descriptor", "/etc/capsula.yaml"
+        });
+        p.resolvePaths(Paths.get("/home/user"));
+        assertEquals("/home/user/out", p.getOut().toString());
+        assertEquals("/etc/capsula.yaml",
+                p.getDescriptors().get(0).toString());
+    }
+
+    @Test
+    public void testParseWithMultipleDescriptors() throws IOException {
+        Params p = Params.parse(new String[] {
+                "-out", "/tmp",
+                "-f", "a.yaml",
+                "-f", "b.yaml"
+        });
+        assertEquals(Arrays.asList(Paths.get("a.yaml"), Paths.get("b.yaml")),
+                p.getDescriptors());
+    }
+
+    @Test
+    public void testGetDescriptorsWithDirectory() throws IOException {
+        Path dir = Files.createTempDirectory("capsula-params");
+        try {
+            Files.createFile(dir.resolve("b.yml"));
+            Files.createFile(dir.resolve("a.yaml"));
+            Files.createFile(dir.resolve("readme.txt"));
+            Params p = Params.parse(new String[] {
+                    "-out", "/tmp",
+                    "-f", dir.toString()
+            });
+            assertEquals(Arrays.asList(dir.resolve("a.yaml"),
+                    dir.resolve("b.yml")), p.getDescriptors());
+        } finally {
+            FileUtils.deleteRecursive(dir);
+        }
     }
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the {@link ProcessUtils}.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class ProcessUtilsTest {
+
+    @Test
+    public void testDestroyTree() throws IOException, InterruptedException {
+        Process process = new ProcessBuilder("sh", "-c",
+                "sleep 60 & sleep 60 & wait").start();
+        List<ProcessHandle> descendants;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        do {
+            Thread.sleep(10);
+            descendants = process.descendants().collect(Collectors.toList());
+        } while (descendants.size() < 2 && System.nanoTime() < deadline);
+        assertEquals(2, descendants.size());
+
+        ProcessUtils.destroyTree(process);
+
+        assertTrue(process.waitFor(10, TimeUnit.SECONDS));
+        for (ProcessHandle descendant : descendants) {
+            descendant.onExit().join();
+            assertFalse(descendant.isAlive());
+        }
+    }
+
+    @Test
+    public void testExec() throws IOException {
+        Path directory = Paths.get(".");
+        assertEquals(0, ProcessUtils.exec(Arrays.asList("true"), directory));
+        assertEquals(3, ProcessUtils.exec(
+                Arrays.asList("sh", "-c", "echo hello; exit 3"), directory));
+    }
+
+    @Test(timeout = 10000)
+    public void testExecWithTimeout() throws IOException {
+        try {
+            ProcessUtils.exec(Arrays.asList("sleep", "60"), Paths.get("."),
+                    Duration.ofMillis(200));
+            fail("timeout expected");
+        } catch (BuildException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("timed out"));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testExecInterrupted() throws IOException {
+        Thread.currentThread().interrupt();
+        try {
+            ProcessUtils.exec(Arrays.asList("sleep", "60"), Paths.get("."));
+            fail("interrupt expected");
+        } catch (BuildException ex) {
+            assertTrue(ex.getMessage(),
+                    ex.getMessage().contains("Interrupted"));
+            assertTrue(Thread.interrupted());
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula;
+
+import de.sfuhrm.capsula.yaml.command.CopyCommand;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link TreeCopier}.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class TreeCopierTest {
+
+    private Path tmp;
+    private Path from;
+
+    @Before
+    public void before() throws IOException {
+        tmp = Files.createTempDirectory("treecopier");
+        from = tmp.resolve("from");
+        for (int i = 0; i < 5; i++) {
+            Path dir = Files.createDirectories(from.resolve("a" + i)
+                    .resolve("b").resolve("c"));
+            write(dir.resolve("file"), "content" + i);
+        }
+        write(from.resolve("top"), "top");
+    }
+
+    @After
+    public void after() {
+        FileUtils.deleteRecursive(tmp);
+    }
+
+    private static void write(final Path file, final String content)
+            throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String read(final Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testCopyTree() throws IOException {
+        Path to = tmp.resolve("x").resolve("to");
+        TreeCopier.copy(from, to, null);
+        assertEquals("top", read(to.resolve("top")));
+        for (int i = 0; i < 5; i++) {
+            assertEquals("content" + i, read(to.resolve("a" + i)
+                    .resolve("b").resolve("c").resolve("file")));
+        }
+        assertEquals(Files.getLastModifiedTime(from.resolve("top")),
+                Files.getLastModifiedTime(to.resolve("top")));
+    }
+
+    @Test
+    public void testCopyTreeWithMode() throws IOException {
+        CopyCommand command = new CopyCommand();
+        command.setMode("rwxrwxrwx");
+        Path to = tmp.resolve("to");
+        TreeCopier.copy(from, to, command);
+        assertEquals(PosixFilePermissions.fromString("rwxrwxrwx"),
+                Files.getPosixFilePermissions(to.resolve("top")));
+        assertEquals(PosixFilePermissions.fromString("rwxrwxrwx"),
+                Files.getPosixFilePermissions(to.resolve("a0")
+                        .resolve("b").resolve("c").resolve("file")));
+        assertEquals(PosixFilePermissions.fromString("rwxrwxrwx"),
+                Files.getPosixFilePermissions(to.resolve("a0")
+                        .resolve("b")));
+    }
+
+    @Test
+    public void testCopyFile() throws IOException {
+        CopyCommand command = new CopyCommand();
+        command.setMode("rw-r-----");
+        Path to = tmp.resolve("y").resolve("file");
+        TreeCopier.copy(from.resolve("top"), to, command);
+        assertEquals("top", read(to));
+        assertEquals(PosixFilePermissions.fromString("rw-r-----"),
+                Files.getPosixFilePermissions(to));
+    }
+
+    @Test
+    public void testCopyKeepsUnchangedFiles() throws IOException {
+        Path to = tmp.resolve("to");
+        TreeCopier.copy(from, to, null);
+        FileTime old = FileTime.fromMillis(1000000000000L);
+        Files.setLastModifiedTime(to.resolve("top"), old);
+        write(from.resolve("a0").resolve("b").resolve("c").resolve("file"),
+                "changed");
+
+        TreeCopier.copy(from, to, null);
+        assertEquals(old, Files.getLastModifiedTime(to.resolve("top")));
+        assertEquals("changed", read(to.resolve("a0").resolve("b")
+                .resolve("c").resolve("file")));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.cache;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import de.sfuhrm.capsula.FileUtils;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link BuildCache}.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class BuildCacheTest {
+
+    private Path tmpDir;
+
+    private Path cacheDir;
+
+    private Path packageFile;
+
+    @Before
+    public void before() throws IOException {
+        tmpDir = Files.createTempDirectory("capsula");
+        cacheDir = tmpDir.resolve("cache");
+        packageFile = tmpDir.resolve("package.deb");
+        Files.write(packageFile, new byte[100]);
+    }
+
+    @After
+    public void after() throws IOException {
+        FileUtils.deleteRecursive(tmpDir);
+    }
+
+    @Test
+    public void testLookupMiss() throws IOException {
+        BuildCache cache = new BuildCache(cacheDir, 1000);
+        assertFalse(cache.lookup("abc").isPresent());
+    }
+
+    @Test
+    public void testStoreAndLookup() throws IOException {
+        BuildCache cache = new BuildCache(cacheDir, 1000);
+        cache.store("abc", Collections.singletonList(packageFile));
+        Optional<Path> entry = cache.lookup("abc");
+        assertTrue(entry.isPresent());
+        assertArrayEquals(new byte[100],
+                Files.readAllBytes(entry.get().resolve("package.deb")));
+    }
+
+    @Test
+    public void testEvictLeastRecentlyUsed() throws IOException {
+        BuildCache cache = new BuildCache(cacheDir, 250);
+        cache.store("first", Collections.singletonList(packageFile));
+        cache.store("second", Collections.singletonList(packageFile));
+        Files.setLastModifiedTime(cacheDir.resolve("first"),
+                FileTime.fromMillis(1000));
+        Files.setLastModifiedTime(cacheDir.resolve("second"),
+                FileTime.fromMillis(2000));
+        cache.store("third", Collections.singletonList(packageFile));
+        assertFalse(cache.lookup("first").isPresent());
+        assertTrue(cache.lookup("second").isPresent());
+        assertTrue(cache.lookup("third").isPresent());
+    }
+
+    @Test
+    public void testPutTreeDependsOnContent() throws IOException {
+        Path dir = tmpDir.resolve("dir");
+        Files.createDirectory(dir);
+        Files.write(dir.resolve("a"), Arrays.asList("a"));
+        String before = hash(dir);
+        assertEquals(before, hash(dir));
+        Files.write(dir.resolve("a"), Arrays.asList("b"));
+        assertNotEquals(before, hash(dir));
+    }
+
+    private static String hash(Path dir) throws IOException {
+        Hasher hasher = Hashing.sha256().newHasher();
+        BuildCache.putTree(hasher, dir);
+        return hasher.hash().toString();
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.cache;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link GitMirrorCache}.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class GitMirrorCacheTest {
+
+    @Test
+    public void testMirrorNameWithGitSuffix() {
+        String name = GitMirrorCache.mirrorName(
+                "https://github.com/sfuhrm/capsula.git");
+        assertTrue(name, name.matches("capsula-[0-9a-f]{16}\\.git"));
+    }
+
+    @Test
+    public void testMirrorNameWithSpecialCharacters() {
+        String name = GitMirrorCache.mirrorName(
+                "git@example.com:foo/bar baz");
+        assertTrue(name, name.matches("bar_baz-[0-9a-f]{16}\\.git"));
+    }
+
+    @Test
+    public void testMirrorNameIsUniquePerUrl() {
+        assertNotEquals(
+                GitMirrorCache.mirrorName("https://a.example.com/x.git"),
+                GitMirrorCache.mirrorName("https://b.example.com/x.git"));
+    }
+}
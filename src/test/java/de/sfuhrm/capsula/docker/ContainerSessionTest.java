@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.docker;
+
+import de.sfuhrm.capsula.FileUtils;
+import de.sfuhrm.capsula.trace.ResourceUsage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static de.sfuhrm.capsula.docker.StandInDaemon.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link ContainerSession} against a stand-in daemon
+ * on a Unix socket.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class ContainerSessionTest {
+
+    private Path tmpDir;
+    private Path socket;
+
+    @Before
+    public void before() throws IOException {
+        tmpDir = Files.createTempDirectory("session");
+        socket = tmpDir.resolve("docker.sock");
+    }
+
+    @After
+    public void after() {
+        FileUtils.deleteRecursive(tmpDir);
+    }
+
+    private static byte[] handle(StandInDaemon.Request r) {
+        String path = r.getPath();
+        if (path.equals("/containers/create")) {
+            return response("201 Created", "{\"Id\":\"c1\"}");
+        }
+        if (path.equals("/containers/c1/exec")) {
+            String body = new String(r.getBody(), StandardCharsets.UTF_8);
+            String id = "e1";
+            if (body.contains("chmod")) {
+                id = "e2";
+            }
+            return response("201 Created", "{\"Id\":\"" + id + "\"}");
+        }
+        if (path.equals("/exec/e1/start")) {
+            return raw(frame(1, "building\n"), frame(2, "warning\n"));
+        }
+        if (path.equals("/exec/e2/start")) {
+            return raw();
+        }
+        if (path.equals("/exec/e1/json")) {
+            return response("200 OK",
+                    "{\"Running\":false,\"ExitCode\":0}");
+        }
+        if (path.equals("/exec/e2/json")) {
+            return response("200 OK",
+                    "{\"Running\":false,\"ExitCode\":1}");
+        }
+        return response("204 No Content", "");
+    }
+
+    @Test
+    public void testExec() throws IOException {
+        try (StandInDaemon daemon = new StandInDaemon(socket,
+                ContainerSessionTest::handle);
+             DockerEngine engine = new DockerEngine(socket)) {
+            List<String> output = new ArrayList<>();
+            int first;
+            int second;
+            try (ContainerSession session = new ContainerSession(engine,
+                    "archlinux", "/target",
+                    Arrays.asList("/tmp/t:/target"),
+                    Duration.ofMinutes(1))) {
+                first = session.exec(Arrays.asList("bash", "build.sh"),
+                        null, output::add, output::add, Optional.empty());
+                second = session.exec(Arrays.asList("chmod", "-R", "a+rwx",
+                        "."), "/", output::add, output::add,
+                        Optional.empty());
+            }
+            assertEquals(0, first);
+            assertEquals(1, second);
+            assertEquals(Arrays.asList("building", "warning"), output);
+            assertEquals(Arrays.asList(
+                    "POST /containers/create",
+                    "POST /containers/c1/start",
+                    "POST /containers/c1/exec",
+                    "POST /exec/e1/start",
+                    "GET /exec/e1/json",
+                    "POST /containers/c1/exec",
+                    "POST /exec/e2/start",
+                    "GET /exec/e2/json",
+                    "DELETE /containers/c1?force=1"),
+                    daemon.getRequestLines());
+            String create = new String(daemon.getRequests().get(0).getBody(),
+                    StandardCharsets.UTF_8);
+            assertTrue(create.contains(
+                    "\"Entrypoint\":[\"tail\",\"-f\",\"/dev/null\"]"));
+            String exec = new String(daemon.getRequests().get(5).getBody(),
+                    StandardCharsets.UTF_8);
+            assertTrue(exec.contains("\"WorkingDir\":\"/\""));
+        }
+    }
+
+    @Test
+    public void testCloseWithoutExec() throws IOException {
+        try (StandInDaemon daemon = new StandInDaemon(socket,
+                ContainerSessionTest::handle);
+             DockerEngine engine = new DockerEngine(socket)) {
+            ContainerSession session = new ContainerSession(engine,
+                    "archlinux", "/target", Arrays.asList());
+            session.close();
+            session.close();
+            assertTrue(daemon.getRequestLines().isEmpty());
+        }
+    }
+
+    @Test
+    public void testResourceUsage() throws Exception {
+        AtomicInteger polls = new AtomicInteger();
+        try (StandInDaemon daemon = new StandInDaemon(socket, r -> {
+                if (r.getPath().startsWith("/containers/c1/stats")) {
+                    // the memory peak is only seen by the first poll
+                    long usage = 100;
+                    if (polls.incrementAndGet() == 1) {
+                        usage = 500;
+                    }
+                    return response("200 OK", "{\"cpu_stats\":"
+                            + "{\"cpu_usage\":{\"usage_in_usermode\":"
+                            + "3000000000,\"usage_in_kernelmode\":"
+                            + "2000000}},\"memory_stats\":{\"usage\":"
+                            + usage + "}}");
+                }
+                return handle(r);
+            });
+             DockerEngine engine = new DockerEngine(socket)) {
+            try (ContainerSession session = new ContainerSession(engine,
+                    "archlinux", "/target", Arrays.asList(),
+                    Duration.ofMillis(10))) {
+                assertFalse(session.getResourceUsage().isPresent());
+                session.exec(Arrays.asList("bash", "build.sh"),
+                        null, s -> { }, s -> { }, Optional.empty());
+                long deadline = System.nanoTime() + 5_000_000_000L;
+                // the second poll starts after the first one was seen
+                while (polls.get() < 2 && System.nanoTime() < deadline) {
+                    Thread.sleep(10);
+                }
+                ResourceUsage usage = session.getResourceUsage().get();
+                assertEquals(3000, usage.getCpuUserMillis());
+                assertEquals(2, usage.getCpuSystemMillis());
+                assertEquals(500, usage.getPeakRssBytes());
+            }
+            assertTrue(daemon.getRequestLines().contains(
+                    "GET /containers/c1/stats?stream=false&one-shot=true"));
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.docker;
+
+import de.sfuhrm.capsula.BuildException;
+import de.sfuhrm.capsula.trace.ResourceUsage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static de.sfuhrm.capsula.docker.StandInDaemon.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link DockerEngine} against a stand-in daemon
+ * on a Unix socket.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class DockerEngineTest {
+
+    private Path tmpDir;
+    private Path socket;
+
+    @Before
+    public void before() throws IOException {
+        tmpDir = Files.createTempDirectory("engine");
+        socket = tmpDir.resolve("docker.sock");
+    }
+
+    @After
+    public void after() throws IOException {
+        de.sfuhrm.capsula.FileUtils.deleteRecursive(tmpDir);
+    }
+
+    @Test
+    public void testDemux() throws IOException {
+        byte[] stream = concat(frame(1, "hel"), frame(2, "oops\n"),
+                frame(1, "lo\nworld\n"), frame(1, "no newline"));
+        List<String> out = new ArrayList<>();
+        List<String> err = new ArrayList<>();
+        DockerEngine.demux(new ByteArrayInputStream(stream),
+                out::add, err::add);
+        assertEquals(Arrays.asList("hello", "world", "no newline"), out);
+        assertEquals(Arrays.asList("oops"), err);
+    }
+
+    @Test(expected = IOException.class)
+    public void testDemuxWithTruncatedFrame() throws IOException {
+        byte[] stream = Arrays.copyOf(frame(1, "hello\n"), 10);
+        DockerEngine.demux(new ByteArrayInputStream(stream),
+                s -> { }, s -> { });
+    }
+
+    @Test
+    public void testRun() throws IOException {
+        try (StandInDaemon daemon = new StandInDaemon(socket, r -> {
+                if (r.getPath().equals("/containers/create")) {
+                    return response("201 Created", "{\"Id\":\"c1\"}");
+                }
+                if (r.getPath().startsWith("/containers/c1/logs")) {
+                    return chunked(frame(1, "out 1\nou"),
+                            concat(frame(1, "t 2\n"), frame(2, "err\n")));
+                }
+                if (r.getPath().equals("/containers/c1/wait")) {
+                    return response("200 OK", "{\"StatusCode\":3}");
+                }
+                return response("204 No Content", "");
+            });
+             DockerEngine engine = new DockerEngine(socket)) {
+            List<String> out = new ArrayList<>();
+            List<String> err = new ArrayList<>();
+            int exit = engine.run("debian:stretch",
+                    Arrays.asList("bash", "build.sh"),
+                    "/target",
+                    Arrays.asList("/tmp/x:/target"),
+                    out::add, err::add, Optional.empty());
+
+            assertEquals(3, exit);
+            assertEquals(Arrays.asList("out 1", "out 2"), out);
+            assertEquals(Arrays.asList("err"), err);
+            assertEquals(Arrays.asList(
+                    "POST /containers/create",
+                    "POST /containers/c1/start",
+                    "GET /containers/c1/logs?follow=1&stdout=1&stderr=1",
+                    "POST /containers/c1/wait",
+                    "DELETE /containers/c1?force=1"),
+                    daemon.getRequestLines());
+            String create = new String(daemon.getRequests().get(0).getBody(),
+                    StandardCharsets.UTF_8);
+            assertTrue(create.contains("\"Image\":\"debian:stretch\""));
+            assertTrue(create.contains("\"Cmd\":[\"bash\",\"build.sh\"]"));
+            assertTrue(create.contains("\"Binds\":[\"/tmp/x:/target\"]"));
+            assertEquals("connection is reused", 1,
+                    daemon.getConnections());
+        }
+    }
+
+    @Test
+    public void testRunWithTimeout() throws IOException {
+        try (StandInDaemon daemon = new StandInDaemon(socket, r -> {
+                if (r.getPath().equals("/containers/create")) {
+                    return response("201 Created", "{\"Id\":\"c1\"}");
+                }
+                if (r.getPath().startsWith("/containers/c1/logs")) {
+                    // head only, the body never ends
+                    return ("HTTP/1.1 200 OK\r\n"
+                            + "Transfer-Encoding: chunked\r\n\r\n")
+                            .getBytes(StandardCharsets.ISO_8859_1);
+                }
+                return response("204 No Content", "");
+            });
+             DockerEngine engine = new DockerEngine(socket)) {
+            try {
+                engine.run("debian:stretch",
+                        Arrays.asList("sleep", "100"),
+                        "/target",
+                        Collections.emptyList(),
+                        s -> { }, s -> { },
+                        Optional.of(Duration.ofMillis(200)));
+                fail("timeout expected");
+            } catch (BuildException ex) {
+                assertTrue(ex.getMessage().contains("timed out"));
+            }
+            assertTrue(daemon.getRequestLines()
+                    .contains("DELETE /containers/c1?force=1"));
+        }
+    }
+
+    @Test
+    public void testRunWithMissingImage() throws IOException {
+        try (StandInDaemon daemon = new StandInDaemon(socket, r ->
+                response("404 Not Found",
+                        "{\"message\":\"No such image: foo\"}"))) {
+            try (DockerEngine engine = new DockerEngine(socket)) {
+                engine.run("foo", Arrays.asList("true"), "/",
+                        Collections.emptyList(), s -> { }, s -> { },
+                        Optional.empty());
+                fail("exception expected");
+            } catch (IOException ex) {
+                assertTrue(ex.getMessage().contains("No such image: foo"));
+            }
+            assertEquals(Arrays.asList("POST /containers/create",
+                    "POST /images/create?fromImage=foo"),
+                    daemon.getRequestLines());
+        }
+    }
+
+    @Test
+    public void testRunPullsMissingImage() throws IOException {
+        AtomicBoolean pulled = new AtomicBoolean();
+        try (StandInDaemon daemon = new StandInDaemon(socket, r -> {
+                if (r.getPath().equals("/containers/create")) {
+                    if (!pulled.get()) {
+                        return response("404 Not Found",
+                                "{\"message\":\"No such image: foo:1\"}");
+                    }
+                    return response("201 Created", "{\"Id\":\"c1\"}");
+                }
+                if (r.getPath().startsWith("/images/create")) {
+                    pulled.set(true);
+                    return chunked(("{\"status\":\"Pulling foo\"}\r\n"
+                            + "{\"status\":\"Downloaded foo:1\"}")
+                            .getBytes(StandardCharsets.UTF_8));
+                }
+                if (r.getPath().startsWith("/containers/c1/logs")) {
+                    return chunked(frame(1, "done\n"));
+                }
+                if (r.getPath().equals("/containers/c1/wait")) {
+                    return response("200 OK", "{\"StatusCode\":0}");
+                }
+                return response("204 No Content", "");
+            });
+             DockerEngine engine = new DockerEngine(socket)) {
+            List<String> out = new ArrayList<>();
+            int exit = engine.run("foo:1", Arrays.asList("true"), "/",
+                    Collections.emptyList(), out::add, s -> { },
+                    Optional.empty());
+            assertEquals(0, exit);
+            assertEquals(Arrays.asList("done"), out);
+            assertEquals(Arrays.asList(
+                    "POST /containers/create",
+                    "POST /images/create?fromImage=foo%3A1",
+                    "POST /containers/create",
+                    "POST /containers/c1/start",
+                    "GET /containers/c1/logs?follow=1&stdout=1&stderr=1",
+                    "POST /containers/c1/wait",
+                    "DELETE /containers/c1?force=1"),
+                    daemon.getRequestLines());
+        }
+    }
+
+    @Test
+    public void testPullWithError() throws IOException {
+        try (StandInDaemon daemon = new StandInDaemon(socket, r ->
+                chunked(("{\"status\":\"Pulling foo\"}\r\n"
+                        + "{\"error\":\"manifest unknown\"}")
+                        .getBytes(StandardCharsets.UTF_8)))) {
+            List<String> output = new ArrayList<>();
+            try (DockerEngine engine = new DockerEngine(socket)) {
+                engine.pull("foo", output::add);
+                fail("exception expected");
+            } catch (BuildException ex) {
+                assertTrue(ex.getMessage().contains("manifest unknown"));
+            }
+            assertEquals(Arrays.asList("Pulling foo"), output);
+            assertEquals(Arrays.asList("POST /images/create?fromImage=foo"),
+                    daemon.getRequestLines());
+        }
+    }
+
+    @Test
+    public void testStats() throws IOException {
+        try (StandInDaemon daemon = new StandInDaemon(socket, r ->
+                response("200 OK", "{\"cpu_stats\":{\"cpu_usage\":"
+                        + "{\"usage_in_usermode\":1500000000,"
+                        + "\"usage_in_kernelmode\":250000000}},"
+                        + "\"memory_stats\":{\"usage\":1000,"
+                        + "\"max_usage\":4096},"
+                        + "\"blkio_stats\":{\"io_service_bytes_recursive\":["
+                        + "{\"op\":\"read\",\"value\":10},"
+                        + "{\"op\":\"Write\",\"value\":20},"
+                        + "{\"op\":\"Total\",\"value\":30}]}}"));
+             DockerEngine engine = new DockerEngine(socket)) {
+            assertEquals(new ResourceUsage(1500, 250, 4096, 10, 20),
+                    engine.stats("c1"));
+            assertEquals(Arrays.asList(
+                    "GET /containers/c1/stats?stream=false&one-shot=true"),
+                    daemon.getRequestLines());
+        }
+    }
+
+    @Test
+    public void testImageExists() throws IOException {
+        try (StandInDaemon daemon = new StandInDaemon(socket, r -> {
+                if (r.getPath().equals("/images/foo:1/json")) {
+                    return response("200 OK", "{\"Id\":\"sha256:1\"}");
+                }
+                return response("404 Not Found", "{\"message\":\"no\"}");
+            });
+             DockerEngine engine = new DockerEngine(socket)) {
+            assertTrue(engine.imageExists("foo:1"));
+            assertFalse(engine.imageExists("bar:1"));
+            assertEquals(1, daemon.getConnections());
+        }
+    }
+
+    @Test
+    public void testBuild() throws IOException {
+        Path context = Files.createDirectories(tmpDir.resolve("context"));
+        Files.write(context.resolve("Dockerfile"),
+                "FROM scratch\n".getBytes(StandardCharsets.UTF_8));
+        Files.createDirectories(context.resolve("sub"));
+        Files.write(context.resolve("sub/file"),
+                "hello".getBytes(StandardCharsets.UTF_8));
+        try (StandInDaemon daemon = new StandInDaemon(socket, r ->
+                chunked(("{\"stream\":\"Step 1/1 : FROM scratch\\n\"}\r\n"
+                        + "{\"stream\":\"Successfully tagged x:1\\n\"}")
+                        .getBytes(StandardCharsets.UTF_8)));
+             DockerEngine engine = new DockerEngine(socket)) {
+            List<String> output = new ArrayList<>();
+            engine.build(context, "Dockerfile", "x:1", output::add);
+            assertEquals(Arrays.asList("Step 1/1 : FROM scratch",
+                    "Successfully tagged x:1"), output);
+            assertEquals(Arrays.asList(
+                    "POST /build?t=x%3A1&dockerfile=Dockerfile"),
+                    daemon.getRequestLines());
+
+            List<String> names = new ArrayList<>();
+            try (TarArchiveInputStream tar = new TarArchiveInputStream(
+                    new ByteArrayInputStream(daemon.getRequests().get(0).getBody()))) {
+                TarArchiveEntry entry;
+                while ((entry = tar.getNextEntry()) != null) {
+                    names.add(entry.getName());
+                }
+            }
+            assertEquals(Arrays.asList("Dockerfile", "sub/", "sub/file"),
+                    names);
+        }
+    }
+
+    @Test
+    public void testBuildWithError() throws IOException {
+        Path context = Files.createDirectories(tmpDir.resolve("context"));
+        try (StandInDaemon daemon = new StandInDaemon(socket, r ->
+                chunked(("{\"error\":\"Cannot locate Dockerfile\"}")
+                        .getBytes(StandardCharsets.UTF_8)))) {
+            try (DockerEngine engine = new DockerEngine(socket)) {
+                engine.build(context, "Dockerfile", "x:1", s -> { });
+                fail("exception expected");
+            } catch (BuildException ex) {
+                assertTrue(ex.getMessage()
+                        .contains("Cannot locate Dockerfile"));
+            }
+            assertEquals(Arrays.asList(
+                    "POST /build?t=x%3A1&dockerfile=Dockerfile"),
+                    daemon.getRequestLines());
+        }
+    }
+}
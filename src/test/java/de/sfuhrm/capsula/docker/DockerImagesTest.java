@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.docker;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.sfuhrm.capsula.trace.Tracer;
+import de.sfuhrm.capsula.yaml.DockerImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link DockerImages}.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class DockerImagesTest {
+
+    private Path dockerfile;
+
+    @Before
+    public void before() throws IOException {
+        dockerfile = Files.createTempFile("Dockerfile", "");
+    }
+
+    @After
+    public void after() throws IOException {
+        Files.delete(dockerfile);
+    }
+
+    @Test
+    public void testDockerfileTagFormat() throws IOException {
+        Files.write(dockerfile,
+                "FROM debian:stretch\n".getBytes(StandardCharsets.UTF_8));
+        String tag = DockerImages.getDockerfileTag(dockerfile);
+        assertTrue(tag, tag.matches("capsula-[0-9a-f]{16}"));
+    }
+
+    @Test
+    public void testDockerfileTagDependsOnContent() throws IOException {
+        Files.write(dockerfile,
+                "FROM debian:stretch\n".getBytes(StandardCharsets.UTF_8));
+        String first = DockerImages.getDockerfileTag(dockerfile);
+        assertEquals(first, DockerImages.getDockerfileTag(dockerfile));
+        Files.write(dockerfile,
+                "FROM debian:buster\n".getBytes(StandardCharsets.UTF_8));
+        assertNotEquals(first, DockerImages.getDockerfileTag(dockerfile));
+    }
+
+    @Test
+    public void testPrepareAfterFailure() throws IOException {
+        AtomicInteger exitValue = new AtomicInteger(1);
+        List<List<String>> commands = new ArrayList<>();
+        DockerImages images = new DockerImages(null,
+                (command, directory) -> {
+                    synchronized (commands) {
+                        commands.add(command);
+                    }
+                    if (command.get(1).equals("image")) {
+                        return 1;
+                    }
+                    return exitValue.get();
+                });
+        DockerImage image = new ObjectMapper().readValue(
+                "{\"pull\":\"capsula/test\"}", DockerImage.class);
+        Path directory = dockerfile.getParent();
+
+        try {
+            images.prepare(image, directory, Tracer.DISABLED).join();
+            fail("pull did not fail");
+        } catch (CompletionException ex) {
+            assertTrue(ex.getCause().getMessage(),
+                    ex.getCause().getMessage().contains("capsula/test"));
+        }
+
+        exitValue.set(0);
+        assertEquals("capsula/test",
+                images.prepare(image, directory, Tracer.DISABLED).join());
+        assertEquals("capsula/test",
+                images.prepare(image, directory, Tracer.DISABLED).join());
+        List<String> inspect = Arrays.asList("docker", "image", "inspect",
+                "--format", "{{.Id}}", "capsula/test");
+        List<String> pull = Arrays.asList("docker", "pull", "capsula/test");
+        assertEquals(Arrays.asList(inspect, pull, inspect, pull), commands);
+    }
+
+    @Test
+    public void testPullSkipsExistingImage() throws IOException {
+        List<List<String>> commands = new ArrayList<>();
+        DockerImages images = new DockerImages(null,
+                (command, directory) -> {
+                    commands.add(command);
+                    return 0;
+                });
+        DockerImage image = new ObjectMapper().readValue(
+                "{\"pull\":\"capsula/test\"}", DockerImage.class);
+
+        assertEquals("capsula/test", images.prepare(image,
+                dockerfile.getParent(), Tracer.DISABLED).join());
+        assertEquals(Arrays.asList(Arrays.asList("docker", "image",
+                "inspect", "--format", "{{.Id}}", "capsula/test")),
+                commands);
+    }
+
+    @Test
+    public void testPrepareWithEngine() throws IOException {
+        Path tmpDir = Files.createTempDirectory("images");
+        Path socket = tmpDir.resolve("docker.sock");
+        try (StandInDaemon daemon = new StandInDaemon(socket, r -> {
+                if (r.getPath().endsWith("/json")) {
+                    return StandInDaemon.response("404 Not Found",
+                            "{\"message\":\"No such image\"}");
+                }
+                return StandInDaemon.chunked("{\"status\":\"Done\"}"
+                        .getBytes(StandardCharsets.UTF_8));
+            });
+             DockerEngine engine = new DockerEngine(socket)) {
+            DockerImages images = new DockerImages(engine,
+                    (command, directory) -> {
+                        throw new IOException("no command expected");
+                    });
+            DockerImage image = new ObjectMapper().readValue(
+                    "{\"pull\":\"capsula/test\"}", DockerImage.class);
+
+            assertEquals("capsula/test", images.prepare(image,
+                    dockerfile.getParent(), Tracer.DISABLED).join());
+            assertEquals(Arrays.asList(
+                    "GET /images/capsula/test/json",
+                    "POST /images/create?fromImage=capsula%2Ftest"),
+                    daemon.getRequestLines());
+        } finally {
+            de.sfuhrm.capsula.FileUtils.deleteRecursive(tmpDir);
+        }
+    }
+}
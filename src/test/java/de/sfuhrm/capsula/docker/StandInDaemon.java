@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.docker;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A stand-in for the docker daemon speaking HTTP on a Unix socket.
+ * Records the requests and answers them with a handler.
+ *
+ * @author Stephan Fuhrmann
+ */
+final class StandInDaemon implements AutoCloseable {
+
+    /** The content type of a raw stream that ends with the connection. */
+    private static final String RAW_STREAM =
+            "application/vnd.docker.raw-stream";
+
+    /** A request received by the stand-in daemon. */
+    static final class Request {
+        private final String method;
+        private final String path;
+        private final byte[] body;
+
+        private Request(String method, String path, byte[] body) {
+            this.method = method;
+            this.path = path;
+            this.body = body;
+        }
+
+        String getPath() {
+            return path;
+        }
+
+        byte[] getBody() {
+            return body;
+        }
+
+        @Override
+        public String toString() {
+            return method + " " + path;
+        }
+    }
+
+    private final ServerSocketChannel server;
+    private final List<Request> requests =
+            Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Function<Request, byte[]> handler;
+
+    StandInDaemon(Path socket, Function<Request, byte[]> handler)
+            throws IOException {
+        this.handler = handler;
+        server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(socket));
+        Thread.ofVirtual().start(this::accept);
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                SocketChannel channel = server.accept();
+                connections.incrementAndGet();
+                Thread.ofVirtual().start(() -> serve(channel));
+            }
+        } catch (IOException ex) {
+            // server closed
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        try (SocketChannel c = channel) {
+            InputStream in = new BufferedInputStream(
+                    Channels.newInputStream(c));
+            OutputStream out = Channels.newOutputStream(c);
+            String line;
+            while ((line = readLine(in)) != null) {
+                String[] parts = line.split(" ");
+                int length = 0;
+                while (!(line = readLine(in)).isEmpty()) {
+                    if (line.toLowerCase().startsWith("content-length:")) {
+                        length = Integer.parseInt(line.substring(15).trim());
+                    }
+                }
+                byte[] body = in.readNBytes(length);
+                Request request = new Request(parts[0], parts[1], body);
+                requests.add(request);
+                byte[] response = handler.apply(request);
+                if (response.length == 0) {
+                    // hang up without an answer
+                    break;
+                }
+                out.write(response);
+                out.flush();
+                if (new String(response, StandardCharsets.ISO_8859_1)
+                        .contains(RAW_STREAM)) {
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            // client gone
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                return null;
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        return line.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    List<Request> getRequests() {
+        return requests;
+    }
+
+    List<String> getRequestLines() {
+        List<String> result = new ArrayList<>();
+        synchronized (requests) {
+            requests.forEach(r -> result.add(r.toString()));
+        }
+        return result;
+    }
+
+    int getConnections() {
+        return connections.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+    }
+
+    /** A response with a content length. */
+    static byte[] response(String status, String body) {
+        byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + content.length + "\r\n\r\n";
+        return concat(head.getBytes(StandardCharsets.ISO_8859_1), content);
+    }
+
+    /** A response with chunked transfer encoding. */
+    static byte[] chunked(byte[]... chunks) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(("HTTP/1.1 200 OK\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n")
+                .getBytes(StandardCharsets.ISO_8859_1));
+        for (byte[] chunk : chunks) {
+            out.writeBytes((Integer.toHexString(chunk.length) + "\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            out.writeBytes(chunk);
+            out.writeBytes("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+        out.writeBytes("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        return out.toByteArray();
+    }
+
+    /** A raw stream response that ends when the connection is closed. */
+    static byte[] raw(byte[]... parts) {
+        String head = "HTTP/1.1 200 OK\r\n"
+                + "Content-Type: " + RAW_STREAM + "\r\n\r\n";
+        return concat(head.getBytes(StandardCharsets.ISO_8859_1),
+                concat(parts));
+    }
+
+    /** A frame of a multiplexed log stream. */
+    static byte[] frame(int stream, String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + payload.length);
+        buffer.put((byte) stream).put(new byte[3]).putInt(payload.length);
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Arrays.stream(parts).forEach(out::writeBytes);
+        return out.toByteArray();
+    }
+}
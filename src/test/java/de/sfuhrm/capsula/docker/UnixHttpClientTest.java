@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.docker;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static de.sfuhrm.capsula.docker.StandInDaemon.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link UnixHttpClient} against a stand-in daemon.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class UnixHttpClientTest {
+
+    private Path tmpDir;
+    private Path socket;
+
+    @Before
+    public void before() throws IOException {
+        tmpDir = Files.createTempDirectory("http");
+        socket = tmpDir.resolve("docker.sock");
+    }
+
+    @After
+    public void after() throws IOException {
+        de.sfuhrm.capsula.FileUtils.deleteRecursive(tmpDir);
+    }
+
+    /** Answers the first request and hangs up on the next one
+     * of the same connection. */
+    private static StandInDaemon hangUpAfterFirst(Path socket)
+            throws IOException {
+        AtomicInteger count = new AtomicInteger();
+        return new StandInDaemon(socket, r -> {
+            if (count.incrementAndGet() == 2) {
+                return new byte[0];
+            }
+            return response("200 OK", "{}");
+        });
+    }
+
+    @Test
+    public void testGetIsRetriedOnNewConnection() throws IOException {
+        try (StandInDaemon daemon = hangUpAfterFirst(socket);
+             UnixHttpClient client = new UnixHttpClient(socket)) {
+            try (UnixHttpClient.Response response =
+                         client.execute("GET", "/a", null, null)) {
+                assertEquals("{}", response.readBody());
+            }
+            try (UnixHttpClient.Response response =
+                         client.execute("GET", "/b", null, null)) {
+                assertEquals("{}", response.readBody());
+            }
+            assertEquals(Arrays.asList("GET /a", "GET /b", "GET /b"),
+                    daemon.getRequestLines());
+            assertEquals(2, daemon.getConnections());
+        }
+    }
+
+    @Test
+    public void testPostIsNotRetried() throws IOException {
+        try (StandInDaemon daemon = hangUpAfterFirst(socket);
+             UnixHttpClient client = new UnixHttpClient(socket)) {
+            try (UnixHttpClient.Response response =
+                         client.execute("GET", "/a", null, null)) {
+                assertEquals("{}", response.readBody());
+            }
+            try {
+                client.execute("POST", "/b", null, null).close();
+                fail("exception expected");
+            } catch (IOException ex) {
+                assertTrue(ex.getMessage().contains("closed"));
+            }
+            assertEquals(Arrays.asList("GET /a", "POST /b"),
+                    daemon.getRequestLines());
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void testCloseWithUnreadBodyDoesNotBlock() throws IOException {
+        // announces more body than is sent
+        byte[] partial = ("HTTP/1.1 200 OK\r\nContent-Length: 10\r\n\r\n"
+                + "12345").getBytes(StandardCharsets.ISO_8859_1);
+        try (StandInDaemon daemon = new StandInDaemon(socket, r -> {
+                if (r.getPath().equals("/partial")) {
+                    return partial;
+                }
+                return response("200 OK", "{}");
+            });
+             UnixHttpClient client = new UnixHttpClient(socket)) {
+            client.execute("GET", "/partial", null, null).close();
+            try (UnixHttpClient.Response response =
+                         client.execute("GET", "/a", null, null)) {
+                assertEquals("{}", response.readBody());
+            }
+            assertEquals("incomplete connection is not reused", 2,
+                    daemon.getConnections());
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetbuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import static org.junit.Assert.*;
+
+import de.sfuhrm.capsula.FileUtils;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link ArchiveDelegate}.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class ArchiveDelegateTest {
+
+    private Path tmpDir;
+
+    @Before
+    public void before() throws IOException {
+        tmpDir = Files.createTempDirectory("capsula");
+    }
+
+    @After
+    public void after() throws IOException {
+        FileUtils.deleteRecursive(tmpDir);
+    }
+
+    @Test
+    public void testArchive() throws IOException {
+        Path project = tmpDir.resolve("project-1.0");
+        Files.createDirectories(project.resolve("src"));
+        Files.write(project.resolve("b.txt"),
+                "bbb".getBytes(StandardCharsets.UTF_8));
+        Files.write(project.resolve("a.sh"),
+                "aaa".getBytes(StandardCharsets.UTF_8));
+        Files.setPosixFilePermissions(project.resolve("a.sh"),
+                PosixFilePermissions.fromString("rwxr-xr-x"));
+        Files.write(project.resolve("src").resolve("c.txt"),
+                "ccc".getBytes(StandardCharsets.UTF_8));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ArchiveDelegate.archive(project, out);
+
+        List<String> names = new ArrayList<>();
+        try (TarArchiveInputStream in = new TarArchiveInputStream(
+                new GZIPInputStream(
+                        new ByteArrayInputStream(out.toByteArray())))) {
+            TarArchiveEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                names.add(entry.getName());
+                assertEquals(0, entry.getLongUserId());
+                if (entry.getName().endsWith("a.sh")) {
+                    assertEquals(0755, entry.getMode() & 0777);
+                }
+                if (entry.getName().endsWith("c.txt")) {
+                    assertEquals("ccc", new String(in.readAllBytes(),
+                            StandardCharsets.UTF_8));
+                }
+            }
+        }
+        assertEquals(Arrays.asList(
+                "project-1.0/",
+                "project-1.0/a.sh",
+                "project-1.0/b.txt",
+                "project-1.0/src/",
+                "project-1.0/src/c.txt"), names);
+    }
+}
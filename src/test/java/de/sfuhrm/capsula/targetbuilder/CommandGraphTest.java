@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetbuilder;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import de.sfuhrm.capsula.BuildException;
+import de.sfuhrm.capsula.yaml.command.Command;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link CommandGraph}.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class CommandGraphTest {
+
+    private static List<Command> commands(String yaml) throws IOException {
+        ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
+        return mapper.readValue(yaml, new TypeReference<List<Command>>() { });
+    }
+
+    @Test
+    public void testWithoutDependencies() throws IOException {
+        CommandGraph graph = new CommandGraph(commands(
+                "- run: {command: a}\n"
+                + "- run: {command: b}\n"
+                + "- run: {command: c}\n"), "p");
+        assertTrue(graph.isSequential());
+        assertEquals(Arrays.asList("p0", "p1", "p2"), graph.getCommandIds());
+    }
+
+    @Test
+    public void testWithDependencies() throws IOException {
+        CommandGraph graph = new CommandGraph(commands(
+                "- after: [last]\n"
+                + "  run: {command: a}\n"
+                + "- after: []\n"
+                + "  run: {command: b}\n"
+                + "- id: last\n"
+                + "  run: {command: c}\n"), "p");
+        assertFalse(graph.isSequential());
+        assertEquals(Arrays.asList("p1", "p2", "p0"), graph.getCommandIds());
+    }
+
+    @Test(expected = BuildException.class)
+    public void testWithCycle() throws IOException {
+        new CommandGraph(commands(
+                "- id: a\n"
+                + "  after: [b]\n"
+                + "  run: {command: a}\n"
+                + "- id: b\n"
+                + "  after: [a]\n"
+                + "  run: {command: b}\n"), "p");
+    }
+
+    @Test(expected = BuildException.class)
+    public void testWithUnknownId() throws IOException {
+        new CommandGraph(commands(
+                "- after: [unknown]\n"
+                + "  run: {command: a}\n"), "p");
+    }
+
+    @Test(expected = BuildException.class)
+    public void testWithDuplicateId() throws IOException {
+        new CommandGraph(commands(
+                "- id: a\n"
+                + "  run: {command: a}\n"
+                + "- id: a\n"
+                + "  run: {command: b}\n"), "p");
+    }
+
+    @Test
+    public void testExecuteWithDependencies() throws IOException {
+        CommandGraph graph = new CommandGraph(commands(
+                "- id: first\n"
+                + "  after: []\n"
+                + "  run: {command: a}\n"
+                + "- after: []\n"
+                + "  run: {command: b}\n"
+                + "- after: [first]\n"
+                + "  run: {command: c}\n"), "p");
+        List<String> executed = Collections.synchronizedList(
+                new ArrayList<>());
+        graph.execute((c, id) -> executed.add(c.getRun().getCommand()), 4);
+        assertEquals(3, executed.size());
+        assertTrue(executed.indexOf("a") < executed.indexOf("c"));
+    }
+
+    @Test(expected = BuildException.class)
+    public void testExecuteWithFailure() throws IOException {
+        CommandGraph graph = new CommandGraph(commands(
+                "- after: []\n"
+                + "  run: {command: a}\n"
+                + "- run: {command: b}\n"), "p");
+        graph.execute((c, id) -> {
+            throw new BuildException("failed " + id);
+        }, 2);
+    }
+
+    @Test
+    public void testExecuteWithFailureInterruptsRunning()
+            throws IOException, InterruptedException {
+        CommandGraph graph = new CommandGraph(commands(
+                "- after: []\n"
+                + "  run: {command: fail}\n"
+                + "- after: []\n"
+                + "  run: {command: hang}\n"), "p");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        try {
+            graph.execute((c, id) -> {
+                try {
+                    if (c.getRun().getCommand().equals("fail")) {
+                        started.await();
+                        throw new BuildException("failed " + id);
+                    }
+                    started.countDown();
+                    Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                } catch (InterruptedException ex) {
+                    interrupted.countDown();
+                }
+            }, 2);
+            fail();
+        } catch (BuildException ex) {
+            assertEquals("failed p0", ex.getMessage());
+        }
+        assertTrue(interrupted.await(1, TimeUnit.MINUTES));
+    }
+
+    @Test
+    public void testExecuteWithFailureWaitsForRunning()
+            throws IOException {
+        CommandGraph graph = new CommandGraph(commands(
+                "- after: []\n"
+                + "  run: {command: fail}\n"
+                + "- after: []\n"
+                + "  run: {command: slow}\n"), "p");
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicBoolean stopped = new AtomicBoolean();
+        try {
+            graph.execute((c, id) -> {
+                try {
+                    if (c.getRun().getCommand().equals("fail")) {
+                        started.await();
+                        throw new BuildException("failed " + id);
+                    }
+                    started.countDown();
+                    Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                } catch (InterruptedException ex) {
+                    // cleaning up after the interrupt takes a while
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    stopped.set(true);
+                }
+            }, 2);
+            fail();
+        } catch (BuildException ex) {
+            assertEquals("failed p0", ex.getMessage());
+        }
+        assertTrue(stopped.get());
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetbuilder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.sfuhrm.capsula.FileUtils;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Optional;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link InputRecord}.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class InputRecordTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private JsonNode descriptor;
+
+    @Before
+    public void before() throws IOException {
+        descriptor = MAPPER.readTree("{\"packageName\":\"foo\","
+                + "\"debian\":{\"section\":\"utils\"},"
+                + "\"versions\":[{\"version\":\"1.0.0\"}]}");
+    }
+
+    private JsonNode change(final String json) throws IOException {
+        return MAPPER.readTree(json);
+    }
+
+    @Test
+    public void testParse() {
+        assertEquals(Arrays.asList("versions", "[0]", "version"),
+                InputRecord.parse("capsula.versions[0].version"));
+        assertEquals(Arrays.asList(), InputRecord.parse("capsula"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseWithWrongRoot() {
+        InputRecord.parse("other.packageName");
+    }
+
+    @Test
+    public void testGet() {
+        assertEquals("1.0.0", InputRecord.get(descriptor,
+                "capsula.versions[0].version").asText());
+        assertTrue(InputRecord.get(descriptor,
+                "capsula.redhat.group").isMissingNode());
+    }
+
+    @Test
+    public void testCreateCutsUnknownPaths() {
+        InputRecord record = InputRecord.create("key",
+                Arrays.asList("capsula.debian.section",
+                        "capsula.debian.getSection"),
+                descriptor);
+        assertEquals(2, record.getInputs().size());
+        assertTrue(record.getInputs().containsKey("capsula.debian"));
+        assertTrue(record.getInputs().containsKey(
+                "capsula.debian.section"));
+    }
+
+    @Test
+    public void testMatches() throws IOException {
+        InputRecord record = InputRecord.create("key",
+                Arrays.asList("capsula.versions[0].version"),
+                descriptor);
+        assertTrue(record.matches("key", descriptor));
+        assertFalse(record.matches("other", descriptor));
+        assertTrue(record.matches("key", change("{\"packageName\":\"bar\","
+                + "\"versions\":[{\"version\":\"1.0.0\"}]}")));
+        assertFalse(record.matches("key", change("{\"packageName\":\"foo\","
+                + "\"versions\":[{\"version\":\"1.0.1\"}]}")));
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        Path tmp = Files.createTempDirectory("inputrecord");
+        try {
+            Path file = tmp.resolve("inputs.json");
+            InputRecord record = InputRecord.create("key",
+                    Arrays.asList("capsula.packageName"), descriptor);
+            record.write(file);
+            Optional<InputRecord> read = InputRecord.read(file);
+            assertTrue(read.isPresent());
+            assertEquals("key", read.get().getKey());
+            assertTrue(read.get().matches("key", descriptor));
+            assertFalse(InputRecord.read(tmp.resolve("missing"))
+                    .isPresent());
+        } finally {
+            FileUtils.deleteRecursive(tmp);
+        }
+    }
+}
@@ -18,7 +18,9 @@
 package de.sfuhrm.capsula.targetbuilder;
 
 import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import static org.junit.Assert.*;
 
@@ -45,4 +47,57 @@ public class InputStreamConsumerTest {
                 Arrays.asList("Foo", "bar", "baz"),
                 lines);
     }
+
+    @Test
+    public void testRunWithCarriageReturnAndMissingTerminator() {
+        final List<String> lines = new ArrayList<>();
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(
+                "Foo\r\nbär\nbaz".getBytes(StandardCharsets.UTF_8));
+        new InputStreamConsumer(inputStream, lines::add,
+                StandardCharsets.UTF_8).run();
+
+        assertEquals(Arrays.asList("Foo", "bär", "baz"), lines);
+    }
+
+    @Test
+    public void testRunWithChunks() {
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            expected.append("line ").append(i).append('\n');
+        }
+        // a line longer than the initial buffer
+        for (int i = 0; i < InputStreamConsumer.BUFFER_SIZE * 3; i++) {
+            expected.append('x');
+        }
+        expected.append('\n');
+        byte[] data = expected.toString().getBytes(StandardCharsets.UTF_8);
+
+        final List<ByteBuffer> chunks = new ArrayList<>();
+        new InputStreamConsumer(new ByteArrayInputStream(data), chunk -> {
+            ByteBuffer copy = ByteBuffer.allocate(chunk.remaining());
+            copy.put(chunk.duplicate()).flip();
+            chunks.add(copy);
+        }).run();
+
+        assertTrue(chunks.size() > 1);
+        ByteBuffer joined = ByteBuffer.allocate(data.length);
+        for (ByteBuffer chunk : chunks) {
+            assertEquals("chunk ends with a complete line",
+                    '\n', chunk.get(chunk.limit() - 1));
+            joined.put(chunk);
+        }
+        assertArrayEquals(data, joined.array());
+    }
+
+    @Test
+    public void testRunWithTooLongLine() {
+        byte[] data = new byte[InputStreamConsumer.MAX_BUFFER_SIZE + 10];
+        Arrays.fill(data, (byte) 'x');
+        final List<Integer> sizes = new ArrayList<>();
+        new InputStreamConsumer(new ByteArrayInputStream(data),
+                chunk -> sizes.add(chunk.remaining())).run();
+
+        assertEquals(Arrays.asList(InputStreamConsumer.MAX_BUFFER_SIZE, 10),
+                sizes);
+    }
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetbuilder;
+
+import com.google.common.io.ByteStreams;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link ParallelGzipOutputStream}.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class ParallelGzipOutputStreamTest {
+
+    private static byte[] roundTrip(byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream out = new ParallelGzipOutputStream(
+                compressed, ForkJoinPool.commonPool(), 4,
+                Deflater.DEFAULT_COMPRESSION)) {
+            out.write(data, 0, data.length / 2);
+            out.write(data, data.length / 2, data.length - data.length / 2);
+        }
+        try (GZIPInputStream in = new GZIPInputStream(
+                new ByteArrayInputStream(compressed.toByteArray()))) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        assertArrayEquals(new byte[0], roundTrip(new byte[0]));
+    }
+
+    @Test
+    public void testSmall() throws IOException {
+        byte[] data = "Hello World".getBytes("UTF-8");
+        assertArrayEquals(data, roundTrip(data));
+    }
+
+    @Test
+    public void testMultipleBlocksRandom() throws IOException {
+        byte[] data = new byte[ParallelGzipOutputStream.BLOCK_SIZE * 5 + 17];
+        new Random(42).nextBytes(data);
+        assertArrayEquals(data, roundTrip(data));
+    }
+
+    @Test
+    public void testMultipleBlocksRepetitive() throws IOException {
+        byte[] data = new byte[ParallelGzipOutputStream.BLOCK_SIZE * 3];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ("capsula".charAt(i % 7));
+        }
+        assertArrayEquals(data, roundTrip(data));
+    }
+
+    @Test
+    public void testExactBlockSize() throws IOException {
+        byte[] data = new byte[ParallelGzipOutputStream.BLOCK_SIZE * 2];
+        new Random(1).nextBytes(data);
+        assertArrayEquals(data, roundTrip(data));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetbuilder;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link PropertyTracker}.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class PropertyTrackerTest {
+
+    private PropertyTracker tracker;
+    private Map<String, Object> descriptor;
+
+    @Before
+    public void before() {
+        tracker = new PropertyTracker(SharedTemplates.OBJECT_WRAPPER);
+        Map<String, Object> debian = new LinkedHashMap<>();
+        debian.put("section", "utils");
+        debian.put("priority", "optional");
+        Map<String, Object> version = new LinkedHashMap<>();
+        version.put("version", "1.0.0");
+        descriptor = new LinkedHashMap<>();
+        descriptor.put("packageName", "foo");
+        descriptor.put("debian", debian);
+        descriptor.put("versions", Arrays.asList(version));
+    }
+
+    private String render(final String source)
+            throws IOException, TemplateException {
+        Configuration configuration =
+                new Configuration(Configuration.VERSION_2_3_23);
+        Template template = new Template("test", source, configuration);
+        Map<String, Object> model = new HashMap<>();
+        model.put(InputRecord.ROOT,
+                tracker.track(descriptor, InputRecord.ROOT));
+        StringWriter writer = new StringWriter();
+        template.process(model, writer);
+        return writer.toString();
+    }
+
+    @Test
+    public void testLeaf() throws IOException, TemplateException {
+        String result = render("${capsula.debian.section}");
+        assertEquals("utils", result);
+        assertEquals(Collections.singleton("capsula.debian.section"),
+                tracker.getPaths());
+    }
+
+    @Test
+    public void testSequence() throws IOException, TemplateException {
+        String result = render("${capsula.versions[0].version}");
+        assertEquals("1.0.0", result);
+        assertTrue(tracker.getPaths().contains(
+                "capsula.versions[0].version"));
+    }
+
+    @Test
+    public void testMissing() throws IOException, TemplateException {
+        String result = render("${capsula.redhat!\"none\"}");
+        assertEquals("none", result);
+        assertEquals(Collections.singleton("capsula.redhat"),
+                tracker.getPaths());
+    }
+
+    @Test
+    public void testIteration() throws IOException, TemplateException {
+        render("<#list capsula.versions as v>${v.version}</#list>");
+        assertTrue(tracker.getPaths().contains("capsula.versions"));
+    }
+
+    /** A bean with a method like the descriptor objects have. */
+    public static class Relations {
+        public String getName() {
+            return "bar";
+        }
+
+        public String relationsFor(final String type) {
+            return type + "-" + getName();
+        }
+    }
+
+    @Test
+    public void testMethod() throws IOException, TemplateException {
+        descriptor.put("redhat", new Relations());
+        String result = render("${capsula.redhat.relationsFor(\"x\")}");
+        assertEquals("x-bar", result);
+        assertEquals(Collections.singleton("capsula.redhat.relationsFor"),
+                tracker.getPaths());
+    }
+
+    @Test
+    public void testUnreadNotRecorded() throws IOException, TemplateException {
+        render("${capsula.packageName}");
+        assertEquals(Collections.singleton("capsula.packageName"),
+                tracker.getPaths());
+    }
+}
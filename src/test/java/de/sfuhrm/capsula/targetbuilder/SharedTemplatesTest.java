@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetbuilder;
+
+import de.sfuhrm.capsula.FileUtils;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link SharedTemplates}.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class SharedTemplatesTest {
+
+    private Path tmp;
+    private Path layouts1;
+    private Path layouts2;
+    private Path includes;
+
+    @Before
+    public void before() throws IOException {
+        tmp = Files.createTempDirectory("sharedtemplates");
+        layouts1 = Files.createDirectory(tmp.resolve("layout1"));
+        layouts2 = Files.createDirectory(tmp.resolve("layout2"));
+        includes = Files.createDirectory(tmp.resolve("include"));
+        write(includes.resolve("inc.txt"), "shared");
+        write(layouts1.resolve("layout.yaml"),
+                "<#include \"inc.txt\"> <#include \"/include/inc.txt\">");
+        write(layouts2.resolve("layout.yaml"),
+                "<#include \"inc.txt\"> <#include \"/include/inc.txt\">");
+        write(layouts2.resolve("inc.txt"), "own");
+    }
+
+    @After
+    public void after() {
+        FileUtils.deleteRecursive(tmp);
+    }
+
+    private static void write(final Path file, final String content)
+            throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String render(final Template template)
+            throws IOException, TemplateException {
+        StringWriter writer = new StringWriter();
+        template.process(Collections.emptyMap(), writer);
+        return writer.toString();
+    }
+
+    @Test
+    public void testIncludeLookup() throws IOException, TemplateException {
+        try (SharedTemplates.Registration r1 =
+                     SharedTemplates.register(layouts1, includes);
+             SharedTemplates.Registration r2 =
+                     SharedTemplates.register(layouts2, includes)) {
+            assertEquals("shared shared",
+                    render(r1.getTemplate("layout.yaml")));
+            assertEquals("own shared",
+                    render(r2.getTemplate("layout.yaml")));
+        }
+    }
+
+    @Test
+    public void testTemplateIsCached() throws IOException {
+        try (SharedTemplates.Registration r1 =
+                     SharedTemplates.register(layouts1, includes)) {
+            assertSame(r1.getTemplate("layout.yaml"),
+                    r1.getTemplate("layout.yaml"));
+        }
+    }
+
+    @Test
+    public void testChangedTemplateIsReloaded()
+            throws IOException, TemplateException {
+        try (SharedTemplates.Registration r1 =
+                     SharedTemplates.register(layouts1, includes)) {
+            assertEquals("shared shared",
+                    render(r1.getTemplate("layout.yaml")));
+            write(layouts1.resolve("layout.yaml"), "changed");
+            Files.setLastModifiedTime(layouts1.resolve("layout.yaml"),
+                    FileTime.fromMillis(
+                            System.currentTimeMillis() + 10000));
+            assertEquals("changed", render(r1.getTemplate("layout.yaml")));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testReleasedLayoutIsGone() throws IOException {
+        SharedTemplates.Registration r1 =
+                SharedTemplates.register(layouts1, includes);
+        r1.close();
+        r1.getTemplate("layout.yaml");
+    }
+}
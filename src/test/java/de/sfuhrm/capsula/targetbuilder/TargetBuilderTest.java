@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetbuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import de.sfuhrm.capsula.FileUtils;
+import de.sfuhrm.capsula.Stage;
+import de.sfuhrm.capsula.docker.DockerImages;
+import de.sfuhrm.capsula.yaml.Capsula;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link TargetBuilder}.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class TargetBuilderTest {
+
+    private Path tmp;
+    private Path layoutDirectory;
+    private Capsula build;
+
+    @Before
+    public void before() throws IOException {
+        tmp = Files.createTempDirectory("targetbuilder");
+        layoutDirectory = Files.createDirectory(tmp.resolve("layout"));
+        build = new ObjectMapper(new YAMLFactory()).readValue(
+                "packageName: test\n"
+                + "versions:\n"
+                + "- version: 1.0.0\n"
+                + "  release: 1\n",
+                Capsula.class);
+    }
+
+    @After
+    public void after() {
+        FileUtils.deleteRecursive(tmp);
+    }
+
+    private static void write(final Path file, final String content)
+            throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testDockerExecWithoutEngine() throws IOException {
+        write(layoutDirectory.resolve("layout.yaml"),
+                "id: test\n"
+                + "name: Test\n"
+                + "prepare: []\n"
+                + "image:\n"
+                + "  pull: capsula/test\n"
+                + "build:\n"
+                + "- dockerExec:\n"
+                + "    command: true\n");
+        TargetBuilder builder = new TargetBuilder(build, tmp, "test",
+                layoutDirectory, Stage.BUILD, false, tmp.resolve("out"));
+        builder.setDockerImages(new DockerImages(null,
+                (command, directory) -> 0));
+
+        TargetBuilder.Result result = builder.call();
+
+        // without a docker client the command fails to start,
+        // but it needs to be the docker run fallback
+        String log = new String(Files.readAllBytes(builder.getLogFile()),
+                StandardCharsets.UTF_8);
+        assertTrue(log + result.getFailure(),
+                log.contains("$ docker run --rm -v"
+                        + builder.getTargetPath() + ":/target -w/target "
+                        + "capsula/test true"));
+        if (!result.isSuccess()) {
+            assertFalse(result.getFailure().toString(),
+                    result.getFailure().getMessage().contains("socket"));
+        }
+    }
+
+    @Test
+    public void testPrepareReusesTargetPath() throws IOException {
+        write(layoutDirectory.resolve("layout.yaml"),
+                "id: test\n"
+                + "name: Test\n"
+                + "prepare:\n"
+                + "- template:\n"
+                + "    from: build.sh.ftl\n"
+                + "    to: build.sh\n"
+                + "- mkdir:\n"
+                + "    to: sources\n"
+                + "- move:\n"
+                + "    from: sources\n"
+                + "    to: test-1.0.0\n"
+                + "- archive:\n"
+                + "    from: test-1.0.0\n"
+                + "    to: test-1.0.0.tar.gz\n"
+                + "build: []\n");
+        write(layoutDirectory.resolve("build.sh.ftl"),
+                "echo ${capsula.packageName}\n");
+        FileTime old = FileTime.fromMillis(0);
+
+        for (int i = 0; i < 2; i++) {
+            TargetBuilder builder = new TargetBuilder(build, tmp, "test",
+                    layoutDirectory, Stage.PREPARE, false,
+                    tmp.resolve("out"));
+            TargetBuilder.Result result = builder.call();
+            assertTrue(String.valueOf(result.getFailure()),
+                    result.isSuccess());
+            Path script = builder.getTargetPath().resolve("build.sh");
+            if (i > 0) {
+                // the unchanged template output was not rewritten
+                assertEquals(old, Files.getLastModifiedTime(script));
+            }
+            Files.setLastModifiedTime(script, old);
+            assertTrue(Files.isDirectory(
+                    builder.getTargetPath().resolve("test-1.0.0")));
+        }
+    }
+
+    @Test
+    public void testRebuildWithUnchangedInputs() throws IOException {
+        build = new ObjectMapper(new YAMLFactory()).readValue(
+                "packageName: test\n"
+                + "longDescription: A test package.\n"
+                + "git:\n"
+                + "  gitUrl: https://example.com/test.git\n"
+                + "  commit: 0123456789abcdef\n"
+                + "versions:\n"
+                + "- version: 1.0.0\n"
+                + "  release: 1\n"
+                + "  date: 2017-01-01T00:00:00Z\n",
+                Capsula.class);
+        write(layoutDirectory.resolve("layout.yaml"),
+                "id: test\n"
+                + "name: Test\n"
+                + "prepare:\n"
+                + "- template:\n"
+                + "    from: package.ftl\n"
+                + "    to: test.pkg\n"
+                + "build: []\n"
+                + "packages:\n"
+                + "- test.pkg\n");
+        write(layoutDirectory.resolve("package.ftl"),
+                "${capsula.packageName}\n");
+
+        boolean[] rebuilds = {false, false, true};
+        boolean[] unchanged = {false, true, false};
+        for (int i = 0; i < rebuilds.length; i++) {
+            TargetBuilder builder = new TargetBuilder(build, tmp, "test",
+                    layoutDirectory, Stage.COPY_RESULT, false,
+                    tmp.resolve("out"));
+            builder.setRebuild(rebuilds[i]);
+            TargetBuilder.Result result = builder.call();
+            assertTrue(String.valueOf(result.getFailure()),
+                    result.isSuccess());
+            assertEquals("run " + i, unchanged[i], result.isUnchanged());
+            assertTrue(Files.isRegularFile(
+                    builder.getOutDirectory().resolve("test.pkg")));
+        }
+    }
+}
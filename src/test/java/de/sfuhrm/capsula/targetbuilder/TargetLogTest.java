@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetbuilder;
+
+import de.sfuhrm.capsula.FileUtils;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the {@link TargetLog}.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class TargetLogTest {
+
+    @Test
+    public void testLineWithTail() throws IOException {
+        Path dir = Files.createTempDirectory("capsula-log");
+        Path file = dir.resolve("target").resolve("build.log");
+        try {
+            try (TargetLog log = new TargetLog(file, 2, null, "")) {
+                log.line("a");
+                log.line("b");
+                log.line("c");
+                assertEquals(Arrays.asList("b", "c"), log.getTail());
+            }
+            assertEquals(Arrays.asList("a", "b", "c"),
+                    Files.readAllLines(file, StandardCharsets.UTF_8));
+        } finally {
+            FileUtils.deleteRecursive(dir);
+        }
+    }
+
+    @Test
+    public void testLineWithEcho() throws IOException {
+        Path file = Files.createTempFile("capsula", ".log");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            try (TargetLog log = new TargetLog(file, 0,
+                    new PrintStream(out, true, "UTF-8"), "[t] ")) {
+                log.line("hello");
+                assertTrue(log.getTail().isEmpty());
+            }
+            assertEquals("[t] hello" + System.lineSeparator(),
+                    out.toString("UTF-8"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testChunkWithEcho() throws IOException {
+        Path file = Files.createTempFile("capsula", ".log");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            try (TargetLog log = new TargetLog(file, 2,
+                    new PrintStream(out, true, "UTF-8"), "[t] ")) {
+                log.line("$ make");
+                ByteBuffer chunk = ByteBuffer.wrap(
+                        "x\ncc\nyy\n".getBytes(StandardCharsets.UTF_8));
+                chunk.position(2);
+                log.chunk(chunk);
+                assertEquals(2, chunk.position());
+                assertEquals(Arrays.asList("cc", "yy"), log.getTail());
+            }
+            assertEquals(Arrays.asList("$ make", "cc", "yy"),
+                    Files.readAllLines(file, StandardCharsets.UTF_8));
+            assertEquals("[t] $ make" + System.lineSeparator()
+                    + "[t] cc" + System.lineSeparator()
+                    + "[t] yy" + System.lineSeparator(),
+                    out.toString("UTF-8"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testGetTailWithLongFile() throws IOException {
+        Path file = Files.createTempFile("capsula", ".log");
+        char[] filler = new char[5000];
+        Arrays.fill(filler, 'x');
+        try {
+            TargetLog log = new TargetLog(file, 3, null, "");
+            try {
+                for (int i = 0; i < 10000; i++) {
+                    log.line("line " + i + " " + new String(filler));
+                }
+            } finally {
+                log.close();
+            }
+            List<String> tail = log.getTail();
+            assertEquals(3, tail.size());
+            assertTrue(tail.get(0).startsWith("line 9997 "));
+            assertTrue(tail.get(2).startsWith("line 9999 "));
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
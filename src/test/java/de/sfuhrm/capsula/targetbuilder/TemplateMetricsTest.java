@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetbuilder;
+
+import freemarker.template.Configuration;
+import freemarker.template.Template;
+import java.io.IOException;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link TemplateMetrics}.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class TemplateMetricsTest {
+
+    private static Template parse(final String name, final String source)
+            throws IOException {
+        return new Template(name, source,
+                new Configuration(Configuration.VERSION_2_3_23));
+    }
+
+    @Test
+    public void testCallSites() throws IOException {
+        Template template = parse("rules", "<#list l as e>"
+                + "<@install cmd=e/><@install cmd=e/></#list><@ns.other/>");
+        try (TemplateMetrics metrics = TemplateMetrics.start(template)) {
+            assertEquals(Integer.valueOf(2),
+                    metrics.getMacroCallSites().get("install"));
+            assertEquals(Integer.valueOf(1),
+                    metrics.getMacroCallSites().get("ns.other"));
+            assertTrue(metrics.getIncludes().isEmpty());
+        }
+    }
+
+    @Test
+    public void testIncluded() throws IOException {
+        Template template = parse("rules", "text");
+        Template included = parse("include-install.txt",
+                "<#macro install><@inner/></#macro>");
+        try (TemplateMetrics metrics = TemplateMetrics.start(template)) {
+            TemplateMetrics.included(included);
+            TemplateMetrics.included(included);
+            assertEquals(Integer.valueOf(2),
+                    metrics.getIncludes().get("include-install.txt"));
+            assertEquals(Integer.valueOf(2),
+                    metrics.getMacroCallSites().get("inner"));
+        }
+    }
+
+    @Test
+    public void testIncludedWithoutRendering() throws IOException {
+        TemplateMetrics.included(parse("other", "<@m/>"));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.targetlocator;
+
+import de.sfuhrm.capsula.BuildException;
+import de.sfuhrm.capsula.FileUtils;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the {@link TargetIndex}.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class TargetIndexTest {
+
+    private Path root;
+
+    @Before
+    public void before() throws IOException {
+        root = Files.createTempDirectory("targetindex");
+        Files.createDirectories(root.resolve("targets/foo"));
+        Files.createDirectories(root.resolve("include"));
+        write("targets/foo/layout.yaml", "id: ${capsula.packageName}\n"
+                + "<#include \"/include/inc.txt\">");
+        write("targets/foo/Dockerfile", "FROM debian:${not.a.template}");
+        write("include/inc.txt", "<#if x>y</#if>");
+    }
+
+    @After
+    public void after() {
+        FileUtils.deleteRecursive(root);
+    }
+
+    private void write(final String name, final String content)
+            throws IOException {
+        Files.write(root.resolve(name),
+                content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testCreate() throws IOException {
+        List<String> resources = TargetIndex.create(root);
+        assertEquals(Arrays.asList(
+                "targets/foo/Dockerfile",
+                "targets/foo/layout.yaml",
+                "include/inc.txt"), resources);
+    }
+
+    @Test(expected = BuildException.class)
+    public void testCreateWithBrokenTemplate() throws IOException {
+        write("targets/foo/build.sh.ftl", "<#if broken");
+        TargetIndex.create(root);
+    }
+
+    @Test
+    public void testReadMissing() throws IOException {
+        ClassLoader empty = new ClassLoader(null) { };
+        assertFalse(TargetIndex.read(empty).isPresent());
+    }
+
+    @Test
+    public void testReadBuiltIn() throws IOException {
+        List<String> resources = TargetIndex.read(
+                getClass().getClassLoader()).get();
+        assertTrue(resources.contains("targets/centos_7/layout.yaml"));
+        assertTrue(resources.contains("include/include-install.txt"));
+    }
+}
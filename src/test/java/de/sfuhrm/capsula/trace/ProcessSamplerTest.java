@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.trace;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+/**
+ * Tests the {@link ProcessSampler}.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class ProcessSamplerTest {
+
+    @Test
+    public void testStartAndStop() throws IOException, InterruptedException {
+        assumeTrue(ProcessSampler.isSupported());
+        // the busy loop runs in a child of the sampled shell
+        Process process = new ProcessBuilder("sh", "-c",
+                "sh -c 'i=0; while [ $i -lt 200000 ]; do i=$((i+1)); done'"
+                + "; sleep 0.3")
+                .start();
+        ProcessSampler sampler = ProcessSampler.start(process.toHandle(),
+                Duration.ofMillis(20));
+        assertEquals(0, process.waitFor());
+        ResourceUsage usage = sampler.stop();
+
+        assertTrue(usage.toString(), usage.getCpuUserMillis()
+                + usage.getCpuSystemMillis() > 0);
+        assertTrue(usage.toString(), usage.getPeakRssBytes() > 0);
+    }
+
+    @Test
+    public void testWrapCountsTerminatedCommand()
+            throws IOException, InterruptedException {
+        assumeTrue(ProcessSampler.isSupported());
+        Path times = Files.createTempFile("times", "");
+        try {
+            // the interval is too long for a sample of the busy loop
+            Process process = new ProcessBuilder(ProcessSampler.wrap(
+                    Arrays.asList("sh", "-c",
+                            "i=0; while [ $i -lt 300000 ]; do i=$((i+1));"
+                            + " done; exit 3"), times))
+                    .start();
+            ProcessSampler sampler = ProcessSampler.start(
+                    process.toHandle(), Duration.ofMinutes(1), times);
+            assertEquals(3, process.waitFor());
+            ResourceUsage usage = sampler.stop();
+
+            assertTrue(usage.toString(), usage.getCpuUserMillis()
+                    + usage.getCpuSystemMillis() > 0);
+        } finally {
+            Files.delete(times);
+        }
+    }
+
+    @Test
+    public void testReadTimes() throws IOException {
+        Path file = Files.createTempFile("times", "");
+        try {
+            Files.write(file, ("0m0.004s 0m0.000s\n"
+                    + "1m2.500s 0m0.031s\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+            long[] times = ProcessSampler.readTimes(file).get();
+            assertEquals(62500, times[0]);
+            assertEquals(31, times[1]);
+
+            Files.write(file, new byte[0]);
+            assertFalse(ProcessSampler.readTimes(file).isPresent());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testReadKeyValues() throws IOException {
+        Path file = Files.createTempFile("status", "");
+        try {
+            Files.write(file, ("Name:\tsh\n"
+                    + "VmHWM:\t    1024 kB\n"
+                    + "read_bytes: 4096\n"
+                    + "no colon\n").getBytes(StandardCharsets.US_ASCII));
+            Map<String, Long> values = ProcessSampler.readKeyValues(file);
+            assertEquals(2, values.size());
+            assertEquals(Long.valueOf(1024), values.get("VmHWM"));
+            assertEquals(Long.valueOf(4096), values.get("read_bytes"));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testResourceUsagePlus() {
+        ResourceUsage a = new ResourceUsage(10, 1, 300, 5, 6);
+        ResourceUsage b = new ResourceUsage(20, 2, 100, 7, 8);
+        assertEquals(new ResourceUsage(30, 3, 300, 12, 14), a.plus(b));
+        assertEquals(a, a.plus(ResourceUsage.NONE));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2017 Stephan Fuhrmann
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package de.sfuhrm.capsula.trace;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ * Tests the {@link Tracer}.
+ *
+ * @author Stephan Fuhrmann
+ */
+public class TracerTest {
+
+    @Test
+    public void testStartWithNesting() {
+        Tracer tracer = new Tracer();
+        try (Span outer = tracer.start("stage", "BUILD")) {
+            try (Span inner = tracer.start("command", "b0")) {
+                inner.arg("target", "capsula/debian");
+            }
+            outer.arg("commands", 1);
+        }
+        List<Span> spans = tracer.getSpans();
+        assertEquals(2, spans.size());
+        assertEquals("BUILD", spans.get(0).getName());
+        assertEquals("b0", spans.get(1).getName());
+        assertEquals(1, spans.get(0).getArgs().get("commands"));
+        assertEquals("capsula/debian", spans.get(1).getArgs().get("target"));
+        assertTrue(spans.get(0).getDurationNanos()
+                >= spans.get(1).getDurationNanos());
+    }
+
+    @Test
+    public void testStartWithDisabled() {
+        try (Span span = Tracer.DISABLED.start("stage", "BUILD")) {
+            span.arg("target", "debian");
+        }
+        assertTrue(Tracer.DISABLED.getSpans().isEmpty());
+    }
+
+    @Test
+    public void testWriteChromeTrace() throws IOException {
+        Tracer tracer = new Tracer();
+        tracer.start("stage", "BUILD").close();
+        Path file = Files.createTempFile("trace", ".json");
+        try {
+            tracer.writeChromeTrace(file);
+            JsonNode events = new ObjectMapper().readTree(file.toFile())
+                    .get("traceEvents");
+            assertEquals(2, events.size());
+            assertEquals("X", events.get(0).get("ph").asText());
+            assertEquals("BUILD", events.get(0).get("name").asText());
+            assertEquals("M", events.get(1).get("ph").asText());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testWriteReport() throws IOException {
+        Tracer tracer = new Tracer();
+        tracer.start("command", "b0").close();
+        tracer.start("command", "b0").close();
+        Path file = Files.createTempFile("report", ".json");
+        try {
+            tracer.writeReport(file);
+            JsonNode report = new ObjectMapper().readTree(file.toFile());
+            assertEquals(2, report.get("spans").size());
+            assertTrue(report.get("totalMillis").get("command").has("b0"));
+            assertEquals(2, report.get("slowest").get("command").size());
+        } finally {
+            Files.delete(file);
+        }
+    }
+}